@@ -0,0 +1,307 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the cost of parsing and encoding each type of TFTPPacket, for a
+ * range of payload and option sizes, so that changes to the codec can be
+ * checked for speed and for the garbage they create.
+ * 
+ * Each case is run in batches which are grown until a batch takes long
+ * enough to time, then warmed up so that the code has been compiled, then
+ * measured over a number of rounds. The time and the bytes allocated by the
+ * benchmark's thread are reported for each operation. An OACK packet is only
+ * an opcode followed by options, so its rows measure the OptionSet, and the
+ * opcode rows measure TFTPOpcode.fromInt on its own.
+ * 
+ * Cases whose names do not contain the filter, if one is given, are skipped.
+ * 
+ * Run with: java -cp bin TFTPPacketBenchmark [rounds] [filter]
+ */
+public class TFTPPacketBenchmark {
+	
+	/**
+	 * Default number of measured rounds
+	 */
+	private static final int DEFAULT_ROUNDS = 10;
+	/**
+	 * Rounds run before measuring, so that the code has been compiled
+	 */
+	private static final int WARMUP_ROUNDS = 5;
+	/**
+	 * Shortest time a round may take, in nanoseconds
+	 */
+	private static final long MIN_ROUND_TIME = 20_000_000L;
+	/**
+	 * Payload sizes of DATA packets, from an empty final block to the
+	 * largest block
+	 */
+	private static final int[] DATA_SIZES = {0, 512, 1428, 8192,
+			TFTPPacket.MAX_BLOCK_SIZE};
+	/**
+	 * Options which a client may request, with typical values
+	 */
+	private static final String[][] OPTIONS = {
+		{TFTPPacket.OptionSet.BLOCK_SIZE, "1428"},
+		{TFTPPacket.OptionSet.WINDOW_SIZE, "16"},
+		{TFTPPacket.OptionSet.TRANSFER_SIZE, "104857600"},
+		{TFTPPacket.OptionSet.TIMEOUT, "2"},
+		{TFTPPacket.OptionSet.ROLLOVER, "0"},
+		{TFTPPacket.OptionSet.ACK_INTERVAL, "4"},
+		{TFTPPacket.OptionSet.FEC, "8"},
+		{TFTPPacket.OptionSet.MULTICAST, ""}
+	};
+	/**
+	 * Numbers of options in requests
+	 */
+	private static final int[] REQUEST_OPTIONS = {0, 2, OPTIONS.length};
+	/**
+	 * Numbers of options in options acknowledgments, which acknowledge at
+	 * least one option
+	 */
+	private static final int[] ACK_OPTIONS = {1, 2, OPTIONS.length};
+	
+	/**
+	 * Keeps results alive so that the work which made them is not
+	 * optimized away
+	 */
+	private static volatile int sink;
+	
+	/**
+	 * A single operation to measure.
+	 */
+	private static interface Operation {
+		/**
+		 * Run the operation once.
+		 * 
+		 * @param i The number of the run, to vary the input
+		 * @return Anything which depends on the result
+		 */
+		int run (int i);
+	}
+	
+	/**
+	 * A named operation.
+	 */
+	private static class Case {
+		private String name;
+		private Operation operation;
+		
+		private Case (String name, Operation operation)
+		{
+			this.name = name;
+			this.operation = operation;
+		}
+	}
+	
+	/**
+	 * Cost of one operation of a case.
+	 */
+	private static class Result {
+		private double nanos = 0;
+		private double bytes = -1;
+	}
+	
+	/**
+	 * Reads the number of bytes allocated by a thread, or null if the JVM
+	 * can not
+	 */
+	private static com.sun.management.ThreadMXBean threads = null;
+	
+	static {
+		if (ManagementFactory.getThreadMXBean() instanceof
+				com.sun.management.ThreadMXBean) {
+			threads = (com.sun.management.ThreadMXBean)
+					ManagementFactory.getThreadMXBean();
+			if (threads.isThreadAllocatedMemorySupported()) {
+				threads.setThreadAllocatedMemoryEnabled(true);
+			} else {
+				threads = null;
+			}
+		}
+	}
+	
+	/**
+	 * Get the number of bytes allocated by this thread so far.
+	 * 
+	 * @return The number of bytes, or 0 if it can not be measured
+	 */
+	private static long allocatedBytes ()
+	{
+		return (threads == null) ? 0 :
+				threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	/**
+	 * Build a read request.
+	 * 
+	 * @param options The number of options to add
+	 * @return The request
+	 */
+	private static TFTPPacket.RRQ request (int options)
+	{
+		TFTPPacket.RRQ request = new TFTPPacket.RRQ("files/test_file.bin",
+				TFTPPacket.TFTPMode.OCTET);
+		for (int i = 0; i < options; i++) {
+			request.getOptions().addOption(OPTIONS[i][0], OPTIONS[i][1]);
+		}
+		return request;
+	}
+	
+	/**
+	 * Build an options acknowledgment.
+	 * 
+	 * @param options The number of options to add
+	 * @return The options acknowledgment
+	 */
+	private static TFTPPacket.OACK optionAck (int options)
+	{
+		TFTPPacket.OACK optionAck = new TFTPPacket.OACK();
+		for (int i = 0; i < options; i++) {
+			optionAck.getOptions().addOption(OPTIONS[i][0], OPTIONS[i][1]);
+		}
+		return optionAck;
+	}
+	
+	/**
+	 * Add a case which parses a packet and one which encodes it.
+	 * 
+	 * @param cases The list to add the cases to
+	 * @param name The name of the packet
+	 * @param packet The packet
+	 */
+	private static void addCases (List<Case> cases, String name,
+			TFTPPacket packet)
+	{
+		byte[] bytes = packet.toBytes();
+		cases.add(new Case("parse " + name,
+				(i) -> TFTPPacket.parse(bytes).size()));
+		cases.add(new Case("toBytes " + name,
+				(i) -> packet.toBytes().length));
+	}
+	
+	/**
+	 * Build every case.
+	 * 
+	 * @return The cases
+	 */
+	private static List<Case> cases ()
+	{
+		List<Case> cases = new ArrayList<Case>();
+		Random random = new Random(42);
+		
+		cases.add(new Case("opcode fromInt",
+				(i) -> TFTPPacket.TFTPOpcode.fromInt(1 + (i % 7))
+						.getOpcode()));
+		
+		for (int options : REQUEST_OPTIONS) {
+			addCases(cases, "RRQ " + options + " options", request(options));
+		}
+		for (int size : DATA_SIZES) {
+			byte[] payload = new byte[size];
+			random.nextBytes(payload);
+			addCases(cases, "DATA " + size + " bytes",
+					new TFTPPacket.DATA(1, payload));
+		}
+		addCases(cases, "ACK", new TFTPPacket.ACK(1));
+		addCases(cases, "ERROR short", new TFTPPacket.ERROR(
+				TFTPPacket.TFTPError.FILE_NOT_FOUND, "File not found."));
+		char[] description = new char[500];
+		Arrays.fill(description, 'x');
+		addCases(cases, "ERROR 500 chars", new TFTPPacket.ERROR(
+				TFTPPacket.TFTPError.ERROR, new String(description)));
+		for (int options : ACK_OPTIONS) {
+			addCases(cases, "OACK " + options + " options",
+					optionAck(options));
+		}
+		for (int size : new int[] {512, 8192}) {
+			byte[] parity = new byte[size];
+			random.nextBytes(parity);
+			addCases(cases, "PARITY " + size + " bytes",
+					new TFTPPacket.PARITY(1, 8, 0, parity));
+		}
+		
+		return cases;
+	}
+	
+	/**
+	 * Run an operation a number of times.
+	 * 
+	 * @param operation The operation
+	 * @param count The number of times to run it
+	 * @return The time taken in nanoseconds
+	 */
+	private static long batch (Operation operation, int count)
+	{
+		int result = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+			result += operation.run(i);
+		}
+		long time = System.nanoTime() - start;
+		sink = result;
+		return time;
+	}
+	
+	/**
+	 * Measure a case.
+	 * 
+	 * @param operation The operation of the case
+	 * @param rounds The number of measured rounds
+	 * @return The cost of one operation
+	 */
+	private static Result measure (Operation operation, int rounds)
+	{
+		// Grow the batch until it is long enough to time
+		int count = 1;
+		while ((batch(operation, count) < MIN_ROUND_TIME) &&
+				(count < (1 << 30))) {
+			count *= 2;
+		}
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			batch(operation, count);
+		}
+		
+		long time = 0;
+		long allocated = allocatedBytes();
+		for (int i = 0; i < rounds; i++) {
+			time += batch(operation, count);
+		}
+		allocated = allocatedBytes() - allocated;
+		
+		Result result = new Result();
+		long operations = (long)count * rounds;
+		result.nanos = (double)time / operations;
+		if (threads != null) {
+			result.bytes = (double)allocated / operations;
+		}
+		return result;
+	}
+	
+	/**
+	 * Run the benchmark.
+	 * 
+	 * @param args The number of rounds and a filter for the cases, optional
+	 */
+	public static void main (String[] args)
+	{
+		int rounds = (args.length > 0) ?
+				Integer.parseInt(args[0]) : DEFAULT_ROUNDS;
+		String filter = (args.length > 1) ? args[1] : "";
+		
+		System.out.printf("%d rounds of at least %d ms for each case%n",
+				rounds, MIN_ROUND_TIME / 1_000_000);
+		System.out.printf("%-28s %12s %12s%n", "", "ns/op", "bytes/op");
+		for (Case c : cases()) {
+			if (!c.name.contains(filter)) {
+				continue;
+			}
+			Result result = measure(c.operation, rounds);
+			System.out.printf("%-28s %12.1f %12s%n", c.name, result.nanos,
+					(result.bytes < 0) ? "-" :
+					String.format("%.1f", result.bytes));
+		}
+	}
+}
@@ -0,0 +1,218 @@
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the cost of setting, resetting and cancelling timers on a
+ * TimingWheel with a ScheduledThreadPoolExecutor, the usual alternative.
+ * 
+ * Each round sets 100,000 timers with deadlines spread over the next ten
+ * seconds, the way retransmit and idle timers of many transfers would be.
+ * The timers are then reset once each, as happens every time an ACK
+ * arrives, and finally cancelled. The wheel is also turned through all of
+ * its timers using a simulated clock, which the executor has no
+ * equivalent of without waiting for real time to pass.
+ * 
+ * The executor is thread safe and the wheel is not, so the comparison is
+ * of what an event loop would pay for its timers with each.
+ * 
+ * Run with: java -cp bin TimingWheelBenchmark [timers] [rounds]
+ */
+public class TimingWheelBenchmark {
+	
+	/**
+	 * Default number of timers in each round
+	 */
+	private static final int DEFAULT_TIMERS = 100_000;
+	/**
+	 * Default number of measured rounds
+	 */
+	private static final int DEFAULT_ROUNDS = 10;
+	/**
+	 * Rounds run before measuring, so that the code has been compiled
+	 */
+	private static final int WARMUP_ROUNDS = 5;
+	/**
+	 * Longest delay of a timer in nanoseconds
+	 */
+	private static final long MAX_DELAY = 10_000_000_000L;
+	
+	/**
+	 * Does nothing, the benchmark measures the timers not their tasks
+	 */
+	private static final Runnable NOTHING = () -> {};
+	
+	/**
+	 * Time taken by each step of a round, in nanoseconds
+	 */
+	private static class Result {
+		private long schedule = 0;
+		private long reschedule = 0;
+		private long cancel = 0;
+		private long expire = 0;
+		
+		/**
+		 * Add the times of another round.
+		 * 
+		 * @param other The other round
+		 */
+		private void add (Result other)
+		{
+			this.schedule += other.schedule;
+			this.reschedule += other.reschedule;
+			this.cancel += other.cancel;
+			this.expire += other.expire;
+		}
+	}
+	
+	/**
+	 * Run one round on a timing wheel.
+	 * 
+	 * @param delays The delay of each timer
+	 * @return The times taken
+	 */
+	private static Result roundWheel (long[] delays)
+	{
+		Result result = new Result();
+		long now = RetransmitTimer.now();
+		TimingWheel wheel = new TimingWheel(TimingWheel.DEFAULT_TICK, now);
+		TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[delays.length];
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < delays.length; i++) {
+			timeouts[i] = wheel.schedule(now + delays[i], NOTHING);
+		}
+		result.schedule = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		for (int i = 0; i < delays.length; i++) {
+			timeouts[i].cancel();
+			timeouts[i] = wheel.schedule(now + delays[delays.length - 1 - i],
+					NOTHING);
+		}
+		result.reschedule = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		for (int i = 0; i < delays.length; i++) {
+			timeouts[i].cancel();
+		}
+		result.cancel = System.nanoTime() - start;
+		
+		// Set again and expire every timer, one tick at a time
+		for (int i = 0; i < delays.length; i++) {
+			wheel.schedule(now + delays[i], NOTHING);
+		}
+		start = System.nanoTime();
+		int expired = 0;
+		for (long time = now; time <= now + MAX_DELAY;
+				time += TimingWheel.DEFAULT_TICK) {
+			expired += wheel.expire(time);
+		}
+		result.expire = System.nanoTime() - start;
+		if (expired != delays.length) {
+			throw new IllegalStateException("Only " + expired + " of " +
+					delays.length + " timers expired.");
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Run one round on a scheduled thread pool executor.
+	 * 
+	 * @param delays The delay of each timer
+	 * @return The times taken
+	 */
+	private static Result roundExecutor (long[] delays)
+	{
+		Result result = new Result();
+		ScheduledThreadPoolExecutor executor =
+				new ScheduledThreadPoolExecutor(1);
+		// Otherwise cancelled tasks stay in the queue until their deadline
+		executor.setRemoveOnCancelPolicy(true);
+		ScheduledFuture<?>[] futures = new ScheduledFuture<?>[delays.length];
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < delays.length; i++) {
+			futures[i] = executor.schedule(NOTHING, delays[i],
+					TimeUnit.NANOSECONDS);
+		}
+		result.schedule = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		for (int i = 0; i < delays.length; i++) {
+			futures[i].cancel(false);
+			futures[i] = executor.schedule(NOTHING,
+					delays[delays.length - 1 - i], TimeUnit.NANOSECONDS);
+		}
+		result.reschedule = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		for (int i = 0; i < delays.length; i++) {
+			futures[i].cancel(false);
+		}
+		result.cancel = System.nanoTime() - start;
+		
+		executor.shutdownNow();
+		return result;
+	}
+	
+	/**
+	 * Print the average cost of each step.
+	 * 
+	 * @param name The name of the timer implementation
+	 * @param total The total times of every round
+	 * @param operations The number of timers in every round together
+	 * @param expire Whether the expire time was measured
+	 */
+	private static void print (String name, Result total, long operations,
+			boolean expire)
+	{
+		System.out.printf("%-28s %10.1f %12.1f %10.1f %10s%n", name,
+				(double)total.schedule / operations,
+				(double)total.reschedule / operations,
+				(double)total.cancel / operations,
+				expire ? String.format("%.1f",
+						(double)total.expire / operations) : "-");
+	}
+	
+	/**
+	 * Run the benchmark.
+	 * 
+	 * @param args The number of timers and the number of rounds, optional
+	 */
+	public static void main (String[] args)
+	{
+		int timers = (args.length > 0) ?
+				Integer.parseInt(args[0]) : DEFAULT_TIMERS;
+		int rounds = (args.length > 1) ?
+				Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+		
+		Random random = new Random(42);
+		long[] delays = new long[timers];
+		for (int i = 0; i < timers; i++) {
+			delays[i] = (long)(random.nextDouble() * MAX_DELAY);
+		}
+		
+		for (int i = 0; i < WARMUP_ROUNDS; i++) {
+			roundWheel(delays);
+			roundExecutor(delays);
+		}
+		
+		Result wheel = new Result();
+		Result executor = new Result();
+		for (int i = 0; i < rounds; i++) {
+			wheel.add(roundWheel(delays));
+			executor.add(roundExecutor(delays));
+		}
+		
+		long operations = (long)timers * rounds;
+		System.out.printf("%,d timers, %d rounds, nanoseconds per timer%n",
+				timers, rounds);
+		System.out.printf("%-28s %10s %12s %10s %10s%n", "", "schedule",
+				"reschedule", "cancel", "expire");
+		print("TimingWheel", wheel, operations, true);
+		print("ScheduledThreadPoolExecutor", executor, operations, false);
+	}
+}
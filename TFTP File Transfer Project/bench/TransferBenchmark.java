@@ -0,0 +1,395 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures complete transfers between a TFTPSendTransaction and a
+ * TFTPReceiveTransaction, each on its own thread, for a range of block and
+ * window sizes.
+ * 
+ * Every case is run over a LoopbackTransport, which carries packets between
+ * the two transactions in memory, and over UDP sockets on the loopback
+ * interface. The loopback rows are the cost of the protocol engine alone
+ * and the difference to the UDP rows is the cost of the kernel's network
+ * stack. A share of the packets on the in memory network can be dropped to
+ * measure recovery from loss, which real loopback sockets rarely show.
+ * 
+ * The throughput of file data, the packets sent by both sides each second
+ * and the bytes allocated by both threads for each packet are reported.
+ * 
+ * Run with: java -cp bin TransferBenchmark [megabytes] [loss] [rounds]
+ * 
+ * For example "java -cp bin TransferBenchmark 2 0.02 1" drops 2% of the
+ * packets on the in memory network. A dropped final ACK leaves the sender
+ * waiting until it times out, which is counted in the time of the round.
+ */
+public class TransferBenchmark {
+	
+	/**
+	 * Default size of the file transferred, in megabytes
+	 */
+	private static final int DEFAULT_MEGABYTES = 16;
+	/**
+	 * Default number of measured rounds
+	 */
+	private static final int DEFAULT_ROUNDS = 3;
+	/**
+	 * Rounds run before measuring, so that the code has been compiled
+	 */
+	private static final int WARMUP_ROUNDS = 2;
+	/**
+	 * Block size and window size of each case
+	 */
+	private static final int[][] CASES = {
+		{TFTPPacket.BLOCK_SIZE, 1},
+		{1428, 1},
+		{1428, 8},
+		{8192, 16},
+		{TFTPPacket.MAX_BLOCK_SIZE, 4}
+	};
+	
+	/**
+	 * Reads the number of bytes allocated by a thread, or null if the JVM
+	 * can not
+	 */
+	private static com.sun.management.ThreadMXBean threads = null;
+	
+	static {
+		if (ManagementFactory.getThreadMXBean() instanceof
+				com.sun.management.ThreadMXBean) {
+			threads = (com.sun.management.ThreadMXBean)
+					ManagementFactory.getThreadMXBean();
+			if (threads.isThreadAllocatedMemorySupported()) {
+				threads.setThreadAllocatedMemoryEnabled(true);
+			} else {
+				threads = null;
+			}
+		}
+	}
+	
+	/**
+	 * Counts the packets sent on another transport.
+	 */
+	private static class CountingTransport implements Transport {
+		private Transport transport;
+		private long sent = 0;
+		
+		private CountingTransport (Transport transport)
+		{
+			this.transport = transport;
+		}
+		
+		public void send (DatagramPacket packet) throws IOException
+		{
+			this.sent++;
+			this.transport.send(packet);
+		}
+		
+		public void receive (DatagramPacket packet, long deadline)
+				throws IOException
+		{
+			this.transport.receive(packet, deadline);
+		}
+		
+		public int reserveWindow (int blockSize, int windowSize)
+				throws IOException
+		{
+			return this.transport.reserveWindow(blockSize, windowSize);
+		}
+		
+		public InetSocketAddress getLocalAddress ()
+		{
+			return this.transport.getLocalAddress();
+		}
+		
+		public void close ()
+		{
+			this.transport.close();
+		}
+	}
+	
+	/**
+	 * Runs a transaction on its own thread, measuring what it allocates.
+	 */
+	private static class Side implements Runnable {
+		private TFTPTransaction transaction;
+		private Thread thread;
+		private long allocated = 0;
+		
+		private Side (TFTPTransaction transaction)
+		{
+			this.transaction = transaction;
+			this.thread = new Thread(this);
+		}
+		
+		public void run ()
+		{
+			long start = allocatedBytes();
+			this.transaction.run();
+			this.allocated = allocatedBytes() - start;
+		}
+	}
+	
+	/**
+	 * Totals of the measured rounds of a case.
+	 */
+	private static class Result {
+		private long nanos = 0;
+		private long bytes = 0;
+		private long packets = 0;
+		private long allocated = 0;
+		/**
+		 * Packets dropped by the in memory network, or -1 for UDP where
+		 * packets dropped by the kernel can not be counted
+		 */
+		private long dropped = 0;
+		
+		/**
+		 * Add the totals of another round.
+		 * 
+		 * @param other The other round
+		 */
+		private void add (Result other)
+		{
+			this.nanos += other.nanos;
+			this.bytes += other.bytes;
+			this.packets += other.packets;
+			this.allocated += other.allocated;
+			this.dropped = (other.dropped < 0) ? -1 :
+					(this.dropped + other.dropped);
+		}
+	}
+	
+	/**
+	 * Get the number of bytes allocated by this thread so far.
+	 * 
+	 * @return The number of bytes, or 0 if it can not be measured
+	 */
+	private static long allocatedBytes ()
+	{
+		return (threads == null) ? 0 :
+				threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+	
+	/**
+	 * Transfer a file once.
+	 * 
+	 * @param sender The transport of the sending side
+	 * @param receiver The transport of the receiving side
+	 * @param source The file to send
+	 * @param dest Where to store the received file
+	 * @param blockSize The block size
+	 * @param windowSize The window size
+	 * @return The totals of the transfer
+	 * @throws IOException If a file could not be opened
+	 * @throws InterruptedException If interrupted while waiting for the
+	 * 								transfer
+	 */
+	private static Result round (Transport sender, Transport receiver,
+			Path source, Path dest, int blockSize, int windowSize)
+			throws IOException, InterruptedException
+	{
+		Logger logger = new Logger();
+		logger.setVerboseLevel(LogLevel.QUIET, true);
+		CountingTransport senderCount = new CountingTransport(sender);
+		CountingTransport receiverCount = new CountingTransport(receiver);
+		InetSocketAddress senderAddress = sender.getLocalAddress();
+		InetSocketAddress receiverAddress = receiver.getLocalAddress();
+		
+		// Negotiated the way a server answers a read request
+		TFTPPacket.OACK optionAck = new TFTPPacket.OACK();
+		TFTPPacket.OptionSet options = optionAck.getOptions();
+		options.addOption(TFTPPacket.OptionSet.BLOCK_SIZE,
+				Integer.toString(blockSize));
+		options.addOption(TFTPPacket.OptionSet.WINDOW_SIZE,
+				Integer.toString(windowSize));
+		
+		Result result = new Result();
+		try (TFTPTransaction.TFTPSendTransaction send =
+				new TFTPTransaction.TFTPSendTransaction(senderCount,
+						receiverAddress.getAddress(), receiverAddress.getPort(),
+						source.toString(), false, logger);
+				TFTPTransaction.TFTPReceiveTransaction receive =
+				new TFTPTransaction.TFTPReceiveTransaction(receiverCount,
+						senderAddress.getAddress(), senderAddress.getPort(),
+						dest.toString(), false, false, logger)) {
+			send.setOptionAck(optionAck);
+			receive.setRequestedOptions(options);
+			
+			Side sendSide = new Side(send);
+			Side receiveSide = new Side(receive);
+			long start = System.nanoTime();
+			receiveSide.thread.start();
+			sendSide.thread.start();
+			sendSide.thread.join();
+			receiveSide.thread.join();
+			result.nanos = System.nanoTime() - start;
+			
+			// The receiver does not wait to re-send its final ACK, so if that
+			// ACK is dropped the sender can only time out, though the whole
+			// file arrived
+			boolean lastAckLost = (send.getState() == TFTPTransaction
+					.TFTPTransactionState.LAST_BLOCK_ACK_TIMEOUT) &&
+					(receive.getState() ==
+					TFTPTransaction.TFTPTransactionState.COMPLETE) &&
+					(Files.mismatch(source, dest) == -1);
+			if (!lastAckLost && ((send.getState() !=
+					TFTPTransaction.TFTPTransactionState.COMPLETE) ||
+					(receive.getState() !=
+					TFTPTransaction.TFTPTransactionState.COMPLETE))) {
+				throw new IllegalStateException("Transfer failed, sender " +
+						send.getState() + ", receiver " + receive.getState());
+			}
+			result.packets = senderCount.sent + receiverCount.sent;
+			result.allocated = sendSide.allocated + receiveSide.allocated;
+		}
+		result.bytes = Files.size(dest);
+		return result;
+	}
+	
+	/**
+	 * Transfer a file once over an in memory network.
+	 * 
+	 * @param loss The share of packets to drop
+	 * @param seed The seed for choosing the packets dropped
+	 * @param source The file to send
+	 * @param dest Where to store the received file
+	 * @param blockSize The block size
+	 * @param windowSize The window size
+	 * @return The totals of the transfer
+	 * @throws IOException If a file could not be opened
+	 * @throws InterruptedException If interrupted while waiting for the
+	 * 								transfer
+	 */
+	private static Result roundLoopback (double loss, long seed, Path source,
+			Path dest, int blockSize, int windowSize)
+			throws IOException, InterruptedException
+	{
+		LoopbackTransport.Network network = new LoopbackTransport.Network();
+		network.setLoss(loss, seed);
+		try (LoopbackTransport sender = network.open();
+				LoopbackTransport receiver = network.open()) {
+			Result result = round(sender, receiver, source, dest, blockSize,
+					windowSize);
+			result.dropped = network.getDropped();
+			return result;
+		}
+	}
+	
+	/**
+	 * Transfer a file once over UDP sockets on the loopback interface.
+	 * 
+	 * @param source The file to send
+	 * @param dest Where to store the received file
+	 * @param blockSize The block size
+	 * @param windowSize The window size
+	 * @return The totals of the transfer
+	 * @throws IOException If a socket could not be bound or a file opened
+	 * @throws InterruptedException If interrupted while waiting for the
+	 * 								transfer
+	 */
+	private static Result roundUDP (Path source, Path dest, int blockSize,
+			int windowSize) throws IOException, InterruptedException
+	{
+		InetAddress loopback = InetAddress.getLoopbackAddress();
+		try (UDPTransport sender = new UDPTransport(
+					new DatagramSocket(0, loopback));
+				UDPTransport receiver = new UDPTransport(
+					new DatagramSocket(0, loopback))) {
+			Result result = round(sender, receiver, source, dest, blockSize,
+					windowSize);
+			result.dropped = -1;
+			return result;
+		}
+	}
+	
+	/**
+	 * Print the averages of a case.
+	 * 
+	 * @param name The name of the transport
+	 * @param blockSize The block size
+	 * @param windowSize The window size
+	 * @param total The totals of every measured round
+	 */
+	private static void print (String name, int blockSize, int windowSize,
+			Result total)
+	{
+		double seconds = total.nanos / 1e9;
+		System.out.printf("%-10s %7d %7d %10.1f %12.0f %12s %8s%n", name,
+				blockSize, windowSize, total.bytes / 1e6 / seconds,
+				total.packets / seconds, (threads == null) ? "-" :
+				String.format("%.1f",
+						(double)total.allocated / total.packets),
+				(total.dropped < 0) ? "-" : Long.toString(total.dropped));
+	}
+	
+	/**
+	 * Run the benchmark.
+	 * 
+	 * @param args The size of the file in megabytes, the share of packets
+	 * 			   dropped by the in memory network and the number of
+	 * 			   rounds, optional
+	 * @throws IOException If the files could not be created
+	 * @throws InterruptedException If interrupted while waiting for a
+	 * 								transfer
+	 */
+	public static void main (String[] args)
+			throws IOException, InterruptedException
+	{
+		int megabytes = (args.length > 0) ?
+				Integer.parseInt(args[0]) : DEFAULT_MEGABYTES;
+		double loss = (args.length > 1) ? Double.parseDouble(args[1]) : 0;
+		int rounds = (args.length > 2) ?
+				Integer.parseInt(args[2]) : DEFAULT_ROUNDS;
+		
+		Path directory = Files.createTempDirectory("transfer-benchmark");
+		Path source = directory.resolve("source.bin");
+		Path dest = directory.resolve("dest.bin");
+		byte[] data = new byte[megabytes * 1_000_000];
+		new Random(42).nextBytes(data);
+		Files.write(source, data);
+		
+		System.out.printf("%d MB file, %.1f%% loss in memory, %d rounds%n",
+				megabytes, loss * 100, rounds);
+		System.out.printf("%-10s %7s %7s %10s %12s %12s %8s%n", "",
+				"blksize", "window", "MB/s", "packets/s", "alloc/pkt",
+				"dropped");
+		try {
+			for (int[] c : CASES) {
+				int blockSize = c[0];
+				int windowSize = c[1];
+				for (int i = 0; i < WARMUP_ROUNDS; i++) {
+					roundLoopback(loss, i, source, dest, blockSize,
+							windowSize);
+					roundUDP(source, dest, blockSize, windowSize);
+				}
+				
+				Result loopback = new Result();
+				Result udp = new Result();
+				for (int i = 0; i < rounds; i++) {
+					loopback.add(roundLoopback(loss, i, source, dest,
+							blockSize, windowSize));
+					udp.add(roundUDP(source, dest, blockSize, windowSize));
+				}
+				if (!Arrays.equals(data, Files.readAllBytes(dest))) {
+					throw new IllegalStateException("The file received " +
+							"does not match the file sent.");
+				}
+				
+				print("loopback", blockSize, windowSize, loopback);
+				print("udp", blockSize, windowSize, udp);
+			}
+		} finally {
+			Files.deleteIfExists(source);
+			Files.deleteIfExists(dest);
+			Files.deleteIfExists(directory);
+		}
+	}
+}
@@ -0,0 +1,763 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the rate at which the server sends data, so that one large read can
+ * not use all of the server's bandwidth and starve every other client.
+ *
+ * Each transfer is paced by its own token bucket, and the transfers from a
+ * client subnet which has a limit also share that subnet's token bucket. The
+ * server as a whole has a bandwidth budget which is shared between the
+ * transfers waiting to send by deficit round robin, so that every transfer
+ * gets the same number of bytes per round whatever block size it uses.
+ *
+ * Rates are in bytes per second and a rate of 0 means that there is no
+ * limit. Every limit can be changed while transfers are running.
+ */
+public class BandwidthLimiter {
+
+	/**
+	 * Bytes added to the deficit of a transfer at the start of its turn in
+	 * each round, about the size of one packet on an Ethernet network
+	 */
+	public static final int QUANTUM = 1500;
+
+	/**
+	 * Longest burst that a token bucket may save up, in nanoseconds at its
+	 * rate
+	 */
+	public static final long BURST_TIME = 50_000_000L;
+
+	/**
+	 * Bandwidth budget of the whole server
+	 */
+	private TokenBucket budget = new TokenBucket(0);
+
+	/**
+	 * Rate of each transfer
+	 */
+	private long transferRate = 0;
+
+	/**
+	 * Limits for client subnets, a transfer is limited by the first subnet
+	 * which contains the client
+	 */
+	private List<SubnetLimit> subnetLimits = new ArrayList<SubnetLimit>();
+
+	/**
+	 * Transfers which have been opened and not yet closed
+	 */
+	private Set<Transfer> transfers = new HashSet<Transfer>();
+
+	/**
+	 * Transfers waiting for their share of the budget, in round robin order
+	 */
+	private ArrayDeque<Transfer> waiting = new ArrayDeque<Transfer>();
+
+	/**
+	 * Held while the limits and the transfers are used. A lock rather than a
+	 * monitor so that a virtual thread which waits for the budget releases
+	 * its carrier thread instead of pinning it.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signalled when waiting transfers may be able to send
+	 */
+	private final Condition turn = this.lock.newCondition();
+
+	/**
+	 * Parse a rate, which is a number of bytes per second optionally followed
+	 * by k, m or g for thousands, millions or billions of bytes per second.
+	 *
+	 * @param rate The rate to parse, "off" or 0 for no limit
+	 * @return The rate in bytes per second
+	 * @throws IllegalArgumentException If the rate is not valid
+	 */
+	public static long parseRate (String rate) throws IllegalArgumentException
+	{
+		if (rate.equalsIgnoreCase("off")) {
+			return 0;
+		} else if (rate.isEmpty()) {
+			throw new IllegalArgumentException("Invalid rate: \"\"");
+		}
+
+		long multiplier = 1;
+		String digits = rate;
+		switch (Character.toLowerCase(rate.charAt(rate.length() - 1))) {
+		case 'k':
+			multiplier = 1_000L;
+			break;
+		case 'm':
+			multiplier = 1_000_000L;
+			break;
+		case 'g':
+			multiplier = 1_000_000_000L;
+			break;
+		}
+		if (multiplier != 1) {
+			digits = rate.substring(0, rate.length() - 1);
+		}
+
+		try {
+			double value = Double.parseDouble(digits);
+			if ((value >= 0) && (value * multiplier < Long.MAX_VALUE)) {
+				return (long)(value * multiplier);
+			}
+		} catch (NumberFormatException e) {
+			// Reported below
+		}
+		throw new IllegalArgumentException("Invalid rate: \"" + rate + "\"");
+	}
+
+	/**
+	 * Get a readable representation of a rate.
+	 *
+	 * @param rate The rate in bytes per second
+	 * @return The rate with units, or "off" if there is no limit
+	 */
+	public static String formatRate (long rate)
+	{
+		if (rate == 0) {
+			return "off";
+		} else if (rate >= 1_000_000_000L) {
+			return String.format("%.1f GB/s", rate / 1e9);
+		} else if (rate >= 1_000_000L) {
+			return String.format("%.1f MB/s", rate / 1e6);
+		} else if (rate >= 1_000L) {
+			return String.format("%.1f kB/s", rate / 1e3);
+		}
+		return rate + " B/s";
+	}
+
+	/**
+	 * Wait until a token bucket allows a packet to be sent.
+	 *
+	 * @param delay The delay returned by TokenBucket.reserve()
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	private static void pause (long delay) throws InterruptedException
+	{
+		if (delay > 0) {
+			Thread.sleep(delay / 1_000_000L, (int)(delay % 1_000_000L));
+		}
+	}
+
+	/**
+	 * Start limiting a transfer. The transfer must be closed once it is
+	 * complete.
+	 *
+	 * @param client The address of the client the transfer is sending to
+	 * @return The handle used to pace the transfer
+	 */
+	public Transfer open (InetAddress client)
+	{
+		this.lock.lock();
+		try {
+			Transfer transfer = new Transfer(client,
+					this.findSubnetLimit(client));
+			this.transfers.add(transfer);
+			return transfer;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the bandwidth budget of the whole server.
+	 *
+	 * @return The rate in bytes per second, 0 if there is no limit
+	 */
+	public long getTotalRate ()
+	{
+		return this.budget.getRate();
+	}
+
+	/**
+	 * Set the bandwidth budget of the whole server.
+	 *
+	 * @param rate The rate in bytes per second, 0 for no limit
+	 */
+	public void setTotalRate (long rate)
+	{
+		this.lock.lock();
+		try {
+			this.budget.setRate(rate);
+			// Waiting transfers may be able to go now
+			this.turn.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the rate of each transfer.
+	 *
+	 * @return The rate in bytes per second, 0 if there is no limit
+	 */
+	public long getTransferRate ()
+	{
+		this.lock.lock();
+		try {
+			return this.transferRate;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Set the rate of each transfer, including the transfers which are
+	 * already running.
+	 *
+	 * @param rate The rate in bytes per second, 0 for no limit
+	 */
+	public void setTransferRate (long rate)
+	{
+		this.lock.lock();
+		try {
+			this.transferRate = rate;
+			for (Transfer transfer : this.transfers) {
+				transfer.bucket.setRate(rate);
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the limits for client subnets.
+	 *
+	 * @return The limits, in the order they are checked
+	 */
+	public List<SubnetLimit> getSubnetLimits ()
+	{
+		this.lock.lock();
+		try {
+			return new ArrayList<SubnetLimit>(this.subnetLimits);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Set the limit shared by the transfers to a client subnet, including
+	 * the transfers which are already running.
+	 *
+	 * @param subnet The subnet as an address and prefix length, such as
+	 * 				 "192.168.1.0/24"
+	 * @param rate The rate in bytes per second, 0 to remove the limit
+	 * @throws IllegalArgumentException If the subnet is not valid
+	 */
+	public void setSubnetLimit (String subnet, long rate)
+			throws IllegalArgumentException
+	{
+		this.lock.lock();
+		try {
+			SubnetLimit limit = new SubnetLimit(subnet, rate);
+
+			for (SubnetLimit existing : this.subnetLimits) {
+				if (existing.toString().equals(limit.toString())) {
+					if (rate == 0) {
+						// Transfers which were limited by the subnet go back to
+						// the next subnet which contains their client
+						this.subnetLimits.remove(existing);
+						existing.bucket.setRate(0);
+						for (Transfer transfer : this.transfers) {
+							if (transfer.subnetLimit == existing) {
+								transfer.subnetLimit =
+										this.findSubnetLimit(transfer.client);
+							}
+						}
+					} else {
+						existing.bucket.setRate(rate);
+					}
+					return;
+				}
+			}
+
+			if (rate == 0) {
+				return;
+			}
+			this.subnetLimits.add(limit);
+			for (Transfer transfer : this.transfers) {
+				if ((transfer.subnetLimit == null) &&
+						limit.contains(transfer.client)) {
+					transfer.subnetLimit = limit;
+				}
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the number of transfers being limited.
+	 *
+	 * @return The number of open transfers
+	 */
+	public int getTransferCount ()
+	{
+		this.lock.lock();
+		try {
+			return this.transfers.size();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Find the first subnet limit which applies to a client.
+	 *
+	 * @param client The address of the client
+	 * @return The limit, or null if no subnet contains the client
+	 */
+	private SubnetLimit findSubnetLimit (InetAddress client)
+	{
+		for (SubnetLimit limit : this.subnetLimits) {
+			if (limit.contains(client)) {
+				return limit;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Wait for a transfer's turn to send a packet under the budget.
+	 *
+	 * @param transfer The transfer which is sending
+	 * @param bytes The size of the packet
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	private void schedule (Transfer transfer, int bytes)
+			throws InterruptedException
+	{
+		this.lock.lock();
+		try {
+			transfer.request = bytes;
+			transfer.granted = false;
+			if (transfer.deficit >= bytes) {
+				// Its turn in this round is not over yet
+				this.waiting.addFirst(transfer);
+			} else {
+				this.waiting.addLast(transfer);
+			}
+
+			try {
+				for (;;) {
+					long delay = this.grant();
+					if (transfer.granted) {
+						return;
+					}
+					if (delay > 0) {
+						this.turn.awaitNanos(delay);
+					} else {
+						this.turn.await();
+					}
+				}
+			} finally {
+				if (!transfer.granted) {
+					this.waiting.remove(transfer);
+				}
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Let waiting transfers send, in round robin order, for as long as the
+	 * budget allows.
+	 *
+	 * @return The time in nanoseconds until the budget allows the next
+	 * 		   packet to be sent
+	 */
+	private long grant ()
+	{
+		boolean granted = false;
+		long delay = 0;
+
+		while (!this.waiting.isEmpty()) {
+			delay = this.budget.delay();
+			if (delay > 0) {
+				break;
+			}
+
+			Transfer head = this.waiting.peekFirst();
+			if (head.deficit < head.request) {
+				// Start of the transfer's turn in this round
+				head.deficit += QUANTUM;
+				if (head.deficit < head.request) {
+					// Packet is larger than the quantum, keep saving up
+					this.waiting.addLast(this.waiting.removeFirst());
+					continue;
+				}
+			}
+
+			head.deficit -= head.request;
+			this.budget.take(head.request);
+			head.granted = true;
+			this.waiting.removeFirst();
+			granted = true;
+		}
+
+		if (granted) {
+			this.turn.signalAll();
+		}
+		return delay;
+	}
+
+	/**
+	 * Limits the rate of a transfer, and through it the rate of its subnet
+	 * and of the whole server.
+	 */
+	public class Transfer implements AutoCloseable {
+		/**
+		 * The address of the client the transfer is sending to
+		 */
+		private InetAddress client;
+		/**
+		 * Paces the transfer at the rate of each transfer
+		 */
+		private TokenBucket bucket;
+		/**
+		 * The limit of the client's subnet, or null if it has none
+		 */
+		private volatile SubnetLimit subnetLimit;
+		/**
+		 * Size of the packet waiting for the budget
+		 */
+		private int request = 0;
+		/**
+		 * Whether the packet waiting for the budget may be sent
+		 */
+		private boolean granted = false;
+		/**
+		 * Bytes which the transfer may still send in this round
+		 */
+		private long deficit = 0;
+
+		/**
+		 * Create a transfer.
+		 *
+		 * @param client The address of the client
+		 * @param subnetLimit The limit of the client's subnet, or null
+		 */
+		private Transfer (InetAddress client, SubnetLimit subnetLimit)
+		{
+			this.client = client;
+			this.subnetLimit = subnetLimit;
+			this.bucket = new TokenBucket(
+					BandwidthLimiter.this.transferRate);
+		}
+
+		/**
+		 * Wait until a packet may be sent.
+		 *
+		 * @param bytes The size of the packet
+		 * @throws InterruptedException If the thread is interrupted while
+		 * 								waiting
+		 */
+		public void acquire (int bytes) throws InterruptedException
+		{
+			pause(this.bucket.reserve(bytes));
+
+			SubnetLimit subnetLimit = this.subnetLimit;
+			if (subnetLimit != null) {
+				pause(subnetLimit.bucket.reserve(bytes));
+			}
+
+			if (BandwidthLimiter.this.budget.getRate() != 0) {
+				BandwidthLimiter.this.schedule(this, bytes);
+			}
+		}
+
+		/**
+		 * Check whether a packet may be sent now, for callers which can not
+		 * wait. The budget of the whole server is taken first come first
+		 * served rather than by round robin, since there is no waiting
+		 * thread to give a turn to.
+		 *
+		 * @param bytes The size of the packet
+		 * @return 0 if the packet may be sent, in which case it has been
+		 * 		   taken out of the limits, otherwise the time in nanoseconds
+		 * 		   to wait before trying again
+		 */
+		public long tryAcquire (int bytes)
+		{
+			SubnetLimit subnetLimit = this.subnetLimit;
+			TokenBucket budget = BandwidthLimiter.this.budget;
+
+			long delay = Math.max(this.bucket.delay(), budget.delay());
+			if (subnetLimit != null) {
+				delay = Math.max(delay, subnetLimit.bucket.delay());
+			}
+			if (delay > 0) {
+				return delay;
+			}
+
+			this.bucket.take(bytes);
+			budget.take(bytes);
+			if (subnetLimit != null) {
+				subnetLimit.bucket.take(bytes);
+			}
+			return 0;
+		}
+
+		/**
+		 * Stop limiting the transfer.
+		 */
+		public void close ()
+		{
+			BandwidthLimiter.this.lock.lock();
+			try {
+				BandwidthLimiter.this.transfers.remove(this);
+				BandwidthLimiter.this.waiting.remove(this);
+			} finally {
+				BandwidthLimiter.this.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Limit shared by all of the transfers to a client subnet.
+	 */
+	public static class SubnetLimit {
+		/**
+		 * Address of the subnet
+		 */
+		private byte[] network;
+		/**
+		 * Number of leading bits of an address which must match the network
+		 */
+		private int prefixLength;
+		/**
+		 * Paces the transfers to the subnet
+		 */
+		private TokenBucket bucket;
+
+		/**
+		 * Create a subnet limit.
+		 *
+		 * @param subnet The subnet as an address and prefix length, such as
+		 * 				 "192.168.1.0/24". A single address if there is no
+		 * 				 prefix length.
+		 * @param rate The rate in bytes per second
+		 * @throws IllegalArgumentException If the subnet is not valid
+		 */
+		public SubnetLimit (String subnet, long rate)
+				throws IllegalArgumentException
+		{
+			int slash = subnet.indexOf('/');
+			String address = (slash < 0) ? subnet : subnet.substring(0, slash);
+			try {
+				this.network = InetAddress.getByName(address).getAddress();
+				this.prefixLength = (slash < 0) ? this.network.length * 8 :
+						Integer.parseInt(subnet.substring(slash + 1));
+			} catch (UnknownHostException | NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid subnet: \"" +
+						subnet + "\"");
+			}
+			if ((this.prefixLength < 0) ||
+					(this.prefixLength > this.network.length * 8)) {
+				throw new IllegalArgumentException("Invalid prefix length: \"" +
+						subnet + "\"");
+			}
+
+			// Clear the host bits so that the subnet is always shown the same
+			for (int i = 0; i < this.network.length; i++) {
+				this.network[i] &= (byte)this.mask(i);
+			}
+
+			this.bucket = new TokenBucket(rate);
+		}
+
+		/**
+		 * Check whether an address is in the subnet.
+		 *
+		 * @param address The address to check
+		 * @return True if the address is in the subnet
+		 */
+		public boolean contains (InetAddress address)
+		{
+			byte[] bytes = address.getAddress();
+			if (bytes.length != this.network.length) {
+				// IPv4 address and IPv6 subnet or the other way round
+				return false;
+			}
+
+			for (int i = 0; i < bytes.length; i++) {
+				if (((bytes[i] ^ this.network[i]) & this.mask(i)) != 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Get the bits of one byte of an address which are in the prefix.
+		 *
+		 * @param index The index of the byte in the address
+		 * @return The mask for the byte
+		 */
+		private int mask (int index)
+		{
+			int bits = Math.max(this.prefixLength - (index * 8), 0);
+			bits = Math.min(bits, 8);
+			return (0xff00 >> bits) & 0xff;
+		}
+
+		/**
+		 * Get the rate shared by the transfers to the subnet.
+		 *
+		 * @return The rate in bytes per second
+		 */
+		public long getRate ()
+		{
+			return this.bucket.getRate();
+		}
+
+		/**
+		 * Get the subnet as an address and prefix length.
+		 *
+		 * @return The subnet, such as "192.168.1.0/24"
+		 */
+		public String toString ()
+		{
+			try {
+				return InetAddress.getByAddress(this.network).getHostAddress() +
+						"/" + this.prefixLength;
+			} catch (UnknownHostException e) {
+				// Can not happen, the address came from an InetAddress
+				return "?/" + this.prefixLength;
+			}
+		}
+	}
+
+	/**
+	 * Token bucket which lets packets through at a steady rate, with bursts
+	 * of up to BURST_TIME at that rate. A packet may take the bucket below
+	 * empty, in which case the next packet waits until it has refilled, so
+	 * packets larger than the bucket can still be sent.
+	 */
+	public static class TokenBucket {
+		/**
+		 * Rate at which the bucket refills in bytes per second, or 0 if
+		 * packets are never held back
+		 */
+		private long rate;
+		/**
+		 * Bytes which may be sent, negative if the last packet took more than
+		 * was in the bucket
+		 */
+		private double tokens = 0;
+		/**
+		 * Time at which the bucket was last refilled
+		 */
+		private long lastRefill = RetransmitTimer.now();
+
+		/**
+		 * Create an empty token bucket.
+		 *
+		 * @param rate The rate in bytes per second, 0 for no limit
+		 */
+		public TokenBucket (long rate)
+		{
+			this.rate = rate;
+		}
+
+		/**
+		 * Get the rate of the bucket.
+		 *
+		 * @return The rate in bytes per second, 0 if there is no limit
+		 */
+		public synchronized long getRate ()
+		{
+			return this.rate;
+		}
+
+		/**
+		 * Change the rate of the bucket.
+		 *
+		 * @param rate The rate in bytes per second, 0 for no limit
+		 */
+		public synchronized void setRate (long rate)
+		{
+			this.refill();
+			this.rate = rate;
+			this.tokens = Math.min(this.tokens, this.burst());
+		}
+
+		/**
+		 * Get the time until the bucket lets the next packet through.
+		 *
+		 * @return The delay in nanoseconds, 0 if a packet may be sent now
+		 */
+		public synchronized long delay ()
+		{
+			this.refill();
+			if ((this.rate == 0) || (this.tokens >= 0)) {
+				return 0;
+			}
+			return (long)Math.ceil(-this.tokens * 1e9 / this.rate);
+		}
+
+		/**
+		 * Take a packet out of the bucket.
+		 *
+		 * @param bytes The size of the packet
+		 */
+		public synchronized void take (int bytes)
+		{
+			if (this.rate != 0) {
+				this.tokens -= bytes;
+			}
+		}
+
+		/**
+		 * Take a packet out of the bucket, once the packets before it have
+		 * been let through.
+		 *
+		 * @param bytes The size of the packet
+		 * @return The time in nanoseconds to wait before sending the packet
+		 */
+		public synchronized long reserve (int bytes)
+		{
+			long delay = this.delay();
+			this.take(bytes);
+			return delay;
+		}
+
+		/**
+		 * Add the tokens earned since the bucket was last refilled.
+		 */
+		private void refill ()
+		{
+			long now = RetransmitTimer.now();
+			if (this.rate == 0) {
+				this.tokens = 0;
+			} else {
+				this.tokens = Math.min(this.tokens +
+						((now - this.lastRefill) * (double)this.rate / 1e9),
+						this.burst());
+			}
+			this.lastRefill = now;
+		}
+
+		/**
+		 * Get the most bytes the bucket may save up.
+		 *
+		 * @return The size of the bucket
+		 */
+		private double burst ()
+		{
+			return this.rate * (BURST_TIME / 1e9);
+		}
+	}
+}
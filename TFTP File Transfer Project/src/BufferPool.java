@@ -0,0 +1,390 @@
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands out direct ByteBuffers for sending and receiving packets, and takes
+ * them back to be reused, so that a busy server does not allocate a buffer
+ * for every packet or every transfer.
+ * 
+ * Buffers come in size classes, powers of 2 and the sizes half way between
+ * them, so a buffer is never more than a third larger than asked for. The
+ * pool is used by the server's event loops, whose threads run for as long as
+ * the server does, so each thread keeps enough free buffers of each class to
+ * itself to refill the largest window of a transfer, up to a limit on their
+ * memory, which it can take and return without a lock. The rest are shared
+ * by every thread. A thread which only lives for one transfer gains nothing
+ * from a cache of its own, so transfers which run on their own threads
+ * reuse buffers of their own instead of taking them from the pool.
+ * 
+ * The total size of the direct buffers is capped. Once the cap is reached
+ * buffers are allocated on the heap instead, and dropped rather than reused
+ * when they are returned. The direct buffers of a thread which has ended are
+ * taken off the total once they are garbage collected.
+ */
+public class BufferPool {
+	
+	/**
+	 * Default cap on the direct memory of the pool, in bytes
+	 */
+	public static final long DEFAULT_MAX_MEMORY = 64L * 1024 * 1024;
+	/**
+	 * Size of the largest buffer, which fits any UDP packet TFTP sends
+	 */
+	public static final int MAX_BUFFER_SIZE = 1 << 16;
+	/**
+	 * Size of the smallest buffer
+	 */
+	private static final int MIN_BUFFER_SIZE = 1 << 6;
+	/**
+	 * Most free buffers of each size kept by each thread, enough for the
+	 * largest window the server agrees to
+	 */
+	private static final int MAX_THREAD_CACHE_SIZE = 64;
+	/**
+	 * Most memory of the free buffers of each size kept by each thread, in
+	 * bytes
+	 */
+	private static final int THREAD_CACHE_MEMORY = 1 << 20;
+	
+	/**
+	 * Takes the memory of buffers which are no longer reachable off the total
+	 */
+	private static final Cleaner CLEANER = Cleaner.create();
+	
+	/**
+	 * Size of the buffers in each size class, smallest first
+	 */
+	private static final int[] SIZES;
+	/**
+	 * Number of free buffers of each size class kept by each thread
+	 */
+	private static final int[] THREAD_CACHE_SIZES;
+	
+	static {
+		int classes = 0;
+		for (int size = MIN_BUFFER_SIZE; size < MAX_BUFFER_SIZE; size *= 2) {
+			classes += 2;
+		}
+		SIZES = new int[classes + 1];
+		int index = 0;
+		for (int size = MIN_BUFFER_SIZE; size < MAX_BUFFER_SIZE; size *= 2) {
+			SIZES[index++] = size;
+			SIZES[index++] = size + (size / 2);
+		}
+		SIZES[index] = MAX_BUFFER_SIZE;
+		
+		THREAD_CACHE_SIZES = new int[SIZES.length];
+		for (int i = 0; i < SIZES.length; i++) {
+			THREAD_CACHE_SIZES[i] = Math.max(1, Math.min(MAX_THREAD_CACHE_SIZE,
+					THREAD_CACHE_MEMORY / SIZES[i]));
+		}
+	}
+	
+	/**
+	 * Free buffers kept by a single thread.
+	 */
+	private static class ThreadCache {
+		private ByteBuffer[][] buffers = new ByteBuffer[SIZES.length][];
+		private int[] counts = new int[SIZES.length];
+		
+		private ThreadCache ()
+		{
+			for (int i = 0; i < SIZES.length; i++) {
+				this.buffers[i] = new ByteBuffer[THREAD_CACHE_SIZES[i]];
+			}
+		}
+	}
+	
+	/**
+	 * Takes a direct buffer's memory off the total once the buffer has been
+	 * garbage collected. It must not refer to the buffer.
+	 */
+	private static class Reclaim implements Runnable {
+		private AtomicLong allocated;
+		private int size;
+		
+		private Reclaim (AtomicLong allocated, int size)
+		{
+			this.allocated = allocated;
+			this.size = size;
+		}
+		
+		public void run ()
+		{
+			this.allocated.addAndGet(-this.size);
+		}
+	}
+	
+	/**
+	 * Largest total size of the direct buffers, in bytes
+	 */
+	private long maxMemory;
+	/**
+	 * Free buffers shared by every thread, for each size class
+	 */
+	private ArrayDeque<ByteBuffer>[] shared;
+	/**
+	 * Free buffers kept by each thread
+	 */
+	private ThreadLocal<ThreadCache> caches =
+			ThreadLocal.withInitial(ThreadCache::new);
+	
+	/**
+	 * Total size of the direct buffers which have not been collected
+	 */
+	private AtomicLong allocated = new AtomicLong();
+	/**
+	 * Total size of the direct buffers handed out and not returned
+	 */
+	private AtomicLong inUse = new AtomicLong();
+	/**
+	 * Largest total size of direct buffers in use at once
+	 */
+	private AtomicLong highWater = new AtomicLong();
+	/**
+	 * Number of buffers handed out
+	 */
+	private LongAdder acquired = new LongAdder();
+	/**
+	 * Number of buffers taken from the cache of the thread which asked
+	 */
+	private LongAdder threadCacheHits = new LongAdder();
+	/**
+	 * Number of buffers taken from the shared free buffers
+	 */
+	private LongAdder sharedHits = new LongAdder();
+	/**
+	 * Number of direct buffers allocated
+	 */
+	private LongAdder allocations = new LongAdder();
+	/**
+	 * Number of buffers allocated on the heap because of the cap
+	 */
+	private LongAdder overflows = new LongAdder();
+	
+	/**
+	 * Create a buffer pool.
+	 * 
+	 * @param maxMemory The largest total size of the direct buffers in bytes
+	 * @throws IllegalArgumentException If maxMemory is negative
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public BufferPool (long maxMemory) throws IllegalArgumentException
+	{
+		if (maxMemory < 0) {
+			throw new IllegalArgumentException("The buffer memory limit can " +
+					"not be negative: " + maxMemory);
+		}
+		this.maxMemory = maxMemory;
+		this.shared = new ArrayDeque[SIZES.length];
+		for (int i = 0; i < SIZES.length; i++) {
+			this.shared[i] = new ArrayDeque<ByteBuffer>();
+		}
+	}
+	
+	/**
+	 * Find the smallest size class which holds a number of bytes.
+	 * 
+	 * @param size The number of bytes
+	 * @return The index of the size class
+	 * @throws IllegalArgumentException If the size is larger than the
+	 * 									largest buffer
+	 */
+	private static int sizeClass (int size) throws IllegalArgumentException
+	{
+		if (size > MAX_BUFFER_SIZE) {
+			throw new IllegalArgumentException("Buffers can not be larger " +
+					"than " + MAX_BUFFER_SIZE + " bytes: " + size);
+		}
+		int index = 0;
+		while (SIZES[index] < size) {
+			index++;
+		}
+		return index;
+	}
+	
+	/**
+	 * Get a buffer.
+	 * 
+	 * @param size The number of bytes needed
+	 * @return A buffer at least as large as asked for, with its position at
+	 * 		   0 and its limit at size, which must be released once it is no
+	 * 		   longer used
+	 * @throws IllegalArgumentException If the size is larger than
+	 * 									MAX_BUFFER_SIZE
+	 */
+	public ByteBuffer acquire (int size) throws IllegalArgumentException
+	{
+		int index = sizeClass(size);
+		this.acquired.increment();
+		
+		ByteBuffer buffer = null;
+		ThreadCache cache = this.caches.get();
+		if (cache.counts[index] > 0) {
+			int count = --cache.counts[index];
+			buffer = cache.buffers[index][count];
+			cache.buffers[index][count] = null;
+			this.threadCacheHits.increment();
+		} else {
+			synchronized (this.shared[index]) {
+				buffer = this.shared[index].poll();
+			}
+			if (buffer != null) {
+				this.sharedHits.increment();
+			} else {
+				buffer = this.allocate(SIZES[index]);
+			}
+		}
+		
+		if (buffer.isDirect()) {
+			long used = this.inUse.addAndGet(buffer.capacity());
+			long high;
+			while ((used > (high = this.highWater.get())) &&
+					!this.highWater.compareAndSet(high, used)) {
+				continue;
+			}
+		}
+		buffer.clear().limit(size);
+		return buffer;
+	}
+	
+	/**
+	 * Allocate a new buffer, on the heap if the cap has been reached.
+	 * 
+	 * @param size The size of the buffer
+	 * @return The buffer
+	 */
+	private ByteBuffer allocate (int size)
+	{
+		if (this.allocated.addAndGet(size) > this.maxMemory) {
+			this.allocated.addAndGet(-size);
+			this.overflows.increment();
+			return ByteBuffer.allocate(size);
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+		CLEANER.register(buffer, new Reclaim(this.allocated, size));
+		this.allocations.increment();
+		return buffer;
+	}
+	
+	/**
+	 * Return a buffer to be reused. It must have come from this pool, must
+	 * be returned only once and must not be used afterwards.
+	 * 
+	 * @param buffer The buffer, or null to do nothing
+	 */
+	public void release (ByteBuffer buffer)
+	{
+		if ((buffer == null) || !buffer.isDirect()) {
+			// Allocated because of the cap, left for the garbage collector
+			return;
+		}
+		int index = sizeClass(buffer.capacity());
+		this.inUse.addAndGet(-buffer.capacity());
+		
+		ThreadCache cache = this.caches.get();
+		if (cache.counts[index] < THREAD_CACHE_SIZES[index]) {
+			cache.buffers[index][cache.counts[index]++] = buffer;
+		} else {
+			synchronized (this.shared[index]) {
+				this.shared[index].push(buffer);
+			}
+		}
+	}
+	
+	/**
+	 * Get the cap on the total size of the direct buffers.
+	 * 
+	 * @return The cap in bytes
+	 */
+	public long getMaxMemory ()
+	{
+		return this.maxMemory;
+	}
+	
+	/**
+	 * Get the total size of the direct buffers, in use or free.
+	 * 
+	 * @return The number of bytes
+	 */
+	public long getAllocated ()
+	{
+		return this.allocated.get();
+	}
+	
+	/**
+	 * Get the total size of the direct buffers in use.
+	 * 
+	 * @return The number of bytes
+	 */
+	public long getInUse ()
+	{
+		return this.inUse.get();
+	}
+	
+	/**
+	 * Get the largest total size of the direct buffers in use at once.
+	 * 
+	 * @return The number of bytes
+	 */
+	public long getHighWater ()
+	{
+		return this.highWater.get();
+	}
+	
+	/**
+	 * Get the number of buffers handed out.
+	 * 
+	 * @return The number of buffers
+	 */
+	public long getAcquired ()
+	{
+		return this.acquired.sum();
+	}
+	
+	/**
+	 * Get the number of buffers taken from the cache of the thread which
+	 * asked for them.
+	 * 
+	 * @return The number of buffers
+	 */
+	public long getThreadCacheHits ()
+	{
+		return this.threadCacheHits.sum();
+	}
+	
+	/**
+	 * Get the number of buffers taken from the free buffers shared by every
+	 * thread.
+	 * 
+	 * @return The number of buffers
+	 */
+	public long getSharedHits ()
+	{
+		return this.sharedHits.sum();
+	}
+	
+	/**
+	 * Get the number of direct buffers allocated.
+	 * 
+	 * @return The number of buffers
+	 */
+	public long getAllocations ()
+	{
+		return this.allocations.sum();
+	}
+	
+	/**
+	 * Get the number of buffers allocated on the heap because the cap had
+	 * been reached.
+	 * 
+	 * @return The number of buffers
+	 */
+	public long getOverflows ()
+	{
+		return this.overflows.sum();
+	}
+}
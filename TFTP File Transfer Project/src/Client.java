@@ -33,6 +33,58 @@ public class Client {
 	private int serverPort;
 	private static Logger log = new Logger();
 
+	/**
+	 * Block size to request from the server, requests for the default block
+	 * size are sent without any options.
+	 */
+	private int blockSize = TFTPPacket.BLOCK_SIZE;
+
+	/**
+	 * Window size to request from the server, requests for the default window
+	 * size are sent without the window size option.
+	 */
+	private int windowSize = TFTPPacket.WINDOW_SIZE;
+
+	/**
+	 * Whether the transfer size option should be sent with requests, so that
+	 * the size of the file is known before the transfer starts.
+	 */
+	private boolean sendTransferSize = false;
+
+	/**
+	 * Retransmission timeout in seconds to request from the server, or 0 to
+	 * adapt the timeout to the round trip time instead.
+	 */
+	private int timeout = 0;
+
+	/**
+	 * Block number which should follow block 65535, or -1 if block number
+	 * rollover should not be requested.
+	 */
+	private int rollover = -1;
+
+	/**
+	 * Whether files should be read using multicast (RFC 2090), so that a
+	 * server sending the same file to many clients only sends it once.
+	 */
+	private boolean multicast = false;
+
+	/**
+	 * Name of the congestion control algorithm used when sending files, or
+	 * null if congestion control is off. When it is on the server is asked to
+	 * acknowledge every block, so that the number of blocks in flight can be
+	 * adjusted up to the window size.
+	 */
+	private String congestionControl = null;
+
+	/**
+	 * Number of blocks covered by each parity packet when forward error
+	 * correction is requested, or 0 if it should not be requested. Lost
+	 * blocks are rebuilt from the parity instead of waiting for them to be
+	 * re-sent.
+	 */
+	private int fecGroup = 0;
+
 	private InetAddress serverAddress;
 
 	public void setServerAddress(InetAddress serverAddress) {
@@ -40,9 +92,17 @@ public class Client {
 	}
 
 
-	public Client(int serverPort, LogLevel verboseLevel, String logFilePath)
+	public Client(int serverPort, LogLevel verboseLevel, String logFilePath, int blockSize, int windowSize, boolean sendTransferSize, int timeout, int rollover, boolean multicast, String congestionControl, int fecGroup)
 	{
 		this.serverPort = serverPort;
+		this.blockSize = blockSize;
+		this.windowSize = windowSize;
+		this.sendTransferSize = sendTransferSize;
+		this.timeout = timeout;
+		this.rollover = rollover;
+		this.multicast = multicast;
+		this.congestionControl = congestionControl;
+		this.fecGroup = fecGroup;
 
 		log.setVerboseLevel(verboseLevel, true);
 
@@ -186,11 +246,13 @@ public class Client {
 			return;
 		}
 		
-		// Find the total number of blocks to be sent
+		// Find the total number of blocks to be sent. If options are requested the server may agree to a
+		// different block size or refuse rollover, so the transaction checks the size again once the
+		// server has answered, here the file is only rejected if it can not be sent whatever the server says.
 		long numBlocks = 0;
-		numBlocks = (int)((clientFile.length() / TFTPPacket.BLOCK_SIZE) + 1);
-		// Check that file can be sent over TFTP
-		if (numBlocks > TFTPPacket.MAX_BLOCK_NUM) {
+		numBlocks = (clientFile.length() / TFTPPacket.BLOCK_SIZE) + 1;
+		// Check that file can be sent over TFTP, there is no limit if rollover is requested
+		if (this.blockSize == TFTPPacket.BLOCK_SIZE && this.rollover < 0 && numBlocks > TFTPPacket.MAX_BLOCK_NUM) {
 			// Too many blocks
 			c.println(String.format("File to large too be transfered.  Aborting file transfer."));
 			return;
@@ -206,13 +268,19 @@ public class Client {
 			return;
 		}
 
-		try (TFTPTransaction transaction =
+		try (TFTPTransaction.TFTPSendTransaction transaction =
 				new TFTPTransaction.TFTPSendTransaction(sendReceiveSocket,
 						serverAddress, serverPort, args[1], true,
 						Client.log);) {
+			if (this.congestionControl != null) {
+				transaction.setCongestionControl(CongestionControl.forName(this.congestionControl));
+			}
 			// Do write request
 			TFTPPacket.WRQ writePacket = new TFTPPacket.WRQ(remoteFile,
 					TFTPPacket.TFTPMode.NETASCII);
+			if (this.addRequestOptions(writePacket.getOptions(), clientFile.length(), sendReceiveSocket)) {
+				transaction.setRequestedOptions(writePacket.getOptions());
+			}
 			DatagramPacket request = new DatagramPacket(writePacket.toBytes(),
 					writePacket.size(), serverAddress, serverPort);
 
@@ -270,6 +338,9 @@ public class Client {
 			case PEER_FILE_EXISTS:
 				c.println("File transfer failed. File exists on server.");
 				break;
+			case OPTION_NEGOTIATION_ERROR:
+				c.println("File transfer failed. Server acknowledged invalid options.");
+				break;
 			default:
 				c.println(String.format(
 						"File transfer failed. Unknown error occurred: \"%s\"",
@@ -333,13 +404,26 @@ public class Client {
 			return;
 		}
 
-		try (TFTPTransaction transaction =
+		boolean retryUnicast = false;
+
+		try (TFTPTransaction transaction = this.multicast ?
+				new TFTPTransaction.TFTPMulticastReceiveTransaction(
+						sendReceiveSocket, serverAddress, serverPort,
+						localFile, Client.log) :
 				new TFTPTransaction.TFTPReceiveTransaction(
 						sendReceiveSocket, serverAddress, serverPort,
 						localFile, false, true, Client.log);) {
 			// Do read Request
 			TFTPPacket.RRQ readPacket = new TFTPPacket.RRQ(args[1],
 					TFTPPacket.TFTPMode.NETASCII);
+			boolean hasOptions = this.addRequestOptions(readPacket.getOptions(), 0, sendReceiveSocket);
+			if (this.multicast) {
+				readPacket.getOptions().addOption(TFTPPacket.OptionSet.MULTICAST, "");
+				hasOptions = true;
+			}
+			if (hasOptions) {
+				transaction.setRequestedOptions(readPacket.getOptions());
+			}
 			DatagramPacket request = new DatagramPacket(readPacket.toBytes(),
 					readPacket.size(), serverAddress, serverPort);
 
@@ -394,6 +478,13 @@ public class Client {
 			case PEER_FILE_NOT_FOUND:
 				c.println("File transfer failed. File not found on server.");
 				break;
+			case OPTION_NEGOTIATION_ERROR:
+				c.println("File transfer failed. Server acknowledged invalid options.");
+				break;
+			case MULTICAST_NOT_SUPPORTED:
+				c.println("Server does not support multicast. Requesting the file without multicast.");
+				retryUnicast = true;
+				break;
 			default:
 				c.println(String.format(
 						"File transfer failed. Unknown error occurred: \"%s\"",
@@ -408,6 +499,289 @@ public class Client {
 		}
 
 		sendReceiveSocket.close();
+
+		if (retryUnicast) {
+			this.multicast = false;
+			this.getCmd(c, args);
+			this.multicast = true;
+		}
+	}
+
+	/**
+	 * Add the options which should be negotiated with the server to a request.
+	 * @param options The option set of the request
+	 * @param transferSize The size of the file being written, or 0 for a read request
+	 * @param socket The socket which the transfer will use, its buffers are grown to hold a window
+	 * @return True if any options where added
+	 */
+	private boolean addRequestOptions(TFTPPacket.OptionSet options, long transferSize, DatagramSocket socket) {
+		if (this.blockSize != TFTPPacket.BLOCK_SIZE) {
+			options.addOption(TFTPPacket.OptionSet.BLOCK_SIZE, Integer.toString(this.blockSize));
+		}
+		int window = this.windowSize;
+		if (window != TFTPPacket.WINDOW_SIZE) {
+			// A window is sent in one burst, so only ask for as many blocks as fit in the socket's buffers
+			try {
+				window = UDPTransport.reserveWindow(socket, this.blockSize, this.windowSize);
+			} catch (SocketException e) {
+				log.log(LogLevel.WARN, "Could not set the size of the socket's buffers.");
+			}
+			if (window < this.windowSize) {
+				log.log(LogLevel.WARN, "Requesting a window of " + window + " blocks, which is all that fits in the socket's buffers.");
+			}
+			options.addOption(TFTPPacket.OptionSet.WINDOW_SIZE, Integer.toString(window));
+		}
+		if (this.sendTransferSize) {
+			options.addOption(TFTPPacket.OptionSet.TRANSFER_SIZE, Long.toString(transferSize));
+		}
+		if (this.rollover >= 0) {
+			options.addOption(TFTPPacket.OptionSet.ROLLOVER, Integer.toString(this.rollover));
+		}
+		if (this.timeout != 0) {
+			options.addOption(TFTPPacket.OptionSet.TIMEOUT, Integer.toString(this.timeout));
+		}
+		if (this.congestionControl != null && window > 1) {
+			// Whichever side sends the file limits the blocks in flight with congestion control
+			options.addOption(TFTPPacket.OptionSet.ACK_INTERVAL, "1");
+		}
+		if (this.fecGroup != 0) {
+			options.addOption(TFTPPacket.OptionSet.FEC, Integer.toString(this.fecGroup));
+		}
+		return !options.getOptions().isEmpty();
+	}
+
+	/**
+	 * Parse a block size and check that it can be negotiated.
+	 * @param str The block size string
+	 * @return The block size
+	 * @throws NumberFormatException
+	 */
+	private static int parseBlockSize(String str) throws NumberFormatException {
+		int size = Integer.parseInt(str);
+		if (size < TFTPPacket.MIN_BLOCK_SIZE || size > TFTPPacket.MAX_BLOCK_SIZE) {
+			throw new NumberFormatException("Block size must be between " + TFTPPacket.MIN_BLOCK_SIZE + " and " + TFTPPacket.MAX_BLOCK_SIZE);
+		}
+		return size;
+	}
+
+	/**
+	 * Parse a window size and check that it can be negotiated.
+	 * @param str The window size string
+	 * @return The window size
+	 * @throws NumberFormatException
+	 */
+	private static int parseWindowSize(String str) throws NumberFormatException {
+		int size = Integer.parseInt(str);
+		if (size < 1 || size > TFTPPacket.MAX_WINDOW_SIZE) {
+			throw new NumberFormatException("Window size must be between 1 and " + TFTPPacket.MAX_WINDOW_SIZE);
+		}
+		return size;
+	}
+
+	/**
+	 * Parse a timeout and check that it can be negotiated.
+	 * @param str The timeout string in seconds
+	 * @return The timeout, or 0 for an adaptive timeout
+	 * @throws NumberFormatException
+	 */
+	private static int parseTimeout(String str) throws NumberFormatException {
+		int seconds = Integer.parseInt(str);
+		if (seconds != 0 && (seconds < TFTPPacket.MIN_TIMEOUT_OPTION || seconds > TFTPPacket.MAX_TIMEOUT_OPTION)) {
+			throw new NumberFormatException("Timeout must be 0 or between " + TFTPPacket.MIN_TIMEOUT_OPTION + " and " + TFTPPacket.MAX_TIMEOUT_OPTION);
+		}
+		return seconds;
+	}
+
+	/**
+	 * Parse a rollover setting.
+	 * @param str The rollover block number, or "off"
+	 * @return The rollover block number, or -1 if rollover is off
+	 * @throws NumberFormatException
+	 */
+	private static int parseRollover(String str) throws NumberFormatException {
+		if (str.equalsIgnoreCase("off")) {
+			return -1;
+		} else if (str.equals("0") || str.equals("1")) {
+			return Integer.parseInt(str);
+		}
+		throw new NumberFormatException("Rollover must be 0, 1 or off");
+	}
+
+	private void setRolloverCmd (Console c, String[] args) {
+		if (args.length > 2) {
+			c.println("Too many arguments.");
+			return;
+		} else if (args.length == 2) {
+			try {
+				this.rollover = parseRollover(args[1]);
+			} catch (NumberFormatException e) {
+				c.println("Invalid rollover: \"" + args[1] + "\"");
+				return;
+			}
+		}
+		if (this.rollover < 0) {
+			c.println("Block number rollover is off.");
+		} else {
+			c.println("Requesting block number rollover to " + this.rollover + ".");
+		}
+	}
+
+	private void setTimeoutCmd (Console c, String[] args) {
+		if (args.length > 2) {
+			c.println("Too many arguments.");
+			return;
+		} else if (args.length == 2) {
+			try {
+				this.timeout = parseTimeout(args[1]);
+			} catch (NumberFormatException e) {
+				c.println("Invalid timeout: \"" + args[1] + "\"");
+				return;
+			}
+		}
+		if (this.timeout == 0) {
+			c.println("Timeout adapts to the round trip time.");
+		} else {
+			c.println("Requesting a timeout of " + this.timeout + " seconds.");
+		}
+	}
+
+	/**
+	 * Parse a congestion control setting.
+	 * @param str The name of the algorithm, or "off"
+	 * @return The name of the algorithm, or null if congestion control is off
+	 * @throws IllegalArgumentException
+	 */
+	private static String parseCongestionControl(String str) throws IllegalArgumentException {
+		if (str.equalsIgnoreCase("off")) {
+			return null;
+		}
+		return CongestionControl.forName(str).getName();
+	}
+
+	/**
+	 * Parse a forward error correction setting.
+	 * @param str The number of blocks covered by each parity packet, or "off"
+	 * @return The number of blocks, or 0 if forward error correction is off
+	 * @throws NumberFormatException
+	 */
+	private static int parseFecGroup(String str) throws NumberFormatException {
+		if (str.equalsIgnoreCase("off")) {
+			return 0;
+		}
+		int group = Integer.parseInt(str);
+		if (group < TFTPPacket.MIN_FEC_GROUP || group > TFTPPacket.MAX_WINDOW_SIZE) {
+			throw new NumberFormatException("Group size must be off or between " + TFTPPacket.MIN_FEC_GROUP + " and " + TFTPPacket.MAX_WINDOW_SIZE);
+		}
+		return group;
+	}
+
+	private void setFecCmd (Console c, String[] args) {
+		if (args.length > 2) {
+			c.println("Too many arguments.");
+			return;
+		} else if (args.length == 2) {
+			try {
+				this.fecGroup = parseFecGroup(args[1]);
+			} catch (NumberFormatException e) {
+				c.println("Invalid group size: \"" + args[1] + "\"");
+				return;
+			}
+		}
+		if (this.fecGroup == 0) {
+			c.println("Forward error correction is off.");
+		} else {
+			c.println("Requesting a parity packet for every " + this.fecGroup + " blocks.");
+			if (this.fecGroup > this.windowSize) {
+				c.println("The window size must be at least " + this.fecGroup + " blocks for this to be accepted.");
+			}
+		}
+	}
+
+	private void setCongestionControlCmd (Console c, String[] args) {
+		if (args.length > 2) {
+			c.println("Too many arguments.");
+			return;
+		} else if (args.length == 2) {
+			try {
+				this.congestionControl = parseCongestionControl(args[1]);
+			} catch (IllegalArgumentException e) {
+				c.println("Invalid congestion control algorithm: \"" + args[1] + "\"");
+				return;
+			}
+		}
+		if (this.congestionControl == null) {
+			c.println("Congestion control is off.");
+		} else {
+			c.println("Using " + this.congestionControl + " congestion control with a window of up to " + this.windowSize + " blocks.");
+		}
+	}
+
+	private void setMulticastCmd (Console c, String[] args) {
+		if (args.length > 2) {
+			c.println("Too many arguments.");
+			return;
+		} else if (args.length == 2) {
+			if (args[1].equalsIgnoreCase("on")) {
+				this.multicast = true;
+			} else if (args[1].equalsIgnoreCase("off")) {
+				this.multicast = false;
+			} else {
+				c.println("Invalid setting: \"" + args[1] + "\"");
+				return;
+			}
+		}
+		c.println("Multicast reads are " + (this.multicast ? "on." : "off."));
+	}
+
+	private void setTransferSizeCmd (Console c, String[] args) {
+		if (args.length > 2) {
+			c.println("Too many arguments.");
+			return;
+		} else if (args.length == 2) {
+			if (args[1].equalsIgnoreCase("on")) {
+				this.sendTransferSize = true;
+			} else if (args[1].equalsIgnoreCase("off")) {
+				this.sendTransferSize = false;
+			} else {
+				c.println("Invalid setting: \"" + args[1] + "\"");
+				return;
+			}
+		}
+		c.println("Transfer size option is " + (this.sendTransferSize ? "on." : "off."));
+	}
+
+	private void setWindowSizeCmd (Console c, String[] args) {
+		if (args.length > 2) {
+			c.println("Too many arguments.");
+			return;
+		} else if (args.length == 1) {
+			c.println("Window size: " + this.windowSize);
+			return;
+		}
+
+		try {
+			this.windowSize = parseWindowSize(args[1]);
+			c.println("Requesting a window size of " + this.windowSize + " blocks.");
+		} catch (NumberFormatException e) {
+			c.println("Invalid window size: \"" + args[1] + "\"");
+		}
+	}
+
+	private void setBlockSizeCmd (Console c, String[] args) {
+		if (args.length > 2) {
+			c.println("Too many arguments.");
+			return;
+		} else if (args.length == 1) {
+			c.println("Block size: " + this.blockSize);
+			return;
+		}
+
+		try {
+			this.blockSize = parseBlockSize(args[1]);
+			c.println("Requesting a block size of " + this.blockSize + " bytes.");
+		} catch (NumberFormatException e) {
+			c.println("Invalid block size: \"" + args[1] + "\"");
+		}
 	}
 
 	private void connectCmd (Console c, String[] args) {
@@ -457,6 +831,14 @@ public class Client {
 		c.println("put [local filename] <remote filename> - Send a file to the server.");
 		c.println("get [remote filename] <local filename - Get a file from the server.");
 		c.println("logfile [file path] - Set the log file.");
+		c.println("blocksize <size> - Set the block size to request from the server, or show it if no size is given.");
+		c.println("windowsize <size> - Set the number of blocks sent per acknowledgment to request from the server, or show it if no size is given.");
+		c.println("tsize <on|off> - Send the size of the file with requests so that it can be checked before the transfer starts.");
+		c.println("rollover <0|1|off> - Request that block numbers roll over to 0 or 1 after block 65535 so that larger files can be transfered.");
+		c.println("multicast <on|off> - Read files using multicast, so that a server sending the same file to many clients only sends it once.");
+		c.println("congestion <aimd|delay|off> - Limit the blocks in flight with congestion control, up to the window size. The server is asked to acknowledge every block.");
+		c.println("fec <size|off> - Request a parity packet after every group of this many blocks, so that one lost block per group can be rebuilt without being re-sent. The group can not be larger than the window size.");
+		c.println("timeout <seconds> - Set a fixed retransmission timeout to request from the server, 0 adapts the timeout to the round trip time.");
 		c.println("verbose - Enable more detailed console output.");
 		c.println("quiet - Limit console output to essential and convenient information.");
 		c.println("test - Sets Client to send to port 23 (Error simulator port).");
@@ -471,6 +853,14 @@ public class Client {
 		int serverPort = 69;
 		LogLevel verboseLevel = LogLevel.QUIET;
 		String logFilePath = "";
+		int blockSize = TFTPPacket.BLOCK_SIZE;
+		int windowSize = TFTPPacket.WINDOW_SIZE;
+		boolean sendTransferSize = false;
+		int timeout = 0;
+		int rollover = -1;
+		boolean multicast = false;
+		String congestionControl = null;
+		int fecGroup = 0;
 
 		//Setting up the parsing options
 		Option verboseOption = new Option( "v", "verbose", false, "print extra debug info" );
@@ -487,10 +877,58 @@ public class Client {
                 .type(String.class)
                 .build();
 
+		Option blockSizeOption = Option.builder("b").argName("block size")
+                .hasArg()
+                .desc("the block size to request from the server")
+                .type(Integer.TYPE)
+                .build();
+
+		Option windowSizeOption = Option.builder("w").argName("window size")
+                .hasArg()
+                .desc("the window size to request from the server")
+                .type(Integer.TYPE)
+                .build();
+
+		Option transferSizeOption = new Option( "t", "tsize", false, "send the file size with requests" );
+
+		Option timeoutOption = Option.builder().longOpt("timeout").argName("seconds")
+                .hasArg()
+                .desc("a fixed retransmission timeout to request from the server")
+                .type(Integer.TYPE)
+                .build();
+
+		Option rolloverOption = Option.builder("r").longOpt("rollover").argName("0|1")
+                .hasArg()
+                .desc("the block number to roll over to after block 65535")
+                .type(Integer.TYPE)
+                .build();
+
+		Option multicastOption = new Option( "m", "multicast", false, "read files using multicast" );
+
+		Option congestionOption = Option.builder("c").longOpt("congestion").argName("aimd|delay|off")
+                .hasArg()
+                .desc("the congestion control algorithm used to limit the blocks in flight")
+                .type(String.class)
+                .build();
+
+		Option fecOption = Option.builder("f").longOpt("fec").argName("group size")
+                .hasArg()
+                .desc("the number of blocks covered by each parity packet for forward error correction")
+                .type(Integer.TYPE)
+                .build();
+
 		Options options = new Options();
 		options.addOption(verboseOption);
 		options.addOption(serverPortOption);
 		options.addOption(logFilePathOption);
+		options.addOption(blockSizeOption);
+		options.addOption(windowSizeOption);
+		options.addOption(transferSizeOption);
+		options.addOption(timeoutOption);
+		options.addOption(rolloverOption);
+		options.addOption(multicastOption);
+		options.addOption(congestionOption);
+		options.addOption(fecOption);
 
 		CommandLine line = null;
 
@@ -510,14 +948,46 @@ public class Client {
 	        if( line.hasOption("l")) {
 	        	logFilePath = line.getOptionValue("l");
 	        }
-	    } catch( ParseException exp ) {
+
+	        if( line.hasOption("b")) {
+	        	blockSize = parseBlockSize(line.getOptionValue("b"));
+	        }
+
+	        if( line.hasOption("w")) {
+	        	windowSize = parseWindowSize(line.getOptionValue("w"));
+	        }
+
+	        if( line.hasOption("tsize")) {
+	        	sendTransferSize = true;
+	        }
+
+	        if( line.hasOption("timeout")) {
+	        	timeout = parseTimeout(line.getOptionValue("timeout"));
+	        }
+
+	        if( line.hasOption("r")) {
+	        	rollover = parseRollover(line.getOptionValue("r"));
+	        }
+
+	        if( line.hasOption("multicast")) {
+	        	multicast = true;
+	        }
+
+	        if( line.hasOption("c")) {
+	        	congestionControl = parseCongestionControl(line.getOptionValue("c"));
+	        }
+
+	        if( line.hasOption("f")) {
+	        	fecGroup = parseFecGroup(line.getOptionValue("f"));
+	        }
+	    } catch( ParseException | IllegalArgumentException exp ) {
 	    	log.log(LogLevel.FATAL, "Fatal Error: Command line argument parsing failed.  Reason: " + exp.getMessage() );
 	    	log.log(LogLevel.QUIET, "Shutting Down Client...");
 			log.endLog();
 		    System.exit(1);
 	    }
 	    // Creating a client and initializing the server address to the local host address
-	    Client client = new Client(serverPort,verboseLevel,logFilePath);
+	    Client client = new Client(serverPort,verboseLevel,logFilePath,blockSize,windowSize,sendTransferSize,timeout,rollover,multicast,congestionControl,fecGroup);
 
 	    // Create console UI
 	    Map<String, Console.CommandCallback> commands = Map.ofEntries(
@@ -530,6 +1000,14 @@ public class Client {
 				Map.entry("put", client::putCmd),
 				Map.entry("get", client::getCmd),
 				Map.entry("connect", client::connectCmd),
+				Map.entry("blocksize", client::setBlockSizeCmd),
+				Map.entry("windowsize", client::setWindowSizeCmd),
+				Map.entry("tsize", client::setTransferSizeCmd),
+				Map.entry("timeout", client::setTimeoutCmd),
+				Map.entry("rollover", client::setRolloverCmd),
+				Map.entry("multicast", client::setMulticastCmd),
+				Map.entry("congestion", client::setCongestionControlCmd),
+				Map.entry("fec", client::setFecCmd),
 				Map.entry("help", client::helpCmd)
 				);
 
@@ -0,0 +1,211 @@
+/**
+ * Decides how many DATA packets may be in flight at once, so that a sender
+ * backs off when the network between it and its peer is congested rather
+ * than always sending a full window.
+ * 
+ * The congestion window grows quickly from a single block during slow start
+ * and then more slowly once it reaches the slow start threshold. Subclasses
+ * decide how the window grows in response to acknowledgments. The window is
+ * always cut in half when a lost block is detected from repeated ACKs, and
+ * is reset to a single block when the retransmission timeout expires.
+ * 
+ * The congestion window is only used when the peer acknowledges blocks more
+ * often than once per window (see TFTPPacket.OptionSet.ACK_INTERVAL), since
+ * otherwise the peer would wait for blocks which are never sent before
+ * acknowledging anything.
+ */
+public abstract class CongestionControl {
+	
+	/**
+	 * Number of ACKs for the same block which must be received after the
+	 * first one before the next block is assumed to have been lost
+	 */
+	public static final int DUPLICATE_ACK_THRESHOLD = 3;
+	
+	/**
+	 * Smallest slow start threshold, in blocks
+	 */
+	public static final double MIN_THRESHOLD = 2;
+	
+	/**
+	 * Number of blocks which may be in flight
+	 */
+	protected double window = 1;
+	
+	/**
+	 * Window at which slow start ends, in blocks
+	 */
+	protected double threshold = Double.MAX_VALUE;
+	
+	/**
+	 * Get the congestion control algorithm with a given name.
+	 * 
+	 * @param name The name of the algorithm, "aimd" or "delay"
+	 * @return A new instance of the algorithm
+	 * @throws IllegalArgumentException If there is no algorithm with the name
+	 */
+	public static CongestionControl forName (String name)
+			throws IllegalArgumentException
+	{
+		if (name.equalsIgnoreCase(AIMD.NAME)) {
+			return new AIMD();
+		} else if (name.equalsIgnoreCase(Delay.NAME)) {
+			return new Delay();
+		}
+		throw new IllegalArgumentException("Unknown congestion control " +
+				"algorithm: " + name);
+	}
+	
+	/**
+	 * Get the name of the algorithm.
+	 * 
+	 * @return The name which can be passed to forName()
+	 */
+	public abstract String getName ();
+	
+	/**
+	 * Get the number of blocks which may be in flight.
+	 * 
+	 * @return The congestion window in blocks, at least 1
+	 */
+	public int getWindow ()
+	{
+		return (int)Math.max(1, Math.min(this.window, Integer.MAX_VALUE));
+	}
+	
+	/**
+	 * Update the window for blocks which have been newly acknowledged.
+	 * 
+	 * @param blocks The number of blocks acknowledged
+	 * @param rtt The round trip time measured by the ACK in nanoseconds, or
+	 * 			  -1 if the acknowledged block was re-sent (Karn's rule)
+	 */
+	public abstract void acknowledged (int blocks, long rtt);
+	
+	/**
+	 * Update the window after a block has been found to be lost from repeated
+	 * ACKs for the block before it (multiplicative decrease).
+	 */
+	public void lost ()
+	{
+		this.threshold = Math.max(this.window / 2, MIN_THRESHOLD);
+		this.window = this.threshold;
+	}
+	
+	/**
+	 * Update the window after the retransmission timeout expired.
+	 */
+	public void timedOut ()
+	{
+		this.threshold = Math.max(this.window / 2, MIN_THRESHOLD);
+		this.window = 1;
+	}
+	
+	/**
+	 * Additive increase, multiplicative decrease (TCP Reno). The window grows
+	 * by one block per round trip once out of slow start, and only shrinks
+	 * when blocks are lost.
+	 */
+	public static class AIMD extends CongestionControl {
+		/**
+		 * Name of the algorithm
+		 */
+		public static final String NAME = "aimd";
+		
+		public String getName ()
+		{
+			return NAME;
+		}
+		
+		public void acknowledged (int blocks, long rtt)
+		{
+			if (this.window < this.threshold) {
+				// Slow start, one more block for each block acknowledged
+				this.window += blocks;
+			} else {
+				// Congestion avoidance, one more block per window
+				this.window += (double)blocks / this.window;
+			}
+		}
+	}
+	
+	/**
+	 * Delay based congestion control (TCP Vegas). The number of blocks queued
+	 * in the network is estimated from how much the round trip time has grown
+	 * above the smallest round trip time seen, and the window is kept between
+	 * ALPHA and BETA queued blocks. This backs off before the queue overflows
+	 * and blocks are lost.
+	 */
+	public static class Delay extends CongestionControl {
+		/**
+		 * Name of the algorithm
+		 */
+		public static final String NAME = "delay";
+		
+		/**
+		 * Queued blocks below which the window is grown
+		 */
+		public static final double ALPHA = 2;
+		
+		/**
+		 * Queued blocks above which the window is shrunk
+		 */
+		public static final double BETA = 4;
+		
+		/**
+		 * Queued blocks above which slow start ends
+		 */
+		public static final double GAMMA = 1;
+		
+		/**
+		 * Smallest round trip time seen in nanoseconds, or -1 if no round
+		 * trip time has been measured
+		 */
+		private long baseRtt = -1;
+		
+		/**
+		 * Most recent round trip time in nanoseconds
+		 */
+		private long lastRtt = -1;
+		
+		public String getName ()
+		{
+			return NAME;
+		}
+		
+		public void acknowledged (int blocks, long rtt)
+		{
+			if (rtt > 0) {
+				this.lastRtt = rtt;
+				if ((this.baseRtt < 0) || (rtt < this.baseRtt)) {
+					this.baseRtt = rtt;
+				}
+			}
+			
+			if (this.lastRtt < 0) {
+				// Nothing to go on yet, grow as in slow start
+				this.window += blocks;
+				return;
+			}
+			
+			// Difference between the expected and actual throughput,
+			// expressed as blocks sitting in queues along the path
+			double queued = this.window *
+					(1 - ((double)this.baseRtt / this.lastRtt));
+			
+			if (this.window < this.threshold) {
+				if (queued > GAMMA) {
+					// Queues have started to build, end slow start
+					this.threshold = this.window;
+				} else {
+					this.window += blocks;
+				}
+			} else if (queued < ALPHA) {
+				this.window += (double)blocks / this.window;
+			} else if (queued > BETA) {
+				this.window = Math.max(1,
+						this.window - ((double)blocks / this.window));
+			}
+		}
+	}
+}
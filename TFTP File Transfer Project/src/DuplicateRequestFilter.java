@@ -0,0 +1,312 @@
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * Finds requests which repeat a request that is already being handled.
+ * Clients resend a request when its first response is slow to arrive, PXE
+ * firmware in particular, and without the filter each copy would start its
+ * own transfer of the same file from a different TID.
+ * 
+ * Each request in progress is recorded as a 64 bit hash of the client's
+ * address and port, the opcode and the filename, taken straight from the
+ * received datagram. The hashes are kept in an open addressing table of
+ * primitive longs, so the request does not have to be parsed first. Since
+ * different clients can have the same hash, IPv6 addresses in particular,
+ * each slot also holds the request itself, and a request is only a
+ * duplicate if the hash and every one of its fields match the datagram.
+ * The fields are compared against the datagram's bytes, so dropping a
+ * duplicate allocates nothing, and a request is only copied when it is
+ * recorded.
+ * 
+ * With SO_REUSEPORT the kernel sends every packet from a client's port to
+ * the same listener, so each listener keeps a filter of its own.
+ */
+public class DuplicateRequestFilter {
+	
+	/**
+	 * Key of a packet which is not a request, never recorded
+	 */
+	private static final long NO_KEY = 0;
+	
+	/**
+	 * Opcodes of read and write requests
+	 */
+	private static final int RRQ_OPCODE = 1;
+	private static final int WRQ_OPCODE = 2;
+	
+	/**
+	 * Constants of the FNV-1a hash
+	 */
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	
+	/**
+	 * Number of slots the table starts with, a power of 2
+	 */
+	private static final int INITIAL_CAPACITY = 64;
+	
+	/**
+	 * A read or write request from a client.
+	 */
+	public static class Request {
+		/**
+		 * Key of the request in the table
+		 */
+		private long key;
+		/**
+		 * Address of the client
+		 */
+		private InetAddress address;
+		/**
+		 * Port of the client
+		 */
+		private int port;
+		/**
+		 * The opcode and filename of the request
+		 */
+		private byte[] name;
+		
+		/**
+		 * Create a request.
+		 * 
+		 * @param key The key of the request
+		 * @param address The address of the client
+		 * @param port The port of the client
+		 * @param name The opcode and filename of the request
+		 */
+		private Request (long key, InetAddress address, int port,
+				byte[] name)
+		{
+			this.key = key;
+			this.address = address;
+			this.port = port;
+			this.name = name;
+		}
+		
+		/**
+		 * Check whether a datagram holds the same request from the same
+		 * client, without copying anything out of it.
+		 * 
+		 * @param packet The datagram
+		 * @return True if the datagram holds this request
+		 */
+		private boolean matches (DatagramPacket packet)
+		{
+			byte[] data = packet.getData();
+			int offset = packet.getOffset();
+			int length = this.name.length;
+			
+			// The filename must end where this one does
+			return (packet.getPort() == this.port) &&
+					this.address.equals(packet.getAddress()) &&
+					(packet.getLength() >= length) &&
+					Arrays.equals(this.name, 0, length, data, offset,
+							offset + length) &&
+					((packet.getLength() == length) ||
+					(data[offset + length] == 0));
+		}
+	}
+	
+	/**
+	 * Returned by claim() for a request which is already being handled
+	 */
+	public static final Request DUPLICATE =
+			new Request(NO_KEY, null, 0, null);
+	
+	/**
+	 * Keys of the requests in progress, NO_KEY for an empty slot
+	 */
+	private long[] keys = new long[INITIAL_CAPACITY];
+	/**
+	 * The requests in progress, in the same slots as their keys
+	 */
+	private Request[] requests = new Request[INITIAL_CAPACITY];
+	/**
+	 * Number of requests in progress
+	 */
+	private int size = 0;
+	/**
+	 * Number of duplicate requests found
+	 */
+	private long suppressed = 0;
+	
+	/**
+	 * Get the key of a request.
+	 * 
+	 * @param packet The datagram which the request was received in
+	 * @return The key of the request, or NO_KEY if the packet is not a read
+	 * 		   or write request
+	 */
+	private static long keyOf (DatagramPacket packet)
+	{
+		byte[] data = packet.getData();
+		int offset = packet.getOffset();
+		int end = offset + packet.getLength();
+		if (packet.getLength() < 2) {
+			return NO_KEY;
+		}
+		int opcode = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+		if ((opcode != RRQ_OPCODE) && (opcode != WRQ_OPCODE)) {
+			return NO_KEY;
+		}
+		
+		// The hash code of an IPv4 address is the address itself, an IPv6
+		// address is folded into 32 bits
+		long hash = FNV_OFFSET;
+		hash = (hash ^ packet.getAddress().hashCode()) * FNV_PRIME;
+		hash = (hash ^ packet.getPort()) * FNV_PRIME;
+		hash = (hash ^ opcode) * FNV_PRIME;
+		for (int i = offset + 2; (i < end) && (data[i] != 0); i++) {
+			hash = (hash ^ (data[i] & 0xFF)) * FNV_PRIME;
+		}
+		
+		// Spread the bits so that the low bits can pick a slot
+		hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+		hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return (hash == NO_KEY) ? 1 : hash;
+	}
+	
+	/**
+	 * Copy the request held in a datagram.
+	 * 
+	 * @param key The key of the request
+	 * @param packet The datagram, which holds a read or write request
+	 * @return The request
+	 */
+	private static Request requestOf (long key, DatagramPacket packet)
+	{
+		byte[] data = packet.getData();
+		int offset = packet.getOffset();
+		int end = offset + packet.getLength();
+		int i = offset + 2;
+		while ((i < end) && (data[i] != 0)) {
+			i++;
+		}
+		return new Request(key, packet.getAddress(), packet.getPort(),
+				Arrays.copyOfRange(data, offset, i));
+	}
+	
+	/**
+	 * Record that the request in a datagram is being handled, unless the
+	 * same request is already being handled.
+	 * 
+	 * @param packet The datagram which the request was received in
+	 * @return The request which was recorded, to be released once it has
+	 * 		   been handled, null if the packet is not a read or write
+	 * 		   request, or DUPLICATE if the request should be dropped
+	 */
+	public synchronized Request claim (DatagramPacket packet)
+	{
+		long key = keyOf(packet);
+		if (key == NO_KEY) {
+			return null;
+		}
+		
+		int mask = this.keys.length - 1;
+		int slot = (int)key & mask;
+		while (this.keys[slot] != NO_KEY) {
+			if ((this.keys[slot] == key) &&
+					this.requests[slot].matches(packet)) {
+				this.suppressed++;
+				return DUPLICATE;
+			}
+			slot = (slot + 1) & mask;
+		}
+		
+		Request request = requestOf(key, packet);
+		this.keys[slot] = key;
+		this.requests[slot] = request;
+		this.size++;
+		if (this.size * 2 > this.keys.length) {
+			this.grow();
+		}
+		return request;
+	}
+	
+	/**
+	 * Record that a request is no longer being handled.
+	 * 
+	 * @param request The request which was claimed, or null
+	 */
+	public synchronized void release (Request request)
+	{
+		if ((request == null) || (request == DUPLICATE)) {
+			return;
+		}
+		
+		int mask = this.keys.length - 1;
+		int hole = (int)request.key & mask;
+		while (this.requests[hole] != request) {
+			if (this.keys[hole] == NO_KEY) {
+				return;
+			}
+			hole = (hole + 1) & mask;
+		}
+		this.keys[hole] = NO_KEY;
+		this.requests[hole] = null;
+		this.size--;
+		
+		// Move later requests back into the hole if they belong at or before
+		// it, so that no search stops early at an empty slot
+		int slot = hole;
+		while (true) {
+			slot = (slot + 1) & mask;
+			long moved = this.keys[slot];
+			if (moved == NO_KEY) {
+				return;
+			}
+			int home = (int)moved & mask;
+			if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+				this.keys[hole] = moved;
+				this.requests[hole] = this.requests[slot];
+				this.keys[slot] = NO_KEY;
+				this.requests[slot] = null;
+				hole = slot;
+			}
+		}
+	}
+	
+	/**
+	 * Double the size of the table.
+	 */
+	private void grow ()
+	{
+		long[] oldKeys = this.keys;
+		Request[] oldRequests = this.requests;
+		this.keys = new long[oldKeys.length * 2];
+		this.requests = new Request[oldKeys.length * 2];
+		int mask = this.keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != NO_KEY) {
+				int slot = (int)oldKeys[i] & mask;
+				while (this.keys[slot] != NO_KEY) {
+					slot = (slot + 1) & mask;
+				}
+				this.keys[slot] = oldKeys[i];
+				this.requests[slot] = oldRequests[i];
+			}
+		}
+	}
+	
+	/**
+	 * Get the number of requests being handled.
+	 * 
+	 * @return The number of requests
+	 */
+	public synchronized int getInProgress ()
+	{
+		return this.size;
+	}
+	
+	/**
+	 * Get the number of duplicate requests found.
+	 * 
+	 * @return The number of requests
+	 */
+	public synchronized long getSuppressed ()
+	{
+		return this.suppressed;
+	}
+}
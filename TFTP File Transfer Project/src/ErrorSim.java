@@ -5,8 +5,12 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.Map;
@@ -20,6 +24,8 @@ import org.apache.commons.cli.*;
 class Errors {
 	private LinkedList<ErrorInstruction> errors = new LinkedList<ErrorInstruction>();
 	private LinkedList<ErrorInstruction> errorsBackup = new LinkedList<ErrorInstruction>();
+	//Percentage of each type of packet which is dropped at random
+	private double[] lossPercent = new double[ErrorInstruction.packetTypes.values().length];
 
 	/**
 	 * Adds a new ErrorInstruction to the error simulators already pending errors
@@ -60,17 +66,49 @@ class Errors {
 		return false;
 	}
 
+	/**
+	 * Sets the percentage of a type of packet which is dropped at random, to simulate a lossy link
+	 * @param type the type of packet to drop
+	 * @param percent the percentage of packets to drop, 0 to stop dropping packets
+	 */
+	public synchronized void setLoss(ErrorInstruction.packetTypes type, double percent) {
+		lossPercent[type.ordinal()] = percent;
+	}
+
+	/**
+	 * Checks whether a packet should be dropped at random
+	 * @param packet the packet to check
+	 * @return true if the packet should be dropped
+	 */
+	public synchronized boolean checkLoss(ForwardedPacket packet) {
+		boolean lossy = false;
+		for(double percent : lossPercent) {
+			lossy |= percent > 0;
+		}
+		if(!lossy) { //Nothing is being dropped, so the packet is not parsed
+			return false;
+		}
+
+		ErrorInstruction.packetTypes type;
+		try {
+			type = ErrorInstruction.getPacketType(packet.parse());
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		return type != null && Math.random() * 100 < lossPercent[type.ordinal()];
+	}
+
 	/**
 	 * Checks a packet to see if any of the pending errors are applicable to it
 	 * @param packet the packet to check
 	 * @return null if no errors apply to the packet, or the ErrorInstruction that does
 	 */
-	public synchronized ErrorInstruction checkPacket(DatagramPacket packet) {
+	public synchronized ErrorInstruction checkPacket(ForwardedPacket packet) {
 		if(errors.size() == 0) {
 			return null;
 		}
 
-		TFTPPacket parsedPacket = TFTPPacket.parse(Arrays.copyOf(packet.getData(), packet.getLength()));
+		TFTPPacket parsedPacket = packet.parse();
 
 		int i;
 		for(i = 0; i < errors.size(); i++) {
@@ -168,11 +206,17 @@ class Errors {
 	 * Provides a list of all pending errors
 	 */
 	public String toString() {
+		String loss = "";
+		for(ErrorInstruction.packetTypes type : ErrorInstruction.packetTypes.values()) {
+			if(lossPercent[type.ordinal()] > 0) {
+				loss += "Randomly dropping " + lossPercent[type.ordinal()] + "% of " + ErrorInstruction.getPacketName(type) + " packets.\n";
+			}
+		}
 
 		if(errors.size() == 0) {
-			return "No errors pending creation.";
+			return loss + "No errors pending creation.";
 		}
-		String desc = "";
+		String desc = loss;
 
 		desc += "The following errors will created:\n";
 
@@ -363,21 +407,22 @@ class ErrorInstruction {
 	 * @param packet The packet whose data should be modified
 	 * @return the modified data
 	 */
-	public byte[] modifyPacket(DatagramPacket packet) {
+	public byte[] modifyPacket(ForwardedPacket packet) {
+		byte[] data = packet.toBytes();
 
 		if(this.errorType == errorTypes.INVALIDATE_APPEND) {
-			byte[] temp = Arrays.copyOf(packet.getData(), packet.getLength() + this.param1);
+			byte[] temp = Arrays.copyOf(data, data.length + this.param1);
 
 			int i;
-			for(i = packet.getLength(); i < temp.length; i++) {
+			for(i = data.length; i < temp.length; i++) {
 				temp[i] = (byte)((Math.random() * 254) + 1);
 			}
 			return temp;
 		}
 		else if(this.errorType == errorTypes.INVALIDATE_BLOCKNUM) {
 			//Replace the block number with the one provided by the user
-			byte[] temp = Arrays.copyOf(packet.getData(), packet.getLength());
-			if(packet.getLength() > 3) {
+			byte[] temp = Arrays.copyOf(data, data.length);
+			if(data.length > 3) {
 				temp[2] = (byte)(param1>>8);
 				temp[3] = (byte)(param1);
 				return temp;
@@ -385,8 +430,8 @@ class ErrorInstruction {
 		}
 		else if(this.errorType == errorTypes.INVALIDATE_ERRORNUM) {
 			//Replace the error number with the one provided by the user
-			byte[] temp = Arrays.copyOf(packet.getData(), packet.getLength());
-			if(packet.getLength() > 3) {
+			byte[] temp = Arrays.copyOf(data, data.length);
+			if(data.length > 3) {
 				temp[2] = (byte)(param1>>8);
 				temp[3] = (byte)(param1);
 				return temp;
@@ -394,11 +439,11 @@ class ErrorInstruction {
 		}
 		else if(this.errorType == errorTypes.INVALIDATE_MODE) {
 			//Remove the mode string to invalidate it
-			byte[] temp = Arrays.copyOf(packet.getData(), packet.getLength());
+			byte[] temp = Arrays.copyOf(data, data.length);
 			if(temp.length > 6) {
 				int start;
 				//Find the start of the mode string
-				for(start=2; (start < packet.getLength()) && temp[start] != 0; start++) {}
+				for(start=2; (start < data.length) && temp[start] != 0; start++) {}
 
 				//Copy everything except the mode string into a new array
 				byte[] toReturn = new byte[start + 2];
@@ -409,8 +454,8 @@ class ErrorInstruction {
 		}
 		else if(this.errorType == errorTypes.INVALIDATE_OPCODE) {
 			//Replace the first byte of the opcode with a random number
-			byte[] temp = Arrays.copyOf(packet.getData(), packet.getLength());
-			if(packet.getLength() > 0) {
+			byte[] temp = Arrays.copyOf(data, data.length);
+			if(data.length > 0) {
 				temp[0] = (byte)((Math.random() * 254) + 1);
 				return temp;
 			}
@@ -418,34 +463,34 @@ class ErrorInstruction {
 		else if(this.errorType == errorTypes.INVALIDATE_RMZ) {
 			//Either removing the last 0 in an ERROR packet, or the last 0 in a WRQ/RRQ packet
 			if(this.param1 == 0 || this.param1 == 2) {
-				return Arrays.copyOf(packet.getData(), packet.getLength()-1);
+				return Arrays.copyOf(data, data.length-1);
 			}
-			else if(packet.getLength() > 4){
+			else if(data.length > 4){
 				//Remove the first 0 in a WRQ/RRQ
-				byte[] temp = Arrays.copyOf(packet.getData(), packet.getLength());
+				byte[] temp = Arrays.copyOf(data, data.length);
 				int pos;
 
 				//Find the first 0 byte
 				for(pos=2; (pos < temp.length) && temp[pos] != 0; pos++) {}
 
 				//Copy everything except the first 0 byte into a new array
-				byte[] toReturn = new byte[packet.getLength()-1];
+				byte[] toReturn = new byte[data.length-1];
 				System.arraycopy(temp, 0, toReturn, 0, pos);
-				System.arraycopy(temp, pos+1, toReturn, pos, packet.getLength()-pos-1);
+				System.arraycopy(temp, pos+1, toReturn, pos, data.length-pos-1);
 				return toReturn;
 			}
 		}
 		else if(this.errorType == errorTypes.INVALIDATE_SHRINK) {
 			if(this.packetType == packetTypes.ERROR) {
 				//Shrink error packets to 4 bytes
-				return Arrays.copyOf(packet.getData(), 4);
+				return Arrays.copyOf(data, 4);
 			}
 			else {
 				//Shrink all other packets to 3 bytes
-				return Arrays.copyOf(packet.getData(), 3);
+				return Arrays.copyOf(data, 3);
 			}
 		}
-		return packet.getData(); //Return the original data if the packet does not need to be modified
+		return data; //Return the original data if the packet does not need to be modified
 	}
 
 	/**
@@ -470,6 +515,30 @@ class ErrorInstruction {
 		}
 	}
 
+	/**
+	 * Finds the packetType of a packet
+	 * @param packet the packet
+	 * @return the packetType of the packet, or null if errors can not be applied to its type
+	 */
+	public static packetTypes getPacketType(TFTPPacket packet) {
+		if(packet instanceof TFTPPacket.RRQ) {
+			return packetTypes.RRQ;
+		}
+		else if(packet instanceof TFTPPacket.WRQ) {
+			return packetTypes.WRQ;
+		}
+		else if(packet instanceof TFTPPacket.DATA) {
+			return packetTypes.DATA;
+		}
+		else if(packet instanceof TFTPPacket.ACK) {
+			return packetTypes.ACK;
+		}
+		else if(packet instanceof TFTPPacket.ERROR) {
+			return packetTypes.ERROR;
+		}
+		return null;
+	}
+
 	/**
 	 * Converts a packetType into a string
 	 * @param type a packetType enum to be converted into a string
@@ -494,6 +563,124 @@ class ErrorInstruction {
 }
 
 
+/**
+ * A packet being forwarded by the error simulator. It is kept in the pooled buffer it was received
+ * into until every send of it has run, since it may be delayed or duplicated
+ */
+class ForwardedPacket {
+	private ByteBuffer buffer;
+	private InetSocketAddress from;
+	private BufferPool pool;
+	//Number of sends of the packet which have not run yet
+	private int sends = 1;
+
+	/**
+	 * Constructor for ForwardedPacket
+	 * @param buffer the buffer holding the packet between its position and limit
+	 * @param from the address the packet was received from
+	 * @param pool the pool the buffer is returned to once the packet has been sent
+	 */
+	public ForwardedPacket(ByteBuffer buffer, InetSocketAddress from, BufferPool pool) {
+		this.buffer = buffer;
+		this.from = from;
+		this.pool = pool;
+	}
+
+	/**
+	 * Gets the address the packet was received from
+	 * @return the IP address
+	 */
+	public InetAddress getAddress() {
+		return from.getAddress();
+	}
+
+	/**
+	 * Gets the port the packet was received from
+	 * @return the port number
+	 */
+	public int getPort() {
+		return from.getPort();
+	}
+
+	/**
+	 * Gets the length of the packet
+	 * @return the number of bytes
+	 */
+	public synchronized int getLength() {
+		return buffer.limit();
+	}
+
+	/**
+	 * Gets the opcode of the packet without parsing it
+	 * @return the opcode, or -1 if the packet is too short to have one
+	 */
+	public synchronized int getOpcode() {
+		return (buffer.limit() < 2) ? -1 : (buffer.getShort(0) & 0xFFFF);
+	}
+
+	/**
+	 * Checks whether the packet should go to the server's known port rather than its TID, the
+	 * second byte of the opcode being that of a RRQ or WRQ
+	 * @return true if the packet is a request
+	 */
+	public synchronized boolean isRequest() {
+		return buffer.limit() > 1 && (buffer.get(1) == 1 || buffer.get(1) == 2);
+	}
+
+	/**
+	 * Copies the bytes of the packet
+	 * @return the bytes of the packet
+	 */
+	public synchronized byte[] toBytes() {
+		byte[] data = new byte[buffer.limit()];
+		buffer.position(0);
+		buffer.get(data);
+		buffer.position(0);
+		return data;
+	}
+
+	/**
+	 * Parses a copy of the packet
+	 * @return the parsed packet
+	 * @throws IllegalArgumentException if the packet is not valid
+	 */
+	public TFTPPacket parse() throws IllegalArgumentException {
+		return TFTPPacket.parse(toBytes());
+	}
+
+	/**
+	 * Records that the packet will be sent one more time, before the send is scheduled
+	 */
+	public synchronized void retain() {
+		sends++;
+	}
+
+	/**
+	 * Sends the packet straight from its buffer
+	 * @param socket the socket to send from, opened by ErrorSim.openSocket
+	 * @param address the IP address to send to
+	 * @param port the port to send to
+	 * @throws IOException if the packet could not be sent
+	 */
+	public synchronized void send(DatagramSocket socket, InetAddress address, int port) throws IOException {
+		buffer.position(0);
+		socket.getChannel().send(buffer, new InetSocketAddress(address, port));
+		buffer.position(0);
+	}
+
+	/**
+	 * Records that a send of the packet has run or will not run, and returns the buffer to the pool
+	 * once no sends are left
+	 */
+	public synchronized void release() {
+		sends--;
+		if(sends == 0) {
+			pool.release(buffer);
+			buffer = null;
+		}
+	}
+}
+
 /**
  * Handles all communications to and from the client
  */
@@ -503,7 +690,7 @@ class ErrorSimClientListener{
 	private DatagramSocket TIDSocket;
 	private InetAddress clientAddress;
     private int clientPort;
-    private Timer sendTimer;
+    private WheelTimer sendTimer;
     private Timer invalidTIDSendTimer;
     private SocketListener knownPortListener;
     private SocketListener TIDPortListener;
@@ -524,20 +711,20 @@ class ErrorSimClientListener{
 		this.errorSim = errorSim;
 
 		try { //Set up the socket that will be used to receive packets from client on known port
-			knownSocket = new DatagramSocket(port);
-		} catch (SocketException se) { // Can't create the socket.
+			knownSocket = ErrorSim.openSocket(port);
+		} catch (IOException se) { // Can't create the socket.
 			se.printStackTrace();
 			System.exit(1);
 	    }
 
 		try { //Set up the socket that will be used to communicate with TID port
-			TIDSocket = new DatagramSocket();
-		} catch (SocketException se) { // Can't create the socket.
+			TIDSocket = ErrorSim.openSocket(0);
+		} catch (IOException se) { // Can't create the socket.
 			se.printStackTrace();
 			System.exit(1);
 	    }
 
-		sendTimer = new Timer();
+		sendTimer = new WheelTimer("Delayed sends to client");
 		invalidTIDSendTimer = new Timer();
 		knownPortListener = new SocketListener(knownSocket);
 		TIDPortListener = new SocketListener(TIDSocket);
@@ -549,7 +736,15 @@ class ErrorSimClientListener{
 	 * Sends a packet to the client and applies any applicable pending errors to it
 	 * @param packet the packet to send
 	 */
-	public synchronized void sendToClient(DatagramPacket packet) {
+	public synchronized void sendToClient(ForwardedPacket packet) {
+		if(errorSim.errors.checkLoss(packet)) {
+			if(verbose) {
+				System.out.println("Randomly dropped a packet to the client.\n");
+			}
+			packet.release();
+			return;
+		}
+
 		ErrorInstruction ei = errorSim.errors.checkPacket(packet);
 		if(ei != null) {
 			System.out.println("Applying the following error before sending packet to client:");
@@ -558,29 +753,34 @@ class ErrorSimClientListener{
 
 			if(ei.errorType == ErrorInstruction.errorTypes.DUPLICATE) {
 				//Send the packet now, and its duplicate later
-				sendTimer.schedule(new DelayedSendToClient(packet.getData(), packet.getLength()), 0);
-				sendTimer.schedule(new DelayedSendToClient(packet.getData(), packet.getLength()), ei.param1);
+				packet.retain();
+				sendTimer.schedule(new DelayedSendToClient(packet), 0);
+				sendTimer.schedule(new DelayedSendToClient(packet), ei.param1);
 			}
 			else if(ei.errorType == ErrorInstruction.errorTypes.DELAY) {
 				//Send the packet later
-				sendTimer.schedule(new DelayedSendToClient(packet.getData(), packet.getLength()), ei.param1);
+				sendTimer.schedule(new DelayedSendToClient(packet), ei.param1);
 			}
 			else if(ei.errorType == ErrorInstruction.errorTypes.DROP) {
-				//Do nothing, packet does not need to be sent
+				//Packet does not need to be sent
+				packet.release();
 			}
 			else if(ei.errorType == ErrorInstruction.errorTypes.INVALIDATE_TID) {
 				//Send out of a different port
-				invalidTIDSendTimer.schedule(new InvalidTIDSendToClient(packet.getData(), packet.getLength()), 0);
+				byte[] data = packet.toBytes();
+				packet.release();
+				invalidTIDSendTimer.schedule(new InvalidTIDSendToClient(data, data.length), 0);
 			}
 			else {
 				//Modify the packet according to the error and send it
 				byte[] temp = ei.modifyPacket(packet);
-				sendTimer.schedule(new DelayedSendToClient(temp, temp.length), 0);
+				packet.release();
+				sendTimer.schedule(new DelayedSendToClient(new ForwardedPacket(ByteBuffer.wrap(temp), null, errorSim.buffers)), 0);
 			}
 		}
 		else {
 			//Send the packet to the client without introducing any errors
-			sendTimer.schedule(new DelayedSendToClient(packet.getData(), packet.getLength()), 0);
+			sendTimer.schedule(new DelayedSendToClient(packet), 0);
 		}
 	}
 
@@ -608,8 +808,8 @@ class ErrorSimClientListener{
 		knownSocket.close();
 		clientPort = port;
 		try { //Set up the socket that will be used to receive packets from client on known port
-			knownSocket = new DatagramSocket(port);
-		} catch (SocketException se) { // Can't create the socket.
+			knownSocket = ErrorSim.openSocket(port);
+		} catch (IOException se) { // Can't create the socket.
 			se.printStackTrace();
 			System.exit(1);
 	    }
@@ -633,10 +833,8 @@ class ErrorSimClientListener{
 	 * Cancels the sending of all delayed packets
 	 */
 	public void cancelDelayedSend() {
-		synchronized(sendTimer) {
-			sendTimer.cancel(); //Remove all scheduled tasks
-			sendTimer = new Timer(); //Restart the timer
-		}
+		//The buffers of cancelled packets are not returned to the pool, but left to the garbage collector
+		sendTimer.cancelAll(); //Remove all scheduled tasks
 		synchronized(invalidTIDSendTimer) {
 			invalidTIDSendTimer.cancel(); //Remove all scheduled tasks
 			invalidTIDSendTimer = new Timer(); //Restart the timer
@@ -664,24 +862,25 @@ class ErrorSimClientListener{
 	 * @param socket the socket to listen to
 	 * @return a packet if one was received or null if the socket was closed
 	 */
-	private DatagramPacket receiveFromClient(DatagramSocket socket) {
+	private ForwardedPacket receiveFromClient(DatagramSocket socket) {
 
-		byte data[] = new byte[TFTPPacket.MAX_SIZE];
-	    DatagramPacket packet = new DatagramPacket(data, data.length);
+	    ForwardedPacket packet = null;
 	    TFTPPacket TFTPpacket;
 
     	try { //Wait for a packet to come in from the client.
-    		socket.receive(packet);
+    		packet = errorSim.receive(socket);
     	} catch(IOException e) {
-    		if(e.getMessage().toLowerCase().equals("socket closed")){
-    			return null;
-    		}
     		e.printStackTrace();
 			System.exit(1);
     	}
+    	if(packet == null) { //The socket was closed
+    		return null;
+    	}
 
     	try {
-    	    TFTPpacket = TFTPPacket.parse(Arrays.copyOf(packet.getData(), packet.getLength()));
+    	    //Only requests are parsed, DATA and ACK packets are forwarded without being copied
+    	    int opcode = packet.getOpcode();
+    	    TFTPpacket = (opcode == 1 || opcode == 2) ? packet.parse() : null;
 
     	    //Check if this is the start of a new transaction. If it is, cancel all the pending delayed packets
     	    if(TFTPpacket instanceof TFTPPacket.WRQ || TFTPpacket instanceof TFTPPacket.RRQ) {
@@ -700,7 +899,7 @@ class ErrorSimClientListener{
     	    System.out.println("From port: " + packet.getPort());
     	    System.out.println("Length: " + packet.getLength());
     	    try {
-    	    	TFTPPacket.parse(Arrays.copyOf(packet.getData(), packet.getLength())).print();
+    	    	packet.parse().print();
 	    	}
 	    	catch(IllegalArgumentException e) {
 	    		System.out.println("Invalid packet.");
@@ -729,7 +928,7 @@ class ErrorSimClientListener{
 		 * The overridden run method for this thread
 		 */
 		public void run() {
-			DatagramPacket receivePacket;
+			ForwardedPacket receivePacket;
 
 			while(true) {
 				receivePacket = receiveFromClient(socket);
@@ -747,34 +946,31 @@ class ErrorSimClientListener{
 	/**
 	 * DelayedSendToClient class allows a packet to be sent at some time in the future
 	 */
-	private class DelayedSendToClient extends TimerTask{
-		byte data[];
-		int length;
+	private class DelayedSendToClient implements Runnable{
+		ForwardedPacket packet;
 
 		/**
 		 * Creates a new task that will send a packet
-		 * @param data the data to send
-		 * @param length the length of the data
+		 * @param packet the packet to send, released once it has been sent
 		 */
-		public DelayedSendToClient(byte data[], int length) {
-			this.data = data;
-			this.length = length;
+		public DelayedSendToClient(ForwardedPacket packet) {
+			this.packet = packet;
 		}
 
 		/**
 		 * The overridden run method for this thread
 		 */
 		public synchronized void run() {
-
-			DatagramPacket packet = new DatagramPacket(data, length, clientAddress, clientPort);
+			InetAddress address = clientAddress;
+			int port = clientPort;
 
 			if(verbose) {
 	    		System.out.println("Sending packet to client.");
-	    	    System.out.println("To address: " + packet.getAddress());
-	    	    System.out.println("To port: " + packet.getPort());
+	    	    System.out.println("To address: " + address);
+	    	    System.out.println("To port: " + port);
 	    	    System.out.println("Length: " + packet.getLength());
 	    	    try {
-	    	    	TFTPPacket.parse(Arrays.copyOf(data, length)).print();
+	    	    	packet.parse().print();
 		    	}
 		    	catch(IllegalArgumentException e) {
 		    		System.out.println("Invalid packet.");
@@ -783,15 +979,16 @@ class ErrorSimClientListener{
 	    	}
 
 			try { //Send the packet to the client
-	    		TIDSocket.send(packet);
+	    		packet.send(TIDSocket, address, port);
 	    	} catch (IOException e) {
-	    		if(e.getMessage().equals("socket closed")){
+	    		if(TIDSocket.isClosed()){
 	    			return;
 	    		}
 	    		e.printStackTrace();
 				System.exit(1);
+	    	} finally {
+	    		packet.release();
 	    	}
-			this.cancel();
 		}
 	}
 
@@ -890,7 +1087,7 @@ class ErrorSimServerListener implements Runnable {
 	private InetAddress serverAddress;
     private int serverPort;
     private int serverTID;
-    private Timer sendTimer;
+    private WheelTimer sendTimer;
     private Timer invalidTIDSendTimer;
     boolean verbose;
 
@@ -908,13 +1105,13 @@ class ErrorSimServerListener implements Runnable {
 		this.errorSim = errorSim;
 
 		try { //Set up the socket that will be used to communicate with the server
-			socket = new DatagramSocket();
-		} catch (SocketException se) { // Can't create the socket.
+			socket = ErrorSim.openSocket(0);
+		} catch (IOException se) { // Can't create the socket.
 			se.printStackTrace();
 			System.exit(1);
 	    }
 
-		sendTimer = new Timer();
+		sendTimer = new WheelTimer("Delayed sends to server");
 		invalidTIDSendTimer = new Timer();
 	}
 
@@ -922,7 +1119,15 @@ class ErrorSimServerListener implements Runnable {
 	 * Sends a packet to the server
 	 * @param packet the packet to send
 	 */
-	public synchronized void sendToServer(DatagramPacket packet) {
+	public synchronized void sendToServer(ForwardedPacket packet) {
+		if(errorSim.errors.checkLoss(packet)) {
+			if(verbose) {
+				System.out.println("Randomly dropped a packet to the server.\n");
+			}
+			packet.release();
+			return;
+		}
+
 		ErrorInstruction ei = errorSim.errors.checkPacket(packet);
 		if(ei != null) {
 			System.out.println("Applying the following error before sending packet to server:");
@@ -931,29 +1136,34 @@ class ErrorSimServerListener implements Runnable {
 
 			if(ei.errorType == ErrorInstruction.errorTypes.DUPLICATE) {
 				//Send the packet now, and its duplicate later
-				sendTimer.schedule(new DelayedSendToServer(packet.getData(), packet.getLength()), 0);
-				sendTimer.schedule(new DelayedSendToServer(packet.getData(), packet.getLength()), ei.param1);
+				packet.retain();
+				sendTimer.schedule(new DelayedSendToServer(packet), 0);
+				sendTimer.schedule(new DelayedSendToServer(packet), ei.param1);
 			}
 			else if(ei.errorType == ErrorInstruction.errorTypes.DELAY) {
 				//Send the packet later
-				sendTimer.schedule(new DelayedSendToServer(packet.getData(), packet.getLength()), ei.param1);
+				sendTimer.schedule(new DelayedSendToServer(packet), ei.param1);
 			}
 			else if(ei.errorType == ErrorInstruction.errorTypes.DROP) {
-				//Do nothing, packet does not need to be sent
+				//Packet does not need to be sent
+				packet.release();
 			}
 			else if(ei.errorType == ErrorInstruction.errorTypes.INVALIDATE_TID) {
 				//Send out of a different port
-				invalidTIDSendTimer.schedule(new InvalidTIDSendToServer(packet.getData(), packet.getLength()), 0);
+				byte[] data = packet.toBytes();
+				packet.release();
+				invalidTIDSendTimer.schedule(new InvalidTIDSendToServer(data, data.length), 0);
 			}
 			else {
 				//Modify the packet according to the error and send it
 				byte[] temp = ei.modifyPacket(packet);
-				sendTimer.schedule(new DelayedSendToServer(temp, temp.length), 0);
+				packet.release();
+				sendTimer.schedule(new DelayedSendToServer(new ForwardedPacket(ByteBuffer.wrap(temp), null, errorSim.buffers)), 0);
 			}
 		}
 		else {
 			//Send the packet to the client without introducing any errors
-			sendTimer.schedule(new DelayedSendToServer(packet.getData(), packet.getLength()), 0);
+			sendTimer.schedule(new DelayedSendToServer(packet), 0);
 		}
 	}
 
@@ -986,10 +1196,8 @@ class ErrorSimServerListener implements Runnable {
 	 * Cancels the sending of all delayed packets
 	 */
 	public void cancelDelayedSend() {
-		synchronized(sendTimer) {
-			sendTimer.cancel(); //Remove all scheduled tasks
-			sendTimer = new Timer(); //Restart the timer
-		}
+		//The buffers of cancelled packets are not returned to the pool, but left to the garbage collector
+		sendTimer.cancelAll(); //Remove all scheduled tasks
 		synchronized(invalidTIDSendTimer) {
 			invalidTIDSendTimer.cancel(); //Remove all scheduled tasks
 			invalidTIDSendTimer = new Timer(); //Restart the timer
@@ -1000,7 +1208,7 @@ class ErrorSimServerListener implements Runnable {
 	 * The overridden run method for this thread
 	 */
 	public void run() {
-	    DatagramPacket receivePacket;
+	    ForwardedPacket receivePacket;
 
 	    while(true){
 	    	receivePacket = receiveFromServer();
@@ -1027,20 +1235,19 @@ class ErrorSimServerListener implements Runnable {
 	 * Waits to receive a packet from the server
 	 * @return the packet if one was received, or null if the socket was closed
 	 */
-	private DatagramPacket receiveFromServer() {
+	private ForwardedPacket receiveFromServer() {
 
-		byte data[] = new byte[TFTPPacket.MAX_SIZE];
-	    DatagramPacket packet = new DatagramPacket(data, data.length);
+	    ForwardedPacket packet = null;
 
-    	try { //Wait for a packet to come in from the client.
-    		socket.receive(packet);
+    	try { //Wait for a packet to come in from the server.
+    		packet = errorSim.receive(socket);
     	} catch(IOException e) {
-    		if(e.getMessage().toLowerCase().equals("socket closed")){
-    			return null;
-    		}
     		e.printStackTrace();
 			System.exit(1);
     	}
+    	if(packet == null) { //The socket was closed
+    		return null;
+    	}
 
     	if(verbose) {
     		System.out.println("Received packet from server.");
@@ -1048,7 +1255,7 @@ class ErrorSimServerListener implements Runnable {
     	    System.out.println("From port: " + packet.getPort());
     	    System.out.println("Length: " + packet.getLength());
     	    try {
-    	    	TFTPPacket.parse(Arrays.copyOf(packet.getData(), packet.getLength())).print();
+    	    	packet.parse().print();
 	    	}
 	    	catch(IllegalArgumentException e) {
 	    		System.out.println("Invalid packet.");
@@ -1062,40 +1269,31 @@ class ErrorSimServerListener implements Runnable {
 	/**
 	 * DelayedSendToServer class allows a packet to be sent at some time in the future
 	 */
-	private class DelayedSendToServer extends TimerTask{
-		byte data[];
-		int length;
+	private class DelayedSendToServer implements Runnable{
+		ForwardedPacket packet;
 
 		/**
 		 * Constructor for DelayedSendToServer
-		 * @param data the data to send
-		 * @param length the length of the data
+		 * @param packet the packet to send, released once it has been sent
 		 */
-		public DelayedSendToServer(byte data[], int length) {
-			this.data = data;
-			this.length = length;
+		public DelayedSendToServer(ForwardedPacket packet) {
+			this.packet = packet;
 		}
 
 		/**
 		 * The overridden run method
 		 */
 		public synchronized void run() {
-			DatagramPacket packet;
-
-			if(length > 1 && (data[1] == 1 || data[1] == 2)) {
-				packet = new DatagramPacket(data, length, serverAddress, serverPort);
-			}
-			else {
-				packet = new DatagramPacket(data, length, serverAddress, serverTID);
-			}
+			//Requests go to the server's known port, everything else to its TID
+			int port = packet.isRequest() ? serverPort : serverTID;
 
 			if(verbose) {
 	    		System.out.println("Sending packet to server.");
-	    	    System.out.println("To address: " + packet.getAddress());
-	    	    System.out.println("To port: " + packet.getPort());
+	    	    System.out.println("To address: " + serverAddress);
+	    	    System.out.println("To port: " + port);
 	    	    System.out.println("Length: " + packet.getLength());
 	    	    try {
-	    	    TFTPPacket.parse(Arrays.copyOf(data, length)).print();
+	    	    packet.parse().print();
 	    	    }
 	    	    catch(IllegalArgumentException e) {
 	    	    	System.out.println("Invalid packet.");
@@ -1104,15 +1302,16 @@ class ErrorSimServerListener implements Runnable {
 	    	}
 
 			try { //Send the packet to the client
-	    		socket.send(packet);
+	    		packet.send(socket, serverAddress, port);
 	    	} catch (IOException e) {
-	    		if(e.getMessage().equals("socket closed")){
+	    		if(socket.isClosed()){
 	    			return;
 	    		}
 	    		e.printStackTrace();
 				System.exit(1);
+	    	} finally {
+	    		packet.release();
 	    	}
-			this.cancel();
 		}
 	}
 
@@ -1215,6 +1414,8 @@ public class ErrorSim {
 	private Thread serverListenerThread;
 	public Errors errors;
 
+	public BufferPool buffers = new BufferPool(BufferPool.DEFAULT_MAX_MEMORY);
+
 	/**
 	 * Constructor for the error sim class
 	 * @param clientPort the port to listen to client requests on
@@ -1232,6 +1433,39 @@ public class ErrorSim {
 		serverListenerThread = new Thread(serverListener);
 	}
 
+	/**
+	 * Opens a UDP socket backed by a channel, so that packets can be received into and sent from
+	 * pooled buffers
+	 * @param port the port to bind to, or 0 for any free port
+	 * @return the socket
+	 * @throws IOException if the socket could not be bound
+	 */
+	static DatagramSocket openSocket(int port) throws IOException {
+		return DatagramChannel.open().bind(new InetSocketAddress(port)).socket();
+	}
+
+	/**
+	 * Receives a packet into a pooled buffer, which is kept until the packet has been forwarded, so
+	 * that forwarding a packet copies nothing even if it is delayed or duplicated
+	 * @param socket a socket opened by openSocket
+	 * @return the packet, or null if the socket was closed
+	 * @throws IOException if the packet could not be received
+	 */
+	ForwardedPacket receive(DatagramSocket socket) throws IOException {
+		ByteBuffer buffer = buffers.acquire(TFTPPacket.MAX_PACKET_SIZE);
+		try {
+			InetSocketAddress from = (InetSocketAddress)socket.getChannel().receive(buffer);
+			buffer.flip();
+			return new ForwardedPacket(buffer, from, buffers);
+		} catch (ClosedChannelException e) {
+			buffers.release(buffer);
+			return null;
+		} catch (IOException e) {
+			buffers.release(buffer);
+			throw e;
+		}
+	}
+
 	/**
 	 * Starts the error simulator listener threads
 	 */
@@ -1395,6 +1629,37 @@ public class ErrorSim {
 		}
 	}
 
+	//Handles the loss command
+	private void lossCmd (Console c, String[] args) {
+		if(args.length > 3) {
+			c.println("Error: Too many parameters.");
+		}
+		else if(args.length < 3){
+			c.println("Error: Not enough parameters.");
+		}
+		else {
+			if(ErrorInstruction.getPacketType(args[1]) == null) {
+				c.println("Error: Invalid packet type");
+				return;
+			}
+
+			try {
+				double percent = Double.parseDouble(args[2]);
+				if(percent < 0 || percent > 100) {
+					c.println("Error: Percentage must be between 0 and 100.");
+					return;
+				}
+				errors.setLoss(ErrorInstruction.getPacketType(args[1]), percent);
+				if (clientListener.verbose) {
+					c.println(errors.toString());
+				}
+			}
+			catch(NumberFormatException e) {
+				c.println("Error: Invalid percentage.");
+			}
+		}
+	}
+
 	//Handles the delay command
 	private void delayCmd (Console c, String[] args) {
 		if(args.length > 5) {
@@ -1803,6 +2068,10 @@ public class ErrorSim {
 		c.println("    [packet number] - the packets block number, or the nth packet seen.");
 		c.println("    [# of times] - how many times this error should be created.");
 		c.println("");
+		c.println("loss [packet type][percent] - randomly drops a percentage of packets, 0 to stop.");
+		c.println("    [packet type] - the type of packet. (RRQ, WRQ, DATA, ACK, ERROR)");
+		c.println("    [percent] - the percentage of packets of this type to drop.");
+		c.println("");
 		c.println("delay [packet type][packet number][delay][# of times] - delays a packet.");
 		c.println("     [packet type] - the type of packet. (RRQ, WRQ, DATA, ACK, ERROR)");
 		c.println("     [packet number] - the packets block number, or the nth packet seen.");
@@ -1961,6 +2230,7 @@ public class ErrorSim {
 				Map.entry("serverport", errorSim::setServerPortCmd),
 				Map.entry("serverip", errorSim::setServerIPCmd),
 				Map.entry("drop", errorSim::dropCmd),
+				Map.entry("loss", errorSim::lossCmd),
 				Map.entry("delay", errorSim::delayCmd),
 				Map.entry("duplicate", errorSim::duplicateCmd),
 				Map.entry("tid", errorSim::invdTIDCmd),
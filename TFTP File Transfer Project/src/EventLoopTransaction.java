@@ -0,0 +1,1212 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.util.function.Consumer;
+
+/**
+ * Encapsulates the logic of a TFTP file transfer run by a ServerEventLoop.
+ * 
+ * These transfer files in the same way as the server's TFTPTransactions, but
+ * as state machines which are driven by packets arriving and timers expiring
+ * rather than by a thread blocking on its socket, so that many transfers can
+ * share a few threads. The block size, window size, transfer size, timeout
+ * and rollover options are supported.
+ */
+public abstract class EventLoopTransaction implements ServerEventLoop.Handler {
+	
+	/**
+	 * The event loop which runs the transaction
+	 */
+	private ServerEventLoop loop;
+	/**
+	 * The channel used to communicate with the peer, in non-blocking mode
+	 */
+	private DatagramChannel channel;
+	/**
+	 * Registration of the channel with the event loop
+	 */
+	private SelectionKey key = null;
+	/**
+	 * The address and TID of the peer
+	 */
+	private InetSocketAddress remote;
+	/**
+	 * Logger used to log details of sent and received packets
+	 */
+	private Logger logger;
+	/**
+	 * Called with the final state of the transaction once it ends
+	 */
+	private Consumer<TFTPTransaction.TFTPTransactionState> onFinished;
+	
+	/**
+	 * The current state of the transaction
+	 */
+	private TFTPTransaction.TFTPTransactionState state =
+			TFTPTransaction.TFTPTransactionState.INITIALIZED;
+	/**
+	 * Message from error which occurred on peer
+	 */
+	private String errorMessage = null;
+	/**
+	 * The timer which is set, or null if there is none
+	 */
+	private TimingWheel.Timeout pending = null;
+	
+	/**
+	 * Number of bytes of file data carried by each DATA packet
+	 */
+	private int blockSize = TFTPPacket.BLOCK_SIZE;
+	/**
+	 * Number of DATA packets which may be sent before an ACK is required
+	 */
+	private int windowSize = TFTPPacket.WINDOW_SIZE;
+	/**
+	 * Size of the file being transfered as given by the transfer size option,
+	 * or -1 if the size is not known
+	 */
+	private long transferSize = -1;
+	/**
+	 * Block number which follows block 65535, or -1 if the block number may
+	 * not roll over
+	 */
+	private int rollover = -1;
+	/**
+	 * Options acknowledgment to be sent to the peer before the first block,
+	 * or null if no options where negotiated
+	 */
+	private TFTPPacket.OACK optionAck;
+	/**
+	 * Timer used to decide when packets should be re-sent
+	 */
+	private RetransmitTimer timer = new RetransmitTimer();
+	/**
+	 * Reads each packet received in place in the event loop's buffer
+	 */
+	private PacketCodec codec = new PacketCodec();
+	
+	/**
+	 * Create an EventLoopTransaction.
+	 * 
+	 * @param loop The event loop which will run the transaction
+	 * @param channel The channel used to communicate with the peer
+	 * @param remoteHost The address of the peer
+	 * @param remoteTID The TID of the peer
+	 * @param optionAck The options acknowledgment to send to the peer, or
+	 * 					null if no options where negotiated
+	 * @param logger The logger used to log details of packets
+	 * @param onFinished Called on the event loop with the final state of the
+	 * 					 transaction, once the channel may be reused
+	 */
+	private EventLoopTransaction (ServerEventLoop loop, DatagramChannel channel,
+			InetAddress remoteHost, int remoteTID, TFTPPacket.OACK optionAck,
+			Logger logger,
+			Consumer<TFTPTransaction.TFTPTransactionState> onFinished)
+	{
+		this.loop = loop;
+		this.channel = channel;
+		this.remote = new InetSocketAddress(remoteHost, remoteTID);
+		this.optionAck = optionAck;
+		this.logger = logger;
+		this.onFinished = onFinished;
+		
+		if (optionAck != null) {
+			this.applyOptions(optionAck.getOptions());
+		}
+	}
+	
+	/**
+	 * Apply the options which have been agreed upon with the peer.
+	 * 
+	 * @param options The agreed upon options
+	 */
+	private void applyOptions (TFTPPacket.OptionSet options)
+	{
+		String blockSize = options.getOptionValue(
+				TFTPPacket.OptionSet.BLOCK_SIZE);
+		if (blockSize != null) {
+			this.blockSize = Integer.parseInt(blockSize);
+		}
+		
+		String windowSize = options.getOptionValue(
+				TFTPPacket.OptionSet.WINDOW_SIZE);
+		if (windowSize != null) {
+			this.windowSize = Integer.parseInt(windowSize);
+		}
+		
+		// A window is sent in one burst, whatever does not fit in the
+		// channel's buffers is dropped. The server limited the window size
+		// to what fits when it was negotiated.
+		if ((blockSize != null) || (windowSize != null)) {
+			try {
+				UDPTransport.reserveWindow(this.channel.socket(),
+						this.blockSize, this.windowSize);
+			} catch (IOException e) {
+				this.logger.log(LogLevel.WARN, "Could not set the size of " +
+						"the channel's buffers.");
+			}
+		}
+		
+		String transferSize = options.getOptionValue(
+				TFTPPacket.OptionSet.TRANSFER_SIZE);
+		if (transferSize != null) {
+			this.transferSize = Long.parseLong(transferSize);
+		}
+		
+		String rollover = options.getOptionValue(
+				TFTPPacket.OptionSet.ROLLOVER);
+		if (rollover != null) {
+			this.rollover = Integer.parseInt(rollover);
+		}
+		
+		String timeout = options.getOptionValue(TFTPPacket.OptionSet.TIMEOUT);
+		if (timeout != null) {
+			// Both sides must use the negotiated timeout as is
+			this.timer = new RetransmitTimer(Integer.parseInt(timeout) * 1000);
+		}
+	}
+	
+	/**
+	 * Start the transaction. Must be called on the event loop's thread.
+	 */
+	public void start ()
+	{
+		this.state = TFTPTransaction.TFTPTransactionState.IN_PROGRESS;
+		
+		try {
+			this.channel.configureBlocking(false);
+			this.key = this.loop.register(this.channel, this);
+		} catch (IOException e) {
+			this.finish(TFTPTransaction.TFTPTransactionState.SOCKET_IO_ERROR);
+			return;
+		}
+		
+		this.begin();
+	}
+	
+	/**
+	 * Send the first packet of the transaction.
+	 */
+	protected abstract void begin ();
+	
+	/**
+	 * Handle a packet received from the peer.
+	 * 
+	 * @param packet The packet received, which is only valid until the method
+	 * 				 returns
+	 */
+	protected abstract void received (PacketCodec packet);
+	
+	/**
+	 * Close the file being transfered.
+	 * 
+	 * @throws IOException
+	 */
+	protected abstract void closeFile () throws IOException;
+	
+	/**
+	 * Receive every packet waiting on the channel.
+	 */
+	public void ready ()
+	{
+		while (this.isInProgress()) {
+			ByteBuffer buffer = this.loop.getReceiveBuffer();
+			InetSocketAddress from;
+			try {
+				from = (InetSocketAddress)this.channel.receive(buffer);
+			} catch (IOException e) {
+				this.finish(
+						TFTPTransaction.TFTPTransactionState.SOCKET_IO_ERROR);
+				return;
+			}
+			if (from == null) {
+				// Nothing else waiting
+				return;
+			}
+			
+			buffer.flip();
+			
+			if (!from.getAddress().equals(this.remote.getAddress())) {
+				// Packet from wrong host, ignore
+				this.logger.log(LogLevel.WARN, String.format("Received " +
+						"packet from incorrect host (%s should be %s), " +
+						"ignoring.", from.getAddress().toString(),
+						this.remote.getAddress().toString()));
+				continue;
+			} else if (from.getPort() != this.remote.getPort()) {
+				// Got packet from wrong TID, send error to source host
+				TFTPPacket error = new TFTPPacket.ERROR(
+						TFTPPacket.TFTPError.UNKOWN_TRANSFER_ID,
+						String.format("Unkown TID: %d", from.getPort()));
+				this.send(error, from);
+				continue;
+			}
+			
+			PacketCodec packet;
+			try {
+				packet = this.codec.wrap(buffer);
+				if ((packet.getOpcode() != PacketCodec.DATA) &&
+						(packet.getOpcode() != PacketCodec.ACK) &&
+						(packet.getOpcode() != PacketCodec.ERROR)) {
+					// Not expected during a transfer, but checked in full so
+					// that a malformed packet is reported as such
+					packet.toPacket();
+				}
+			} catch (IllegalArgumentException e) {
+				this.sendErrorPacket(TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+						"Not a valid packet.");
+				this.finish((e instanceof TFTPPacket.InvalidOpcodeException) ?
+						TFTPTransaction.TFTPTransactionState
+								.RECEIVED_INVALID_OPCODE :
+						TFTPTransaction.TFTPTransactionState
+								.RECEIVED_BAD_PACKET);
+				return;
+			}
+			
+			// Received packet from valid TID
+			this.logPacket(buffer, from, true);
+			
+			if (packet.getOpcode() == PacketCodec.ERROR) {
+				// Got an error packet
+				TFTPPacket.ERROR error = new TFTPPacket.ERROR(
+						packet.getError(), packet.getErrorDescription());
+				this.errorMessage = error.getDescription();
+				this.finish(TFTPTransaction.errorState(error));
+				return;
+			}
+			
+			this.received(packet);
+		}
+	}
+	
+	/**
+	 * Send a TFTPPacket to the peer.
+	 * 
+	 * @param packet The packet to be sent
+	 * @return True if an error occurred
+	 */
+	protected boolean sendToRemote (TFTPPacket packet)
+	{
+		if (this.send(packet, this.remote)) {
+			this.finish(TFTPTransaction.TFTPTransactionState.SOCKET_IO_ERROR);
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Send a packet which has been written into a buffer to the peer. The
+	 * buffer's position is left where it was, so that the packet can be sent
+	 * again.
+	 * 
+	 * @param packet The buffer holding the packet, between its position and
+	 * 				 its limit
+	 * @return True if an error occurred
+	 */
+	protected boolean sendToRemote (ByteBuffer packet)
+	{
+		int start = packet.position();
+		try {
+			this.channel.send(packet, this.remote);
+		} catch (IOException e) {
+			this.finish(TFTPTransaction.TFTPTransactionState.SOCKET_IO_ERROR);
+			return true;
+		} finally {
+			packet.position(start);
+		}
+		
+		this.logPacket(packet, this.remote, false);
+		return false;
+	}
+	
+	/**
+	 * Log a packet held in a buffer, if packets are being logged.
+	 * 
+	 * @param packet The buffer holding the packet, between its position and
+	 * 				 its limit
+	 * @param address The address the packet was sent to or received from
+	 * @param received True if the packet was received, false if it was sent
+	 */
+	private void logPacket (ByteBuffer packet, InetSocketAddress address,
+			boolean received)
+	{
+		if (!this.logger.isLogging(LogLevel.INFO)) {
+			// Building the message would be most of the cost of a packet
+			return;
+		}
+		byte[] data = new byte[packet.remaining()];
+		packet.duplicate().get(data);
+		this.logger.logPacket(LogLevel.INFO, new DatagramPacket(data,
+				data.length, address), null, received, "peer");
+	}
+	
+	/**
+	 * Send a TFTPPacket. If the socket's send buffer is full the packet is
+	 * dropped, as it would be anywhere else along the way, and is re-sent when
+	 * the retransmission timeout expires.
+	 * 
+	 * @param packet The packet to be sent
+	 * @param destination The address and TID to send the packet to
+	 * @return True if an error occurred
+	 */
+	private boolean send (TFTPPacket packet, InetSocketAddress destination)
+	{
+		byte[] data = packet.toBytes();
+		try {
+			this.channel.send(ByteBuffer.wrap(data, 0, packet.size()),
+					destination);
+		} catch (IOException e) {
+			return true;
+		}
+		
+		if (this.logger.isLogging(LogLevel.INFO)) {
+			this.logger.logPacket(LogLevel.INFO, new DatagramPacket(data,
+					packet.size(), destination), packet, false, "peer");
+		}
+		return false;
+	}
+	
+	/**
+	 * Send an error packet to the peer
+	 * 
+	 * @param error The error type to be sent
+	 * @param description Error description to be sent
+	 */
+	protected void sendErrorPacket (TFTPPacket.TFTPError error,
+			String description)
+	{
+		// We don't try to guaranty delivery of ERROR packets
+		this.send(new TFTPPacket.ERROR(error, description), this.remote);
+	}
+	
+	/**
+	 * Set the timer of the transaction, replacing any timer which is already
+	 * set.
+	 * 
+	 * @param deadline The time at which timeout() is called, from
+	 * 				   RetransmitTimer.now()
+	 */
+	protected void setTimer (long deadline)
+	{
+		if (this.pending != null) {
+			this.pending.cancel();
+		}
+		this.pending = this.loop.schedule(deadline, this);
+	}
+	
+	/**
+	 * End the transaction, closing its file. The channel is left open for
+	 * its owner, which is told that the transaction has ended once the
+	 * channel is no longer registered with the event loop.
+	 * 
+	 * @param state The final state of the transaction
+	 */
+	protected void finish (TFTPTransaction.TFTPTransactionState state)
+	{
+		if (!this.isInProgress()) {
+			// Already finished
+			return;
+		}
+		this.state = state;
+		
+		if (this.pending != null) {
+			this.pending.cancel();
+		}
+		try {
+			this.closeFile();
+		} catch (IOException e) {
+			this.logger.log(LogLevel.ERROR, "Error: File Closure. Reason: " +
+					"Failed to close file when terminating transaction. " +
+					"Solution: Ending Transaction without closing file.");
+		}
+		
+		if (this.key != null) {
+			this.loop.deregister(this.key, () -> this.onFinished.accept(state));
+		} else {
+			this.onFinished.accept(state);
+		}
+	}
+	
+	/**
+	 * Stop the transaction, telling the peer. Must be called from the event
+	 * loop's thread.
+	 */
+	public void cancel ()
+	{
+		if (!this.isInProgress()) {
+			return;
+		}
+		this.sendErrorPacket(TFTPPacket.TFTPError.ERROR,
+				"The transfer was cancelled.");
+		this.finish(TFTPTransaction.TFTPTransactionState.CANCELLED);
+	}
+	
+	/**
+	 * Check whether the transaction is still running.
+	 * 
+	 * @return True if the transaction has started and not yet ended
+	 */
+	protected boolean isInProgress ()
+	{
+		return this.state == TFTPTransaction.TFTPTransactionState.IN_PROGRESS;
+	}
+	
+	/**
+	 * Get the current state of the transaction.
+	 * 
+	 * @return The current state of the transaction
+	 */
+	public TFTPTransaction.TFTPTransactionState getState ()
+	{
+		return this.state;
+	}
+	
+	/**
+	 * Get the message from a received error packet.
+	 * 
+	 * @return The error message or null if no error has been received
+	 */
+	public String getErrorMessage ()
+	{
+		return this.errorMessage;
+	}
+	
+	/**
+	 * Get the block size used for this transaction.
+	 * 
+	 * @return The number of bytes of file data in each full DATA packet
+	 */
+	public int getBlockSize ()
+	{
+		return this.blockSize;
+	}
+	
+	/**
+	 * A transaction where a file is sent to the peer.
+	 */
+	public static class SendTransaction extends EventLoopTransaction {
+		/**
+		 * The file being sent
+		 */
+		private FileChannel file;
+		/**
+		 * Limits the rate at which packets are sent, or null to send as fast
+		 * as the window allows
+		 */
+		private BandwidthLimiter.Transfer bandwidthLimit = null;
+		/**
+		 * Whether the options acknowledgment has been sent and ACK 0 has not
+		 * yet been received
+		 */
+		private boolean waitAckZero = false;
+		/**
+		 * Whether the options acknowledgment has been re-sent, in which case
+		 * ACK 0 can not be used to measure the round trip time
+		 */
+		private boolean optionAckResent = false;
+		/**
+		 * Time at which the options acknowledgment was sent
+		 */
+		private long optionAckTime = 0;
+		/**
+		 * Whether the timer is waiting for the bandwidth limit rather than
+		 * for an ACK
+		 */
+		private boolean paced = false;
+		/**
+		 * Total number of blocks to be sent
+		 */
+		private long numBlocks = 0;
+		/**
+		 * Ring of DATA packets for the blocks which have been read from the
+		 * file but not yet acknowledged, block i is stored at index
+		 * i % windowSize. The buffers are reused for every window.
+		 */
+		private ByteBuffer[] window;
+		/**
+		 * Time at which each block in the window was sent, or -1 if it has
+		 * been re-sent and so can not be used to measure the round trip
+		 * time (Karn's rule)
+		 */
+		private long[] sendTimes;
+		/**
+		 * Last block acknowledged by the peer
+		 */
+		private long ackedBlock = 0;
+		/**
+		 * Next block to be sent
+		 */
+		private long nextBlock = 1;
+		/**
+		 * Last block which has been read from the file
+		 */
+		private long readBlock = 0;
+		/**
+		 * Last block which has been sent
+		 */
+		private long sentBlock = 0;
+		
+		/**
+		 * Create a SendTransaction.
+		 * 
+		 * @param loop The event loop which will run the transaction
+		 * @param channel The channel used to communicate with the peer
+		 * @param remoteHost The address of the peer
+		 * @param remoteTID The TID of the peer
+		 * @param file The file to be sent
+		 * @param optionAck The options acknowledgment to send to the peer,
+		 * 					or null if no options where negotiated
+		 * @param logger The logger used to log details of packets
+		 * @param onFinished Called on the event loop with the final state of
+		 * 					 the transaction
+		 */
+		public SendTransaction (ServerEventLoop loop, DatagramChannel channel,
+				InetAddress remoteHost, int remoteTID, FileChannel file,
+				TFTPPacket.OACK optionAck, Logger logger,
+				Consumer<TFTPTransaction.TFTPTransactionState> onFinished)
+		{
+			super(loop, channel, remoteHost, remoteTID, optionAck, logger,
+					onFinished);
+			this.file = file;
+		}
+		
+		/**
+		 * Set the limit on the rate at which DATA packets are sent.
+		 * 
+		 * @param bandwidthLimit The limit to check before each packet
+		 */
+		public void setBandwidthLimit (BandwidthLimiter.Transfer bandwidthLimit)
+		{
+			this.bandwidthLimit = bandwidthLimit;
+		}
+		
+		protected void begin ()
+		{
+			try {
+				this.numBlocks = (this.file.size() / super.blockSize) + 1;
+			} catch (IOException e) {
+				// Didn't even manage to get the file size
+				super.sendErrorPacket(TFTPPacket.TFTPError.ERROR,
+						"Failed to obtain the size of the file.");
+				super.finish(
+						TFTPTransaction.TFTPTransactionState.FILE_IO_ERROR);
+				return;
+			}
+			// Check that file can be sent over TFTP, there is no limit if the
+			// block number can roll over
+			if ((super.rollover < 0) &&
+					(this.numBlocks > TFTPPacket.MAX_BLOCK_NUM)) {
+				super.sendErrorPacket(TFTPPacket.TFTPError.ERROR,
+						"File to large to be transfered.");
+				super.finish(
+						TFTPTransaction.TFTPTransactionState.FILE_TOO_LARGE);
+				return;
+			}
+			
+			this.window = new ByteBuffer[super.windowSize];
+			BufferPool pool = super.loop.getBufferPool();
+			for (int i = 0; i < super.windowSize; i++) {
+				this.window[i] = pool.acquire(PacketCodec.HEADER_SIZE +
+						super.blockSize);
+			}
+			this.sendTimes = new long[super.windowSize];
+			
+			if (super.optionAck != null) {
+				// Send options acknowledgment and wait for ACK 0
+				this.waitAckZero = true;
+				this.sendOptionAck();
+			} else {
+				this.sendWindow();
+			}
+		}
+		
+		/**
+		 * Send the options acknowledgment and wait for ACK 0.
+		 */
+		private void sendOptionAck ()
+		{
+			this.optionAckTime = RetransmitTimer.now();
+			if (super.sendToRemote(super.optionAck)) {
+				return;
+			}
+			super.setTimer(super.timer.getDeadline());
+		}
+		
+		/**
+		 * Read a block from the file straight into a DATA packet.
+		 * 
+		 * @param block The position of the block to be read in the file
+		 * @param buffer The buffer to write the DATA packet into
+		 * @return True if an error occurred
+		 */
+		private boolean readDataBlock (long block, ByteBuffer buffer)
+		{
+			PacketCodec.putDataHeader(buffer,
+					TFTPTransaction.toBlockNum(block, super.rollover),
+					super.blockSize);
+			long position = (block - 1) * super.blockSize -
+					PacketCodec.HEADER_SIZE;
+			try {
+				// Get up to a full buffer of data from the file, no bytes
+				// will be read if the end of the file has been reached
+				while (buffer.hasRemaining() && (this.file.read(buffer,
+						position + buffer.position()) >= 0)) {
+					continue;
+				}
+			} catch (IOException e) {
+				// Could not read block from file
+				super.sendErrorPacket(TFTPPacket.TFTPError.ERROR,
+						"Failed to read data from file.");
+				super.finish(
+						TFTPTransaction.TFTPTransactionState.FILE_IO_ERROR);
+				return true;
+			}
+			
+			buffer.flip();
+			return false;
+		}
+		
+		/**
+		 * Send any blocks in the window which have not been sent yet, then
+		 * wait for the ACK for the window.
+		 */
+		private void sendWindow ()
+		{
+			this.paced = false;
+			
+			while ((this.nextBlock <= this.numBlocks) &&
+					(this.nextBlock <= this.ackedBlock + super.windowSize)) {
+				int index = (int)(this.nextBlock % super.windowSize);
+				if (this.nextBlock > this.readBlock) {
+					// First time sending this block, read it from the file
+					if (this.readDataBlock(this.nextBlock,
+							this.window[index])) {
+						return;
+					}
+					this.readBlock = this.nextBlock;
+				}
+				
+				if (this.bandwidthLimit != null) {
+					long delay = this.bandwidthLimit.tryAcquire(
+							this.window[index].remaining());
+					if (delay > 0) {
+						// Carry on once the limit allows it
+						this.paced = true;
+						super.setTimer(RetransmitTimer.now() + delay);
+						return;
+					}
+				}
+				
+				if (super.sendToRemote(this.window[index])) {
+					return;
+				}
+				this.sendTimes[index] = (this.nextBlock <= this.sentBlock) ?
+						-1 : RetransmitTimer.now();
+				this.sentBlock = Math.max(this.sentBlock, this.nextBlock);
+				this.nextBlock++;
+			}
+			
+			super.setTimer(super.timer.getDeadline());
+		}
+		
+		protected void received (PacketCodec packet)
+		{
+			if (packet.getOpcode() != PacketCodec.ACK) {
+				// Received something that is not an ACK
+				super.sendErrorPacket(TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+						String.format("Invalid packet. Expected ACK %d.",
+								TFTPTransaction.toBlockNum(this.nextBlock - 1,
+										super.rollover)));
+				super.finish(
+						TFTPTransaction.TFTPTransactionState
+								.RECEIVED_BAD_PACKET);
+				return;
+			}
+			int ackNum = packet.getBlockNum();
+			
+			if (this.waitAckZero) {
+				if (ackNum != 0) {
+					// Got a bad packet, give up
+					super.sendErrorPacket(
+							TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+							"Invalid packet. Expected ACK 0.");
+					super.finish(TFTPTransaction.TFTPTransactionState
+							.RECEIVED_BAD_PACKET);
+					return;
+				}
+				
+				// Successfully received ACK 0
+				if (!this.optionAckResent) {
+					super.timer.sample(RetransmitTimer.now() -
+							this.optionAckTime);
+				}
+				super.timer.progress();
+				this.waitAckZero = false;
+				this.sendWindow();
+				return;
+			}
+			
+			long blockNum = TFTPTransaction.fromBlockNum(ackNum,
+					this.sentBlock, super.rollover);
+			if ((blockNum > this.ackedBlock) && (blockNum <= this.sentBlock)) {
+				// Peer has every block up to this one
+				long sendTime = this.sendTimes[
+						(int)(blockNum % super.windowSize)];
+				if (sendTime >= 0) {
+					super.timer.sample(RetransmitTimer.now() - sendTime);
+				}
+				super.timer.progress();
+				
+				if (blockNum == this.numBlocks) {
+					super.finish(
+							TFTPTransaction.TFTPTransactionState.COMPLETE);
+					return;
+				}
+				
+				// If this is not the last block sent the blocks after it
+				// where lost, so the window is resent starting after this
+				// block
+				this.ackedBlock = blockNum;
+				this.nextBlock = blockNum + 1;
+				this.sendWindow();
+			} else if (blockNum > this.ackedBlock) {
+				// Invalid packet
+				super.sendErrorPacket(TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+						String.format("ACK has bad block number. " +
+								"Expected ACK %d.",
+								TFTPTransaction.toBlockNum(this.nextBlock - 1,
+										super.rollover)));
+				super.finish(TFTPTransaction.TFTPTransactionState
+						.RECEIVED_BAD_PACKET);
+			}
+			// Otherwise probably a duplicated or delayed ACK, which is
+			// ignored
+		}
+		
+		public void timeout ()
+		{
+			if (this.paced) {
+				// Bandwidth limit allows the next block to be sent
+				this.sendWindow();
+				return;
+			}
+			
+			if (super.timer.expired()) {
+				// Timed out waiting for ACK
+				if (this.waitAckZero) {
+					super.finish(TFTPTransaction.TFTPTransactionState
+							.BLOCK_ZERO_TIMEOUT);
+				} else if (this.sentBlock == this.numBlocks) {
+					// The peer may have every block and only its final ACK
+					// was lost
+					super.finish(TFTPTransaction.TFTPTransactionState
+							.LAST_BLOCK_ACK_TIMEOUT);
+				} else {
+					super.finish(
+							TFTPTransaction.TFTPTransactionState.TIMEOUT);
+				}
+				return;
+			}
+			
+			if (this.waitAckZero) {
+				this.optionAckResent = true;
+				this.sendOptionAck();
+			} else {
+				// Re-send every unacknowledged block in the window
+				this.nextBlock = this.ackedBlock + 1;
+				this.sendWindow();
+			}
+		}
+		
+		protected void closeFile () throws IOException
+		{
+			if (this.window != null) {
+				BufferPool pool = super.loop.getBufferPool();
+				for (int i = 0; i < this.window.length; i++) {
+					pool.release(this.window[i]);
+					this.window[i] = null;
+				}
+				this.window = null;
+			}
+			this.file.close();
+		}
+	}
+	
+	/**
+	 * A transaction where a file is received from the peer.
+	 */
+	public static class ReceiveTransaction extends EventLoopTransaction {
+		/**
+		 * The file in which data should be saved
+		 */
+		private FileOutputStream file;
+		/**
+		 * File object used to check for free space
+		 */
+		private File parentFile;
+		/**
+		 * Largest file which may be received in bytes
+		 */
+		private long maxFileSize = Long.MAX_VALUE;
+		/**
+		 * Number of bytes of file data received so far
+		 */
+		private long bytesWritten = 0;
+		/**
+		 * Position in the file of the next block expected
+		 */
+		private long blockNum = 1;
+		/**
+		 * Last block which we have acknowledged
+		 */
+		private long lastAck = 0;
+		/**
+		 * Number of blocks received since the last ACK was sent
+		 */
+		private int blocksSinceAck = 0;
+		/**
+		 * Whether a block was missing from the current window and the last
+		 * block received in order has already been acknowledged
+		 */
+		private boolean gapAcked = false;
+		/**
+		 * Time at which the last ACK was sent, or -1 if it has been re-sent
+		 * and so can not be used to measure the round trip time
+		 */
+		private long ackTime = -1;
+		/**
+		 * Buffer which each ACK is written into
+		 */
+		private ByteBuffer ackBuffer = null;
+		
+		/**
+		 * Create a ReceiveTransaction.
+		 * 
+		 * @param loop The event loop which will run the transaction
+		 * @param channel The channel used to communicate with the peer
+		 * @param remoteHost The address of the peer
+		 * @param remoteTID The TID of the peer
+		 * @param destFile Path to where the received file should be stored
+		 * @param optionAck The options acknowledgment to send to the peer,
+		 * 					or null if no options where negotiated
+		 * @param logger The logger used to log details of packets
+		 * @param onFinished Called on the event loop with the final state of
+		 * 					 the transaction
+		 * @throws FileNotFoundException If the file could not be opened
+		 */
+		public ReceiveTransaction (ServerEventLoop loop,
+				DatagramChannel channel, InetAddress remoteHost,
+				int remoteTID, String destFile, TFTPPacket.OACK optionAck,
+				Logger logger,
+				Consumer<TFTPTransaction.TFTPTransactionState> onFinished)
+						throws FileNotFoundException
+		{
+			super(loop, channel, remoteHost, remoteTID, optionAck, logger,
+					onFinished);
+			this.file = new FileOutputStream(destFile);
+			this.parentFile = (new File(destFile)).getAbsoluteFile()
+					.getParentFile();
+		}
+		
+		/**
+		 * Set the largest file which may be received. If the peer sends more
+		 * data than this the transfer will be aborted.
+		 * 
+		 * @param maxFileSize The maximum file size in bytes
+		 */
+		public void setMaxFileSize (long maxFileSize)
+		{
+			this.maxFileSize = maxFileSize;
+		}
+		
+		/**
+		 * Check that a file of the size given by the transfer size option can
+		 * be received and reserve space for it.
+		 * 
+		 * @return True if an error occurred
+		 */
+		private boolean preallocate ()
+		{
+			long size = super.transferSize;
+			
+			if (size > this.maxFileSize) {
+				super.sendErrorPacket(TFTPPacket.TFTPError.DISK_FULL,
+						String.format("File exceeds the maximum size of %d " +
+								"bytes.", this.maxFileSize));
+				super.finish(
+						TFTPTransaction.TFTPTransactionState.FILE_TOO_LARGE);
+				return true;
+			} else if (this.parentFile.getUsableSpace() < size) {
+				super.sendErrorPacket(TFTPPacket.TFTPError.DISK_FULL,
+						"Not enough space for file.");
+				super.finish(
+						TFTPTransaction.TFTPTransactionState.FILE_IO_ERROR);
+				return true;
+			} else if (size == 0) {
+				// Nothing to reserve
+				return false;
+			}
+			
+			try {
+				// Write the last byte of the file, data is written over the
+				// rest of the file from the start as it is received
+				this.file.getChannel().write(ByteBuffer.wrap(new byte[1]),
+						size - 1);
+			} catch (IOException e) {
+				super.sendErrorPacket(TFTPPacket.TFTPError.DISK_FULL,
+						"Could not allocate space for file.");
+				super.finish(
+						TFTPTransaction.TFTPTransactionState.FILE_IO_ERROR);
+				return true;
+			}
+			
+			return false;
+		}
+		
+		/**
+		 * Send an ACK packet.
+		 * 
+		 * @param block The position of the block to acknowledge in the file
+		 * @return True if an error occurred
+		 */
+		private boolean sendAck (long block)
+		{
+			PacketCodec.putAck(this.ackBuffer,
+					TFTPTransaction.toBlockNum(block, super.rollover));
+			return super.sendToRemote(this.ackBuffer);
+		}
+		
+		/**
+		 * Send ACK 0, or the options acknowledgment in its place.
+		 * 
+		 * @return True if an error occurred
+		 */
+		private boolean sendFirstAck ()
+		{
+			if (super.optionAck != null) {
+				return super.sendToRemote(super.optionAck);
+			}
+			return this.sendAck(0);
+		}
+		
+		protected void begin ()
+		{
+			this.ackBuffer = super.loop.getBufferPool().acquire(
+					PacketCodec.HEADER_SIZE);
+			
+			// Reserve space for the file if its size is already known
+			if ((super.transferSize >= 0) && this.preallocate()) {
+				return;
+			}
+			
+			// Send ACK 0, or an options acknowledgment in its place
+			if (this.sendFirstAck()) {
+				return;
+			}
+			this.ackTime = RetransmitTimer.now();
+			
+			// The first block is waited for for the longest retransmission
+			// timeout since we have no idea how long the peer will take to
+			// respond
+			super.setTimer(RetransmitTimer.now() +
+					TFTPPacket.TFTP_DATA_TIMEOUT * 1_000_000L);
+		}
+		
+		protected void received (PacketCodec packet)
+		{
+			if (packet.getOpcode() != PacketCodec.DATA) {
+				// Received something that is not data
+				super.sendErrorPacket(TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+						String.format("Invalid packet. Expected DATA %d.",
+								TFTPTransaction.toBlockNum(this.blockNum,
+										super.rollover)));
+				super.finish(TFTPTransaction.TFTPTransactionState
+						.RECEIVED_BAD_PACKET);
+				return;
+			} else if (packet.getPayloadLength() > super.blockSize) {
+				// The event loop's buffer has room for the largest block, a
+				// longer block than was negotiated must not reach the file
+				super.sendErrorPacket(TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+						String.format("DATA is longer than the block size " +
+								"of %d bytes.", super.blockSize));
+				super.finish(TFTPTransaction.TFTPTransactionState
+						.RECEIVED_BAD_PACKET);
+				return;
+			}
+			
+			// Find the block in the file, it can be at most a window ahead of
+			// the block we expect
+			long dataBlock = TFTPTransaction.fromBlockNum(packet.getBlockNum(),
+					this.blockNum + super.windowSize - 1, super.rollover);
+			
+			if (dataBlock == this.blockNum) {
+				this.write(packet.payload());
+			} else if (dataBlock < this.blockNum) {
+				// Probably a duplicate or delayed data packet. If it is the
+				// last block we acknowledged our ACK may have been lost, so
+				// re-send it.
+				if (dataBlock == this.lastAck) {
+					this.sendAck(this.lastAck);
+				}
+			} else if (dataBlock < this.blockNum + super.windowSize) {
+				// A block in the window was lost, acknowledge the last block
+				// received in order so that the peer re-sends the window
+				// starting at the missing block
+				if (!this.gapAcked) {
+					super.setTimer(super.timer.getDeadline());
+					
+					if (this.sendAck(this.blockNum - 1)) {
+						return;
+					}
+					this.lastAck = this.blockNum - 1;
+					this.blocksSinceAck = 0;
+					this.gapAcked = true;
+					this.ackTime = RetransmitTimer.now();
+				}
+			} else {
+				// Block number is too high
+				super.sendErrorPacket(TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+						String.format("Received bad DATA block. " +
+								"Expected DATA %d.",
+								TFTPTransaction.toBlockNum(this.blockNum,
+										super.rollover)));
+				super.finish(TFTPTransaction.TFTPTransactionState
+						.RECEIVED_BAD_PACKET);
+			}
+		}
+		
+		/**
+		 * Write the block that was expected to the file.
+		 * 
+		 * @param data The data in the block, between the buffer's position and
+		 * 			   its limit
+		 */
+		private void write (ByteBuffer data)
+		{
+			int length = data.remaining();
+			if (this.bytesWritten + length > this.maxFileSize) {
+				// Peer has sent more than we are willing to store, checked
+				// before the block is written so that nothing over the limit
+				// is left on the disk
+				super.sendErrorPacket(TFTPPacket.TFTPError.DISK_FULL,
+						String.format("File exceeds the maximum size of %d " +
+								"bytes.", this.maxFileSize));
+				super.finish(
+						TFTPTransaction.TFTPTransactionState.FILE_TOO_LARGE);
+				return;
+			}
+			
+			try {
+				// Written straight from the buffer it was received in
+				FileChannel channel = this.file.getChannel();
+				while (data.hasRemaining()) {
+					channel.write(data);
+				}
+				this.bytesWritten += length;
+			} catch (IOException e) {
+				if (this.parentFile.getFreeSpace() == 0) {
+					// Disk is full
+					super.sendErrorPacket(TFTPPacket.TFTPError.DISK_FULL,
+							"Disk full");
+				} else {
+					super.sendErrorPacket(TFTPPacket.TFTPError.ERROR,
+							"Failed to write to the file.");
+				}
+				super.finish(
+						TFTPTransaction.TFTPTransactionState.FILE_IO_ERROR);
+				return;
+			}
+			
+			boolean lastBlock = length < super.blockSize;
+			this.blocksSinceAck++;
+			this.gapAcked = false;
+			
+			// The first block after an ACK which was only sent once measures
+			// the round trip time
+			if (this.ackTime >= 0) {
+				super.timer.sample(RetransmitTimer.now() - this.ackTime);
+				this.ackTime = -1;
+			}
+			super.timer.progress();
+			super.setTimer(super.timer.getDeadline());
+			
+			// Send ACK for the last block of each window and for the final
+			// block
+			if (lastBlock || (this.blocksSinceAck == super.windowSize)) {
+				if (this.sendAck(this.blockNum)) {
+					return;
+				}
+				this.lastAck = this.blockNum;
+				this.blocksSinceAck = 0;
+				this.ackTime = RetransmitTimer.now();
+			}
+			
+			if (lastBlock) {
+				// Transaction complete
+				super.finish(TFTPTransaction.TFTPTransactionState.COMPLETE);
+				return;
+			}
+			
+			// Continue to waiting for next block
+			this.blockNum++;
+			if ((super.rollover < 0) &&
+					(this.blockNum > TFTPPacket.MAX_BLOCK_NUM)) {
+				// Block number would wrap but rollover was not negotiated
+				super.sendErrorPacket(TFTPPacket.TFTPError.ERROR,
+						"Block number limit exceeded. File too large.");
+				super.finish(
+						TFTPTransaction.TFTPTransactionState.FILE_TOO_LARGE);
+			}
+		}
+		
+		public void timeout ()
+		{
+			boolean firstBlock = (this.blockNum == 1) && !this.gapAcked;
+			if (super.timer.expired()) {
+				// Timed out waiting for data
+				super.finish(firstBlock ? TFTPTransaction.TFTPTransactionState
+						.BLOCK_ZERO_TIMEOUT :
+						TFTPTransaction.TFTPTransactionState.TIMEOUT);
+				return;
+			}
+			
+			super.setTimer(super.timer.getDeadline());
+			if (firstBlock) {
+				// ACK 0 or the options acknowledgment may have been lost. A
+				// copy of the request which the client re-sends is dropped
+				// as a duplicate of this transfer, so it is re-sent from here.
+				if (this.sendFirstAck()) {
+					return;
+				}
+				this.ackTime = -1;
+				return;
+			}
+			
+			// Re-send previous ACK, backing off the timeout
+			if (this.sendAck(this.blockNum - 1)) {
+				return;
+			}
+			this.lastAck = this.blockNum - 1;
+			this.blocksSinceAck = 0;
+			this.ackTime = -1;
+		}
+		
+		protected void closeFile () throws IOException
+		{
+			super.loop.getBufferPool().release(this.ackBuffer);
+			this.ackBuffer = null;
+			this.file.flush();
+			// Remove any preallocated space which was not filled
+			this.file.getChannel().truncate(this.bytesWritten);
+			this.file.close();
+		}
+	}
+}
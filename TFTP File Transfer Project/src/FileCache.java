@@ -0,0 +1,546 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Keeps the files which are read most often in memory, shared by every read
+ * transfer on the server, so that a file served to many clients, such as a
+ * boot loader or kernel, is read from the disk once rather than once for
+ * every client.
+ * 
+ * A file is cached as the DATA packets which carry it, already encoded for
+ * a block size and laid out back to back, so a transfer of a cached file
+ * sends each packet straight from the cache without reading or encoding
+ * anything. A file read with more than one block size has an entry for each
+ * block size. Only files with no more blocks than a block number can count
+ * are cached, since the block numbers are part of the packets.
+ * 
+ * The entries share a budget of memory, and once it is used up the entries
+ * used least recently are evicted to make room. An entry is replaced when
+ * the size or modification time of its file changes. Transfers already
+ * sending an entry which is evicted or replaced keep sending it. Entries
+ * can be stored off the heap, where they do not add to garbage collection
+ * pauses, at the cost of a copy into each packet as it is sent.
+ */
+public class FileCache {
+	
+	/**
+	 * Contents of a file encoded as the DATA packets for one block size.
+	 */
+	public static class Entry {
+		/**
+		 * Size of each block in bytes
+		 */
+		private int blockSize;
+		/**
+		 * Modification time of the file when it was read
+		 */
+		private long modified;
+		/**
+		 * Size of the file when it was read
+		 */
+		private long size;
+		/**
+		 * The DATA packets of the file back to back, null until loaded
+		 */
+		private volatile ByteBuffer packets = null;
+		/**
+		 * The reason the file could not be read, or null
+		 */
+		private IOException error = null;
+		/**
+		 * Whether there was not enough memory to load the file, in which
+		 * case it is read from the disk instead
+		 */
+		private volatile boolean bypassed = false;
+		/**
+		 * Released once the file has been read or could not be
+		 */
+		private CountDownLatch loaded = new CountDownLatch(1);
+		
+		/**
+		 * Create an entry which has not been loaded yet.
+		 * 
+		 * @param blockSize The size of each block in bytes
+		 * @param modified The modification time of the file
+		 * @param size The size of the file
+		 */
+		private Entry (int blockSize, long modified, long size)
+		{
+			this.blockSize = blockSize;
+			this.modified = modified;
+			this.size = size;
+		}
+		
+		/**
+		 * Read the file and encode its packets.
+		 * 
+		 * @param file The file
+		 * @param offHeap Whether to store the packets off the heap
+		 * @throws IOException If the file could not be read
+		 */
+		private void load (File file, boolean offHeap) throws IOException
+		{
+			long blocks = this.getBlockCount();
+			int bytes = (int)encodedSize(this.size, this.blockSize);
+			ByteBuffer packets = offHeap ? ByteBuffer.allocateDirect(bytes) :
+					ByteBuffer.allocate(bytes);
+			
+			try (FileChannel channel = new FileInputStream(file).getChannel()) {
+				for (long block = 1; block <= blocks; block++) {
+					int start = this.getOffset(block);
+					packets.limit(packets.capacity());
+					packets.putShort(start, (short)PacketCodec.DATA);
+					packets.putShort(start + 2, (short)block);
+					
+					int length = this.getDataLength(block);
+					packets.limit(start + PacketCodec.HEADER_SIZE + length);
+					packets.position(start + PacketCodec.HEADER_SIZE);
+					while (packets.hasRemaining()) {
+						if (channel.read(packets) < 0) {
+							throw new IOException("The file became shorter " +
+									"while it was being read.");
+						}
+					}
+				}
+			}
+			
+			packets.clear();
+			this.packets = packets;
+		}
+		
+		/**
+		 * Wait for the entry to be loaded.
+		 * 
+		 * @return False if there was not enough memory to load the entry
+		 * @throws IOException If the file could not be read, or an
+		 * 					   InterruptedIOException if interrupted while
+		 * 					   waiting
+		 */
+		private boolean await () throws IOException
+		{
+			try {
+				this.loaded.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			if (this.error != null) {
+				throw this.error;
+			}
+			return !this.bypassed;
+		}
+		
+		/**
+		 * Get the number of blocks in the file, including the block after
+		 * the last full block, which may be empty.
+		 * 
+		 * @return The number of blocks
+		 */
+		public long getBlockCount ()
+		{
+			return (this.size / this.blockSize) + 1;
+		}
+		
+		/**
+		 * Get the number of bytes of file data in a block.
+		 * 
+		 * @param block The position of the block in the file, starting at 1
+		 * @return The number of bytes
+		 */
+		private int getDataLength (long block)
+		{
+			return (int)Math.min(this.blockSize,
+					this.size - ((block - 1) * this.blockSize));
+		}
+		
+		/**
+		 * Get where the DATA packet for a block starts in the buffer of
+		 * packets.
+		 * 
+		 * @param block The position of the block in the file, starting at 1
+		 * @return The index of the packet
+		 */
+		public int getOffset (long block)
+		{
+			return (int)((block - 1) *
+					(PacketCodec.HEADER_SIZE + this.blockSize));
+		}
+		
+		/**
+		 * Get the length of the DATA packet for a block.
+		 * 
+		 * @param block The position of the block in the file, starting at 1
+		 * @return The length of the packet, including its header
+		 */
+		public int getLength (long block)
+		{
+			return PacketCodec.HEADER_SIZE + this.getDataLength(block);
+		}
+		
+		/**
+		 * Get the DATA packets of the file, laid out back to back. The
+		 * buffer is shared by every transfer of the entry and must not be
+		 * changed, a transfer which needs to set its position and limit
+		 * should use a duplicate.
+		 * 
+		 * @return The packets, in an array unless stored off the heap
+		 */
+		public ByteBuffer getPackets ()
+		{
+			return this.packets;
+		}
+		
+		/**
+		 * Get the memory used by the entry.
+		 * 
+		 * @return The number of bytes
+		 */
+		private long getMemory ()
+		{
+			return encodedSize(this.size, this.blockSize);
+		}
+	}
+	
+	/**
+	 * Most memory the entries may use together, in bytes
+	 */
+	private long maxMemory;
+	/**
+	 * Whether entries are stored off the heap
+	 */
+	private boolean offHeap;
+	/**
+	 * The entries by block size and path, in order of last use
+	 */
+	private LinkedHashMap<String, Entry> entries =
+			new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	/**
+	 * Memory used by the entries, in bytes, including the memory reserved
+	 * for the entries being loaded
+	 */
+	private long memory = 0;
+	
+	/**
+	 * Number of reads of a file which was in the cache
+	 */
+	private long hits = 0;
+	/**
+	 * Number of reads of a file which had to be loaded into the cache
+	 */
+	private long misses = 0;
+	/**
+	 * Number of reads of a file which was too large to cache, or which did
+	 * not fit beside the entries being loaded
+	 */
+	private long bypasses = 0;
+	/**
+	 * Number of entries evicted to make room for others
+	 */
+	private long evictions = 0;
+	/**
+	 * Memory freed by evicting entries, in bytes
+	 */
+	private long evictedMemory = 0;
+	/**
+	 * Number of entries replaced because their file changed
+	 */
+	private long invalidations = 0;
+	
+	/**
+	 * Create a cache.
+	 * 
+	 * @param maxMemory The most memory the entries may use together
+	 * @param offHeap Whether to store entries off the heap
+	 */
+	public FileCache (long maxMemory, boolean offHeap)
+	{
+		this.maxMemory = maxMemory;
+		this.offHeap = offHeap;
+	}
+	
+	/**
+	 * Get the memory a file uses once encoded as DATA packets.
+	 * 
+	 * @param size The size of the file
+	 * @param blockSize The size of each block
+	 * @return The number of bytes
+	 */
+	private static long encodedSize (long size, int blockSize)
+	{
+		return size + (((size / blockSize) + 1) * PacketCodec.HEADER_SIZE);
+	}
+	
+	/**
+	 * Get the DATA packets of a file for a block size, reading the file
+	 * into the cache if it is not there or has changed since it was read.
+	 * If another transfer is already reading the file, this waits for it
+	 * rather than reading the file again.
+	 * 
+	 * The memory for a new entry is reserved and other entries evicted
+	 * before the file is read, so that reads of different files at the same
+	 * time can not use more than the budget between them. Entries still
+	 * being loaded can not be evicted, so when they leave no room the file
+	 * is not cached.
+	 * 
+	 * @param path The path of the file
+	 * @param blockSize The block size
+	 * @return The entry for the file, or null if the file can not be cached
+	 * 		   because it is too large or there is no room for it
+	 * @throws IOException If the file could not be read, or an
+	 * 					   InterruptedIOException if interrupted while
+	 * 					   waiting for another transfer to read it
+	 */
+	public Entry get (String path, int blockSize) throws IOException
+	{
+		File file = new File(path).getAbsoluteFile();
+		long modified = file.lastModified();
+		long size = file.length();
+		if ((((size / blockSize) + 1) > TFTPPacket.MAX_BLOCK_NUM) ||
+				(encodedSize(size, blockSize) > this.maxMemory) ||
+				(encodedSize(size, blockSize) > Integer.MAX_VALUE)) {
+			synchronized (this) {
+				this.bypasses++;
+			}
+			return null;
+		}
+		
+		String key = blockSize + ":" + file.getPath();
+		Entry entry;
+		boolean load = false;
+		synchronized (this) {
+			entry = this.entries.get(key);
+			if ((entry != null) && ((entry.modified != modified) ||
+					(entry.size != size))) {
+				// The file has changed since it was read
+				this.remove(key, entry);
+				this.invalidations++;
+				entry = null;
+			}
+			
+			if (entry != null) {
+				this.hits++;
+			} else {
+				entry = new Entry(blockSize, modified, size);
+				this.memory += entry.getMemory();
+				this.evict(entry);
+				if (this.memory > this.maxMemory) {
+					this.memory -= entry.getMemory();
+					this.bypasses++;
+					return null;
+				}
+				
+				// Put in the cache before it is loaded so that other
+				// transfers of the file wait for it instead of reading it
+				this.misses++;
+				this.entries.put(key, entry);
+				load = true;
+			}
+		}
+		
+		if (load) {
+			this.load(key, entry, file);
+		}
+		return entry.await() ? entry : null;
+	}
+	
+	/**
+	 * Load an entry whose memory has been reserved, without holding the lock
+	 * on the cache while reading the file. If the entry can not be loaded
+	 * its reservation is given back.
+	 * 
+	 * @param key The key of the entry
+	 * @param entry The entry
+	 * @param file The file
+	 */
+	private void load (String key, Entry entry, File file)
+	{
+		try {
+			entry.load(file, this.offHeap);
+		} catch (IOException e) {
+			entry.error = e;
+		} catch (OutOfMemoryError e) {
+			// The heap or the direct memory limit is smaller than the
+			// budget, the transfers read the file from the disk instead
+			entry.bypassed = true;
+		} finally {
+			if ((entry.packets == null) && (entry.error == null)) {
+				entry.bypassed = true;
+			}
+			
+			synchronized (this) {
+				if (entry.bypassed) {
+					this.bypasses++;
+				}
+				// It may have been replaced while it was loading, which gave
+				// back its reservation
+				if ((entry.packets == null) &&
+						(this.entries.get(key) == entry)) {
+					// Tried again by the next read
+					this.remove(key, entry);
+				}
+			}
+			// Waiting transfers must be woken however the load ended
+			entry.loaded.countDown();
+		}
+	}
+	
+	/**
+	 * Evict the entries used least recently until the entries fit in the
+	 * memory budget. Entries still being loaded are counted but not
+	 * evicted, since their transfers are waiting for them.
+	 * 
+	 * @param keep An entry which must not be evicted
+	 */
+	private void evict (Entry keep)
+	{
+		Iterator<Map.Entry<String, Entry>> entries =
+				this.entries.entrySet().iterator();
+		while ((this.memory > this.maxMemory) && entries.hasNext()) {
+			Entry entry = entries.next().getValue();
+			if ((entry == keep) || (entry.packets == null)) {
+				continue;
+			}
+			entries.remove();
+			this.memory -= entry.getMemory();
+			this.evictions++;
+			this.evictedMemory += entry.getMemory();
+		}
+	}
+	
+	/**
+	 * Remove an entry from the cache.
+	 * 
+	 * @param key The key of the entry
+	 * @param entry The entry
+	 */
+	private void remove (String key, Entry entry)
+	{
+		this.entries.remove(key);
+		this.memory -= entry.getMemory();
+	}
+	
+	/**
+	 * Remove every entry from the cache.
+	 */
+	public synchronized void clear ()
+	{
+		Iterator<Entry> entries = this.entries.values().iterator();
+		while (entries.hasNext()) {
+			Entry entry = entries.next();
+			if (entry.packets != null) {
+				entries.remove();
+				this.memory -= entry.getMemory();
+			}
+		}
+	}
+	
+	/**
+	 * Get the most memory the entries may use together.
+	 * 
+	 * @return The number of bytes
+	 */
+	public long getMaxMemory ()
+	{
+		return this.maxMemory;
+	}
+	
+	/**
+	 * Check whether entries are stored off the heap.
+	 * 
+	 * @return True if entries are stored off the heap
+	 */
+	public boolean isOffHeap ()
+	{
+		return this.offHeap;
+	}
+	
+	/**
+	 * Get the memory used by the entries, including the memory reserved
+	 * for the entries being loaded.
+	 * 
+	 * @return The number of bytes
+	 */
+	public synchronized long getMemory ()
+	{
+		return this.memory;
+	}
+	
+	/**
+	 * Get the number of entries, including those being loaded.
+	 * 
+	 * @return The number of entries
+	 */
+	public synchronized int getEntryCount ()
+	{
+		return this.entries.size();
+	}
+	
+	/**
+	 * Get the number of reads of a file which was in the cache.
+	 * 
+	 * @return The number of reads
+	 */
+	public synchronized long getHits ()
+	{
+		return this.hits;
+	}
+	
+	/**
+	 * Get the number of reads of a file which had to be loaded.
+	 * 
+	 * @return The number of reads
+	 */
+	public synchronized long getMisses ()
+	{
+		return this.misses;
+	}
+	
+	/**
+	 * Get the number of reads of a file too large to cache, or which did not
+	 * fit beside the entries being loaded.
+	 * 
+	 * @return The number of reads
+	 */
+	public synchronized long getBypasses ()
+	{
+		return this.bypasses;
+	}
+	
+	/**
+	 * Get the number of entries evicted to make room for others.
+	 * 
+	 * @return The number of entries
+	 */
+	public synchronized long getEvictions ()
+	{
+		return this.evictions;
+	}
+	
+	/**
+	 * Get the memory freed by evicting entries.
+	 * 
+	 * @return The number of bytes
+	 */
+	public synchronized long getEvictedMemory ()
+	{
+		return this.evictedMemory;
+	}
+	
+	/**
+	 * Get the number of entries replaced because their file changed.
+	 * 
+	 * @return The number of entries
+	 */
+	public synchronized long getInvalidations ()
+	{
+		return this.invalidations;
+	}
+}
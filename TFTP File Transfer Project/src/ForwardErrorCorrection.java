@@ -0,0 +1,276 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * XOR parity used for forward error correction. The sender follows each
+ * group of DATA packets with a PARITY packet holding the XOR of the blocks in
+ * the group, which lets the receiver rebuild any single block of the group
+ * which was lost without waiting for it to be re-sent.
+ * 
+ * A single XOR parity block can only repair one loss per group, so the
+ * group size should be chosen so that groups with more than one loss are
+ * rare at the expected loss rate. Groups with more losses fall back to the
+ * usual retransmission.
+ */
+public class ForwardErrorCorrection {
+	
+	/**
+	 * XOR one block into a parity block.
+	 * 
+	 * @param parity The parity block, at least as long as the data
+	 * @param data The array holding the block to add to the parity
+	 * @param offset The index of the block in the array
+	 * @param length The length of the block
+	 */
+	private static void xor (byte[] parity, byte[] data, int offset,
+			int length)
+	{
+		for (int i = 0; i < length; i++) {
+			parity[i] ^= data[offset + i];
+		}
+	}
+	
+	/**
+	 * Builds parity packets from the blocks being sent.
+	 */
+	public static class Encoder {
+		/**
+		 * Largest number of blocks in a group
+		 */
+		private int groupSize;
+		/**
+		 * Position in the file of the first block in the current group
+		 */
+		private long firstBlock = 0;
+		/**
+		 * Number of blocks in the current group
+		 */
+		private int count = 0;
+		/**
+		 * XOR of the lengths of the blocks in the current group
+		 */
+		private int length = 0;
+		/**
+		 * Length of the longest block in the current group
+		 */
+		private int longest = 0;
+		/**
+		 * XOR of the blocks in the current group
+		 */
+		private byte[] parity;
+		
+		/**
+		 * Create an encoder.
+		 * 
+		 * @param groupSize The largest number of blocks in a group
+		 * @param blockSize The largest block which will be added
+		 */
+		public Encoder (int groupSize, int blockSize)
+		{
+			this.groupSize = groupSize;
+			this.parity = new byte[blockSize];
+		}
+		
+		/**
+		 * Add a block to the current group. Blocks must be added in order.
+		 * 
+		 * @param block The position of the block in the file
+		 * @param data The data in the block
+		 */
+		public void add (long block, byte[] data)
+		{
+			this.add(block, data, 0, data.length);
+		}
+		
+		/**
+		 * Add a block held in part of an array to the current group.
+		 * 
+		 * @param block The position of the block in the file
+		 * @param data The array holding the data in the block
+		 * @param offset The index of the data in the array
+		 * @param length The length of the data
+		 */
+		public void add (long block, byte[] data, int offset, int length)
+		{
+			if (this.count == 0) {
+				this.firstBlock = block;
+			}
+			
+			xor(this.parity, data, offset, length);
+			this.length ^= length;
+			this.longest = Math.max(this.longest, length);
+			this.count++;
+		}
+		
+		/**
+		 * Check whether the current group has as many blocks as it may have.
+		 * 
+		 * @return True if a parity packet should be sent
+		 */
+		public boolean isFull ()
+		{
+			return this.count >= this.groupSize;
+		}
+		
+		/**
+		 * Check whether any blocks have been added since the last parity
+		 * packet.
+		 * 
+		 * @return True if the current group is empty
+		 */
+		public boolean isEmpty ()
+		{
+			return this.count == 0;
+		}
+		
+		/**
+		 * Get the position of the first block in the current group.
+		 * 
+		 * @return The position of the block in the file
+		 */
+		public long getFirstBlock ()
+		{
+			return this.firstBlock;
+		}
+		
+		/**
+		 * Create the parity packet for the current group and start a new
+		 * group.
+		 * 
+		 * @param blockNum The block number sent for the first block in the
+		 * 				   group
+		 * @return The parity packet
+		 */
+		public TFTPPacket.PARITY finish (int blockNum)
+		{
+			TFTPPacket.PARITY packet = new TFTPPacket.PARITY(blockNum,
+					this.count, this.length,
+					Arrays.copyOf(this.parity, this.longest));
+			
+			Arrays.fill(this.parity, 0, this.longest, (byte)0);
+			this.count = 0;
+			this.length = 0;
+			this.longest = 0;
+			
+			return packet;
+		}
+	}
+	
+	/**
+	 * Keeps recently received blocks so that a lost block can be rebuilt
+	 * from a parity packet.
+	 */
+	public static class Decoder {
+		/**
+		 * Data of each block kept, block i is stored at index i % size
+		 */
+		private byte[][] blocks;
+		/**
+		 * Position in the file of each block kept, or 0 for an empty slot
+		 */
+		private long[] positions;
+		
+		/**
+		 * Create a decoder.
+		 * 
+		 * @param windowSize The window size of the transfer, blocks are kept
+		 * 					 for up to a window before and after the next block
+		 * 					 expected
+		 */
+		public Decoder (int windowSize)
+		{
+			this.blocks = new byte[2 * windowSize][];
+			this.positions = new long[2 * windowSize];
+		}
+		
+		/**
+		 * Keep a received block.
+		 * 
+		 * @param block The position of the block in the file
+		 * @param data The data in the block
+		 */
+		public void store (long block, byte[] data)
+		{
+			int index = (int)(block % this.blocks.length);
+			this.blocks[index] = data;
+			this.positions[index] = block;
+		}
+		
+		/**
+		 * Keep a copy of a received block which is still in the buffer it
+		 * was received in.
+		 * 
+		 * @param block The position of the block in the file
+		 * @param data The data in the block, between the buffer's position
+		 * 			   and its limit, which are not changed
+		 */
+		public void store (long block, ByteBuffer data)
+		{
+			byte[] copy = new byte[data.remaining()];
+			data.mark();
+			data.get(copy);
+			data.reset();
+			this.store(block, copy);
+		}
+		
+		/**
+		 * Get a block which has been kept.
+		 * 
+		 * @param block The position of the block in the file
+		 * @return The data in the block or null if it is not kept
+		 */
+		public byte[] get (long block)
+		{
+			int index = (int)(block % this.blocks.length);
+			return (this.positions[index] == block) ?
+					this.blocks[index] : null;
+		}
+		
+		/**
+		 * Rebuild a lost block from a parity packet.
+		 * 
+		 * @param missing The position of the lost block in the file
+		 * @param firstBlock The position of the first block covered by the
+		 * 					 parity packet
+		 * @param parity The parity packet
+		 * @return The data of the lost block, or null if it can not be rebuilt
+		 * 		   because the parity packet does not cover it or another
+		 * 		   block covered is also missing
+		 */
+		public byte[] repair (long missing, long firstBlock,
+				TFTPPacket.PARITY parity)
+		{
+			long lastBlock = firstBlock + parity.getCount() - 1;
+			if ((missing < firstBlock) || (missing > lastBlock) ||
+					(parity.getCount() > this.blocks.length)) {
+				return null;
+			}
+			
+			byte[] data = Arrays.copyOf(parity.getParity(),
+					parity.getParity().length);
+			int length = parity.getLength();
+			
+			for (long block = firstBlock; block <= lastBlock; block++) {
+				if (block == missing) {
+					continue;
+				}
+				
+				byte[] other = this.get(block);
+				if ((other == null) || (other.length > data.length)) {
+					return null;
+				}
+				xor(data, other, 0, other.length);
+				length ^= other.length;
+			}
+			
+			if (length > data.length) {
+				// Parity does not match the blocks kept
+				return null;
+			}
+			
+			byte[] rebuilt = Arrays.copyOf(data, length);
+			this.store(missing, rebuilt);
+			return rebuilt;
+		}
+	}
+}
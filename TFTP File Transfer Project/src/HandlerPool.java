@@ -0,0 +1,371 @@
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs request handlers on a bounded number of threads. Requests which
+ * arrive while every thread is busy wait in a bounded queue, and requests
+ * which would overflow the queue or exceed the number of transfers allowed
+ * for a single client are refused, so that a flood of requests can not make
+ * the server start more threads and sockets than it can support.
+ * 
+ * Counts of accepted and refused requests and of the time spent waiting in
+ * the queue are kept so that the pool can be sized.
+ */
+public class HandlerPool {
+	
+	/**
+	 * Default number of handlers which may run at once
+	 */
+	public static final int DEFAULT_WORKERS = 64;
+	/**
+	 * Default number of requests which may wait for a handler thread
+	 */
+	public static final int DEFAULT_QUEUE_SIZE = 64;
+	/**
+	 * How long an idle handler thread is kept, in seconds
+	 */
+	private static final long KEEP_ALIVE = 60;
+	
+	/**
+	 * Runs the handlers
+	 */
+	private ThreadPoolExecutor executor;
+	/**
+	 * Number of requests which may wait for a thread
+	 */
+	private int queueSize;
+	
+	/**
+	 * Largest number of requests from a single client which may be running
+	 * or waiting at once, or 0 for no limit
+	 */
+	private int clientLimit = 0;
+	/**
+	 * Number of requests running or waiting for each client
+	 */
+	private Map<InetAddress, Integer> clients =
+			new HashMap<InetAddress, Integer>();
+	
+	/**
+	 * Number of requests accepted
+	 */
+	private long accepted = 0;
+	/**
+	 * Number of requests refused because the queue was full
+	 */
+	private long rejectedBusy = 0;
+	/**
+	 * Number of requests refused because of the limit for each client
+	 */
+	private long rejectedClient = 0;
+	/**
+	 * Number of handlers which have finished
+	 */
+	private long completed = 0;
+	/**
+	 * Total time accepted requests spent in the queue, in nanoseconds
+	 */
+	private long totalWait = 0;
+	/**
+	 * Longest time a request spent in the queue, in nanoseconds
+	 */
+	private long maxWait = 0;
+	/**
+	 * Number of requests which have left the queue
+	 */
+	private long started = 0;
+	
+	/**
+	 * Create a handler pool.
+	 * 
+	 * @param workers The number of handlers which may run at once
+	 * @param queueSize The number of requests which may wait for a thread
+	 * @param threads Creates the threads which handlers run on
+	 * @throws IllegalArgumentException If workers is less than 1 or queueSize
+	 * 									is negative
+	 */
+	public HandlerPool (int workers, int queueSize, ThreadFactory threads)
+			throws IllegalArgumentException
+	{
+		if (workers < 1) {
+			throw new IllegalArgumentException("The number of workers must " +
+					"be at least 1: " + workers);
+		} else if (queueSize < 0) {
+			throw new IllegalArgumentException("The queue size can not be " +
+					"negative: " + queueSize);
+		}
+		
+		// A queue can not have a capacity of 0, requests are refused as soon
+		// as every thread is busy instead
+		this.executor = new ThreadPoolExecutor(workers, workers, KEEP_ALIVE,
+				TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+				threads);
+		this.executor.allowCoreThreadTimeOut(true);
+		this.queueSize = queueSize;
+	}
+	
+	/**
+	 * Run a handler for a request, or refuse the request if the server is
+	 * too busy to handle it.
+	 * 
+	 * @param client The address of the client which sent the request
+	 * @param handler Creates and runs the handler for the request
+	 * @throws RejectedExecutionException If the request is refused, the
+	 * 									  message explains why
+	 */
+	public synchronized void execute (InetAddress client, Runnable handler)
+			throws RejectedExecutionException
+	{
+		int running = this.clients.getOrDefault(client, 0);
+		if ((this.clientLimit > 0) && (running >= this.clientLimit)) {
+			this.rejectedClient++;
+			throw new RejectedExecutionException(String.format("Too many " +
+					"transfers from %s, try again later.",
+					client.getHostAddress()));
+		} else if ((this.executor.getActiveCount() >=
+				this.executor.getMaximumPoolSize()) &&
+				(this.executor.getQueue().size() >= this.queueSize)) {
+			this.rejectedBusy++;
+			throw new RejectedExecutionException("Server busy, try again " +
+					"later.");
+		}
+		
+		long queued = RetransmitTimer.now();
+		try {
+			this.executor.execute(() -> {
+				this.started(RetransmitTimer.now() - queued);
+				try {
+					handler.run();
+				} finally {
+					this.finished(client);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Queue filled before a thread took a request from it
+			this.rejectedBusy++;
+			throw new RejectedExecutionException("Server busy, try again " +
+					"later.");
+		}
+		
+		this.clients.put(client, running + 1);
+		this.accepted++;
+	}
+	
+	/**
+	 * Check a request which is run outside of the pool, on an event loop,
+	 * against the limit for each client.
+	 * 
+	 * @param client The address of the client which sent the request
+	 * @param running The number of transfers the client already has
+	 * @throws RejectedExecutionException If the client has too many
+	 * 									  transfers
+	 */
+	public synchronized void checkClientLimit (InetAddress client, int running)
+			throws RejectedExecutionException
+	{
+		if ((this.clientLimit > 0) && (running >= this.clientLimit)) {
+			this.rejectedClient++;
+			throw new RejectedExecutionException(String.format("Too many " +
+					"transfers from %s, try again later.",
+					client.getHostAddress()));
+		}
+	}
+	
+	/**
+	 * Record that a request has left the queue.
+	 * 
+	 * @param wait The time the request spent in the queue in nanoseconds
+	 */
+	private synchronized void started (long wait)
+	{
+		this.started++;
+		this.totalWait += wait;
+		this.maxWait = Math.max(this.maxWait, wait);
+	}
+	
+	/**
+	 * Record that a handler has finished.
+	 * 
+	 * @param client The address of the client the handler served
+	 */
+	private synchronized void finished (InetAddress client)
+	{
+		this.completed++;
+		int running = this.clients.getOrDefault(client, 1) - 1;
+		if (running <= 0) {
+			this.clients.remove(client);
+		} else {
+			this.clients.put(client, running);
+		}
+	}
+	
+	/**
+	 * Get the number of handlers which may run at once.
+	 * 
+	 * @return The number of worker threads
+	 */
+	public synchronized int getWorkers ()
+	{
+		return this.executor.getMaximumPoolSize();
+	}
+	
+	/**
+	 * Set the number of handlers which may run at once. Handlers which are
+	 * already running are not stopped.
+	 * 
+	 * @param workers The number of worker threads
+	 * @throws IllegalArgumentException If workers is less than 1
+	 */
+	public synchronized void setWorkers (int workers)
+			throws IllegalArgumentException
+	{
+		if (workers < 1) {
+			throw new IllegalArgumentException("The number of workers must " +
+					"be at least 1: " + workers);
+		}
+		
+		// The core size may never be larger than the maximum size
+		if (workers > this.executor.getMaximumPoolSize()) {
+			this.executor.setMaximumPoolSize(workers);
+			this.executor.setCorePoolSize(workers);
+		} else {
+			this.executor.setCorePoolSize(workers);
+			this.executor.setMaximumPoolSize(workers);
+		}
+	}
+	
+	/**
+	 * Get the number of requests which may wait for a thread.
+	 * 
+	 * @return The queue size
+	 */
+	public int getQueueSize ()
+	{
+		return this.queueSize;
+	}
+	
+	/**
+	 * Get the largest number of requests from a single client which may be
+	 * running or waiting at once.
+	 * 
+	 * @return The limit or 0 if there is no limit
+	 */
+	public synchronized int getClientLimit ()
+	{
+		return this.clientLimit;
+	}
+	
+	/**
+	 * Set the largest number of requests from a single client which may be
+	 * running or waiting at once.
+	 * 
+	 * @param limit The limit or 0 for no limit
+	 * @throws IllegalArgumentException If the limit is negative
+	 */
+	public synchronized void setClientLimit (int limit)
+			throws IllegalArgumentException
+	{
+		if (limit < 0) {
+			throw new IllegalArgumentException("The client limit can not be " +
+					"negative: " + limit);
+		}
+		this.clientLimit = limit;
+	}
+	
+	/**
+	 * Get the number of handlers running.
+	 * 
+	 * @return The number of busy worker threads
+	 */
+	public int getActiveCount ()
+	{
+		return this.executor.getActiveCount();
+	}
+	
+	/**
+	 * Get the number of requests waiting for a thread.
+	 * 
+	 * @return The queue depth
+	 */
+	public int getQueueDepth ()
+	{
+		return this.executor.getQueue().size();
+	}
+	
+	/**
+	 * Get the number of requests accepted.
+	 * 
+	 * @return The number of requests
+	 */
+	public synchronized long getAccepted ()
+	{
+		return this.accepted;
+	}
+	
+	/**
+	 * Get the number of handlers which have finished.
+	 * 
+	 * @return The number of handlers
+	 */
+	public synchronized long getCompleted ()
+	{
+		return this.completed;
+	}
+	
+	/**
+	 * Get the number of requests refused because the server was busy.
+	 * 
+	 * @return The number of requests
+	 */
+	public synchronized long getRejectedBusy ()
+	{
+		return this.rejectedBusy;
+	}
+	
+	/**
+	 * Get the number of requests refused because the client had too many
+	 * transfers.
+	 * 
+	 * @return The number of requests
+	 */
+	public synchronized long getRejectedClient ()
+	{
+		return this.rejectedClient;
+	}
+	
+	/**
+	 * Get the average time requests spent waiting for a thread.
+	 * 
+	 * @return The average wait in nanoseconds
+	 */
+	public synchronized long getAverageWait ()
+	{
+		return (this.started == 0) ? 0 : this.totalWait / this.started;
+	}
+	
+	/**
+	 * Get the longest time a request spent waiting for a thread.
+	 * 
+	 * @return The longest wait in nanoseconds
+	 */
+	public synchronized long getMaxWait ()
+	{
+		return this.maxWait;
+	}
+	
+	/**
+	 * Stop accepting requests. Handlers which are running or waiting are
+	 * allowed to finish.
+	 */
+	public void shutdown ()
+	{
+		this.executor.shutdown();
+	}
+}
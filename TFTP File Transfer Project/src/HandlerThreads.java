@@ -0,0 +1,73 @@
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads which request handlers run on. Handlers can run on
+ * ordinary platform threads or, on Java 21 and later, on virtual threads,
+ * which are cheap enough that a thread can be started for every request
+ * without running out of memory.
+ * 
+ * The server is built for older versions of Java, so virtual threads are
+ * created through reflection when they are available.
+ */
+public class HandlerThreads {
+	
+	/**
+	 * Name of the mode which runs handlers on platform threads
+	 */
+	public static final String PLATFORM = "platform";
+	/**
+	 * Name of the mode which runs handlers on virtual threads
+	 */
+	public static final String VIRTUAL = "virtual";
+	
+	/**
+	 * Get the factory for handler threads of a given mode.
+	 * 
+	 * @param name The name of the mode, "platform" or "virtual"
+	 * @return A factory which creates threads of the mode
+	 * @throws IllegalArgumentException If there is no mode with the name, or
+	 * 									if virtual threads are not supported
+	 * 									by this version of Java
+	 */
+	public static ThreadFactory forName (String name)
+			throws IllegalArgumentException
+	{
+		if (name.equalsIgnoreCase(PLATFORM)) {
+			return Thread::new;
+		} else if (name.equalsIgnoreCase(VIRTUAL)) {
+			return virtualThreadFactory();
+		}
+		throw new IllegalArgumentException("Unknown thread mode: " + name);
+	}
+	
+	/**
+	 * Get a factory for virtual threads, the equivalent of
+	 * Thread.ofVirtual().name("tftp-handler-", 0).factory().
+	 * 
+	 * @return The factory
+	 * @throws IllegalArgumentException If virtual threads are not supported
+	 */
+	private static ThreadFactory virtualThreadFactory ()
+			throws IllegalArgumentException
+	{
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			// Call through the public interface, the builder's own class is
+			// not accessible
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class)
+					.invoke(builder, "tftp-handler-", 0L);
+			return (ThreadFactory)builderClass.getMethod("factory")
+					.invoke(builder);
+		} catch (NoSuchMethodException | ClassNotFoundException |
+				IllegalAccessException e) {
+			throw new IllegalArgumentException("Virtual threads require " +
+					"Java 21 or later, running on Java " +
+					System.getProperty("java.version"));
+		} catch (InvocationTargetException e) {
+			throw new IllegalArgumentException("Virtual threads could not " +
+					"be created: " + e.getCause());
+		}
+	}
+}
@@ -3,7 +3,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.nio.charset.Charset;
-import java.util.Arrays;
 
 public class Logger {
 	LogLevel VerboseLevel;
@@ -35,6 +34,16 @@ public class Logger {
 		}
 	}
 
+	/**
+	 * Check whether a message would be logged, so that messages which are costly to build can be
+	 * skipped.
+	 * @param VerboseLevel The log level of the message
+	 * @return true if the message would be output or written to the log file
+	 */
+	public boolean isLogging(LogLevel VerboseLevel) {
+		return this.VerboseLevel.shouldLog(VerboseLevel) || fileopen;
+	}
+
 	public void log(LogLevel VerboseLevel, String Content) {
 		if(this.VerboseLevel.shouldLog(VerboseLevel)) {
 			if(VerboseLevel == LogLevel.FATAL || VerboseLevel == LogLevel.ERROR) System.err.println(Content);
@@ -67,10 +76,15 @@ public class Logger {
 	public void logPacket(LogLevel level, DatagramPacket datagram, TFTPPacket packet,
 			boolean received, String hostFriendlyName) {
 		
+		if (!this.isLogging(level)) {
+			// Not worth parsing and formatting a packet for every send and receive
+			return;
+		}
+		
 		if (packet == null) {
 			try {
-				packet = TFTPPacket.parse(Arrays.copyOf(datagram.getData(),
-						datagram.getLength()));
+				packet = TFTPPacket.parse(datagram.getData(),
+						datagram.getOffset(), datagram.getLength());
 			} catch (IllegalArgumentException e) {
 				// ignore, packet remains null
 			}
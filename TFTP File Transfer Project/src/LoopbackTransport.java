@@ -0,0 +1,255 @@
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A transport which carries packets to other transports in the same
+ * process, without going through the kernel, so that the cost of running
+ * the protocol can be measured apart from the cost of the network.
+ * 
+ * Transports are opened on a Network, which gives each one a port on the
+ * loopback address and delivers each packet sent to that address and port
+ * into the transport's queue. Like UDP, packets sent to a port which is not
+ * open are dropped, and the network can be set to drop a share of every
+ * packet sent at random to simulate loss.
+ */
+public class LoopbackTransport implements Transport {
+	
+	/**
+	 * A set of transports which can send packets to each other.
+	 */
+	public static class Network {
+		/**
+		 * The open transports, by address
+		 */
+		private Map<InetSocketAddress, LoopbackTransport> transports =
+				new ConcurrentHashMap<InetSocketAddress, LoopbackTransport>();
+		/**
+		 * Port of the next transport opened
+		 */
+		private int nextPort = 1;
+		/**
+		 * Share of packets which are dropped, between 0 and 1
+		 */
+		private double lossRate = 0;
+		/**
+		 * Decides which packets are dropped
+		 */
+		private Random random = new Random();
+		/**
+		 * Number of packets sent
+		 */
+		private AtomicLong sent = new AtomicLong();
+		/**
+		 * Number of packets dropped, at random or because no transport was
+		 * open at their address
+		 */
+		private AtomicLong dropped = new AtomicLong();
+		
+		/**
+		 * Open a transport on the next free port.
+		 * 
+		 * @return The transport
+		 */
+		public synchronized LoopbackTransport open ()
+		{
+			InetSocketAddress address = new InetSocketAddress(
+					InetAddress.getLoopbackAddress(), this.nextPort);
+			this.nextPort = (this.nextPort % 0xFFFF) + 1;
+			LoopbackTransport transport = new LoopbackTransport(this, address);
+			this.transports.put(address, transport);
+			return transport;
+		}
+		
+		/**
+		 * Drop a share of the packets sent, chosen at random.
+		 * 
+		 * @param lossRate The share of packets to drop, between 0 and 1
+		 * @param seed The seed for choosing which packets are dropped, so
+		 * 			   that runs can be repeated
+		 * @throws IllegalArgumentException If the loss rate is out of range
+		 */
+		public synchronized void setLoss (double lossRate, long seed)
+				throws IllegalArgumentException
+		{
+			if ((lossRate < 0) || (lossRate > 1)) {
+				throw new IllegalArgumentException("The loss rate must be " +
+						"between 0 and 1: " + lossRate);
+			}
+			this.lossRate = lossRate;
+			this.random = new Random(seed);
+		}
+		
+		/**
+		 * Decide whether to drop a packet.
+		 * 
+		 * @return True if the packet should be dropped
+		 */
+		private synchronized boolean lose ()
+		{
+			return (this.lossRate > 0) &&
+					(this.random.nextDouble() < this.lossRate);
+		}
+		
+		/**
+		 * Deliver a packet to the transport at its address.
+		 * 
+		 * @param from The address of the transport which sent it
+		 * @param packet The packet
+		 */
+		private void deliver (InetSocketAddress from, DatagramPacket packet)
+		{
+			this.sent.incrementAndGet();
+			LoopbackTransport to = this.transports.get(
+					packet.getSocketAddress());
+			if ((to == null) || this.lose()) {
+				this.dropped.incrementAndGet();
+				return;
+			}
+			
+			// Copied since the sender may reuse its buffer straight away
+			int offset = packet.getOffset();
+			to.queue.add(new Datagram(Arrays.copyOfRange(packet.getData(),
+					offset, offset + packet.getLength()), from));
+		}
+		
+		/**
+		 * Get the number of packets sent on the network.
+		 * 
+		 * @return The number of packets
+		 */
+		public long getSent ()
+		{
+			return this.sent.get();
+		}
+		
+		/**
+		 * Get the number of packets dropped.
+		 * 
+		 * @return The number of packets
+		 */
+		public long getDropped ()
+		{
+			return this.dropped.get();
+		}
+	}
+	
+	/**
+	 * A packet waiting to be received.
+	 */
+	private static class Datagram {
+		private byte[] data;
+		private InetSocketAddress from;
+		
+		private Datagram (byte[] data, InetSocketAddress from)
+		{
+			this.data = data;
+			this.from = from;
+		}
+	}
+	
+	/**
+	 * Put in the queue when the transport is closed, to wake a receive
+	 */
+	private static final Datagram CLOSED = new Datagram(null, null);
+	
+	/**
+	 * The network the transport is open on
+	 */
+	private Network network;
+	/**
+	 * The transport's address on the network
+	 */
+	private InetSocketAddress address;
+	/**
+	 * Packets delivered to the transport and not yet received
+	 */
+	private BlockingQueue<Datagram> queue =
+			new LinkedBlockingQueue<Datagram>();
+	/**
+	 * Whether the transport has been closed
+	 */
+	private volatile boolean closed = false;
+	
+	/**
+	 * Create a transport, Network.open() is used instead.
+	 * 
+	 * @param network The network the transport is open on
+	 * @param address The transport's address
+	 */
+	private LoopbackTransport (Network network, InetSocketAddress address)
+	{
+		this.network = network;
+		this.address = address;
+	}
+	
+	public void send (DatagramPacket packet) throws IOException
+	{
+		if (this.closed) {
+			throw new SocketException("Socket is closed");
+		}
+		this.network.deliver(this.address, packet);
+	}
+	
+	public void receive (DatagramPacket packet, long deadline)
+			throws IOException
+	{
+		Datagram datagram;
+		try {
+			if (deadline == Long.MAX_VALUE) {
+				datagram = this.queue.take();
+			} else {
+				datagram = this.queue.poll(deadline - RetransmitTimer.now(),
+						TimeUnit.NANOSECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		
+		if ((datagram == CLOSED) || this.closed) {
+			// Left for any other receive which is waiting
+			this.queue.add(CLOSED);
+			throw new SocketException("Socket closed");
+		} else if (datagram == null) {
+			throw new SocketTimeoutException();
+		}
+		
+		int length = Math.min(datagram.data.length,
+				packet.getData().length - packet.getOffset());
+		System.arraycopy(datagram.data, 0, packet.getData(),
+				packet.getOffset(), length);
+		packet.setLength(length);
+		packet.setSocketAddress(datagram.from);
+	}
+	
+	public int reserveWindow (int blockSize, int windowSize)
+	{
+		// The queue has no limit
+		return windowSize;
+	}
+	
+	public InetSocketAddress getLocalAddress ()
+	{
+		return this.address;
+	}
+	
+	public void close ()
+	{
+		this.closed = true;
+		this.network.transports.remove(this.address);
+		this.queue.add(CLOSED);
+	}
+}
@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the blocks of a file being sent through memory mappings of the
+ * file, so that a block is copied straight from the page cache into the
+ * packet which carries it, without a read or a buffer of its own.
+ * Re-sending a block copies it from the mapping again rather than keeping
+ * every block in flight.
+ * 
+ * The file is mapped in segments, each a whole number of blocks long so
+ * that no block is split between two segments. Only the segment being sent
+ * from and the one before it are kept, the one before for blocks which are
+ * re-sent once the window has moved past the end of a segment, so the
+ * address space used by a transfer stays bounded however large the file
+ * is. The JVM unmaps a segment once it is no longer referenced and has
+ * been garbage collected.
+ * 
+ * If the file is truncated while it is mapped, reading a page past its new
+ * end makes the system raise SIGBUS, which the JVM reports as an
+ * InternalError rather than an IOException, and from compiled code not
+ * necessarily where the page was read. So the size of the file is checked
+ * before each block is copied, which only asks the file system for the
+ * file's attributes, and an InternalError from the copy itself is turned
+ * into an IOException in case the file is truncated in between.
+ */
+public class MappedFile {
+	
+	/**
+	 * Default size of the segments the file is mapped in
+	 */
+	public static final long DEFAULT_SEGMENT_SIZE = 64L << 20;
+	
+	/**
+	 * The file
+	 */
+	private FileChannel channel;
+	/**
+	 * Size of the file when it was opened
+	 */
+	private long size;
+	/**
+	 * Size of each block in bytes
+	 */
+	private int blockSize;
+	/**
+	 * Size of each segment in bytes, a multiple of the block size
+	 */
+	private long segmentSize;
+	/**
+	 * The mapped segments, segment i is stored at index i % 2
+	 */
+	private MappedByteBuffer[] segments = new MappedByteBuffer[2];
+	/**
+	 * Number of the segment stored at each index, or -1 if there is none
+	 */
+	private long[] mapped = {-1, -1};
+	
+	/**
+	 * Read the blocks of a file through memory mappings.
+	 * 
+	 * @param channel The file, which must be open for reading
+	 * @param blockSize The size of each block in bytes
+	 * @param segmentSize The largest amount of the file to map at once,
+	 * 					  rounded down to a whole number of blocks
+	 * @throws IOException If the size of the file could not be read
+	 */
+	public MappedFile (FileChannel channel, int blockSize, long segmentSize)
+			throws IOException
+	{
+		this.channel = channel;
+		this.size = channel.size();
+		this.blockSize = blockSize;
+		
+		// A single mapping can not be larger than the largest buffer
+		segmentSize = Math.min(segmentSize, Integer.MAX_VALUE);
+		this.segmentSize = Math.max(1, segmentSize / blockSize) * blockSize;
+	}
+	
+	/**
+	 * Get the size of the file.
+	 * 
+	 * @return The size in bytes
+	 */
+	public long size ()
+	{
+		return this.size;
+	}
+	
+	/**
+	 * Copy a block of the file into a buffer. The block after the last full
+	 * block is shorter than the block size, and empty if the file is a whole
+	 * number of blocks long.
+	 * 
+	 * @param block The position of the block in the file, starting at 1
+	 * @param destination The buffer to copy the block into at its position,
+	 * 					  with at least the block size remaining
+	 * @return The length of the block
+	 * @throws IOException If the file could not be mapped, or has been
+	 * 					   truncated since it was opened
+	 */
+	public int read (long block, ByteBuffer destination) throws IOException
+	{
+		long offset = (block - 1) * this.blockSize;
+		int length = (int)Math.max(0,
+				Math.min(this.blockSize, this.size - offset));
+		if (length == 0) {
+			return 0;
+		}
+		
+		if (this.channel.size() < offset + length) {
+			throw new IOException("The file was truncated while being read.");
+		}
+		
+		MappedByteBuffer segment = this.segment(offset / this.segmentSize);
+		int start = (int)(offset % this.segmentSize);
+		segment.limit(start + length).position(start);
+		try {
+			destination.put(segment);
+		} catch (InternalError e) {
+			throw new IOException("The file was truncated while being read.",
+					e);
+		}
+		return length;
+	}
+	
+	/**
+	 * Get a segment of the file, mapping it if it is not mapped yet.
+	 * 
+	 * @param number The number of the segment
+	 * @return The segment
+	 * @throws IOException If the file could not be mapped
+	 */
+	private MappedByteBuffer segment (long number) throws IOException
+	{
+		int index = (int)(number % this.segments.length);
+		if (this.mapped[index] != number) {
+			long start = number * this.segmentSize;
+			this.segments[index] = this.channel.map(
+					FileChannel.MapMode.READ_ONLY, start,
+					Math.min(this.segmentSize, this.size - start));
+			this.mapped[index] = number;
+		}
+		return this.segments[index];
+	}
+}
@@ -0,0 +1,556 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Sends a file to a group of clients at once using multicast TFTP (RFC 2090).
+ * 
+ * Every client reading the same file with the same block size shares a
+ * session. Each block is sent once to a multicast group, and only the master
+ * client sends ACKs. When the master client has the whole file the client
+ * which has been waiting longest becomes the master client and is sent the
+ * blocks which it is still missing, which is how clients that joined part way
+ * through get the start of the file. The file is read and sent once for
+ * every master client, no matter how many clients are listening.
+ * 
+ * A session is listed in the server's transfer registry by its group
+ * address and port for as long as it runs, since it outlives the requests
+ * which joined it.
+ */
+public class MulticastSession implements Runnable, Closeable {
+	
+	/**
+	 * Sessions which are in progress, by file and block size. Also used to
+	 * synchronize clients joining and leaving sessions.
+	 */
+	private static final Map<String, MulticastSession> sessions =
+			new HashMap<String, MulticastSession>();
+	
+	/**
+	 * A client which has joined a session
+	 */
+	private static class Member {
+		/**
+		 * Address of the client
+		 */
+		private InetAddress address;
+		/**
+		 * TID of the client
+		 */
+		private int port;
+		/**
+		 * Options acknowledged for the client, without the multicast option
+		 */
+		private TFTPPacket.OptionSet options;
+		
+		private Member (InetAddress address, int port,
+				TFTPPacket.OptionSet options)
+		{
+			this.address = address;
+			this.port = port;
+			this.options = options;
+		}
+		
+		private boolean matches (DatagramPacket packet)
+		{
+			return this.address.equals(packet.getAddress()) &&
+					(this.port == packet.getPort());
+		}
+	}
+	
+	/**
+	 * Key for this session in the map of sessions
+	 */
+	private String key;
+	/**
+	 * Socket used to send DATA to the group and to communicate with clients
+	 */
+	private MulticastSocket socket;
+	/**
+	 * Multicast group to which DATA is sent
+	 */
+	private InetAddress groupAddress;
+	/**
+	 * Port to which DATA is sent
+	 */
+	private int groupPort;
+	/**
+	 * The file being sent
+	 */
+	private FileChannel file;
+	/**
+	 * Number of bytes of file data in each full DATA packet
+	 */
+	private int blockSize;
+	/**
+	 * Number of DATA packets sent for each ACK from the master client
+	 */
+	private int windowSize;
+	/**
+	 * Total number of blocks in the file
+	 */
+	private int numBlocks;
+	/**
+	 * Logger used to log details of sent and received packets
+	 */
+	private Logger logger;
+	/**
+	 * Clients waiting to become the master client, oldest first
+	 */
+	private LinkedList<Member> waiting = new LinkedList<Member>();
+	/**
+	 * The current master client, or null if there is none
+	 */
+	private Member master = null;
+	/**
+	 * Registry the session is listed in, or null if it is not listed
+	 */
+	private TransferRegistry registry = null;
+	/**
+	 * The session's entry in the registry
+	 */
+	private TransferRegistry.Transfer transfer = null;
+	/**
+	 * Whether the session has been told to stop
+	 */
+	private volatile boolean cancelled = false;
+	
+	/**
+	 * Create a MulticastSession.
+	 * 
+	 * @param key Key for the session in the map of sessions
+	 * @param filename The file to be sent
+	 * @param groupAddress Multicast group to which DATA should be sent
+	 * @param blockSize Number of bytes of file data in each DATA packet
+	 * @param windowSize Number of DATA packets to send for each ACK
+	 * @param networkInterface Interface on which to send DATA, or null to
+	 * 						   let the system choose
+	 * @param logger Logger used to log details of packets
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	private MulticastSession (String key, String filename,
+			InetAddress groupAddress, int blockSize, int windowSize,
+			NetworkInterface networkInterface, Logger logger)
+					throws FileNotFoundException, IOException
+	{
+		this.key = key;
+		this.groupAddress = groupAddress;
+		this.blockSize = blockSize;
+		this.windowSize = windowSize;
+		this.logger = logger;
+		
+		this.file = new RandomAccessFile(filename, "r").getChannel();
+		this.numBlocks = (int)((this.file.size() / blockSize) + 1);
+		
+		// Use a free port for the group so that sessions do not receive each
+		// other's DATA
+		try (DatagramSocket probe = new DatagramSocket()) {
+			this.groupPort = probe.getLocalPort();
+		}
+		
+		this.socket = new MulticastSocket();
+		if (networkInterface != null) {
+			this.socket.setNetworkInterface(networkInterface);
+		}
+	}
+	
+	/**
+	 * Add a client to the session for a file, starting a new session if
+	 * there is none.
+	 * 
+	 * @param filename The file requested by the client
+	 * @param groupAddress Multicast group to use if a new session is started
+	 * @param options The options acknowledged for the client, the window size
+	 * 				  is reduced to that of the session if required and the
+	 * 				  multicast option is added
+	 * @param address Address of the client
+	 * @param port TID of the client
+	 * @param logger Logger used to log details of packets
+	 * @param registry Registry to list a new session in, or null
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 */
+	public static void join (String filename, InetAddress groupAddress,
+			TFTPPacket.OptionSet options, InetAddress address, int port,
+			Logger logger, TransferRegistry registry)
+					throws FileNotFoundException, IOException
+	{
+		String blockSize = options.getOptionValue(
+				TFTPPacket.OptionSet.BLOCK_SIZE);
+		int size = (blockSize != null) ? Integer.parseInt(blockSize) :
+				TFTPPacket.BLOCK_SIZE;
+		String windowSize = options.getOptionValue(
+				TFTPPacket.OptionSet.WINDOW_SIZE);
+		int window = (windowSize != null) ? Integer.parseInt(windowSize) :
+				TFTPPacket.WINDOW_SIZE;
+		
+		String key = new File(filename).getCanonicalPath() + ":" + size;
+		
+		synchronized (sessions) {
+			MulticastSession session = sessions.get(key);
+			boolean started = false;
+			
+			if (session == null) {
+				session = new MulticastSession(key, filename, groupAddress,
+						size, window, TFTPTransaction.findInterface(address),
+						logger);
+				sessions.put(key, session);
+				started = true;
+				
+				if (registry != null) {
+					session.registry = registry;
+					session.transfer = new TransferRegistry.Transfer(
+							groupAddress, session.groupPort, "multicast of \"" +
+							filename + "\"", session::cancel);
+					registry.add(session.transfer);
+				}
+			} else if (window > session.windowSize) {
+				// Client would wait for a window larger than the one sent
+				options.addOption(TFTPPacket.OptionSet.WINDOW_SIZE,
+						Integer.toString(session.windowSize));
+			}
+			
+			Member member = new Member(address, port, options);
+			session.waiting.add(member);
+			logger.log(LogLevel.INFO, String.format("Client %s:%d joined " +
+					"multicast session for \"%s\", %d clients waiting.",
+					address.toString(), port, filename,
+					session.waiting.size()));
+			
+			if (started) {
+				// The session will make the client its master client
+				new Thread(session).start();
+			} else if (session.master != null) {
+				// Tell the client where to listen, it will become the master
+				// client once the clients before it are done
+				session.sendOptionAck(member, false);
+			}
+		}
+	}
+	
+	/**
+	 * Send a packet to a client or the group.
+	 * 
+	 * @param packet The packet to be sent
+	 * @param address The address to send to
+	 * @param port The port to send to
+	 * @return True if an error occurred
+	 */
+	private boolean send (TFTPPacket packet, InetAddress address, int port)
+	{
+		DatagramPacket outgoing = new DatagramPacket(packet.toBytes(),
+				packet.size(), address, port);
+		try {
+			this.socket.send(outgoing);
+		} catch (IOException e) {
+			this.logger.log(LogLevel.ERROR, String.format("Failed to send " +
+					"packet to %s:%d.", address.toString(), port));
+			return true;
+		}
+		this.logger.logPacket(LogLevel.INFO, outgoing, packet, false,
+				"peer");
+		return false;
+	}
+	
+	/**
+	 * Send an options acknowledgment telling a client the group to listen on
+	 * and whether it is the master client.
+	 * 
+	 * @param member The client
+	 * @param master Whether the client is the master client
+	 */
+	private void sendOptionAck (Member member, boolean master)
+	{
+		TFTPPacket.OACK oack = new TFTPPacket.OACK();
+		for (String option : member.options.getOptions()) {
+			oack.getOptions().addOption(option,
+					member.options.getOptionValue(option));
+		}
+		oack.getOptions().addOption(TFTPPacket.OptionSet.MULTICAST,
+				String.format("%s,%d,%d", this.groupAddress.getHostAddress(),
+						this.groupPort, master ? 1 : 0));
+		
+		this.send(oack, member.address, member.port);
+	}
+	
+	/**
+	 * Read a block from the file.
+	 * 
+	 * @param blockNum The number of the block
+	 * @return The DATA packet for the block or null if an error occurred
+	 */
+	private TFTPPacket.DATA readBlock (int blockNum)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(this.blockSize);
+		long position = (blockNum - 1L) * this.blockSize;
+		
+		try {
+			while (buffer.hasRemaining()) {
+				int read = this.file.read(buffer, position + buffer.position());
+				if (read < 0) {
+					break;
+				}
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		
+		return new TFTPPacket.DATA(blockNum,
+				Arrays.copyOf(buffer.array(), buffer.position()));
+	}
+	
+	/**
+	 * Make the client which has been waiting longest the master client, or
+	 * end the session if there are no clients left.
+	 * 
+	 * @return True if there is a new master client
+	 */
+	private boolean promote ()
+	{
+		synchronized (sessions) {
+			this.master = this.waiting.poll();
+			if (this.master == null) {
+				// Everyone has the file, clients which join from now on start
+				// a new session
+				sessions.remove(this.key);
+				return false;
+			}
+		}
+		
+		this.sendOptionAck(this.master, true);
+		return true;
+	}
+	
+	/**
+	 * Remove a client from the session.
+	 * 
+	 * @param packet A packet received from the client
+	 */
+	private void remove (DatagramPacket packet)
+	{
+		synchronized (sessions) {
+			if ((this.master != null) && this.master.matches(packet)) {
+				this.master = null;
+				return;
+			}
+			
+			Iterator<Member> it = this.waiting.iterator();
+			while (it.hasNext()) {
+				if (it.next().matches(packet)) {
+					it.remove();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Give up on the master client.
+	 * 
+	 * @param reason Description of the error to be sent to the client
+	 */
+	private void dropMaster (String reason)
+	{
+		this.logger.log(LogLevel.ERROR, String.format("Removing master " +
+				"client %s:%d from multicast session: %s",
+				this.master.address.toString(), this.master.port, reason));
+		this.send(new TFTPPacket.ERROR(TFTPPacket.TFTPError.ERROR, reason),
+				this.master.address, this.master.port);
+		synchronized (sessions) {
+			this.master = null;
+		}
+	}
+	
+	/**
+	 * Run the session until every client has the file.
+	 */
+	public void run ()
+	{
+		byte[] buffer = new byte[TFTPPacket.MAX_PACKET_SIZE];
+		
+		// Timer for the current master client
+		RetransmitTimer timer = null;
+		// Whether the master client has not yet told us which blocks it has
+		boolean awaitingMaster = false;
+		// Last block acknowledged by the master client
+		int ackedBlock = 0;
+		// Next block to be sent
+		int nextBlock = 1;
+		long retransmitTime = 0;
+		
+		for (;;) {
+			if (this.cancelled) {
+				this.logger.log(LogLevel.INFO, "Multicast session " +
+						"cancelled.");
+				this.abort();
+				return;
+			}
+			if (this.master == null) {
+				if (!this.promote()) {
+					this.close();
+					return;
+				}
+				timer = new RetransmitTimer();
+				awaitingMaster = true;
+				retransmitTime = timer.getDeadline();
+			}
+			
+			if (!awaitingMaster) {
+				// Send the rest of the window to the group
+				while ((nextBlock <= this.numBlocks) &&
+						(nextBlock <= ackedBlock + this.windowSize)) {
+					TFTPPacket.DATA data = this.readBlock(nextBlock);
+					if (data == null) {
+						this.logger.log(LogLevel.FATAL, "Failed to read " +
+								"from file, ending multicast session.");
+						this.abort();
+						return;
+					}
+					this.send(data, this.groupAddress, this.groupPort);
+					retransmitTime = timer.getDeadline();
+					nextBlock++;
+				}
+			}
+			
+			// Wait for the master client
+			DatagramPacket received = new DatagramPacket(buffer,
+					buffer.length);
+			TFTPPacket packet = null;
+			try {
+				long remaining = retransmitTime - RetransmitTimer.now();
+				if (remaining > 0) {
+					this.socket.setSoTimeout(
+							(int)((remaining + 999_999L) / 1_000_000L));
+					this.socket.receive(received);
+					packet = TFTPPacket.parse(Arrays.copyOf(
+							received.getData(), received.getLength()));
+					this.logger.logPacket(LogLevel.INFO, received, packet,
+							true, "peer");
+				}
+			} catch (SocketTimeoutException e) {
+				// Master client needs to be reminded
+			} catch (IllegalArgumentException e) {
+				// Not a TFTP packet, ignore it
+				continue;
+			} catch (IOException e) {
+				this.logger.log(LogLevel.FATAL, "Multicast session socket " +
+						"failed.");
+				this.abort();
+				return;
+			}
+			
+			if (packet instanceof TFTPPacket.ERROR) {
+				// Client is leaving the session
+				this.remove(received);
+				continue;
+			} else if ((packet instanceof TFTPPacket.ACK) &&
+					this.master.matches(received)) {
+				int blockNum = ((TFTPPacket.ACK)packet).getBlockNum();
+				
+				if (awaitingMaster) {
+					// Master client has every block up to this one, continue
+					// from there
+					awaitingMaster = false;
+					ackedBlock = blockNum;
+					nextBlock = blockNum + 1;
+				} else if (blockNum > ackedBlock) {
+					// Master client may already have blocks which have not
+					// been sent since it became the master client
+					ackedBlock = blockNum;
+					nextBlock = Math.max(nextBlock, blockNum + 1);
+				} else if (blockNum == ackedBlock) {
+					// Master client is missing the block after this one
+					nextBlock = blockNum + 1;
+				}
+				timer.progress();
+				
+				if (ackedBlock >= this.numBlocks) {
+					// Master client has the whole file
+					this.logger.log(LogLevel.INFO, String.format("Client " +
+							"%s:%d has received the whole file.",
+							this.master.address.toString(),
+							this.master.port));
+					synchronized (sessions) {
+						this.master = null;
+					}
+				}
+				continue;
+			} else if (packet != null) {
+				// Clients which are not the master client should stay quiet
+				continue;
+			}
+			
+			// Timed out waiting for the master client
+			if (timer.expired()) {
+				this.dropMaster("Timed out waiting for ACK.");
+			} else if (awaitingMaster) {
+				this.sendOptionAck(this.master, true);
+				retransmitTime = timer.getDeadline();
+			} else {
+				// Re-send every unacknowledged block in the window
+				nextBlock = ackedBlock + 1;
+			}
+		}
+	}
+	
+	/**
+	 * Stop the session, which ends once it is next done waiting for the
+	 * master client. May be called from any thread.
+	 */
+	public void cancel ()
+	{
+		this.cancelled = true;
+	}
+	
+	/**
+	 * End the session early, telling every client that it has failed.
+	 */
+	private void abort ()
+	{
+		synchronized (sessions) {
+			sessions.remove(this.key);
+			if (this.master != null) {
+				this.waiting.addFirst(this.master);
+				this.master = null;
+			}
+			for (Member member : this.waiting) {
+				this.send(new TFTPPacket.ERROR(TFTPPacket.TFTPError.ERROR,
+						"Multicast transfer failed."), member.address,
+						member.port);
+			}
+			this.waiting.clear();
+		}
+		this.close();
+	}
+	
+	/**
+	 * Close the socket and file used by the session.
+	 */
+	public void close ()
+	{
+		if (this.transfer != null) {
+			this.registry.remove(this.transfer);
+		}
+		this.socket.close();
+		try {
+			this.file.close();
+		} catch (IOException e) {
+			// Nothing left to do with the file
+		}
+	}
+}
@@ -0,0 +1,297 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads and writes TFTP packets in place in a ByteBuffer.
+ * 
+ * A codec is a flyweight: wrapping a buffer which holds a received packet
+ * checks its header and remembers where it is, and the opcode, block
+ * number, error code and payload are then read straight from the buffer
+ * without copying anything. The same codec is reused for every packet a
+ * transfer receives. DATA, ACK and ERROR packets are written into buffers
+ * which the caller provides and reuses, so that a transfer in its steady
+ * state creates no garbage for each packet.
+ * 
+ * The TFTPPacket classes are still used for the packets which are sent once
+ * in a transfer, such as requests and options acknowledgments.
+ */
+public class PacketCodec {
+	
+	/**
+	 * Opcodes of the packet types
+	 */
+	public static final int RRQ = 1;
+	public static final int WRQ = 2;
+	public static final int DATA = 3;
+	public static final int ACK = 4;
+	public static final int ERROR = 5;
+	public static final int OACK = 6;
+	public static final int PARITY = 7;
+	
+	/**
+	 * Size of the opcode and block number or error code which start DATA,
+	 * ACK and ERROR packets
+	 */
+	public static final int HEADER_SIZE = 4;
+	
+	/**
+	 * The buffer holding the packet
+	 */
+	private ByteBuffer buffer = null;
+	/**
+	 * Index of the start of the packet in the buffer
+	 */
+	private int offset = 0;
+	/**
+	 * Length of the packet in bytes
+	 */
+	private int length = 0;
+	/**
+	 * Opcode of the packet
+	 */
+	private int opcode = 0;
+	
+	/**
+	 * Use the codec to read the packet between a buffer's position and its
+	 * limit. The buffer's position and limit are not changed.
+	 * 
+	 * Only the header is checked, and for an ERROR packet that its
+	 * description is terminated. Requests, options acknowledgments and
+	 * parity packets are checked fully when they are turned into a
+	 * TFTPPacket.
+	 * 
+	 * @param buffer The buffer holding the packet
+	 * @return This codec
+	 * @throws IllegalArgumentException If the packet is not valid, an
+	 * 									InvalidOpcodeException if its opcode
+	 * 									is unknown
+	 */
+	public PacketCodec wrap (ByteBuffer buffer) throws IllegalArgumentException
+	{
+		int offset = buffer.position();
+		int length = buffer.remaining();
+		if (length < HEADER_SIZE) {
+			throw new IllegalArgumentException("Packet is not long enough.");
+		}
+		
+		int opcode = readShort(buffer, offset);
+		if ((opcode < RRQ) || (opcode > PARITY)) {
+			throw new TFTPPacket.InvalidOpcodeException(
+					String.format("Unkown Opcode %d.", opcode));
+		} else if ((opcode == ACK) && (length != HEADER_SIZE)) {
+			throw new IllegalArgumentException(
+					"Invalid length for ACK packet");
+		} else if ((opcode == ERROR) && (findZero(buffer,
+				offset + HEADER_SIZE, offset + length) < 0)) {
+			throw new IllegalArgumentException("Invalid error format");
+		}
+		
+		this.buffer = buffer;
+		this.offset = offset;
+		this.length = length;
+		this.opcode = opcode;
+		return this;
+	}
+	
+	/**
+	 * Read an unsigned 16 bit field from a buffer.
+	 * 
+	 * @param buffer The buffer
+	 * @param index The index of the field's first byte
+	 * @return The value of the field
+	 */
+	private static int readShort (ByteBuffer buffer, int index)
+	{
+		return buffer.getShort(index) & 0xFFFF;
+	}
+	
+	/**
+	 * Find the first zero byte in part of a buffer.
+	 * 
+	 * @param buffer The buffer
+	 * @param start The index to start searching at
+	 * @param end The index after the last byte to search
+	 * @return The index of the zero byte, or -1 if there is none
+	 */
+	private static int findZero (ByteBuffer buffer, int start, int end)
+	{
+		for (int i = start; i < end; i++) {
+			if (buffer.get(i) == 0) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Get the opcode of the packet.
+	 * 
+	 * @return The opcode, one of the constants of this class
+	 */
+	public int getOpcode ()
+	{
+		return this.opcode;
+	}
+	
+	/**
+	 * Get the length of the packet.
+	 * 
+	 * @return The number of bytes in the packet
+	 */
+	public int getLength ()
+	{
+		return this.length;
+	}
+	
+	/**
+	 * Get the block number of a DATA or ACK packet.
+	 * 
+	 * @return The block number
+	 */
+	public int getBlockNum ()
+	{
+		return readShort(this.buffer, this.offset + 2);
+	}
+	
+	/**
+	 * Get the error code of an ERROR packet.
+	 * 
+	 * @return The error code
+	 */
+	public TFTPPacket.TFTPError getError ()
+	{
+		return TFTPPacket.TFTPError.fromCode(
+				readShort(this.buffer, this.offset + 2));
+	}
+	
+	/**
+	 * Get the description of an ERROR packet. The description is copied out
+	 * of the buffer, errors end the transfer so this is done at most once.
+	 * 
+	 * @return The description
+	 */
+	public String getErrorDescription ()
+	{
+		int start = this.offset + HEADER_SIZE;
+		int end = findZero(this.buffer, start, this.offset + this.length);
+		byte[] description = new byte[end - start];
+		this.buffer.duplicate().position(start).get(description);
+		return new String(description, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Get the length of the payload of a DATA packet.
+	 * 
+	 * @return The number of bytes of file data
+	 */
+	public int getPayloadLength ()
+	{
+		return this.length - HEADER_SIZE;
+	}
+	
+	/**
+	 * Select the payload of a DATA packet, by moving the wrapped buffer's
+	 * position to the start of the payload and its limit to the end, so that
+	 * it can be written straight to a file.
+	 * 
+	 * @return The wrapped buffer
+	 */
+	public ByteBuffer payload ()
+	{
+		this.buffer.limit(this.offset + this.length);
+		this.buffer.position(this.offset + HEADER_SIZE);
+		return this.buffer;
+	}
+	
+	/**
+	 * Copy the packet out of the buffer.
+	 * 
+	 * @return The bytes of the packet
+	 */
+	public byte[] toBytes ()
+	{
+		byte[] bytes = new byte[this.length];
+		this.buffer.duplicate().position(this.offset).get(bytes);
+		return bytes;
+	}
+	
+	/**
+	 * Copy the packet out of the buffer and parse it fully, for packets which
+	 * are not worth reading in place and for logging.
+	 * 
+	 * @return The packet
+	 * @throws IllegalArgumentException If the packet is not valid
+	 */
+	public TFTPPacket toPacket () throws IllegalArgumentException
+	{
+		return TFTPPacket.parse(this.toBytes());
+	}
+	
+	/**
+	 * Start writing a DATA packet. The header is written at the start of the
+	 * buffer, and the buffer is left positioned for the payload to be read
+	 * straight into it, with its limit at the end of a full block so that a
+	 * buffer larger than the packet can be used. The caller flips the buffer
+	 * once the payload has been added.
+	 * 
+	 * @param buffer The buffer to write into, at least HEADER_SIZE plus the
+	 * 				 block size long
+	 * @param blockNum The block number
+	 * @param blockSize The block size
+	 * @throws IllegalArgumentException If the block number is too high
+	 */
+	public static void putDataHeader (ByteBuffer buffer, int blockNum,
+			int blockSize) throws IllegalArgumentException
+	{
+		if (blockNum > TFTPPacket.MAX_BLOCK_NUM) {
+			throw new IllegalArgumentException("Block number is too high.");
+		}
+		buffer.clear().limit(HEADER_SIZE + blockSize);
+		buffer.putShort((short)DATA);
+		buffer.putShort((short)blockNum);
+	}
+	
+	/**
+	 * Write an ACK packet, leaving the buffer ready to be sent.
+	 * 
+	 * @param buffer The buffer to write into, at least HEADER_SIZE long
+	 * @param blockNum The block number to acknowledge
+	 * @throws IllegalArgumentException If the block number is too high
+	 */
+	public static void putAck (ByteBuffer buffer, int blockNum)
+			throws IllegalArgumentException
+	{
+		if (blockNum > TFTPPacket.MAX_BLOCK_NUM) {
+			throw new IllegalArgumentException("Block number is too high.");
+		}
+		buffer.clear();
+		buffer.putShort((short)ACK);
+		buffer.putShort((short)blockNum);
+		buffer.flip();
+	}
+	
+	/**
+	 * Write an ERROR packet, leaving the buffer ready to be sent. The
+	 * description is cut short if it does not fit.
+	 * 
+	 * @param buffer The buffer to write into
+	 * @param error The error code
+	 * @param description A description of the error
+	 */
+	public static void putError (ByteBuffer buffer, TFTPPacket.TFTPError error,
+			String description)
+	{
+		byte[] bytes = description.getBytes(StandardCharsets.UTF_8);
+		int room = buffer.capacity() - HEADER_SIZE - 1;
+		if (bytes.length > room) {
+			bytes = Arrays.copyOf(bytes, Math.max(room, 0));
+		}
+		buffer.clear();
+		buffer.putShort((short)ERROR);
+		buffer.putShort((short)error.getCode());
+		buffer.put(bytes);
+		buffer.put((byte)0);
+		buffer.flip();
+	}
+}
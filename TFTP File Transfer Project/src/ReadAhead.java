@@ -0,0 +1,171 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads the blocks of a file being sent ahead of the transfer on a thread
+ * of its own, so that waiting for the disk overlaps waiting for the network
+ * rather than adding to it. While one window is on the wire the next few
+ * are already being read, which keeps transfers from slow disks or network
+ * file systems from stalling on every read.
+ * 
+ * Blocks are read with positional reads on the file's channel, in order
+ * from the start of the file, into a queue holding a bounded number of
+ * blocks. The reader waits whenever the queue is full and stops once it
+ * has read the last block, which is shorter than the block size.
+ */
+public class ReadAhead implements Runnable, Closeable {
+	
+	/**
+	 * Most bytes of the file which are held in the queue at once
+	 */
+	public static final int MAX_MEMORY = 16 << 20;
+	/**
+	 * Put in the queue in place of a block if the file could not be read
+	 */
+	private static final byte[] FAILED = new byte[0];
+	
+	/**
+	 * The file
+	 */
+	private FileChannel channel;
+	/**
+	 * Size of each block in bytes
+	 */
+	private int blockSize;
+	/**
+	 * Blocks which have been read and not yet taken
+	 */
+	private BlockingQueue<byte[]> queue;
+	/**
+	 * The reason the file could not be read, or null
+	 */
+	private volatile IOException error = null;
+	/**
+	 * Whether the reader should stop
+	 */
+	private volatile boolean closed = false;
+	
+	/**
+	 * Start reading the blocks of a file ahead.
+	 * 
+	 * @param channel The file, which must be open for reading
+	 * @param blockSize The size of each block in bytes
+	 * @param depth The number of blocks to read ahead, limited to
+	 * 				MAX_MEMORY bytes
+	 */
+	public ReadAhead (FileChannel channel, int blockSize, int depth)
+	{
+		this.channel = channel;
+		this.blockSize = blockSize;
+		depth = Math.min(depth, MAX_MEMORY / blockSize);
+		this.queue = new ArrayBlockingQueue<byte[]>(Math.max(1, depth));
+		
+		Thread reader = new Thread(this, "read-ahead");
+		reader.setDaemon(true);
+		reader.start();
+	}
+	
+	/**
+	 * Read blocks until the last one has been read or the read-ahead is
+	 * closed.
+	 */
+	public void run ()
+	{
+		long position = 0;
+		try {
+			while (!this.closed) {
+				byte[] block = this.read(position);
+				this.queue.put(block);
+				if (block.length < this.blockSize) {
+					// Last block
+					return;
+				}
+				position += block.length;
+			}
+		} catch (IOException e) {
+			this.error = e;
+			// Goes after the blocks already read, so it may have to wait
+			this.fail();
+		} catch (InterruptedException e) {
+			// Nothing else will wait for the reader
+		}
+	}
+	
+	/**
+	 * Tell the transfer that the file could not be read.
+	 */
+	private void fail ()
+	{
+		try {
+			this.queue.put(FAILED);
+		} catch (InterruptedException e) {
+			// Nothing else will wait for the reader
+		}
+	}
+	
+	/**
+	 * Read a block from the file.
+	 * 
+	 * @param position The position of the block in the file
+	 * @return The block, trimmed to the number of bytes left in the file
+	 * @throws IOException If the file could not be read
+	 */
+	private byte[] read (long position) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(this.blockSize);
+		while (buffer.hasRemaining() && (this.channel.read(buffer,
+				position + buffer.position()) >= 0)) {
+			// Read until the block is full or the file ends
+		}
+		
+		byte[] block = buffer.array();
+		if (buffer.position() < block.length) {
+			block = Arrays.copyOf(block, buffer.position());
+		}
+		return block;
+	}
+	
+	/**
+	 * Take the next block from the file, waiting for it to be read if it has
+	 * not been yet.
+	 * 
+	 * @return The block, shorter than the block size if it is the last one
+	 * @throws IOException If the file could not be read, or an
+	 * 					   InterruptedIOException if interrupted while
+	 * 					   waiting
+	 */
+	public byte[] next () throws IOException
+	{
+		byte[] block;
+		try {
+			block = this.queue.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		
+		if (block == FAILED) {
+			// Left for any later call
+			this.queue.offer(FAILED);
+			throw this.error;
+		}
+		return block;
+	}
+	
+	/**
+	 * Stop reading ahead. The reader finishes any read in progress, it is
+	 * not interrupted since that would close the file's channel.
+	 */
+	public void close ()
+	{
+		this.closed = true;
+		// Makes room in case the reader is waiting for it
+		this.queue.clear();
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * Decides how long to wait for a response from a peer before a packet is
+ * re-sent.
+ * 
+ * The timeout is adapted to the round trip time to the peer using the
+ * smoothed round trip time estimator from RFC 6298. The timeout is doubled
+ * each time it expires, until a new round trip time sample is taken. Callers
+ * must follow Karn's rule and only take samples for packets which were not
+ * re-sent, since the response to a re-sent packet can not be matched with the
+ * transmission that caused it.
+ * 
+ * A fixed timeout can be used instead, as is required when a timeout has
+ * been negotiated with the peer (RFC 2349).
+ * 
+ * All times are taken from the monotonic System.nanoTime() clock.
+ */
+public class RetransmitTimer {
+	
+	/**
+	 * Smallest timeout that will be used, this keeps scheduling delays from
+	 * causing unnecessary retransmissions on very fast links
+	 */
+	public static final long MIN_TIMEOUT = 20_000_000L;
+	
+	/**
+	 * Timeout used before the first round trip time sample has been taken
+	 */
+	public static final long INITIAL_TIMEOUT = 1_000_000_000L;
+	
+	/**
+	 * Largest timeout that will be used
+	 */
+	public static final long MAX_TIMEOUT =
+			TFTPPacket.TFTP_DATA_TIMEOUT * 1_000_000L;
+	
+	/**
+	 * Clock granularity used when calculating the timeout
+	 */
+	private static final long CLOCK_GRANULARITY = 1_000_000L;
+	
+	/**
+	 * Whether the timeout is fixed rather than adapted to the round trip time
+	 */
+	private boolean fixed;
+	
+	/**
+	 * Whether a round trip time sample has been taken yet
+	 */
+	private boolean hasSample = false;
+	
+	/**
+	 * Smoothed round trip time in nanoseconds
+	 */
+	private long smoothedRtt = 0;
+	
+	/**
+	 * Round trip time variation in nanoseconds
+	 */
+	private long rttVariation = 0;
+	
+	/**
+	 * Current timeout in nanoseconds
+	 */
+	private long timeout;
+	
+	/**
+	 * Time with no progress after which the peer is assumed to be missing
+	 */
+	private long giveUpTime;
+	
+	/**
+	 * Time at which progress was last made
+	 */
+	private long lastProgress;
+	
+	/**
+	 * Create a timer which adapts to the round trip time to the peer.
+	 */
+	public RetransmitTimer ()
+	{
+		this.fixed = false;
+		this.timeout = INITIAL_TIMEOUT;
+		this.giveUpTime = MAX_TIMEOUT * TFTPPacket.TFTP_NUM_RETRIES;
+		this.lastProgress = System.nanoTime();
+	}
+	
+	/**
+	 * Create a timer with a fixed timeout.
+	 * 
+	 * @param timeoutMillis The timeout in milliseconds
+	 */
+	public RetransmitTimer (int timeoutMillis)
+	{
+		this.fixed = true;
+		this.timeout = timeoutMillis * 1_000_000L;
+		this.giveUpTime = this.timeout * TFTPPacket.TFTP_NUM_RETRIES;
+		this.lastProgress = System.nanoTime();
+	}
+	
+	/**
+	 * Get the current time from the clock used by the timer.
+	 * 
+	 * @return The current time in nanoseconds
+	 */
+	public static long now ()
+	{
+		return System.nanoTime();
+	}
+	
+	/**
+	 * Get the time after which a packet sent now should be re-sent.
+	 * 
+	 * @return The deadline in nanoseconds
+	 */
+	public long getDeadline ()
+	{
+		return now() + this.timeout;
+	}
+	
+	/**
+	 * Get the current timeout.
+	 * 
+	 * @return The timeout in milliseconds
+	 */
+	public int getTimeoutMillis ()
+	{
+		return (int)((this.timeout + 999_999L) / 1_000_000L);
+	}
+	
+	/**
+	 * Update the round trip time estimate.
+	 * 
+	 * @param rtt The time between a packet which was sent once being sent and
+	 * 			  the response to it being received, in nanoseconds
+	 */
+	public void sample (long rtt)
+	{
+		if (this.fixed) {
+			return;
+		}
+		
+		if (!this.hasSample) {
+			this.smoothedRtt = rtt;
+			this.rttVariation = rtt / 2;
+			this.hasSample = true;
+		} else {
+			this.rttVariation = (3 * this.rttVariation +
+					Math.abs(this.smoothedRtt - rtt)) / 4;
+			this.smoothedRtt = (7 * this.smoothedRtt + rtt) / 8;
+		}
+		
+		// New sample also cancels any backoff
+		this.timeout = this.smoothedRtt +
+				Math.max(CLOCK_GRANULARITY, 4 * this.rttVariation);
+		this.timeout = Math.min(Math.max(this.timeout, MIN_TIMEOUT),
+				MAX_TIMEOUT);
+	}
+	
+	/**
+	 * Record that the peer has responded.
+	 */
+	public void progress ()
+	{
+		this.lastProgress = now();
+	}
+	
+	/**
+	 * Record that the timeout has expired without a response, doubling the
+	 * timeout.
+	 * 
+	 * @return True if the peer has not responded for so long that it should
+	 * 		   be assumed to be missing
+	 */
+	public boolean expired ()
+	{
+		if (!this.fixed) {
+			this.timeout = Math.min(this.timeout * 2, MAX_TIMEOUT);
+		}
+		
+		return (now() - this.lastProgress) >= this.giveUpTime;
+	}
+}
@@ -3,14 +3,29 @@
  */
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -24,31 +39,84 @@ import org.apache.commons.cli.ParseException;
  */
 public class Server {
 
-	private ServerListener listener;
-	private Thread listenerThread;
+	/**
+	 * Default time in seconds which the drain command waits for transfers to finish
+	 */
+	private static final int DEFAULT_DRAIN_TIMEOUT = 60;
+
+	/**
+	 * Time in milliseconds between checks for transfers which have finished while draining
+	 */
+	private static final long DRAIN_CHECK_INTERVAL = 250;
+
+	/**
+	 * Time in milliseconds which the drain command gives the transfers it cancels to tell their clients
+	 */
+	private static final long DRAIN_CANCEL_TIMEOUT = 2 * TFTPPacket.TFTP_TIMEOUT;
+
+	private ServerListener[] listeners;
+	private Thread[] listenerThreads;
+	private TransferSocketPool socketPool;
+	private TransferRegistry registry = new TransferRegistry();
+	private BufferPool bufferPool;
+	private FileCache fileCache;
+	private boolean draining = false;
+	private boolean shutDown = false;
 	private static Logger logger = new Logger();
 
-	public Server(int serverPort, LogLevel verboseLevel, String logFilePath) {
+	/**
+	 * Create a server with one listener shard for each handler pool. When there is more than one
+	 * shard they all bind the server port with SO_REUSEPORT and the kernel spreads requests over them.
+	 * @param handlerPools The handler pool for each shard
+	 * @param listenAddresses The local addresses which the shards are bound to in turn, or an empty
+	 * list to bind every shard to all interfaces
+	 * @param socketPool Hands out the sockets used by transfers, shared by every shard
+	 * @param bufferPool Hands out the packet buffers used by event loop transfers, shared by every shard
+	 * @param mapSegmentSize The largest part of a file mapped at once when reads on their own threads
+	 * send blocks straight from a memory mapping of the file, or 0 to read each block from the file
+	 * @param readAheadWindows The number of windows of blocks which reads on their own threads read ahead
+	 * of those being sent, or 0 to read each block when it is first sent
+	 * @param fileCache Keeps the files read most often in memory for reads on their own threads, shared
+	 * by every shard, or null to read every file from the disk
+	 * @param reusePort true to bind the server port with SO_REUSEPORT even with a single shard, so
+	 * that a new server can take over the port while this one drains
+	 */
+	public Server(int serverPort, LogLevel verboseLevel, String logFilePath, long maxUploadSize, InetAddress multicastGroup, String congestionControl, BandwidthLimiter bandwidthLimiter, int eventLoops, HandlerPool[] handlerPools, List<InetAddress> listenAddresses, TransferSocketPool socketPool, BufferPool bufferPool, long mapSegmentSize, int readAheadWindows, FileCache fileCache, boolean reusePort) {
 
 		logger.setVerboseLevel(verboseLevel, true);
 		logger.setLogFile(logFilePath, true);
 
-		this.listener = new ServerListener(serverPort, logger);
-		this.listenerThread = new Thread(listener);
+		this.socketPool = socketPool;
+		this.bufferPool = bufferPool;
+		this.fileCache = fileCache;
+		reusePort = reusePort || handlerPools.length > 1;
+		this.listeners = new ServerListener[handlerPools.length];
+		this.listenerThreads = new Thread[handlerPools.length];
+		for (int i = 0; i < handlerPools.length; i++) {
+			InetAddress listenAddress = listenAddresses.isEmpty() ? null : listenAddresses.get(i % listenAddresses.size());
+			this.listeners[i] = new ServerListener(serverPort, listenAddress, reusePort, logger, maxUploadSize, multicastGroup, congestionControl, bandwidthLimiter, eventLoops, handlerPools[i], socketPool, bufferPool, mapSegmentSize, readAheadWindows, fileCache, registry);
+			this.listenerThreads[i] = new Thread(listeners[i]);
+		}
 	}
 
 	public void start () {
-		listenerThread.start();
+		for (Thread listenerThread : listenerThreads) {
+			listenerThread.start();
+		}
 	}
 
-	private void shutdown (Console c, String[] args) {
+	private synchronized void shutdown (Console c, String[] args) {
 		if(args.length > 1) {
 			c.println("Error: Too many parameters.");
 		}
-		else {
+		else if (!shutDown) {
+			shutDown = true;
 			c.println("Shutting down Server...");
 			logger.endLog();
-			this.listener.close();
+			for (ServerListener listener : this.listeners) {
+				listener.close();
+			}
+			this.socketPool.close();
 			try {
 				c.close();
 			} catch (IOException e) {
@@ -59,6 +127,146 @@ public class Server {
 		}
 	}
 
+	private synchronized void drainCmd (Console c, String[] args) {
+		if(args.length > 2) {
+			c.println("Error: Too many parameters.");
+			return;
+		}
+		int timeout = DEFAULT_DRAIN_TIMEOUT;
+		if (args.length == 2) {
+			try {
+				timeout = Integer.parseInt(args[1]);
+			} catch (NumberFormatException e) {
+				timeout = -1;
+			}
+			if (timeout < 0) {
+				c.println("Error: Invalid timeout: \"" + args[1] + "\"");
+				return;
+			}
+		}
+		if (draining || shutDown) {
+			c.println("Error: The server is already shutting down.");
+			return;
+		}
+		draining = true;
+
+		// Once the listeners are closed, a server which shares the port with SO_REUSEPORT receives
+		// every new request
+		c.println("Draining Server, new requests are no longer accepted...");
+		for (ServerListener listener : this.listeners) {
+			listener.stopListening();
+		}
+
+		// Wait on another thread so that the console can still be used
+		long deadline = System.nanoTime() + timeout * 1_000_000_000L;
+		int timeoutSeconds = timeout;
+		Thread drainThread = new Thread(() -> {
+			int transfers;
+			while ((transfers = getTransfersInProgress()) > 0 && System.nanoTime() - deadline < 0) {
+				try {
+					Thread.sleep(DRAIN_CHECK_INTERVAL);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			if (transfers > 0) {
+				c.println(transfers + " transfers did not finish within " + timeoutSeconds + " seconds and are being cancelled.");
+				for (TransferRegistry.Transfer transfer : registry.list()) {
+					transfer.cancel();
+				}
+				long cancelDeadline = System.nanoTime() + DRAIN_CANCEL_TIMEOUT * 1_000_000L;
+				while (registry.getTransferCount() > 0 && System.nanoTime() - cancelDeadline < 0) {
+					try {
+						Thread.sleep(DRAIN_CHECK_INTERVAL);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+			} else {
+				c.println("All transfers have finished.");
+			}
+			shutdown(c, new String[] {"shutdown"});
+			if (transfers > 0) {
+				// Tell whatever started the server that transfers were cut off, this also stops requests
+				// which were still waiting for a handler
+				System.exit(1);
+			}
+		});
+		drainThread.start();
+	}
+
+	/**
+	 * Get the number of transfers in progress, including multicast sessions, or the number of requests
+	 * which have been accepted by any shard and not finished if that is larger, since a request which
+	 * is waiting for a handler is not listed in the registry yet.
+	 * @return The number of transfers
+	 */
+	private int getTransfersInProgress () {
+		int requests = 0;
+		for (ServerListener listener : this.listeners) {
+			requests += listener.getTransfersInProgress();
+		}
+		return Math.max(requests, registry.getTransferCount());
+	}
+
+	private void listCmd (Console c, String[] args) {
+		if(args.length > 1) {
+			c.println("Error: Too many parameters.");
+			return;
+		}
+		List<TransferRegistry.Transfer> transfers = registry.list();
+		if (transfers.isEmpty()) {
+			c.println("No transfers in progress.");
+			return;
+		}
+		long now = RetransmitTimer.now();
+		for (TransferRegistry.Transfer transfer : transfers) {
+			c.println(String.format("%s - %s, running for %.1f s", formatClient(transfer.getAddress(), transfer.getPort()), transfer.getDescription(), (now - transfer.getStartTime()) / 1e9));
+		}
+		c.println(transfers.size() + " transfers in progress.");
+	}
+
+	private void killCmd (Console c, String[] args) {
+		if(args.length != 2) {
+			c.println("Error: Expected the client of the transfer to kill as address:port.");
+			return;
+		}
+		// IPv6 addresses are written in brackets, [address]:port
+		int separator = args[1].lastIndexOf(':');
+		if (separator < 1) {
+			c.println("Error: Invalid client: \"" + args[1] + "\", expected address:port.");
+			return;
+		}
+		String host = args[1].substring(0, separator);
+		if (host.startsWith("[") && host.endsWith("]")) {
+			host = host.substring(1, host.length() - 1);
+		}
+		TransferRegistry.Transfer transfer;
+		try {
+			transfer = registry.get(InetAddress.getByName(host), Integer.parseInt(args[1].substring(separator + 1)));
+		} catch (UnknownHostException | NumberFormatException e) {
+			c.println("Error: Invalid client: \"" + args[1] + "\", expected address:port.");
+			return;
+		}
+		if (transfer == null) {
+			c.println("Error: No transfer in progress for " + args[1] + ".");
+			return;
+		}
+		transfer.cancel();
+		c.println("Cancelled the " + transfer.getDescription() + " for " + formatClient(transfer.getAddress(), transfer.getPort()) + ".");
+	}
+
+	/**
+	 * Write a client's address and port the way the kill command expects them.
+	 * @param address The address of the client
+	 * @param port The port of the client
+	 * @return The address and port
+	 */
+	private static String formatClient (InetAddress address, int port) {
+		String host = address.getHostAddress();
+		return (address instanceof Inet6Address ? "[" + host + "]" : host) + ":" + port;
+	}
+
 	private void setVerboseCmd (Console c, String[] args) {
 		if(args.length > 1) {
 			c.println("Error: Too many parameters.");
@@ -97,20 +305,215 @@ public class Server {
 			c.println("Error: Too many parameters.");
 		}
 		else if(args.length == 1) {
-			c.println("Server port: " + this.listener.getPort());
+			c.println("Server port: " + this.listeners[0].getPort());
+		}
+	}
+
+	private void setCongestionControlCmd (Console c, String[] args) {
+		if(args.length > 2) {
+			c.println("Error: Too many parameters.");
+			return;
+		}
+		else if(args.length == 2) {
+			try {
+				CongestionControl.forName(args[1]);
+			} catch (IllegalArgumentException e) {
+				c.println("Invalid congestion control algorithm: \"" + args[1] + "\"");
+				return;
+			}
+			for (ServerListener listener : this.listeners) {
+				listener.setCongestionControl(args[1].toLowerCase());
+			}
+		}
+		c.println("Congestion control algorithm: " + this.listeners[0].getCongestionControl());
+	}
+
+	private void setBandwidthCmd (Console c, String[] args) {
+		// Every shard shares the same limiter
+		BandwidthLimiter bandwidthLimiter = this.listeners[0].getBandwidthLimiter();
+		try {
+			if (args.length == 3 && args[1].equals("total")) {
+				bandwidthLimiter.setTotalRate(BandwidthLimiter.parseRate(args[2]));
+			}
+			else if (args.length == 3 && args[1].equals("transfer")) {
+				bandwidthLimiter.setTransferRate(BandwidthLimiter.parseRate(args[2]));
+			}
+			else if (args.length == 4 && args[1].equals("subnet")) {
+				bandwidthLimiter.setSubnetLimit(args[2], BandwidthLimiter.parseRate(args[3]));
+			}
+			else if (args.length != 1) {
+				c.println("Error: Invalid parameters. Usage: bandwidth [total <rate> | transfer <rate> | subnet <address/prefix> <rate>]");
+				return;
+			}
+		} catch (IllegalArgumentException e) {
+			c.println("Error: " + e.getMessage());
+			return;
+		}
+
+		c.println("Server bandwidth: " + BandwidthLimiter.formatRate(bandwidthLimiter.getTotalRate()));
+		c.println("Rate of each transfer: " + BandwidthLimiter.formatRate(bandwidthLimiter.getTransferRate()));
+		for (BandwidthLimiter.SubnetLimit limit : bandwidthLimiter.getSubnetLimits()) {
+			c.println("Subnet " + limit.toString() + ": " + BandwidthLimiter.formatRate(limit.getRate()));
+		}
+		c.println("Active read transfers: " + bandwidthLimiter.getTransferCount());
+	}
+
+	private void setPoolCmd (Console c, String[] args) {
+		// Settings apply to the pool of every shard
+		try {
+			for (ServerListener listener : this.listeners) {
+				HandlerPool handlerPool = listener.getHandlerPool();
+				if (args.length == 3 && args[1].equals("workers")) {
+					handlerPool.setWorkers(Integer.parseInt(args[2]));
+				}
+				else if (args.length == 3 && args[1].equals("client")) {
+					handlerPool.setClientLimit(args[2].equalsIgnoreCase("off") ? 0 : Integer.parseInt(args[2]));
+				}
+				else if (args.length != 1) {
+					c.println("Error: Invalid parameters. Usage: pool [workers <count> | client <count|off>]");
+					return;
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			c.println("Error: " + e.getMessage());
+			return;
+		}
+
+		for (int i = 0; i < this.listeners.length; i++) {
+			if (this.listeners.length > 1) {
+				c.println("Shard " + i + " on " + this.listeners[i].getListenAddress() + ":");
+			}
+			printPool(c, this.listeners[i]);
+		}
+	}
+
+	private void printPool (Console c, ServerListener listener) {
+		HandlerPool handlerPool = listener.getHandlerPool();
+		c.println("Requests received: " + listener.getRequestCount());
+		c.println("Handlers running: " + handlerPool.getActiveCount() + " of " + handlerPool.getWorkers());
+		c.println("Requests waiting: " + handlerPool.getQueueDepth() + " of " + handlerPool.getQueueSize());
+		c.println("Transfers for each client: " + (handlerPool.getClientLimit() == 0 ? "unlimited" : handlerPool.getClientLimit()));
+		c.println("Requests accepted: " + handlerPool.getAccepted() + ", completed: " + handlerPool.getCompleted());
+		c.println("Requests refused: " + handlerPool.getRejectedBusy() + " server busy, " + handlerPool.getRejectedClient() + " client limit");
+		c.println("Duplicate requests dropped: " + listener.getDuplicateFilter().getSuppressed() + ", requests in progress: " + listener.getDuplicateFilter().getInProgress());
+		c.println(String.format("Time waiting for a handler: %.1f ms average, %.1f ms longest", handlerPool.getAverageWait() / 1e6, handlerPool.getMaxWait() / 1e6));
+		if (listener.usesEventLoops()) {
+			c.println("Transfers are run on event loops, the handler pool is not used.");
+		}
+	}
+
+	private void socketsCmd (Console c, String[] args) {
+		if(args.length > 1) {
+			c.println("Error: Too many parameters.");
+			return;
+		}
+		c.println("Transfer sockets in use: " + socketPool.getLeased() + " of " + socketPool.getMaxSockets());
+		c.println("Idle transfer sockets: " + socketPool.getIdle());
+		c.println("Sockets bound: " + socketPool.getCreated() + ", reused: " + socketPool.getReused());
+		c.println("Requests refused for lack of a socket: " + socketPool.getRefused());
+		c.println("Sockets leaked: " + socketPool.getLeaks());
+	}
+
+	private void buffersCmd (Console c, String[] args) {
+		if(args.length > 1) {
+			c.println("Error: Too many parameters.");
+			return;
+		}
+		c.println(String.format("Packet buffer memory: %.1f MB in use of %.1f MB allocated, limit %.1f MB", bufferPool.getInUse() / 1e6, bufferPool.getAllocated() / 1e6, bufferPool.getMaxMemory() / 1e6));
+		c.println(String.format("Most buffer memory in use at once: %.1f MB", bufferPool.getHighWater() / 1e6));
+		c.println("Buffers handed out: " + bufferPool.getAcquired() + ", from the thread's cache: " + bufferPool.getThreadCacheHits() + ", from the shared pool: " + bufferPool.getSharedHits());
+		c.println("Buffers allocated: " + bufferPool.getAllocations() + ", on the heap because of the limit: " + bufferPool.getOverflows());
+		if (!this.listeners[0].usesEventLoops()) {
+			c.println("Transfers are run on their own threads, which do not use the buffer pool.");
+		}
+	}
+
+	private void cacheCmd (Console c, String[] args) {
+		if (fileCache == null) {
+			c.println("The file cache is off, start the server with --cache to use it.");
+			return;
+		}
+		if(args.length > 2) {
+			c.println("Error: Too many parameters.");
+			return;
+		}
+		if (args.length == 2) {
+			if (!args[1].equalsIgnoreCase("clear")) {
+				c.println("Error: Unknown cache command: " + args[1]);
+				return;
+			}
+			fileCache.clear();
+			c.println("Removed every file from the cache.");
+			return;
+		}
+		long hits = fileCache.getHits();
+		long misses = fileCache.getMisses();
+		c.println(String.format("File cache memory: %.1f MB used of %.1f MB, %s, %d entries", fileCache.getMemory() / 1e6, fileCache.getMaxMemory() / 1e6, fileCache.isOffHeap() ? "off the heap" : "on the heap", fileCache.getEntryCount()));
+		c.println(String.format("Reads from the cache: %d, loaded into the cache: %d, hit rate %.1f%%", hits, misses, (hits + misses == 0) ? 0 : (100.0 * hits / (hits + misses))));
+		c.println("Reads of files too large to cache or without room: " + fileCache.getBypasses());
+		c.println(String.format("Entries evicted: %d, freeing %.1f MB, replaced because the file changed: %d", fileCache.getEvictions(), fileCache.getEvictedMemory() / 1e6, fileCache.getInvalidations()));
+		if (this.listeners[0].usesEventLoops()) {
+			c.println("Transfers are run on event loops, which do not use the file cache.");
 		}
 	}
 
 	private void helpCmd (Console c, String[] args) {
 		c.println("The following is a list of commands and their usage:");
 		c.println("shutdown - Closes the Server.");
+		c.println("drain [seconds] - Stops accepting requests and closes the Server once the transfers in progress finish, or cancels them after " + DEFAULT_DRAIN_TIMEOUT + " seconds.");
+		c.println("    To restart without dropping transfers, start the new Server with --reuse-port on the same port, then drain this one.");
+		c.println("list - Shows the transfers in progress and the address:port of their clients.");
+		c.println("kill <address:port> - Cancels the transfer for a client, telling the client with an error.");
 		c.println("verbose - Makes the server output more detailed information.");
 		c.println("quiet - Makes the server output only basic information.");
 		c.println("logfile <filename> - Makes the server write displayed information to a log file on shutdown.");
 		c.println("serverport - Outputs the port currently being used to listen to requests");
+		c.println("congestion <aimd|delay> - Sets the congestion control algorithm used when a client acknowledges every block, or shows it if none is given.");
+		c.println("bandwidth - Shows the bandwidth limits for read requests.");
+		c.println("    bandwidth total <rate|off> - Sets the bandwidth shared fairly by every read transfer.");
+		c.println("    bandwidth transfer <rate|off> - Sets the rate of each read transfer.");
+		c.println("    bandwidth subnet <address/prefix> <rate|off> - Sets the bandwidth shared by read transfers to clients in a subnet.");
+		c.println("    Rates are in bytes per second and may end in k, m or g, such as 500k.");
+		c.println("pool - Shows how busy the request handlers are and how many requests have been refused or dropped as duplicates.");
+		c.println("    pool workers <count> - Sets the number of requests which may be handled at once.");
+		c.println("    pool client <count|off> - Sets the number of requests from a single client which may be handled or waiting at once.");
+		c.println("    Each listener shard has its own pool, settings apply to every shard.");
+		c.println("sockets - Shows how many transfer sockets are in use, idle and leaked.");
+		c.println("buffers - Shows how much memory the packet buffers of event loop transfers use.");
+		c.println("cache - Shows how much memory the file cache uses and how often files are read from it.");
+		c.println("    cache clear - Removes every file from the cache.");
 		c.println("help - Shows help information.");
 	}
 
+	/**
+	 * Find the local address to bind a listener shard to.
+	 * @param name A local address, or the name of a network interface to use its first address
+	 * @return The address
+	 * @throws UnknownHostException If the name is not an interface and can not be resolved
+	 * @throws ParseException If the interface has no addresses
+	 */
+	private static InetAddress parseListenAddress (String name) throws UnknownHostException, ParseException {
+		try {
+			NetworkInterface networkInterface = NetworkInterface.getByName(name);
+			if (networkInterface != null) {
+				List<InetAddress> addresses = Collections.list(networkInterface.getInetAddresses());
+				if (addresses.isEmpty()) {
+					throw new ParseException("The network interface " + name + " has no addresses.");
+				}
+				// Prefer an IPv4 address, which most clients will use
+				for (InetAddress address : addresses) {
+					if (address.getAddress().length == 4) {
+						return address;
+					}
+				}
+				return addresses.get(0);
+			}
+		} catch (SocketException e) {
+			// Not an interface name
+		}
+		return InetAddress.getByName(name);
+	}
+
 	/**
 	 * main function for the server
 	 * @param args Command line arguments
@@ -123,6 +526,26 @@ public class Server {
 		LogLevel verboseLevel = LogLevel.QUIET;
 		int serverPort = 69;
 		String logFilePath = "";
+		long maxUploadSize = Long.MAX_VALUE;
+		InetAddress multicastGroup = null;
+		String congestionControl = CongestionControl.AIMD.NAME;
+		BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
+		int eventLoops = 0;
+		ThreadFactory handlerThreads = HandlerThreads.forName(HandlerThreads.PLATFORM);
+		int workers = HandlerPool.DEFAULT_WORKERS;
+		int queueSize = HandlerPool.DEFAULT_QUEUE_SIZE;
+		int clientLimit = 0;
+		int shards = 0;
+		List<InetAddress> listenAddresses = new ArrayList<InetAddress>();
+		HandlerPool[] handlerPools = null;
+		int maxSockets = TransferSocketPool.DEFAULT_MAX_SOCKETS;
+		int idleSockets = TransferSocketPool.DEFAULT_IDLE_SOCKETS;
+		long bufferMemory = BufferPool.DEFAULT_MAX_MEMORY;
+		long mapSegmentSize = 0;
+		int readAheadWindows = 0;
+		long cacheMemory = 0;
+		boolean cacheOffHeap = false;
+		boolean reusePort = false;
 
 		//Setup command line parser
 		Option verboseOption = new Option( "v", "verbose", false, "print extra debug info" );
@@ -139,11 +562,154 @@ public class Server {
                 .type(String.class)
                 .build();
 
+		Option maxUploadSizeOption = Option.builder("q").argName("max upload size")
+                .hasArg()
+                .desc("the largest file in bytes that clients may write to the server")
+                .type(Long.TYPE)
+                .build();
+
+		Option multicastOption = Option.builder("m").longOpt("multicast").argName("group address")
+                .hasArg()
+                .desc("serve clients which request multicast (RFC 2090) by sending to this multicast group")
+                .type(String.class)
+                .build();
+
+		Option congestionOption = Option.builder("c").longOpt("congestion").argName("aimd|delay")
+                .hasArg()
+                .desc("the congestion control algorithm used when sending to clients which acknowledge every block")
+                .type(String.class)
+                .build();
+
+		Option bandwidthOption = Option.builder("b").longOpt("bandwidth").argName("rate")
+                .hasArg()
+                .desc("the bandwidth in bytes per second shared fairly by every read transfer, may end in k, m or g")
+                .type(String.class)
+                .build();
+
+		Option rateOption = Option.builder("r").longOpt("rate").argName("rate")
+                .hasArg()
+                .desc("the rate in bytes per second of each read transfer, may end in k, m or g")
+                .type(String.class)
+                .build();
+
+		Option subnetOption = Option.builder("s").longOpt("subnet").argName("address/prefix=rate")
+                .hasArgs()
+                .desc("the bandwidth in bytes per second shared by read transfers to clients in a subnet, may be given more than once")
+                .type(String.class)
+                .build();
+
+		Option eventLoopOption = Option.builder("e").longOpt("event-loops").argName("threads")
+                .hasArg()
+                .desc("run transfers on this many event loop threads instead of a thread for each request")
+                .type(Integer.TYPE)
+                .build();
+
+		Option threadOption = Option.builder("t").longOpt("threads").argName("platform|virtual")
+                .hasArg()
+                .desc("run request handlers on platform threads or on virtual threads (Java 21 or later)")
+                .type(String.class)
+                .build();
+
+		Option workersOption = Option.builder("w").longOpt("workers").argName("count")
+                .hasArg()
+                .desc("the number of requests which may be handled at once, default " + HandlerPool.DEFAULT_WORKERS)
+                .type(Integer.TYPE)
+                .build();
+
+		Option queueOption = Option.builder().longOpt("queue").argName("count")
+                .hasArg()
+                .desc("the number of requests which may wait for a handler before the server reports that it is busy, default " + HandlerPool.DEFAULT_QUEUE_SIZE)
+                .type(Integer.TYPE)
+                .build();
+
+		Option clientLimitOption = Option.builder().longOpt("client-limit").argName("count")
+                .hasArg()
+                .desc("the number of requests from a single client which may be handled or waiting at once")
+                .type(Integer.TYPE)
+                .build();
+
+		Option shardOption = Option.builder("n").longOpt("shards").argName("count")
+                .hasArg()
+                .desc("the number of listener threads sharing the server port with SO_REUSEPORT, default one for each listen address")
+                .type(Integer.TYPE)
+                .build();
+
+		Option addressOption = Option.builder("a").longOpt("address").argName("address|interface")
+                .hasArgs()
+                .desc("bind listener shards to these local addresses or network interfaces in turn instead of all interfaces")
+                .type(String.class)
+                .build();
+
+		Option maxSocketsOption = Option.builder().longOpt("max-sockets").argName("count")
+                .hasArg()
+                .desc("the largest number of sockets which transfers may use at once, default " + TransferSocketPool.DEFAULT_MAX_SOCKETS)
+                .type(Integer.TYPE)
+                .build();
+
+		Option idleSocketsOption = Option.builder().longOpt("idle-sockets").argName("count")
+                .hasArg()
+                .desc("the number of transfer sockets kept bound for reuse, default " + TransferSocketPool.DEFAULT_IDLE_SOCKETS)
+                .type(Integer.TYPE)
+                .build();
+
+		Option bufferMemoryOption = Option.builder().longOpt("buffer-memory").argName("bytes")
+                .hasArg()
+                .desc("the most direct memory which event loop transfers may use for packet buffers before falling back to the heap, may end in k, m or g, default " + (BufferPool.DEFAULT_MAX_MEMORY / (1024 * 1024)) + "m")
+                .type(String.class)
+                .build();
+
+		Option mmapOption = Option.builder().longOpt("mmap").argName("segment size")
+                .hasArg()
+                .desc("send files from memory mappings of up to this size rather than reading each block when transfers run on their own threads, may end in k, m or g, or be off, default off, " + (MappedFile.DEFAULT_SEGMENT_SIZE / (1024 * 1024)) + "m is a good size")
+                .type(String.class)
+                .build();
+
+		Option readAheadOption = Option.builder().longOpt("read-ahead").argName("windows")
+                .hasArg()
+                .desc("read this many windows of blocks ahead of those being sent on another thread when transfers run on their own threads and the file is not memory mapped, so that slow disks do not hold up every window, default 0 (off)")
+                .type(Integer.TYPE)
+                .build();
+
+		Option cacheOption = Option.builder().longOpt("cache").argName("bytes")
+                .hasArg()
+                .desc("keep the files read most often in memory, up to this many bytes, when transfers run on their own threads, may end in k, m or g, or be off, default off")
+                .type(String.class)
+                .build();
+
+		Option cacheOffHeapOption = Option.builder().longOpt("cache-off-heap")
+                .desc("keep the file cache off the heap, where it does not slow down garbage collection")
+                .build();
+
+		Option reusePortOption = Option.builder().longOpt("reuse-port")
+                .desc("bind the server port with SO_REUSEPORT so that a new server can take it over while this one drains, or this one can take it over from a server started the same way")
+                .build();
+
 		Options options = new Options();
 
 		options.addOption(verboseOption);
 		options.addOption(serverPortOption);
 		options.addOption(logFilePathOption);
+		options.addOption(maxUploadSizeOption);
+		options.addOption(multicastOption);
+		options.addOption(congestionOption);
+		options.addOption(bandwidthOption);
+		options.addOption(rateOption);
+		options.addOption(subnetOption);
+		options.addOption(eventLoopOption);
+		options.addOption(threadOption);
+		options.addOption(workersOption);
+		options.addOption(queueOption);
+		options.addOption(clientLimitOption);
+		options.addOption(shardOption);
+		options.addOption(addressOption);
+		options.addOption(maxSocketsOption);
+		options.addOption(idleSocketsOption);
+		options.addOption(bufferMemoryOption);
+		options.addOption(mmapOption);
+		options.addOption(readAheadOption);
+		options.addOption(cacheOption);
+		options.addOption(cacheOffHeapOption);
+		options.addOption(reusePortOption);
 
 		CommandLineParser parser = new DefaultParser();
 	    try {
@@ -161,23 +727,176 @@ public class Server {
 	        if( line.hasOption("l")) {
 	        	logFilePath = line.getOptionValue("l");
 	        }
+
+	        if( line.hasOption("q")) {
+	        	maxUploadSize = Long.parseLong(line.getOptionValue("q"));
+	        }
+
+	        if( line.hasOption("m")) {
+	        	multicastGroup = InetAddress.getByName(line.getOptionValue("m"));
+	        	if (!multicastGroup.isMulticastAddress()) {
+	        		throw new ParseException("Not a multicast address: " + line.getOptionValue("m"));
+	        	}
+	        }
+
+	        if( line.hasOption("c")) {
+	        	congestionControl = line.getOptionValue("c").toLowerCase();
+	        	try {
+	        		CongestionControl.forName(congestionControl);
+	        	} catch (IllegalArgumentException e) {
+	        		throw new ParseException(e.getMessage());
+	        	}
+	        }
+
+	        if( line.hasOption("e")) {
+	        	eventLoops = Integer.parseInt(line.getOptionValue("e"));
+	        	if (eventLoops < 0) {
+	        		throw new ParseException("The number of event loops can not be negative: " + eventLoops);
+	        	}
+	        }
+
+	        if( line.hasOption("t")) {
+	        	try {
+	        		handlerThreads = HandlerThreads.forName(line.getOptionValue("t"));
+	        	} catch (IllegalArgumentException e) {
+	        		throw new ParseException(e.getMessage());
+	        	}
+	        }
+
+	        if( line.hasOption("w")) {
+	        	workers = Integer.parseInt(line.getOptionValue("w"));
+	        }
+
+	        if( line.hasOption("queue")) {
+	        	queueSize = Integer.parseInt(line.getOptionValue("queue"));
+	        }
+
+	        if( line.hasOption("client-limit")) {
+	        	clientLimit = Integer.parseInt(line.getOptionValue("client-limit"));
+	        }
+
+	        if( line.hasOption("max-sockets")) {
+	        	maxSockets = Integer.parseInt(line.getOptionValue("max-sockets"));
+	        }
+
+	        if( line.hasOption("idle-sockets")) {
+	        	idleSockets = Integer.parseInt(line.getOptionValue("idle-sockets"));
+	        }
+
+	        if( line.hasOption("read-ahead")) {
+	        	readAheadWindows = Integer.parseInt(line.getOptionValue("read-ahead"));
+	        	if (readAheadWindows < 0) {
+	        		throw new ParseException("The number of windows to read ahead can not be negative: " + readAheadWindows);
+	        	}
+	        }
+
+	        if( line.hasOption("cache-off-heap")) {
+	        	cacheOffHeap = true;
+	        }
+
+	        if( line.hasOption("reuse-port")) {
+	        	reusePort = true;
+	        }
+
+	        if( line.hasOption("a")) {
+	        	for (String address : line.getOptionValues("a")) {
+	        		listenAddresses.add(parseListenAddress(address));
+	        	}
+	        }
+
+	        if( line.hasOption("n")) {
+	        	shards = Integer.parseInt(line.getOptionValue("n"));
+	        	if (shards < 1) {
+	        		throw new ParseException("There must be at least one listener shard: " + shards);
+	        	}
+	        } else {
+	        	shards = Math.max(1, listenAddresses.size());
+	        }
+
+	        // Each shard has its own handler pool
+	        try {
+	        	handlerPools = new HandlerPool[shards];
+	        	for (int i = 0; i < shards; i++) {
+	        		handlerPools[i] = new HandlerPool(workers, queueSize, handlerThreads);
+	        		handlerPools[i].setClientLimit(clientLimit);
+	        	}
+	        } catch (IllegalArgumentException e) {
+	        	throw new ParseException(e.getMessage());
+	        }
+
+	        try {
+		        if( line.hasOption("buffer-memory")) {
+		        	bufferMemory = BandwidthLimiter.parseRate(line.getOptionValue("buffer-memory"));
+		        }
+
+		        if( line.hasOption("cache")) {
+		        	cacheMemory = BandwidthLimiter.parseRate(line.getOptionValue("cache"));
+		        }
+
+		        if( line.hasOption("mmap")) {
+		        	mapSegmentSize = BandwidthLimiter.parseRate(line.getOptionValue("mmap"));
+		        }
+
+		        if( line.hasOption("b")) {
+		        	bandwidthLimiter.setTotalRate(BandwidthLimiter.parseRate(line.getOptionValue("b")));
+		        }
+
+		        if( line.hasOption("r")) {
+		        	bandwidthLimiter.setTransferRate(BandwidthLimiter.parseRate(line.getOptionValue("r")));
+		        }
+
+		        if( line.hasOption("s")) {
+		        	for (String limit : line.getOptionValues("s")) {
+		        		String[] parts = limit.split("=");
+		        		if (parts.length != 2) {
+		        			throw new ParseException("Subnet limits must be given as address/prefix=rate: " + limit);
+		        		}
+		        		bandwidthLimiter.setSubnetLimit(parts[0], BandwidthLimiter.parseRate(parts[1]));
+		        	}
+		        }
+	        } catch (IllegalArgumentException e) {
+	        	throw new ParseException(e.getMessage());
+	        }
 	    }
-	    catch( ParseException exp ) {
+	    catch( ParseException | NumberFormatException | UnknownHostException exp ) {
 	        logger.log(LogLevel.FATAL, "Command line argument parsing failed.  Reason: " + exp.getMessage() );
 	        System.exit(1);
 	    }
 
+		// Bind the transfer sockets which are kept for reuse
+	    TransferSocketPool socketPool = null;
+	    try {
+	    	socketPool = new TransferSocketPool(maxSockets, idleSockets, logger);
+	    } catch (IllegalArgumentException e) {
+	        logger.log(LogLevel.FATAL, "Command line argument parsing failed.  Reason: " + e.getMessage() );
+	        System.exit(1);
+	    } catch (IOException e) {
+	    	logger.log(LogLevel.FATAL, "Error: SocketException. Reason: Could not bind transfer sockets. Solution: Shutting down Server.");
+	    	System.exit(1);
+	    }
+
 		// Create server instance and start it
-	    Server server = new Server(serverPort, verboseLevel, logFilePath);
+	    BufferPool bufferPool = new BufferPool(bufferMemory);
+	    FileCache fileCache = (cacheMemory > 0) ? new FileCache(cacheMemory, cacheOffHeap) : null;
+	    Server server = new Server(serverPort, verboseLevel, logFilePath, maxUploadSize, multicastGroup, congestionControl, bandwidthLimiter, eventLoops, handlerPools, listenAddresses, socketPool, bufferPool, mapSegmentSize, readAheadWindows, fileCache, reusePort);
 		server.start();
 
 		// Create and start console UI thread
 		Map<String, Console.CommandCallback> commands = Map.ofEntries(
 				Map.entry("shutdown", server::shutdown),
+				Map.entry("drain", server::drainCmd),
+				Map.entry("list", server::listCmd),
+				Map.entry("kill", server::killCmd),
 				Map.entry("verbose", server::setVerboseCmd),
 				Map.entry("quiet", server::setQuietCmd),
 				Map.entry("logfile", server::setLogfileCmd),
 				Map.entry("serverport", server::setServerPortCmd),
+				Map.entry("congestion", server::setCongestionControlCmd),
+				Map.entry("bandwidth", server::setBandwidthCmd),
+				Map.entry("pool", server::setPoolCmd),
+				Map.entry("sockets", server::socketsCmd),
+				Map.entry("buffers", server::buffersCmd),
+				Map.entry("cache", server::cacheCmd),
 				Map.entry("help", server::helpCmd)
 				);
 
@@ -191,34 +910,107 @@ public class Server {
 
 /**
  * ErrorSimListener class handles incoming communications from the client
- * and creates the appropriate handler threads to handle the requests.
+ * and creates the appropriate handler threads to handle the requests. If
+ * event loops are used the handlers instead start their transfers on the
+ * event loops, which the listener shares.
  */
 class ServerListener implements Runnable {
 	private DatagramSocket  receiveSocket;
 	private int listenerPort;
 	private Logger logger;
+	private long maxUploadSize;
+	private InetAddress multicastGroup;
+	private volatile String congestionControl;
+	private BandwidthLimiter bandwidthLimiter;
+	private long mapSegmentSize;
+	private int readAheadWindows;
+	private FileCache fileCache;
+	private ServerEventLoop[] eventLoops = null;
+	private int nextEventLoop = 0;
+	private HandlerPool handlerPool;
+	private TransferSocketPool socketPool;
+	private DuplicateRequestFilter duplicates = new DuplicateRequestFilter();
+	private TransferRegistry registry;
+	private volatile long requestCount = 0;
 	
-	private boolean shouldExit = false;
+	private volatile boolean shouldExit = false;
 
 
 	/**
 	 * Constructor for the SeverListener class.
 	 * @param listenerPort The port that will listen to requests from the client.
+	 * @param listenAddress The local address to listen on, or null to listen on all interfaces
+	 * @param reusePort true if other listeners will be bound to the same port with SO_REUSEPORT
 	 * @param verbose true enables verbose mode to output debug info, false disables verbose
 	 * mode so less information is output.
+	 * @param maxUploadSize The largest file in bytes that may be written by a client
+	 * @param multicastGroup The group to which multicast reads are sent, or null if multicast is disabled
+	 * @param congestionControl The name of the congestion control algorithm used for reads
+	 * @param bandwidthLimiter Limits the rate at which files are sent to clients
+	 * @param eventLoops The number of event loop threads to run transfers on, or 0 to run each
+	 * transfer on its own thread
+	 * @param handlerPool Runs the handlers when event loops are not used
+	 * @param socketPool Hands out the sockets used by transfers
+	 * @param bufferPool Hands out the packet buffers used by the event loops
+	 * @param mapSegmentSize The largest part of a file mapped at once by reads on their own threads, or 0
+	 * to read each block from the file
+	 * @param readAheadWindows The number of windows which reads on their own threads read ahead, or 0
+	 * @param fileCache Keeps the files read most often in memory, or null
+	 * @param registry Keeps track of the transfers in progress, shared by every listener
 	 */
-	public ServerListener(int listenerPort, Logger logger) {
+	public ServerListener(int listenerPort, InetAddress listenAddress, boolean reusePort, Logger logger, long maxUploadSize, InetAddress multicastGroup, String congestionControl, BandwidthLimiter bandwidthLimiter, int eventLoops, HandlerPool handlerPool, TransferSocketPool socketPool, BufferPool bufferPool, long mapSegmentSize, int readAheadWindows, FileCache fileCache, TransferRegistry registry) {
 		this.listenerPort = listenerPort;
+		this.handlerPool = handlerPool;
+		this.socketPool = socketPool;
+		this.registry = registry;
 		this.logger = logger;
+		this.maxUploadSize = maxUploadSize;
+		this.multicastGroup = multicastGroup;
+		this.congestionControl = congestionControl;
+		this.bandwidthLimiter = bandwidthLimiter;
+		this.mapSegmentSize = mapSegmentSize;
+		this.readAheadWindows = readAheadWindows;
+		this.fileCache = fileCache;
 
 		// Set up the socket that will be used to receive packets from clients (or error simulators)
+		InetSocketAddress bindAddress = (listenAddress == null) ? new InetSocketAddress(listenerPort) : new InetSocketAddress(listenAddress, listenerPort);
 		try {
-			receiveSocket = new DatagramSocket(listenerPort);
-		} catch (SocketException se) { // Can't create the socket.
+			if (eventLoops > 0) {
+				// The event loop needs a channel to select on
+				DatagramChannel channel = DatagramChannel.open();
+				if (reusePort) {
+					channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				receiveSocket = channel.bind(bindAddress).socket();
+			} else {
+				receiveSocket = new DatagramSocket(null);
+				if (reusePort) {
+					receiveSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				}
+				receiveSocket.bind(bindAddress);
+			}
+		} catch (UnsupportedOperationException e) {
+			logger.log(LogLevel.FATAL, "Error: SO_REUSEPORT is not supported on this system. Reason: Could not share the listener port between shards. Solution: Shutting down Server.");
+			System.exit(1);
+		} catch (IOException se) { // Can't create the socket.
 			logger.log(LogLevel.FATAL, "Error: SocketException. Reason: Could not create listener socket. Solution: Shutting down Server.");
 			se.printStackTrace();
 			System.exit(1);
 	    }
+
+		// Set up the event loops
+		if (eventLoops > 0) {
+			this.eventLoops = new ServerEventLoop[eventLoops];
+			try {
+				for (int i = 0; i < eventLoops; i++) {
+					this.eventLoops[i] = new ServerEventLoop(logger, bufferPool);
+				}
+			} catch (IOException e) {
+				logger.log(LogLevel.FATAL, "Error: IOException. Reason: Could not create event loop. Solution: Shutting down Server.");
+				e.printStackTrace();
+				System.exit(1);
+			}
+		}
 	}
 
 	/**
@@ -230,10 +1022,89 @@ class ServerListener implements Runnable {
 	}
 
 	/**
-	 * The run method required to implement Runnable.
+	 * Get the local address and port that the listener is bound to
+	 * @return The address and port
 	 */
-	public void run(){
-		byte data[] = new byte[TFTPPacket.MAX_SIZE];
+	public String getListenAddress() {
+		return receiveSocket.getLocalSocketAddress().toString();
+	}
+
+	/**
+	 * Get the number of packets the listener has received on the server port
+	 * @return The number of packets
+	 */
+	public long getRequestCount() {
+		return requestCount;
+	}
+
+	/**
+	 * Get the number of read and write requests which have been accepted and have not finished,
+	 * including those waiting for a handler
+	 * @return The number of transfers
+	 */
+	public int getTransfersInProgress() {
+		return duplicates.getInProgress();
+	}
+
+	/**
+	 * Get the congestion control algorithm used for new read requests
+	 * @return The name of the algorithm
+	 */
+	public String getCongestionControl() {
+		return congestionControl;
+	}
+
+	/**
+	 * Set the congestion control algorithm used for new read requests, transfers which have already
+	 * started are not affected
+	 * @param congestionControl The name of the algorithm
+	 */
+	public void setCongestionControl(String congestionControl) {
+		this.congestionControl = congestionControl;
+	}
+
+	/**
+	 * Get the limiter which paces read requests, its limits may be changed at any time
+	 * @return The bandwidth limiter
+	 */
+	public BandwidthLimiter getBandwidthLimiter() {
+		return bandwidthLimiter;
+	}
+
+	/**
+	 * Get the pool which runs the request handlers.
+	 * @return The handler pool
+	 */
+	public HandlerPool getHandlerPool() {
+		return handlerPool;
+	}
+
+	/**
+	 * Get the filter which drops repeats of requests that are already being handled.
+	 * @return The duplicate request filter
+	 */
+	public DuplicateRequestFilter getDuplicateFilter() {
+		return duplicates;
+	}
+
+	/**
+	 * Check whether transfers are run on event loops instead of the handler pool.
+	 * @return true if event loops are used
+	 */
+	public boolean usesEventLoops() {
+		return eventLoops != null;
+	}
+
+	/**
+	 * The run method required to implement Runnable.
+	 */
+	public void run(){
+		if (eventLoops != null) {
+			runEventLoops();
+			return;
+		}
+
+		byte data[] = new byte[TFTPPacket.MAX_SIZE];
 	    DatagramPacket receivePacket = new DatagramPacket(data, data.length);
 
 	    while(!Thread.interrupted()) {
@@ -253,60 +1124,261 @@ class ServerListener implements Runnable {
 	    		}
 	    	}
 
-	        logger.log(LogLevel.INFO, "New Request Received:");
-
-	    	// Parse the packet to determine the type of handler required
-	    	try {
-				TFTPPacket request = TFTPPacket.parse(Arrays.copyOf(receivePacket.getData(), receivePacket.getLength()));
-
-		    	// Create a handler thread
-				if (request instanceof TFTPPacket.RRQ) {
-					logger.log(LogLevel.QUIET, "Received a read request.");
-					logger.log(LogLevel.INFO, "Creating a read handler for this request.");
-
-					ReadHandler handler = new ReadHandler(receivePacket, (TFTPPacket.RRQ) request, logger);
-					Thread handlerThread = new Thread(handler);
-					handlerThread.start();
-
-		    	} else if (request instanceof TFTPPacket.WRQ) {
-					logger.log(LogLevel.QUIET, "Received a write request.");
-					logger.log(LogLevel.INFO, "Creating a write handler for this request.");
-
-		    		WriteHandler handler = new WriteHandler(receivePacket, (TFTPPacket.WRQ) request, logger);
-					Thread handlerThread = new Thread(handler);
-					handlerThread.start();
-
-		    	} else if (request instanceof TFTPPacket.DATA) {
-		    		logger.log(LogLevel.ERROR, "Error: Unexpected DATA packet as first request. Reason: Not a read or write request. Solution: Print angry message and continue.");
-		    	} else if (request instanceof TFTPPacket.ACK) {
-		    		logger.log(LogLevel.ERROR, "Error: Unexpected ACK packet as first request. Reason: Not a read or write request. Solution: Print angry message and continue.");
-		    	} else if (request instanceof TFTPPacket.ERROR) {
-		    		logger.log(LogLevel.ERROR, "Error: Unexpected ERROR packet as first request. Reason: Not a read or write request. Solution: Print angry message and continue.");
-		    	}
-			} catch (IllegalArgumentException e) {
-				// Unknown Packet Type... (Incorrect OP Code)
-	    		logger.log(LogLevel.ERROR, "Error: Unknown Packet Type. Reason: Not a valid TFTP Packet. Solution: Send Error Packet in return and continue.");
-	    		try {
-	    			DatagramSocket sendSocket = new DatagramSocket();
-	    			TFTPPacket.ERROR errorPacket = new TFTPPacket.ERROR(TFTPPacket.TFTPError.ILLEGAL_OPERATION, "The first request received by server must be a valid Read or Write Request. (OPCode: 01 or 02)");
-	    			DatagramPacket sendPacket = new DatagramPacket(errorPacket.toBytes(), errorPacket.size(), receivePacket.getAddress(), receivePacket.getPort());
-	    			sendSocket.send(sendPacket);
-	    			sendSocket.close();
-	    		} catch (SocketException se) { // Can't create the socket.
-	    			se.printStackTrace();
-	    			logger.log(LogLevel.ERROR, "Error: SocketException. Reason: Could not create socket. Solution: Return to Listening.");
-	    	    } catch (IOException ioe) { // Can't send the packet.
-	    	    	ioe.printStackTrace();
-	    	    	logger.log(LogLevel.ERROR, "Error: Socket IO Error. Reason: Could not send packet. Solution: Return to Listening.");
-	    	    }
-			} catch (SocketException se) {
-				se.printStackTrace();
-				logger.log(LogLevel.ERROR, "Error: SocketException. Reason: Could not create the handler's socket. Solution: Return to Listening.");
-			}
+	    	handleRequest(receivePacket);
 	    	// Return to listening for new requests
 	    }
 	}
 
+	/**
+	 * Run the event loops, the first of which runs on the listener's thread and also receives the
+	 * requests.
+	 */
+	private void runEventLoops() {
+		for (int i = 1; i < eventLoops.length; i++) {
+			Thread loopThread = new Thread(eventLoops[i]);
+			loopThread.start();
+		}
+
+		DatagramChannel channel = receiveSocket.getChannel();
+		try {
+			channel.configureBlocking(false);
+			eventLoops[0].register(channel, new ServerEventLoop.Handler() {
+				public void ready() {
+					receiveRequests(channel);
+				}
+
+				public void timeout() {
+				}
+			});
+		} catch (IOException e) {
+			logger.log(LogLevel.FATAL, "Error: IOException. Reason: Could not register listener socket. Solution: Shutting down Server.");
+			System.exit(1);
+		}
+
+		logger.log(LogLevel.INFO, "Listening for packets on port "+this.listenerPort+" with "+eventLoops.length+" event loops...");
+		eventLoops[0].run();
+	}
+
+	/**
+	 * Handle every request waiting on the listener's channel.
+	 * @param channel The listener's channel
+	 */
+	private void receiveRequests(DatagramChannel channel) {
+		for (;;) {
+			ByteBuffer buffer = eventLoops[0].getReceiveBuffer();
+			SocketAddress from;
+			try {
+				from = channel.receive(buffer);
+			} catch (IOException e) {
+				if(!shouldExit) {
+					// An IOException occurred listening for packages. (Nowhere to send errors, exit)
+					logger.log(LogLevel.FATAL, "Error: SocketException. Reason: Listener Socket Failed to Recieve. Solution: Shutting down Server.");
+					System.exit(1);
+				}
+				return;
+			}
+			if (from == null) {
+				// No more requests waiting
+				return;
+			}
+
+			// The buffer is direct, so the request is copied out of it
+			byte[] data = new byte[buffer.flip().remaining()];
+			buffer.get(data);
+			handleRequest(new DatagramPacket(data, data.length, from));
+		}
+	}
+
+	/**
+	 * Get the event loop to start the next transfer on, the loops are used in turn.
+	 * @return The event loop
+	 */
+	private ServerEventLoop nextEventLoop() {
+		ServerEventLoop loop = eventLoops[nextEventLoop];
+		nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+		return loop;
+	}
+
+	/**
+	 * Creates the handler for a request.
+	 */
+	private interface HandlerFactory {
+		RequestHandler create(DatagramPacket receivePacket) throws IOException;
+	}
+
+	/**
+	 * Run the handler for a request on the handler pool, or tell the client that the server is
+	 * busy. The handler and its socket are only created once there is a thread free to run it.
+	 * @param receivePacket The packet received from the client
+	 * @param factory Creates the handler
+	 * @param finished Run once the request has been handled or refused
+	 */
+	private void runOnPool(DatagramPacket receivePacket, HandlerFactory factory, Runnable finished) {
+		// The listener reuses its packet for the next request
+		DatagramPacket packet = new DatagramPacket(Arrays.copyOf(receivePacket.getData(), receivePacket.getLength()),
+				receivePacket.getLength(), receivePacket.getAddress(), receivePacket.getPort());
+
+		try {
+			handlerPool.execute(packet.getAddress(), () -> {
+				RequestHandler handler;
+				try {
+					handler = factory.create(packet);
+				} catch (TransferSocketPool.ExhaustedException e) {
+					refuseRequest(packet, "Server busy, try again later.", e.getMessage());
+					finished.run();
+					return;
+				} catch (IOException e) {
+					e.printStackTrace();
+					logger.log(LogLevel.ERROR, "Error: SocketException. Reason: Could not create the handler's socket. Solution: Dropping request.");
+					finished.run();
+					return;
+				}
+
+				handler.whenFinished(finished);
+				handler.setRegistry(registry);
+				try {
+					handler.run();
+				} finally {
+					handler.closeSocket();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			refuseRequest(packet, e.getMessage(), e.getMessage());
+			finished.run();
+		}
+	}
+
+	/**
+	 * Tell a client that the server is too busy to handle its request.
+	 * @param receivePacket The packet received from the client
+	 * @param description The description sent to the client
+	 * @param reason The reason which is logged
+	 */
+	private void refuseRequest(DatagramPacket receivePacket, String description, String reason) {
+		logger.log(LogLevel.WARN, "Refusing request from " + receivePacket.getAddress().getHostAddress() + ":" + receivePacket.getPort() + ". Reason: " + reason);
+		sendFromListener(new TFTPPacket.ERROR(TFTPPacket.TFTPError.ERROR, description), receivePacket);
+	}
+
+	/**
+	 * Send a packet from the listener's socket, so that no socket has to be created to answer a
+	 * request which will not be handled.
+	 * @param packet The packet to send
+	 * @param receivePacket The packet received from the client, which the packet is sent in reply to
+	 */
+	private void sendFromListener(TFTPPacket packet, DatagramPacket receivePacket) {
+		try {
+			DatagramChannel channel = receiveSocket.getChannel();
+			if (channel != null) {
+				// The channel is in non-blocking mode when event loops are used, if it can not be
+				// sent right away the packet is dropped
+				channel.send(ByteBuffer.wrap(packet.toBytes(), 0, packet.size()), receivePacket.getSocketAddress());
+			} else {
+				receiveSocket.send(new DatagramPacket(packet.toBytes(), packet.size(), receivePacket.getAddress(), receivePacket.getPort()));
+			}
+		} catch (IOException ioe) { // Can't send the packet.
+			logger.log(LogLevel.ERROR, "Error: Socket IO Error. Reason: Could not send packet. Solution: Return to Listening.");
+		}
+	}
+
+	/**
+	 * Parse a request and start a handler for it.
+	 * @param receivePacket The packet received from the client
+	 */
+	private void handleRequest(DatagramPacket receivePacket) {
+		logger.log(LogLevel.INFO, "New Request Received:");
+		// Only the listener's own thread counts requests
+		requestCount++;
+
+		// Clients resend requests which are slow to be answered, a copy of a request which is already
+		// being handled is dropped rather than starting a second transfer of the same file. A write
+		// re-sends its ACK 0 or options acknowledgment itself in case that is what the client missed.
+		DuplicateRequestFilter.Request claimed = duplicates.claim(receivePacket);
+		if (claimed == DuplicateRequestFilter.DUPLICATE) {
+			logger.log(LogLevel.INFO, "Dropping duplicate request from " + receivePacket.getAddress().getHostAddress() + ":" + receivePacket.getPort() + ", the request is already being handled.");
+			return;
+		}
+		Runnable finished = () -> duplicates.release(claimed);
+		boolean started = false;
+
+		// Parse the packet to determine the type of handler required
+		try {
+			TFTPPacket request = TFTPPacket.parse(Arrays.copyOf(receivePacket.getData(), receivePacket.getLength()));
+
+			// Create a handler thread
+			if (request instanceof TFTPPacket.RRQ) {
+				logger.log(LogLevel.QUIET, "Received a read request.");
+				logger.log(LogLevel.INFO, "Creating a read handler for this request.");
+
+				if (eventLoops != null) {
+					// The handler pool is not used, so the limit for each client is checked here
+					handlerPool.checkClientLimit(receivePacket.getAddress(), registry.getClientCount(receivePacket.getAddress()));
+					ReadHandler handler = new ReadHandler(receivePacket, (TFTPPacket.RRQ) request, logger, socketPool, multicastGroup, congestionControl, bandwidthLimiter, mapSegmentSize, readAheadWindows, fileCache);
+					handler.whenFinished(finished);
+					handler.setRegistry(registry);
+					started = true;
+					handler.start(nextEventLoop());
+				} else {
+					String congestionControl = this.congestionControl;
+					started = true;
+					runOnPool(receivePacket, packet -> new ReadHandler(packet, (TFTPPacket.RRQ) request, logger, socketPool, multicastGroup, congestionControl, bandwidthLimiter, mapSegmentSize, readAheadWindows, fileCache), finished);
+				}
+
+			} else if (request instanceof TFTPPacket.WRQ) {
+				logger.log(LogLevel.QUIET, "Received a write request.");
+				logger.log(LogLevel.INFO, "Creating a write handler for this request.");
+
+				if (eventLoops != null) {
+					handlerPool.checkClientLimit(receivePacket.getAddress(), registry.getClientCount(receivePacket.getAddress()));
+					WriteHandler handler = new WriteHandler(receivePacket, (TFTPPacket.WRQ) request, logger, socketPool, maxUploadSize);
+					handler.whenFinished(finished);
+					handler.setRegistry(registry);
+					started = true;
+					handler.start(nextEventLoop());
+				} else {
+					started = true;
+					runOnPool(receivePacket, packet -> new WriteHandler(packet, (TFTPPacket.WRQ) request, logger, socketPool, maxUploadSize), finished);
+				}
+
+			} else if (request instanceof TFTPPacket.DATA) {
+				logger.log(LogLevel.ERROR, "Error: Unexpected DATA packet as first request. Reason: Not a read or write request. Solution: Print angry message and continue.");
+			} else if (request instanceof TFTPPacket.ACK) {
+				logger.log(LogLevel.ERROR, "Error: Unexpected ACK packet as first request. Reason: Not a read or write request. Solution: Print angry message and continue.");
+			} else if (request instanceof TFTPPacket.ERROR) {
+				logger.log(LogLevel.ERROR, "Error: Unexpected ERROR packet as first request. Reason: Not a read or write request. Solution: Print angry message and continue.");
+			}
+		} catch (IllegalArgumentException e) {
+			// Unknown Packet Type... (Incorrect OP Code)
+			logger.log(LogLevel.ERROR, "Error: Unknown Packet Type. Reason: Not a valid TFTP Packet. Solution: Send Error Packet in return and continue.");
+			TFTPPacket.ERROR errorPacket = new TFTPPacket.ERROR(TFTPPacket.TFTPError.ILLEGAL_OPERATION, "The first request received by server must be a valid Read or Write Request. (OPCode: 01 or 02)");
+			sendFromListener(errorPacket, receivePacket);
+		} catch (TransferSocketPool.ExhaustedException e) {
+			refuseRequest(receivePacket, "Server busy, try again later.", e.getMessage());
+		} catch (RejectedExecutionException e) {
+			refuseRequest(receivePacket, e.getMessage(), e.getMessage());
+		} catch (IOException se) {
+			se.printStackTrace();
+			logger.log(LogLevel.ERROR, "Error: SocketException. Reason: Could not create the handler's socket. Solution: Return to Listening.");
+		} finally {
+			if (!started) {
+				// No handler was started, a resent copy of the request may be handled
+				finished.run();
+			}
+		}
+	}
+
+	/**
+	 * Stop receiving requests while the transfers in progress carry on. If another server shares the
+	 * port with SO_REUSEPORT the kernel sends it every request from now on.
+	 */
+	public void stopListening() {
+		this.shouldExit = true;
+		receiveSocket.close();
+		if (eventLoops != null) {
+			// The channel is only released once its event loop has selected again
+			eventLoops[0].wakeup();
+		}
+	}
+
 	/**
 	 * Closes the sockets used by the listener to clean up resources
 	 * and also cause the listener thread to exit
@@ -315,6 +1387,12 @@ class ServerListener implements Runnable {
 	{
 		this.shouldExit = true;
 	    receiveSocket.close();
+	    handlerPool.shutdown();
+	    if (eventLoops != null) {
+	    	for (ServerEventLoop loop : eventLoops) {
+	    		loop.close();
+	    	}
+	    }
 	}
 }
 
@@ -329,29 +1407,255 @@ class ServerListener implements Runnable {
  */
 
 abstract class RequestHandler implements Runnable {
+	/**
+	 * Largest window size that the server will agree to. Every block in a window is kept in memory
+	 * until it is acknowledged, so this limits the memory used by each read request.
+	 */
+	protected static final int WINDOW_SIZE_LIMIT = 64;
+
+	protected TransferSocketPool.Lease socketLease;
 	protected DatagramSocket sendReceiveSocket;
 	protected DatagramPacket receivePacket;
 	protected int clientTID;
 	protected InetAddress clientAddress;
 	protected String filename;
 	protected Logger logger;
+	private Runnable finished = null;
+	protected TransferRegistry registry = null;
+	private TransferRegistry.Transfer transfer = null;
 
 	public abstract void run();
+
+	/**
+	 * Start the transfer on an event loop instead of running it on its own thread.
+	 * @param loop The event loop to run the transfer on
+	 */
+	public abstract void start(ServerEventLoop loop);
+
+	/**
+	 * Get the value of the transfer size option to acknowledge.
+	 * @param requested The transfer size from the client's request
+	 * @return The transfer size to be sent in the options acknowledgment
+	 */
+	protected abstract long getTransferSize(long requested);
+
 	public void sendErrorPacket(TFTPPacket.TFTPError error, String description) {
 		try {
-			DatagramSocket sendSocket = new DatagramSocket();
+			// Sent through the channel since the socket may be in non-blocking mode on an event loop
 			TFTPPacket.ERROR errorPacket = new TFTPPacket.ERROR(error, description);
-			DatagramPacket sendPacket = new DatagramPacket(errorPacket.toBytes(), errorPacket.size(), clientAddress, clientTID);
-			sendSocket.send(sendPacket);
-			sendSocket.close();
-		} catch (SocketException se) { // Can't create the socket.
-			se.printStackTrace();
-			logger.log(LogLevel.ERROR, "Error: SocketException. Reason: Could not create socket. Solution: Ending this transaction.");
+			sendReceiveSocket.getChannel().send(ByteBuffer.wrap(errorPacket.toBytes(), 0, errorPacket.size()), new InetSocketAddress(clientAddress, clientTID));
 	    } catch (IOException ioe) { // Can't send the packet.
 	    	ioe.printStackTrace();
 	    	logger.log(LogLevel.ERROR, "Error: Socket IO Error. Reason: Could not send packet. Solution: Ending this transaction.");
 	    }
 	}
+
+	/**
+	 * Decide which of the options in a request will be used for the transfer.
+	 * Options which are unknown or have invalid values are left out so that
+	 * the client falls back to the defaults for them.
+	 * @param requested The options from the client's request
+	 * @return An options acknowledgment for the accepted options, or null if
+	 * no options were accepted
+	 */
+	protected TFTPPacket.OACK negotiateOptions(TFTPPacket.OptionSet requested) {
+		TFTPPacket.OACK oack = new TFTPPacket.OACK();
+
+		// Block size (RFC 2348), use the largest size we support up to the requested size
+		String blockSize = requested.getOptionValue(TFTPPacket.OptionSet.BLOCK_SIZE);
+		if (blockSize != null) {
+			try {
+				int size = Integer.parseInt(blockSize);
+				if (size >= TFTPPacket.MIN_BLOCK_SIZE) {
+					oack.getOptions().addOption(TFTPPacket.OptionSet.BLOCK_SIZE,
+							Integer.toString(Math.min(size, TFTPPacket.MAX_BLOCK_SIZE)));
+				}
+			} catch (NumberFormatException e) {
+				logger.log(LogLevel.WARN, "Ignoring invalid block size option: \"" + blockSize + "\"");
+			}
+		}
+
+		// Window size (RFC 7440), use the largest window we allow up to the requested size
+		String windowSize = requested.getOptionValue(TFTPPacket.OptionSet.WINDOW_SIZE);
+		if (windowSize != null) {
+			try {
+				int size = Integer.parseInt(windowSize);
+				if (size >= 1 && size <= TFTPPacket.MAX_WINDOW_SIZE) {
+					// A window is sent in one burst, so it is limited to what fits in the socket's buffers
+					String block = oack.getOptions().getOptionValue(TFTPPacket.OptionSet.BLOCK_SIZE);
+					int window = UDPTransport.reserveWindow(sendReceiveSocket,
+							(block != null) ? Integer.parseInt(block) : TFTPPacket.BLOCK_SIZE,
+							Math.min(size, WINDOW_SIZE_LIMIT));
+					if (window < Math.min(size, WINDOW_SIZE_LIMIT)) {
+						logger.log(LogLevel.INFO, "Limiting the window size to the " + window + " blocks which fit in the socket's buffers.");
+					}
+					oack.getOptions().addOption(TFTPPacket.OptionSet.WINDOW_SIZE, Integer.toString(window));
+				}
+			} catch (NumberFormatException e) {
+				logger.log(LogLevel.WARN, "Ignoring invalid window size option: \"" + windowSize + "\"");
+			} catch (SocketException e) {
+				logger.log(LogLevel.WARN, "Ignoring window size option, the size of the socket's buffers could not be set.");
+			}
+		}
+
+		// Acknowledgment interval, acknowledging more often than once per window lets the sender use
+		// congestion control. It can not be more than the window size.
+		String ackInterval = requested.getOptionValue(TFTPPacket.OptionSet.ACK_INTERVAL);
+		if (ackInterval != null) {
+			try {
+				int interval = Integer.parseInt(ackInterval);
+				String window = oack.getOptions().getOptionValue(TFTPPacket.OptionSet.WINDOW_SIZE);
+				int maxInterval = (window != null) ? Integer.parseInt(window) : TFTPPacket.WINDOW_SIZE;
+				if (interval >= 1 && interval <= maxInterval) {
+					oack.getOptions().addOption(TFTPPacket.OptionSet.ACK_INTERVAL, Integer.toString(interval));
+				}
+			} catch (NumberFormatException e) {
+				logger.log(LogLevel.WARN, "Ignoring invalid acknowledgment interval option: \"" + ackInterval + "\"");
+			}
+		}
+
+		// Forward error correction, the parity for each group has to arrive before the receiver waits for the
+		// end of the window so a group can not be larger than the window. It is not used with congestion
+		// control since repeated ACKs already have lost blocks re-sent right away.
+		String fecGroup = requested.getOptionValue(TFTPPacket.OptionSet.FEC);
+		if (fecGroup != null) {
+			try {
+				int group = Integer.parseInt(fecGroup);
+				String window = oack.getOptions().getOptionValue(TFTPPacket.OptionSet.WINDOW_SIZE);
+				int maxGroup = (window != null) ? Integer.parseInt(window) : TFTPPacket.WINDOW_SIZE;
+				String interval = oack.getOptions().getOptionValue(TFTPPacket.OptionSet.ACK_INTERVAL);
+				boolean congestionControl = interval != null && Integer.parseInt(interval) < maxGroup;
+				if (group >= TFTPPacket.MIN_FEC_GROUP && group <= maxGroup && !congestionControl) {
+					oack.getOptions().addOption(TFTPPacket.OptionSet.FEC, Integer.toString(group));
+				}
+			} catch (NumberFormatException e) {
+				logger.log(LogLevel.WARN, "Ignoring invalid forward error correction option: \"" + fecGroup + "\"");
+			}
+		}
+
+		// Transfer size (RFC 2349)
+		String transferSize = requested.getOptionValue(TFTPPacket.OptionSet.TRANSFER_SIZE);
+		if (transferSize != null) {
+			try {
+				long size = Long.parseLong(transferSize);
+				if (size >= 0) {
+					oack.getOptions().addOption(TFTPPacket.OptionSet.TRANSFER_SIZE,
+							Long.toString(getTransferSize(size)));
+				}
+			} catch (NumberFormatException e) {
+				logger.log(LogLevel.WARN, "Ignoring invalid transfer size option: \"" + transferSize + "\"");
+			}
+		}
+
+		// Block number rollover, lets files larger than 65535 blocks be transfered
+		String rollover = requested.getOptionValue(TFTPPacket.OptionSet.ROLLOVER);
+		if (rollover != null) {
+			if (rollover.equals("0") || rollover.equals("1")) {
+				oack.getOptions().addOption(TFTPPacket.OptionSet.ROLLOVER, rollover);
+			} else {
+				logger.log(LogLevel.WARN, "Ignoring invalid rollover option: \"" + rollover + "\"");
+			}
+		}
+
+		// Timeout interval (RFC 2349), the peer's value must be used as is or the option left out
+		String timeout = requested.getOptionValue(TFTPPacket.OptionSet.TIMEOUT);
+		if (timeout != null) {
+			try {
+				int seconds = Integer.parseInt(timeout);
+				if (seconds >= TFTPPacket.MIN_TIMEOUT_OPTION && seconds <= TFTPPacket.MAX_TIMEOUT_OPTION) {
+					oack.getOptions().addOption(TFTPPacket.OptionSet.TIMEOUT, Integer.toString(seconds));
+				}
+			} catch (NumberFormatException e) {
+				logger.log(LogLevel.WARN, "Ignoring invalid timeout option: \"" + timeout + "\"");
+			}
+		}
+
+		if (oack.getOptions().getOptions().isEmpty()) {
+			return null;
+		}
+		logger.log(LogLevel.INFO, "Accepted options: " + oack.getOptions().toString());
+		return oack;
+	}
+
+	/**
+	 * Decide which of the options in a request will be used for a transfer run on an event loop.
+	 * Congestion control and forward error correction are only supported by transfers run on
+	 * their own thread, so they are left out.
+	 * @param requested The options from the client's request
+	 * @return An options acknowledgment for the accepted options, or null if
+	 * no options were accepted
+	 */
+	protected TFTPPacket.OACK negotiateEventLoopOptions(TFTPPacket.OptionSet requested) {
+		requested.removeOption(TFTPPacket.OptionSet.ACK_INTERVAL);
+		requested.removeOption(TFTPPacket.OptionSet.FEC);
+		return negotiateOptions(requested);
+	}
+
+	/**
+	 * Take the socket for the transfer from the pool and set its timeout. The socket is the server's TID for
+	 * the transfer.
+	 * @param socketPool The pool of transfer sockets
+	 * @param description What the socket is for, reported if it is never returned
+	 * @throws IOException If there is no socket available, or if its timeout could not be set in which case
+	 * the socket has been returned to the pool
+	 */
+	protected void leaseSocket(TransferSocketPool socketPool, String description) throws IOException {
+		this.socketLease = socketPool.acquire(description + " for " + clientAddress.getHostAddress() + ":" + clientTID);
+		this.sendReceiveSocket = socketLease.getSocket();
+		try {
+			// Set Timeout for the socket!
+			sendReceiveSocket.setSoTimeout(TFTPPacket.TFTP_TIMEOUT);
+		} catch (IOException e) {
+			// The handler is never run, so the socket would otherwise only be returned once the lease is collected
+			socketLease.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Set something to run once the transfer has finished.
+	 * @param finished Run after the socket for the transfer has been returned
+	 */
+	public void whenFinished(Runnable finished) {
+		this.finished = finished;
+	}
+
+	/**
+	 * Set the registry which the transfer is listed in while it runs, so that it can be cancelled.
+	 * @param registry The registry of transfers in progress
+	 */
+	public void setRegistry(TransferRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * List the transfer in the registry until its socket is returned.
+	 * @param description What the transfer is
+	 * @param cancel Stops the transfer, called from the console's thread
+	 */
+	protected void register(String description, Runnable cancel) {
+		if (registry != null) {
+			transfer = new TransferRegistry.Transfer(clientAddress, clientTID, description, cancel);
+			registry.add(transfer);
+		}
+	}
+
+	/**
+	 * Return the socket for the transfer to the pool once it will no longer be used.
+	 */
+	protected void closeSocket() {
+		if (transfer != null) {
+			registry.remove(transfer);
+			transfer = null;
+		}
+		socketLease.close();
+		// Only run once, the socket may be returned more than once
+		Runnable finished = this.finished;
+		this.finished = null;
+		if (finished != null) {
+			finished.run();
+		}
+	}
 }
 
 
@@ -361,6 +1665,12 @@ abstract class RequestHandler implements Runnable {
 class ReadHandler extends RequestHandler implements Runnable {
 
 	protected TFTPPacket.RRQ request;
+	protected InetAddress multicastGroup;
+	protected String congestionControl;
+	protected BandwidthLimiter bandwidthLimiter;
+	protected long mapSegmentSize;
+	protected int readAheadWindows;
+	protected FileCache fileCache;
 
 	/**
 	 * Constructor for the ReadHandler class.
@@ -368,21 +1678,37 @@ class ReadHandler extends RequestHandler implements Runnable {
 	 * @param request The formed TFTPPacket for the read request
 	 * @param verbose true enables verbose mode to output debug info, false disables verbose
 	 * mode so less information is output.
-	 * @throws SocketException
+	 * @param socketPool Hands out the socket used for the transfer
+	 * @param multicastGroup The group to which multicast reads are sent, or null if multicast is disabled
+	 * @param congestionControl The name of the congestion control algorithm to use if the client acknowledges
+	 * every block
+	 * @param bandwidthLimiter Limits the rate at which the file is sent
+	 * @param mapSegmentSize The largest part of the file mapped at once if the file is sent straight from
+	 * a memory mapping when the transfer runs on its own thread, or 0 to read each block from the file
+	 * @param readAheadWindows The number of windows of blocks to read ahead of those being sent on another
+	 * thread when the transfer runs on its own thread, or 0 to read each block when it is first sent
+	 * @param fileCache Keeps the files read most often in memory when the transfer runs on its own thread,
+	 * or null to read the file from the disk
+	 * @throws IOException
 	 */
-	public ReadHandler(DatagramPacket receivePacket, TFTPPacket.RRQ request, Logger logger) throws SocketException {
+	public ReadHandler(DatagramPacket receivePacket, TFTPPacket.RRQ request, Logger logger, TransferSocketPool socketPool, InetAddress multicastGroup, String congestionControl, BandwidthLimiter bandwidthLimiter, long mapSegmentSize, int readAheadWindows, FileCache fileCache) throws IOException {
 		logger.log(LogLevel.INFO, "Setting up read handler.");
 		this.logger = logger;
+		this.multicastGroup = multicastGroup;
+		this.congestionControl = congestionControl;
+		this.bandwidthLimiter = bandwidthLimiter;
+		this.mapSegmentSize = mapSegmentSize;
+		this.readAheadWindows = readAheadWindows;
+		this.fileCache = fileCache;
 		this.receivePacket = receivePacket;
 		this.request = request;
 		this.clientTID = this.receivePacket.getPort();
 		this.clientAddress = this.receivePacket.getAddress();
 		this.filename =  this.request.getFilename();
 
-		//Set up the socket that will be used to send/receive packets to/from client
-		this.sendReceiveSocket = new DatagramSocket();
-		// Set Timeout for the socket!
-		sendReceiveSocket.setSoTimeout(TFTPPacket.TFTP_TIMEOUT);
+		//Set up the socket that will be used to send/receive packets to/from client, it is taken
+		//from the pool of transfer sockets and is a channel so that the transfer can also be run on an event loop
+		leaseSocket(socketPool, "read of \"" + filename + "\"");
 	}
 
 	/**
@@ -391,80 +1717,204 @@ class ReadHandler extends RequestHandler implements Runnable {
 	public void run(){
 		logger.log(LogLevel.INFO,"Handling read request.");
 
+		// Serve the file to a multicast group if the client asked for it, otherwise the option is ignored
+		if (multicastGroup != null && request.getOptions().getOptionValue(TFTPPacket.OptionSet.MULTICAST) != null) {
+			joinMulticastSession();
+			return;
+		}
+
 		// Set up and run the TFTP Transaction
-		try (TFTPTransaction transaction =
+		try (BandwidthLimiter.Transfer bandwidthLimit = bandwidthLimiter.open(clientAddress);
+				TFTPTransaction.TFTPSendTransaction transaction =
 				new TFTPTransaction.TFTPSendTransaction(sendReceiveSocket,
 						clientAddress, clientTID, filename, false, logger)) {
 
+			TFTPPacket.OACK oack = negotiateOptions(request.getOptions());
+			if (oack != null) {
+				transaction.setOptionAck(oack);
+			}
+			transaction.setCongestionControl(CongestionControl.forName(congestionControl));
+			transaction.setBandwidthLimit(bandwidthLimit);
+			transaction.setMemoryMapped(mapSegmentSize);
+			transaction.setReadAhead(readAheadWindows);
+			transaction.setFileCache(fileCache);
+
+			// Make sure that the file can be sent before anything is sent to the client
+			if (transaction.getRollover() < 0 && (new File(filename).length() / transaction.getBlockSize()) + 1 > TFTPPacket.MAX_BLOCK_NUM) {
+				logger.log(LogLevel.ERROR, String.format("The file \"%s\" is too large to be sent with a block size of %d.", filename, transaction.getBlockSize()));
+				sendErrorPacket(TFTPPacket.TFTPError.ERROR, String.format("The file \"%s\" is too large to be sent with a block size of %d.", filename, transaction.getBlockSize()));
+				return;
+			}
+
+			register("read of \"" + filename + "\"", transaction::cancel);
 			transaction.run();
+			logResult(transaction.getState());
+		} catch (FileNotFoundException e) {
+			fileOpenFailed();
+		} catch (IOException e) {
+			logger.log(LogLevel.ERROR, "Error: File Closure. Reason: Failed to close file when terminating transaction. Solution: Ending Transaction without closing file.");
+		}
+	}
 
-			// Print success message if transfer is complete or error message if transfer has failed.
-			switch (transaction.getState()) {
-			case COMPLETE:
-				logger.log(LogLevel.INFO, "File transfer complete.");
-				break;
-			case FILE_IO_ERROR:
-				logger.log(LogLevel.FATAL, "File transfer failed. File IO error.");
-				break;
-			case FILE_TOO_LARGE:
-				logger.log(LogLevel.FATAL, "File transfer failed. File too large.");
-				break;
-			case LAST_BLOCK_ACK_TIMEOUT:
-				logger.log(LogLevel.ERROR, "File transfer may have failed. Timed out waiting for client to acknowledge last block.");
-				break;
-			case PEER_BAD_PACKET:
-				logger.log(LogLevel.ERROR, "File transfer failed. Client received a bad packet. Error packet response received.");
-				break;
-			case PEER_DISK_FULL:
-				logger.log(LogLevel.FATAL, "File transfer failed. Client disk full.");
-				break;
-			case PEER_ERROR:
-				logger.log(LogLevel.ERROR, "File transfer failed. Error Packet Received from client.");
-				break;
-			case RECEIVED_BAD_PACKET:
-				logger.log(LogLevel.ERROR, "File transfer failed. Received a bad packet. Error packet sent in response.");
-				break;
-			case SOCKET_IO_ERROR:
-				logger.log(LogLevel.ERROR, "File transfer failed. Socket IO error.");
-				break;
-			case TIMEOUT:
-				logger.log(LogLevel.ERROR, "File transfer failed. Timed out waiting for client.");
-				break;
-			default:
-				logger.log(LogLevel.FATAL, String.format(
-						"File transfer failed. Unkown error occured: \"%s\"",
-						transaction.getState().toString()));
-				sendErrorPacket(TFTPPacket.TFTPError.ERROR, "The file transfer failed for an unknown reason. Terminating Transfer.");
-				break;
+	/**
+	 * Start the transfer on an event loop.
+	 */
+	@Override
+	public void start(ServerEventLoop loop) {
+		// Multicast sessions have their own threads
+		if (multicastGroup != null && request.getOptions().getOptionValue(TFTPPacket.OptionSet.MULTICAST) != null) {
+			Thread handlerThread = new Thread(this);
+			handlerThread.start();
+			return;
+		}
+		logger.log(LogLevel.INFO,"Handling read request.");
 
-			}
+		TFTPPacket.OACK oack = negotiateEventLoopOptions(request.getOptions());
+
+		FileChannel file;
+		try {
+			file = new FileInputStream(filename).getChannel();
 		} catch (FileNotFoundException e) {
-			// If the file does not exist,is a directory rather than a regular file,or for some other reason cannot be opened for reading.
-		    File fileToTest = new File(filename);
-		    if (fileToTest.exists() && fileToTest.isFile())
-		    {
-		        // The file exists and is a file.. Must be an access violation (or some other error)
-		    	if(!fileToTest.canRead()) {
-		    		logger.log(LogLevel.ERROR, String.format("The file: "+filename+" could not be opened for reading due to access privileges."));
-		    		sendErrorPacket(TFTPPacket.TFTPError.ACCESS_VIOLATION, "The file \""+filename+"\" could not be opened for reading due to access privileges.");
-		    	} else {
-		    		// Some other unknown error.
-		    		logger.log(LogLevel.ERROR, String.format("File IOError trying to open the file for reading for an unknown reason."));
-		    		sendErrorPacket(TFTPPacket.TFTPError.ERROR, "The file \""+filename+"\" could not be opened for reading for an unknown reason.");
-		    	}
-		    } else if (fileToTest.isDirectory()) {
-		    	// The "File" is a directory
-		    	logger.log(LogLevel.ERROR, String.format("The file could not be read because it is a directory: \"%s\".", filename));
-		    	sendErrorPacket(TFTPPacket.TFTPError.FILE_NOT_FOUND, String.format("The file could not be read because it is a directory: \"%s\".", filename));
-		    } else {
-		    	// The file does not exist!
-		    	logger.log(LogLevel.ERROR, String.format("File not found on Server: \"%s\".", filename));
-		    	sendErrorPacket(TFTPPacket.TFTPError.FILE_NOT_FOUND, "The file \""+filename+"\" could not be found on the Server.");
-		    }
+			fileOpenFailed();
+			closeSocket();
+			return;
+		}
+
+		BandwidthLimiter.Transfer bandwidthLimit = bandwidthLimiter.open(clientAddress);
+		EventLoopTransaction.SendTransaction transaction = new EventLoopTransaction.SendTransaction(loop,
+				sendReceiveSocket.getChannel(), clientAddress, clientTID, file, oack, logger, state -> {
+					bandwidthLimit.close();
+					logResult(state);
+					closeSocket();
+				});
+		transaction.setBandwidthLimit(bandwidthLimit);
+		// The transaction may only be touched from its event loop's thread
+		register("read of \"" + filename + "\"", () -> loop.execute(transaction::cancel));
+		loop.execute(transaction::start);
+	}
+
+	/**
+	 * Print success message if transfer is complete or error message if transfer has failed.
+	 * @param state The state the transfer ended in
+	 */
+	private void logResult(TFTPTransaction.TFTPTransactionState state) {
+		switch (state) {
+		case BLOCK_ZERO_TIMEOUT:
+			logger.log(LogLevel.ERROR, "File transfer failed. Timed out waiting for client to acknowledge options.");
+			break;
+		case CANCELLED:
+			logger.log(LogLevel.WARN, "File transfer cancelled by the server.");
+			break;
+		case COMPLETE:
+			logger.log(LogLevel.INFO, "File transfer complete.");
+			break;
+		case FILE_IO_ERROR:
+			logger.log(LogLevel.FATAL, "File transfer failed. File IO error.");
+			break;
+		case FILE_TOO_LARGE:
+			logger.log(LogLevel.FATAL, "File transfer failed. File too large.");
+			break;
+		case LAST_BLOCK_ACK_TIMEOUT:
+			logger.log(LogLevel.ERROR, "File transfer may have failed. Timed out waiting for client to acknowledge last block.");
+			break;
+		case PEER_BAD_PACKET:
+			logger.log(LogLevel.ERROR, "File transfer failed. Client received a bad packet. Error packet response received.");
+			break;
+		case PEER_DISK_FULL:
+			logger.log(LogLevel.FATAL, "File transfer failed. Client disk full.");
+			break;
+		case PEER_ERROR:
+			logger.log(LogLevel.ERROR, "File transfer failed. Error Packet Received from client.");
+			break;
+		case RECEIVED_BAD_PACKET:
+			logger.log(LogLevel.ERROR, "File transfer failed. Received a bad packet. Error packet sent in response.");
+			break;
+		case SOCKET_IO_ERROR:
+			logger.log(LogLevel.ERROR, "File transfer failed. Socket IO error.");
+			break;
+		case TIMEOUT:
+			logger.log(LogLevel.ERROR, "File transfer failed. Timed out waiting for client.");
+			break;
+		default:
+			logger.log(LogLevel.FATAL, String.format(
+					"File transfer failed. Unkown error occured: \"%s\"",
+					state.toString()));
+			sendErrorPacket(TFTPPacket.TFTPError.ERROR, "The file transfer failed for an unknown reason. Terminating Transfer.");
+			break;
+
+		}
+	}
+
+	/**
+	 * Send the client an error explaining why the file could not be opened.
+	 */
+	private void fileOpenFailed() {
+		// If the file does not exist,is a directory rather than a regular file,or for some other reason cannot be opened for reading.
+	    File fileToTest = new File(filename);
+	    if (fileToTest.exists() && fileToTest.isFile())
+	    {
+	        // The file exists and is a file.. Must be an access violation (or some other error)
+	    	if(!fileToTest.canRead()) {
+	    		logger.log(LogLevel.ERROR, String.format("The file: "+filename+" could not be opened for reading due to access privileges."));
+	    		sendErrorPacket(TFTPPacket.TFTPError.ACCESS_VIOLATION, "The file \""+filename+"\" could not be opened for reading due to access privileges.");
+	    	} else {
+	    		// Some other unknown error.
+	    		logger.log(LogLevel.ERROR, String.format("File IOError trying to open the file for reading for an unknown reason."));
+	    		sendErrorPacket(TFTPPacket.TFTPError.ERROR, "The file \""+filename+"\" could not be opened for reading for an unknown reason.");
+	    	}
+	    } else if (fileToTest.isDirectory()) {
+	    	// The "File" is a directory
+	    	logger.log(LogLevel.ERROR, String.format("The file could not be read because it is a directory: \"%s\".", filename));
+	    	sendErrorPacket(TFTPPacket.TFTPError.FILE_NOT_FOUND, String.format("The file could not be read because it is a directory: \"%s\".", filename));
+	    } else {
+	    	// The file does not exist!
+	    	logger.log(LogLevel.ERROR, String.format("File not found on Server: \"%s\".", filename));
+	    	sendErrorPacket(TFTPPacket.TFTPError.FILE_NOT_FOUND, "The file \""+filename+"\" could not be found on the Server.");
+	    }
+	}
+
+	/**
+	 * Add the client to the multicast session for the requested file (RFC 2090).
+	 */
+	private void joinMulticastSession() {
+		TFTPPacket.OACK oack = negotiateOptions(request.getOptions());
+		TFTPPacket.OptionSet options = (oack != null) ? oack.getOptions() : new TFTPPacket.OACK().getOptions();
+
+		// Every client in a session is sent the same packets, so block number rollover, a timeout, an
+		// acknowledgment interval or forward error correction chosen by one client can not be used
+		options.removeOption(TFTPPacket.OptionSet.ROLLOVER);
+		options.removeOption(TFTPPacket.OptionSet.TIMEOUT);
+		options.removeOption(TFTPPacket.OptionSet.ACK_INTERVAL);
+		options.removeOption(TFTPPacket.OptionSet.FEC);
+
+		String blockSize = options.getOptionValue(TFTPPacket.OptionSet.BLOCK_SIZE);
+		int size = (blockSize != null) ? Integer.parseInt(blockSize) : TFTPPacket.BLOCK_SIZE;
+		if ((new File(filename).length() / size) + 1 > TFTPPacket.MAX_BLOCK_NUM) {
+			logger.log(LogLevel.ERROR, String.format("The file \"%s\" is too large to be sent with a block size of %d.", filename, size));
+			sendErrorPacket(TFTPPacket.TFTPError.ERROR, String.format("The file \"%s\" is too large to be sent with a block size of %d.", filename, size));
+			return;
+		}
+
+		try {
+			MulticastSession.join(filename, multicastGroup, options, clientAddress, clientTID, logger, registry);
+		} catch (FileNotFoundException e) {
+			fileOpenFailed();
 		} catch (IOException e) {
-			logger.log(LogLevel.ERROR, "Error: File Closure. Reason: Failed to close file when terminating transaction. Solution: Ending Transaction without closing file.");
+			logger.log(LogLevel.ERROR, "Error: Multicast Session. Reason: Could not set up the multicast session. Solution: Ending Transaction.");
+			sendErrorPacket(TFTPPacket.TFTPError.ERROR, "The multicast transfer could not be started.");
+		} finally {
+			// The session has its own socket
+			closeSocket();
 		}
 	}
+
+	/**
+	 * The client is told the size of the file that it is reading.
+	 */
+	@Override
+	protected long getTransferSize(long requested) {
+		return new File(filename).length();
+	}
 }
 
 
@@ -475,6 +1925,7 @@ class WriteHandler extends RequestHandler implements Runnable {
 
 	protected TFTPPacket.WRQ request;
 	protected TFTPPacket.TFTPMode mode;
+	protected long maxUploadSize;
 
 	/**
 	 * Constructor for the WriteHandler class.
@@ -482,10 +1933,13 @@ class WriteHandler extends RequestHandler implements Runnable {
 	 * @param request The formed TFTPPacket for the write request
 	 * @param verbose true enables verbose mode to output debug info, false disables verbose
 	 * mode so less information is output.
-	 * @throws SocketException
+	 * @param socketPool Hands out the socket used for the transfer
+	 * @param maxUploadSize The largest file in bytes that the client may write
+	 * @throws IOException
 	 */
-	public WriteHandler(DatagramPacket receivePacket, TFTPPacket.WRQ request, Logger logger) throws SocketException {
+	public WriteHandler(DatagramPacket receivePacket, TFTPPacket.WRQ request, Logger logger, TransferSocketPool socketPool, long maxUploadSize) throws IOException {
 		logger.log(LogLevel.INFO, "Setting up Write Handler");
+		this.maxUploadSize = maxUploadSize;
 		this.receivePacket = receivePacket;
 		this.request = request;
 		this.logger = logger;
@@ -494,10 +1948,9 @@ class WriteHandler extends RequestHandler implements Runnable {
 		this.filename =  this.request.getFilename();
 		this.mode = this.request.getMode();
 
-		//Set up the socket that will be used to send/receive packets to/from client
-		this.sendReceiveSocket = new DatagramSocket();
-		// Set Timeout for the socket!
-		sendReceiveSocket.setSoTimeout(TFTPPacket.TFTP_TIMEOUT);
+		//Set up the socket that will be used to send/receive packets to/from client, it is taken
+		//from the pool of transfer sockets and is a channel so that the transfer can also be run on an event loop
+		leaseSocket(socketPool, "write of \"" + filename + "\"");
 	}
 
 	/**
@@ -506,81 +1959,174 @@ class WriteHandler extends RequestHandler implements Runnable {
 	public void run(){
 		logger.log(LogLevel.INFO, "Handling Write Request");
 
+		if (!checkTransferSize()) {
+			return;
+		}
+
 		// Set up and run the TFTP Transaction
-		try (TFTPTransaction transaction =
+		try (TFTPTransaction.TFTPReceiveTransaction transaction =
 				new TFTPTransaction.TFTPReceiveTransaction(sendReceiveSocket,
 						clientAddress, clientTID, filename, true, false, logger)) {
 
-			transaction.run();
+			transaction.setMaxFileSize(maxUploadSize);
 
-			// Print success message if transfer is complete or error message if transfer has failed.
-			switch (transaction.getState()) {
-				case BLOCK_ZERO_TIMEOUT:
-					logger.log(LogLevel.FATAL, "File transfer failed. Timed out waiting for first data packet.");
-					break;
-				case COMPLETE:
-					logger.log(LogLevel.INFO, "File transfer complete.");
-					break;
-				case FILE_IO_ERROR:
-					logger.log(LogLevel.FATAL, "File transfer failed. File IO error.");
-					break;
-				case FILE_TOO_LARGE:
-					logger.log(LogLevel.FATAL, "File transfer failed. File too large.");
-					break;
-				case PEER_BAD_PACKET:
-					logger.log(LogLevel.ERROR, "File transfer failed. Client received a bad packet. Error packet response received.");
-					break;
-				case PEER_ERROR:
-					logger.log(LogLevel.ERROR, "File transfer failed. Error Packet Received from client.");
-					break;
-				case RECEIVED_BAD_PACKET:
-					logger.log(LogLevel.ERROR, "File transfer failed. Received a bad packet. Error packet sent in response.");
-					break;
-				case SOCKET_IO_ERROR:
-					logger.log(LogLevel.ERROR, "File transfer failed. Socket IO error.");
-					break;
-				case TIMEOUT:
-					logger.log(LogLevel.ERROR, "File transfer failed. Timed out waiting for client.");
-					break;
-				default:
-					logger.log(LogLevel.FATAL, String.format(
-							"File transfer failed. Unknown error occurred: \"%s\"",
-							transaction.getState().toString()));
-					sendErrorPacket(TFTPPacket.TFTPError.ERROR, "The file transfer failed for an unknown reason. Terminating Transfer.");
-					break;
+			TFTPPacket.OACK oack = negotiateOptions(request.getOptions());
+			if (oack != null) {
+				transaction.setOptionAck(oack);
 			}
+
+			register("write of \"" + filename + "\"", transaction::cancel);
+			transaction.run();
+			logResult(transaction.getState());
 		} catch (FileNotFoundException e) {
-			// If the file does not exist,is a directory rather than a regular file,or for some other reason cannot be opened for writing.
-		    File fileToTest = new File(filename);
-		    if (fileToTest.exists() && fileToTest.isFile())
-		    {
-		        // The file exists and is a file.. Must be an access violation (or some other error)
-		    	if(!fileToTest.canWrite()) {
-		    		if(fileToTest.canRead()) {
-		    			// Read-Only
-		    			logger.log(LogLevel.ERROR, String.format("The file: "+filename+" could not be opened for writing because it is read-only."));
-			    		sendErrorPacket(TFTPPacket.TFTPError.ACCESS_VIOLATION, "The file \""+filename+"\" could not be opened for writing because it is read-only.");
-		    		} else {
-		    			// Some other reason it can't be written
-		    			logger.log(LogLevel.ERROR, String.format("The file: "+filename+" could not be opened for writing due to an access violation."));
-			    		sendErrorPacket(TFTPPacket.TFTPError.ACCESS_VIOLATION, "The file \""+filename+"\" could not be opened for writing due to an access violation.");
-		    		}
-		    	} else {
-		    		// Some other unknown error.
-		    		logger.log(LogLevel.ERROR, String.format("The file \""+filename+"\" could not be opened for writing due to an unknown file IOError"));
-		    		sendErrorPacket(TFTPPacket.TFTPError.ERROR, "The file \""+filename+"\" could not be opened for writing due to an unknown file IOError");
-		    	}
-		    } else if (fileToTest.isDirectory()) {
-		    	// The "File" is a directory
-		    	logger.log(LogLevel.ERROR, String.format("The file could not be written because it is a directory: \"%s\".", filename));
-		    	sendErrorPacket(TFTPPacket.TFTPError.FILE_ALREADY_EXISTS, String.format("The file could not be written because it is a directory: \"%s\".", filename));
-		    } else {
-		    	// The file does not exist or is already a directory!
-		    	logger.log(LogLevel.ERROR, String.format("The file \""+filename+"\" could not be written due to its permissions."));
-		    	sendErrorPacket(TFTPPacket.TFTPError.ACCESS_VIOLATION, "The file \""+filename+"\" could not be written due to its permissions.");
-		    }
+			fileOpenFailed();
 		} catch (IOException e) {
 			logger.log(LogLevel.ERROR, "Error: File Closure. Reason: Failed to close file when terminating transaction. Solution: Ending Transaction without closing file.");
 		}
 	}
+
+	/**
+	 * Start the transfer on an event loop.
+	 */
+	@Override
+	public void start(ServerEventLoop loop) {
+		logger.log(LogLevel.INFO, "Handling Write Request");
+
+		if (!checkTransferSize()) {
+			closeSocket();
+			return;
+		}
+
+		TFTPPacket.OACK oack = negotiateEventLoopOptions(request.getOptions());
+
+		EventLoopTransaction.ReceiveTransaction transaction;
+		try {
+			transaction = new EventLoopTransaction.ReceiveTransaction(loop, sendReceiveSocket.getChannel(),
+					clientAddress, clientTID, filename, oack, logger, state -> {
+						logResult(state);
+						closeSocket();
+					});
+		} catch (FileNotFoundException e) {
+			fileOpenFailed();
+			closeSocket();
+			return;
+		}
+		transaction.setMaxFileSize(maxUploadSize);
+		register("write of \"" + filename + "\"", () -> loop.execute(transaction::cancel));
+		loop.execute(transaction::start);
+	}
+
+	/**
+	 * If the client told us the size of the file, reject it before the existing file is replaced
+	 * if it can not be stored.
+	 * @return true if the file can be stored, false if an error was sent to the client
+	 */
+	private boolean checkTransferSize() {
+		String transferSize = request.getOptions().getOptionValue(TFTPPacket.OptionSet.TRANSFER_SIZE);
+		if (transferSize != null) {
+			try {
+				long size = Long.parseLong(transferSize);
+				if (size > maxUploadSize) {
+					logger.log(LogLevel.ERROR, String.format("The file \"%s\" (%d bytes) exceeds the maximum upload size of %d bytes.", filename, size, maxUploadSize));
+					sendErrorPacket(TFTPPacket.TFTPError.DISK_FULL, String.format("The file exceeds the maximum upload size of %d bytes.", maxUploadSize));
+					return false;
+				} else if (new File(filename).getAbsoluteFile().getParentFile().getUsableSpace() < size) {
+					logger.log(LogLevel.ERROR, String.format("Not enough space to store the file \"%s\" (%d bytes).", filename, size));
+					sendErrorPacket(TFTPPacket.TFTPError.DISK_FULL, "Not enough space on the server to store the file.");
+					return false;
+				}
+			} catch (NumberFormatException e) {
+				// Option will be ignored during negotiation
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Print success message if transfer is complete or error message if transfer has failed.
+	 * @param state The state the transfer ended in
+	 */
+	private void logResult(TFTPTransaction.TFTPTransactionState state) {
+		switch (state) {
+			case BLOCK_ZERO_TIMEOUT:
+				logger.log(LogLevel.FATAL, "File transfer failed. Timed out waiting for first data packet.");
+				break;
+			case CANCELLED:
+				logger.log(LogLevel.WARN, "File transfer cancelled by the server.");
+				break;
+			case COMPLETE:
+				logger.log(LogLevel.INFO, "File transfer complete.");
+				break;
+			case FILE_IO_ERROR:
+				logger.log(LogLevel.FATAL, "File transfer failed. File IO error.");
+				break;
+			case FILE_TOO_LARGE:
+				logger.log(LogLevel.FATAL, "File transfer failed. File too large.");
+				break;
+			case PEER_BAD_PACKET:
+				logger.log(LogLevel.ERROR, "File transfer failed. Client received a bad packet. Error packet response received.");
+				break;
+			case PEER_ERROR:
+				logger.log(LogLevel.ERROR, "File transfer failed. Error Packet Received from client.");
+				break;
+			case RECEIVED_BAD_PACKET:
+				logger.log(LogLevel.ERROR, "File transfer failed. Received a bad packet. Error packet sent in response.");
+				break;
+			case SOCKET_IO_ERROR:
+				logger.log(LogLevel.ERROR, "File transfer failed. Socket IO error.");
+				break;
+			case TIMEOUT:
+				logger.log(LogLevel.ERROR, "File transfer failed. Timed out waiting for client.");
+				break;
+			default:
+				logger.log(LogLevel.FATAL, String.format(
+						"File transfer failed. Unknown error occurred: \"%s\"",
+						state.toString()));
+				sendErrorPacket(TFTPPacket.TFTPError.ERROR, "The file transfer failed for an unknown reason. Terminating Transfer.");
+				break;
+		}
+	}
+
+	/**
+	 * Send the client an error explaining why the file could not be opened.
+	 */
+	private void fileOpenFailed() {
+		// If the file does not exist,is a directory rather than a regular file,or for some other reason cannot be opened for writing.
+		File fileToTest = new File(filename);
+		if (fileToTest.exists() && fileToTest.isFile())
+		{
+			// The file exists and is a file.. Must be an access violation (or some other error)
+			if(!fileToTest.canWrite()) {
+				if(fileToTest.canRead()) {
+					// Read-Only
+					logger.log(LogLevel.ERROR, String.format("The file: "+filename+" could not be opened for writing because it is read-only."));
+					sendErrorPacket(TFTPPacket.TFTPError.ACCESS_VIOLATION, "The file \""+filename+"\" could not be opened for writing because it is read-only.");
+				} else {
+					// Some other reason it can't be written
+					logger.log(LogLevel.ERROR, String.format("The file: "+filename+" could not be opened for writing due to an access violation."));
+					sendErrorPacket(TFTPPacket.TFTPError.ACCESS_VIOLATION, "The file \""+filename+"\" could not be opened for writing due to an access violation.");
+				}
+			} else {
+				// Some other unknown error.
+				logger.log(LogLevel.ERROR, String.format("The file \""+filename+"\" could not be opened for writing due to an unknown file IOError"));
+				sendErrorPacket(TFTPPacket.TFTPError.ERROR, "The file \""+filename+"\" could not be opened for writing due to an unknown file IOError");
+			}
+		} else if (fileToTest.isDirectory()) {
+			// The "File" is a directory
+			logger.log(LogLevel.ERROR, String.format("The file could not be written because it is a directory: \"%s\".", filename));
+			sendErrorPacket(TFTPPacket.TFTPError.FILE_ALREADY_EXISTS, String.format("The file could not be written because it is a directory: \"%s\".", filename));
+		} else {
+			// The file does not exist or is already a directory!
+			logger.log(LogLevel.ERROR, String.format("The file \""+filename+"\" could not be written due to its permissions."));
+			sendErrorPacket(TFTPPacket.TFTPError.ACCESS_VIOLATION, "The file \""+filename+"\" could not be written due to its permissions.");
+		}
+	}
+
+	/**
+	 * The size of the file being written is echoed back to the client.
+	 */
+	@Override
+	protected long getTransferSize(long requested) {
+		return requested;
+	}
 }
@@ -0,0 +1,316 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Runs many transfers on a single thread. Each transfer's channel is
+ * registered with a selector, and the transfer is called when a packet
+ * arrives for it or when a timer that it set expires, so no thread is ever
+ * left blocked waiting on a single peer.
+ * 
+ * Everything other than execute() and close() must be called from the event
+ * loop's own thread. Other threads hand work to the loop with execute().
+ */
+public class ServerEventLoop implements Runnable, Closeable {
+	
+	/**
+	 * Size of the buffer which packets are received into, large enough for a
+	 * DATA or PARITY packet with the largest block size
+	 */
+	public static final int RECEIVE_BUFFER_SIZE = TFTPPacket.MAX_BLOCK_SIZE +
+			TFTPPacket.PARITY.HEADER_SIZE;
+	
+	/**
+	 * Something which is run by the event loop.
+	 */
+	public interface Handler {
+		/**
+		 * Called when the handler's channel has packets waiting to be
+		 * received.
+		 */
+		void ready ();
+		
+		/**
+		 * Called when the handler's timer expires.
+		 */
+		void timeout ();
+	}
+	
+	/**
+	 * Selector which the channels of every transfer on the loop are
+	 * registered with
+	 */
+	private Selector selector;
+	
+	/**
+	 * Timers which have been set
+	 */
+	private TimingWheel timers =
+			new TimingWheel(TimingWheel.DEFAULT_TICK, RetransmitTimer.now());
+	
+	/**
+	 * Work handed to the loop by other threads
+	 */
+	private ConcurrentLinkedQueue<Runnable> tasks =
+			new ConcurrentLinkedQueue<Runnable>();
+	
+	/**
+	 * Called once the selector has dropped the keys cancelled by
+	 * deregister() since the last select
+	 */
+	private List<Runnable> deregistered = new ArrayList<Runnable>();
+	
+	/**
+	 * Pool which the loop's transfers take their packet buffers from
+	 */
+	private BufferPool bufferPool;
+	/**
+	 * Buffer shared by every handler on the loop for receiving packets, only
+	 * one handler runs at a time
+	 */
+	private ByteBuffer receiveBuffer;
+	
+	/**
+	 * Logger used to report handlers which fail
+	 */
+	private Logger logger;
+	
+	/**
+	 * Whether the loop has been asked to stop
+	 */
+	private volatile boolean closed = false;
+	
+	/**
+	 * Create an event loop.
+	 * 
+	 * @param logger The logger used to report errors
+	 * @param bufferPool The pool to take packet buffers from
+	 * @throws IOException If the selector could not be opened
+	 */
+	public ServerEventLoop (Logger logger, BufferPool bufferPool)
+			throws IOException
+	{
+		this.logger = logger;
+		this.bufferPool = bufferPool;
+		this.selector = Selector.open();
+		this.receiveBuffer = bufferPool.acquire(RECEIVE_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Run a task on the loop's thread. May be called from any thread.
+	 * 
+	 * @param task The task to run
+	 */
+	public void execute (Runnable task)
+	{
+		this.tasks.add(task);
+		this.selector.wakeup();
+	}
+	
+	/**
+	 * Make the loop select again, so that a channel which has been closed
+	 * by another thread is released. May be called from any thread.
+	 */
+	public void wakeup ()
+	{
+		this.selector.wakeup();
+	}
+	
+	/**
+	 * Start calling a handler when packets arrive on a channel.
+	 * 
+	 * @param channel The channel, which must be in non-blocking mode
+	 * @param handler The handler to call
+	 * @return The key for the registration, cancelled to stop calling the
+	 * 		   handler
+	 * @throws ClosedChannelException If the channel has been closed
+	 */
+	public SelectionKey register (DatagramChannel channel, Handler handler)
+			throws ClosedChannelException
+	{
+		return channel.register(this.selector, SelectionKey.OP_READ, handler);
+	}
+	
+	/**
+	 * Stop calling a handler for a channel. A cancelled key is only dropped
+	 * by the selector's next select, until then the channel can not be
+	 * registered again or put back in blocking mode.
+	 * 
+	 * @param key The key for the channel's registration
+	 * @param then Called once the channel is no longer registered
+	 */
+	public void deregister (SelectionKey key, Runnable then)
+	{
+		key.cancel();
+		this.deregistered.add(then);
+	}
+	
+	/**
+	 * Call a handler at a given time.
+	 * 
+	 * @param deadline The time at which the handler is called, from
+	 * 				   RetransmitTimer.now()
+	 * @param handler The handler to call
+	 * @return The timer, which can be used to cancel it
+	 */
+	public TimingWheel.Timeout schedule (long deadline, Handler handler)
+	{
+		return this.timers.schedule(deadline,
+				() -> this.call(handler::timeout));
+	}
+	
+	/**
+	 * Get the buffer used to receive packets. Its contents are only valid
+	 * until the handler returns.
+	 * 
+	 * @return The buffer, cleared
+	 */
+	public ByteBuffer getReceiveBuffer ()
+	{
+		this.receiveBuffer.clear().limit(RECEIVE_BUFFER_SIZE);
+		return this.receiveBuffer;
+	}
+	
+	/**
+	 * Get the pool which the loop's transfers take their packet buffers
+	 * from. Buffers are best released on the loop's thread, so that they go
+	 * back to its cache.
+	 * 
+	 * @return The buffer pool
+	 */
+	public BufferPool getBufferPool ()
+	{
+		return this.bufferPool;
+	}
+	
+	/**
+	 * Get the number of channels registered with the loop.
+	 * 
+	 * @return The number of channels
+	 */
+	public int getChannelCount ()
+	{
+		return this.selector.keys().size();
+	}
+	
+	/**
+	 * Run the event loop until it is closed.
+	 */
+	public void run ()
+	{
+		while (!this.closed) {
+			// Work from other threads
+			Runnable task;
+			while ((task = this.tasks.poll()) != null) {
+				this.call(task);
+			}
+			
+			// Keys cancelled before this select are dropped by it, so the
+			// select must not wait if there are any
+			List<Runnable> deregistered = this.deregistered;
+			this.deregistered = new ArrayList<Runnable>();
+			
+			// Wait for packets until the next timer is due
+			try {
+				long wait = deregistered.isEmpty() ? this.nextTimeout() : 0;
+				if (wait < 0) {
+					this.selector.select();
+				} else if (wait == 0) {
+					this.selector.selectNow();
+				} else {
+					this.selector.select(wait);
+				}
+			} catch (IOException e) {
+				this.logger.log(LogLevel.FATAL, "Error: Event loop failed " +
+						"to select. Reason: " + e.getMessage());
+				break;
+			}
+			
+			for (Runnable then : deregistered) {
+				this.call(then);
+			}
+			
+			Iterator<SelectionKey> keys =
+					this.selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (key.isValid() && key.isReadable()) {
+					Handler handler = (Handler)key.attachment();
+					this.call(handler::ready);
+				}
+			}
+			
+			// Expired timers
+			this.timers.expire(RetransmitTimer.now());
+		}
+		
+		// Transfers which have not finished are abandoned
+		for (SelectionKey key : this.selector.keys()) {
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				// Nothing else can be done
+			}
+		}
+		try {
+			this.selector.close();
+		} catch (IOException e) {
+			// Nothing else can be done
+		}
+		this.bufferPool.release(this.receiveBuffer);
+		this.receiveBuffer = null;
+	}
+	
+	/**
+	 * Get the time until the next timer is due.
+	 * 
+	 * @return The time in milliseconds, 0 if a timer is already due or -1 if
+	 * 		   no timers are set
+	 */
+	private long nextTimeout ()
+	{
+		long next = this.timers.nextExpiry();
+		if (next == Long.MAX_VALUE) {
+			return -1;
+		}
+		
+		long remaining = next - RetransmitTimer.now();
+		// Rounded up so that the timer has expired once select returns
+		return (remaining <= 0) ? 0 : (remaining + 999_999L) / 1_000_000L;
+	}
+	
+	/**
+	 * Run a handler, so that a bug in one transfer does not stop the loop
+	 * and every other transfer with it.
+	 * 
+	 * @param task The handler to run
+	 */
+	private void call (Runnable task)
+	{
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			this.logger.log(LogLevel.ERROR, "Error: Event loop handler " +
+					"failed. Reason: " + e.toString());
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Stop the event loop. May be called from any thread.
+	 */
+	public void close ()
+	{
+		this.closed = true;
+		this.selector.wakeup();
+	}
+}
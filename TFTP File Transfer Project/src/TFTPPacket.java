@@ -15,15 +15,40 @@ import java.util.Set;
 public abstract class TFTPPacket {
 	
 	/**
-	 * Maximum TFTP block size
+	 * Default TFTP block size
 	 */
 	public static final int BLOCK_SIZE = 512;
 	
 	/**
-	 * Maximum size for a received TFTP packet
+	 * Smallest block size which can be negotiated (RFC 2348)
+	 */
+	public static final int MIN_BLOCK_SIZE = 8;
+	
+	/**
+	 * Largest block size which can be negotiated (RFC 2348)
+	 */
+	public static final int MAX_BLOCK_SIZE = 65464;
+	
+	/**
+	 * Maximum size for a received TFTP packet with the default block size
 	 */
 	public static final int MAX_SIZE = BLOCK_SIZE + 4;
 	
+	/**
+	 * Maximum size for a received TFTP packet with any negotiated block size
+	 */
+	public static final int MAX_PACKET_SIZE = MAX_BLOCK_SIZE + 4;
+	
+	/**
+	 * Default TFTP window size
+	 */
+	public static final int WINDOW_SIZE = 1;
+	
+	/**
+	 * Largest window size which can be negotiated (RFC 7440)
+	 */
+	public static final int MAX_WINDOW_SIZE = 65535;
+	
 	/**
 	 * Maximum TFTP block number
 	 */
@@ -35,12 +60,27 @@ public abstract class TFTPPacket {
 	public static final int TFTP_TIMEOUT = 3000;
 	
 	/**
-	 * TFTP timeout for re-sending DATA packets
+	 * Longest timeout for re-sending DATA packets in milliseconds, shorter
+	 * timeouts are used once the round trip time to the peer is known
 	 */
 	public static final int TFTP_DATA_TIMEOUT = 3500;
 	
 	/**
-	 * Number of retries before partner is assumed to be missing
+	 * Smallest and largest timeouts which can be negotiated in seconds
+	 * (RFC 2349)
+	 */
+	public static final int MIN_TIMEOUT_OPTION = 1;
+	public static final int MAX_TIMEOUT_OPTION = 255;
+	
+	/**
+	 * Smallest number of blocks which can be covered by each parity packet
+	 * when forward error correction is negotiated
+	 */
+	public static final int MIN_FEC_GROUP = 2;
+	
+	/**
+	 * Number of longest timeouts without a response before partner is
+	 * assumed to be missing
 	 */
 	public static final int TFTP_NUM_RETRIES = 5;
 	
@@ -76,6 +116,18 @@ public abstract class TFTPPacket {
 				this.size());
 	}
 	
+	/**
+	 * Read an unsigned 16 bit field of a packet, such as its opcode.
+	 * 
+	 * @param bytes The packet
+	 * @param index The index of the field's first byte
+	 * @return The value of the field
+	 */
+	static int readShort (byte[] bytes, int index)
+	{
+		return ((bytes[index] & 0xFF) << 8) | (bytes[index + 1] & 0xFF);
+	}
+	
 	
 	/**
 	 * Get a packet object from an array of bytes.
@@ -95,8 +147,7 @@ public abstract class TFTPPacket {
 			throw new IllegalArgumentException("Packet is not long enough.");
 		}
 		
-		TFTPOpcode opcode = TFTPOpcode.fromInt(ByteBuffer.wrap(
-				new byte[] {0, 0, bytes[0], bytes[1]}).getInt());
+		TFTPOpcode opcode = TFTPOpcode.fromInt(readShort(bytes, 0));
 		
 		switch (opcode) {
 		case RRQ:
@@ -111,13 +162,44 @@ public abstract class TFTPPacket {
 			return new TFTPPacket.ERROR(bytes);
 		case OACK:
 			return new TFTPPacket.OACK(bytes);
+		case PARITY:
+			return new TFTPPacket.PARITY(bytes);
 		default:
 			throw new InvalidOpcodeException("Unkown Opcode");
 		}
 	}
 	
-	private static enum TFTPOpcode {
-		RRQ(1), WRQ(2), DATA(3), ACK(4), ERROR(5), OACK(6);
+	/**
+	 * Get a packet object from part of an array of bytes, such as the buffer
+	 * a packet was received into. DATA and ACK packets, which make up almost
+	 * every packet of a transfer, are read straight from the array, any other
+	 * packet is copied out of it first.
+	 * 
+	 * @param bytes The array holding the packet
+	 * @param offset The index of the first byte of the packet
+	 * @param length The number of bytes in the packet
+	 * @return The packet parsed from the provided bytes
+	 * @throws IllegalArgumentException
+	 */
+	public static TFTPPacket parse (byte[] bytes, int offset, int length)
+			throws IllegalArgumentException
+	{
+		if (length < 4) {
+			throw new IllegalArgumentException("Packet is not long enough.");
+		}
+		
+		int opcode = readShort(bytes, offset);
+		if (opcode == TFTPOpcode.DATA.getOpcode()) {
+			return new TFTPPacket.DATA(readShort(bytes, offset + 2),
+					Arrays.copyOfRange(bytes, offset + 4, offset + length));
+		} else if ((opcode == TFTPOpcode.ACK.getOpcode()) && (length == 4)) {
+			return new TFTPPacket.ACK(readShort(bytes, offset + 2));
+		}
+		return parse(Arrays.copyOfRange(bytes, offset, offset + length));
+	}
+	
+	static enum TFTPOpcode {
+		RRQ(1), WRQ(2), DATA(3), ACK(4), ERROR(5), OACK(6), PARITY(7);
 		
 		private int opcode;
 		
@@ -146,6 +228,8 @@ public abstract class TFTPPacket {
 				return TFTPOpcode.ERROR;
 			} else if (opcode == 6) {
 				return TFTPOpcode.OACK;
+			} else if (opcode == 7) {
+				return TFTPOpcode.PARITY;
 			} else {
 				throw new IllegalArgumentException(
 						String.format("Unkown Opcode %d.", opcode));
@@ -235,6 +319,16 @@ public abstract class TFTPPacket {
 			this.code = code;
 		}
 		
+		/**
+		 * Get the integer value of the error code.
+		 * 
+		 * @return The error code
+		 */
+		public int getCode ()
+		{
+			return this.code;
+		}
+		
 		/**
 		 * Create a TFTPError to represent a given error code.
 		 * 
@@ -274,6 +368,52 @@ public abstract class TFTPPacket {
 	 * @author Samuel Dewan
 	 */
 	public static class OptionSet {
+		/**
+		 * Name of the block size option (RFC 2348)
+		 */
+		public static final String BLOCK_SIZE = "blksize";
+		
+		/**
+		 * Name of the window size option (RFC 7440)
+		 */
+		public static final String WINDOW_SIZE = "windowsize";
+		
+		/**
+		 * Name of the transfer size option (RFC 2349)
+		 */
+		public static final String TRANSFER_SIZE = "tsize";
+		
+		/**
+		 * Name of the timeout interval option (RFC 2349)
+		 */
+		public static final String TIMEOUT = "timeout";
+		
+		/**
+		 * Name of the block number rollover option, the value is the block
+		 * number which follows block 65535 (0 or 1)
+		 */
+		public static final String ROLLOVER = "rollover";
+		
+		/**
+		 * Name of the multicast option (RFC 2090), the value is empty in a
+		 * request and "address,port,master" in an acknowledgment
+		 */
+		public static final String MULTICAST = "multicast";
+		
+		/**
+		 * Name of the acknowledgment interval option, the value is the number
+		 * of blocks the receiver acknowledges at once, between 1 and the
+		 * window size. Acknowledging more often than once per window lets the
+		 * sender use congestion control.
+		 */
+		public static final String ACK_INTERVAL = "ackinterval";
+		
+		/**
+		 * Name of the forward error correction option, the value is the
+		 * largest number of DATA packets covered by each PARITY packet
+		 */
+		public static final String FEC = "fec";
+		
 		private Map<String, String> options;
 		
 		/**
@@ -310,7 +450,7 @@ public abstract class TFTPPacket {
 				String option = new String(Arrays.copyOfRange(bytes, position,
 						string_end), StandardCharsets.UTF_8).toLowerCase();
 				
-				position += string_end;
+				position = string_end + 1;
 				
 				// Find end of option value
 				string_end = position;
@@ -326,7 +466,7 @@ public abstract class TFTPPacket {
 				String value = new String(Arrays.copyOfRange(bytes, position,
 						string_end), StandardCharsets.UTF_8);
 				
-				position += string_end;
+				position = string_end + 1;
 				
 				// Add option to map
 				options.put(option, value);
@@ -518,8 +658,7 @@ public abstract class TFTPPacket {
 		{	
 			if (bytes.length < 4) {
 				throw new IllegalArgumentException("Read request is too short");
-			} else if (TFTPOpcode.fromInt(ByteBuffer.wrap(
-					new byte[] {0, 0, bytes[0], bytes[1]}).getInt()) !=
+			} else if (TFTPOpcode.fromInt(readShort(bytes, 0)) !=
 					opcode) {
 				throw new InvalidOpcodeException(
 						"Incorrect opcode for request");
@@ -759,7 +898,7 @@ public abstract class TFTPPacket {
 		{
 			if (blockNum > TFTPPacket.MAX_BLOCK_NUM) {
 				throw new IllegalArgumentException("Block number is too high.");
-			} else if (data.length > TFTPPacket.BLOCK_SIZE) {
+			} else if (data.length > TFTPPacket.MAX_BLOCK_SIZE) {
 				throw new IllegalArgumentException("Data block is too large.");
 			}
 			
@@ -777,15 +916,13 @@ public abstract class TFTPPacket {
 		{
 			if (bytes.length < 4) {
 				throw new IllegalArgumentException("Data packet is too short");
-			} else if (TFTPOpcode.fromInt(ByteBuffer.wrap(
-					new byte[] {0, 0, bytes[0], bytes[1]}).getInt()) !=
+			} else if (TFTPOpcode.fromInt(readShort(bytes, 0)) !=
 					TFTPOpcode.DATA) {
 				throw new InvalidOpcodeException(
 						"Incorrect opcode for data packet");
 			}
 			
-			this.blockNum = ByteBuffer.wrap(
-					new byte[] {0, 0, bytes[2], bytes[3]}).getInt();
+			this.blockNum = readShort(bytes, 2);
 			
 			if (bytes.length > 4) {
 				this.data = Arrays.copyOfRange(bytes, 4, bytes.length);
@@ -885,15 +1022,13 @@ public abstract class TFTPPacket {
 			if (bytes.length != 4) {
 				throw new IllegalArgumentException(
 						"Invalid length for ACK packet");
-			} else if (TFTPOpcode.fromInt(ByteBuffer.wrap(
-					new byte[] {0, 0, bytes[0], bytes[1]}).getInt()) !=
+			} else if (TFTPOpcode.fromInt(readShort(bytes, 0)) !=
 					TFTPOpcode.ACK) {
 				throw new InvalidOpcodeException(
 						"Incorrect opcode for ACK packet");
 			}
 			
-			this.blockNum = ByteBuffer.wrap(
-					new byte[] {0, 0, bytes[2], bytes[3]}).getInt();
+			this.blockNum = readShort(bytes, 2);
 		}
 
 		/**
@@ -975,15 +1110,13 @@ public abstract class TFTPPacket {
 		{	
 			if (bytes.length < 5) {
 				throw new IllegalArgumentException("Error packet is too short");
-			} else if (TFTPOpcode.fromInt(ByteBuffer.wrap(
-					new byte[] {0, 0, bytes[0], bytes[1]}).getInt()) !=
+			} else if (TFTPOpcode.fromInt(readShort(bytes, 0)) !=
 					TFTPOpcode.ERROR) {
 				throw new InvalidOpcodeException(
 						"Incorrect opcode for error packet");
 			}
 			
-			int code = ByteBuffer.wrap(
-					new byte[] {0, 0, bytes[2], bytes[3]}).getInt();
+			int code = readShort(bytes, 2);
 			this.error = TFTPError.fromCode(code);
 
 			// Find end of string
@@ -1084,8 +1217,7 @@ public abstract class TFTPPacket {
 			if (bytes.length < 2) {
 				throw new IllegalArgumentException(
 						"Option acknowledge packet is too short");
-			} else if (TFTPOpcode.fromInt(ByteBuffer.wrap(
-					new byte[] {0, 0, bytes[0], bytes[1]}).getInt()) !=
+			} else if (TFTPOpcode.fromInt(readShort(bytes, 0)) !=
 					TFTPOpcode.OACK) {
 				throw new InvalidOpcodeException(
 						"Incorrect opcode for option acknowledgment packet");
@@ -1129,7 +1261,166 @@ public abstract class TFTPPacket {
 		
 		@Override
 		public int size() {
-			return this.options.size() + 4;
+			return this.options.size() + 2;
+		}
+	}
+	
+	/**
+	 * Represents a parity packet, which is sent after a group of DATA packets
+	 * when forward error correction has been negotiated. The receiver can
+	 * rebuild any one block of the group which was lost from the parity and
+	 * the rest of the group. This packet is not part of the TFTP standard.
+	 */
+	public static class PARITY extends TFTPPacket {
+		/*
+		 *  2 bytes     2 bytes    2 bytes    2 bytes      n bytes
+         *  ----------------------------------------------------------
+         * | Opcode |   Block #  |  Count  |  Length  |    Parity     |
+         *  ----------------------------------------------------------
+		 * 
+		 * Block # is the block number of the first block in the group, Count
+		 * is the number of blocks in the group, Length is the XOR of the
+		 * lengths of the data in each block and Parity is the XOR of the data
+		 * in each block, padded with zeros to the length of the longest.
+		 */
+		
+		/**
+		 * Number of bytes before the parity data
+		 */
+		public static final int HEADER_SIZE = 8;
+		
+		/**
+		 * Block number of the first block covered
+		 */
+		private int blockNum;
+		/**
+		 * Number of blocks covered
+		 */
+		private int count;
+		/**
+		 * XOR of the lengths of the blocks covered
+		 */
+		private int length;
+		/**
+		 * XOR of the data in the blocks covered
+		 */
+		private byte[] parity;
+		
+		/**
+		 * Create a parity packet.
+		 * 
+		 * @param blockNum The block number of the first block covered
+		 * @param count The number of blocks covered
+		 * @param length The XOR of the lengths of the blocks covered
+		 * @param parity The XOR of the data in the blocks covered
+		 * @throws IllegalArgumentException
+		 */
+		public PARITY (int blockNum, int count, int length, byte[] parity)
+				throws IllegalArgumentException
+		{
+			if (blockNum > TFTPPacket.MAX_BLOCK_NUM) {
+				throw new IllegalArgumentException("Block number is too high.");
+			} else if ((count < 1) || (count > 0xFFFF)) {
+				throw new IllegalArgumentException("Invalid block count.");
+			} else if (parity.length > TFTPPacket.MAX_BLOCK_SIZE) {
+				throw new IllegalArgumentException("Parity block is too large.");
+			}
+			
+			this.blockNum = blockNum;
+			this.count = count;
+			this.length = length & 0xFFFF;
+			this.parity = parity;
+		}
+		
+		/**
+		 * Create a parity packet from received data.
+		 * 
+		 * @param bytes The received packet
+		 * @throws IllegalArgumentException
+		 */
+		public PARITY (byte[] bytes) throws IllegalArgumentException
+		{
+			if (bytes.length < HEADER_SIZE) {
+				throw new IllegalArgumentException(
+						"Parity packet is too short");
+			} else if (TFTPOpcode.fromInt(readShort(bytes, 0)) !=
+					TFTPOpcode.PARITY) {
+				throw new InvalidOpcodeException(
+						"Incorrect opcode for parity packet");
+			}
+			
+			ByteBuffer header = ByteBuffer.wrap(bytes);
+			this.blockNum = header.getShort(2) & 0xFFFF;
+			this.count = header.getShort(4) & 0xFFFF;
+			this.length = header.getShort(6) & 0xFFFF;
+			this.parity = Arrays.copyOfRange(bytes, HEADER_SIZE, bytes.length);
+		}
+		
+		/**
+		 * Get the block number of the first block covered.
+		 * 
+		 * @return The block number
+		 */
+		public int getBlockNum ()
+		{
+			return this.blockNum;
+		}
+		
+		/**
+		 * Get the number of blocks covered.
+		 * 
+		 * @return The number of blocks
+		 */
+		public int getCount ()
+		{
+			return this.count;
+		}
+		
+		/**
+		 * Get the XOR of the lengths of the blocks covered.
+		 * 
+		 * @return The XOR of the lengths
+		 */
+		public int getLength ()
+		{
+			return this.length;
+		}
+		
+		/**
+		 * Get the XOR of the data in the blocks covered.
+		 * 
+		 * @return The parity data
+		 */
+		public byte[] getParity ()
+		{
+			return this.parity;
+		}
+		
+		@Override
+		public byte[] toBytes()
+		{
+			ByteBuffer data = ByteBuffer.allocate(this.size());
+			
+			data.putShort((short)TFTPOpcode.PARITY.getOpcode());
+			data.putShort((short)this.blockNum);
+			data.putShort((short)this.count);
+			data.putShort((short)this.length);
+			data.put(this.parity);
+			
+			return data.array();
+		}
+		
+		@Override
+		public String toString()
+		{
+			return String.format("Parity <block number: %d, count: %d, " +
+					"num bytes: %d>", this.blockNum, this.count,
+					this.parity.length);
+		}
+		
+		@Override
+		public int size() {
+			return this.parity.length + HEADER_SIZE;
 		}
 	}
 }
@@ -4,12 +4,23 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Encapsulates the logic of a TFTP file transfer
@@ -26,13 +37,42 @@ public abstract class TFTPTransaction implements Runnable, Closeable {
 		LAST_BLOCK_ACK_TIMEOUT, FILE_TOO_LARGE, FILE_IO_ERROR, SOCKET_IO_ERROR,
 		RECEIVED_INVALID_OPCODE, RECEIVED_BAD_PACKET, PEER_BAD_PACKET,
 		PEER_FILE_NOT_FOUND, PEER_ACCESS_VIOLATION, PEER_DISK_FULL,
-		PEER_FILE_EXISTS, PEER_ERROR, COMPLETE
+		PEER_FILE_EXISTS, PEER_ERROR, OPTION_NEGOTIATION_ERROR,
+		MULTICAST_NOT_SUPPORTED, CANCELLED, COMPLETE
 	}
 	
 	/**
-	 * The socket used to communicate with the peer
+	 * The transport used to communicate with the peer
 	 */
-	private DatagramSocket socket;
+	private Transport transport;
+	/**
+	 * Held while the transport is used. A lock rather than a monitor so that
+	 * a virtual thread which blocks on the transport while holding it
+	 * releases its carrier thread instead of pinning it.
+	 */
+	private final ReentrantLock socketLock = new ReentrantLock();
+	/**
+	 * Buffer which packets are received into, reused for every receive
+	 */
+	private byte[] receiveData = null;
+	/**
+	 * Datagram which packets are received into, reused for every receive
+	 */
+	private DatagramPacket receivePacket = null;
+	/**
+	 * View of the receive buffer which received packets are read from in
+	 * place
+	 */
+	private ByteBuffer receiveBuffer = null;
+	/**
+	 * Reads each received packet in place, reused for every receive
+	 */
+	private PacketCodec codec = new PacketCodec();
+	/**
+	 * Datagram which ACKs are written into, reused for every ACK sent
+	 */
+	private DatagramPacket ackPacket = new DatagramPacket(
+			new byte[PacketCodec.HEADER_SIZE], PacketCodec.HEADER_SIZE);
 	/**
 	 * The address of the peer
 	 */
@@ -43,9 +83,21 @@ public abstract class TFTPTransaction implements Runnable, Closeable {
 	private int remoteTID;
 	
 	/**
-	 * The current state of the transaction
+	 * The current state of the transaction, read by cancel() on another
+	 * thread
+	 */
+	private volatile TFTPTransactionState state;
+	
+	/**
+	 * Whether the transaction has been cancelled by another thread
+	 */
+	private volatile boolean cancelled = false;
+	
+	/**
+	 * Longest a receive waits before checking whether the transaction has
+	 * been cancelled, in nanoseconds
 	 */
-	private TFTPTransactionState state;
+	private static final long CANCEL_CHECK_INTERVAL = 100_000_000L;
 	
 	/**
 	 * Message from error which occurred on peer
@@ -57,18 +109,69 @@ public abstract class TFTPTransaction implements Runnable, Closeable {
 	 */
 	private Logger logger;
 	
+	/**
+	 * Number of bytes of file data carried by each DATA packet
+	 */
+	private int blockSize = TFTPPacket.BLOCK_SIZE;
+	
+	/**
+	 * Number of DATA packets which may be sent before an ACK is required
+	 */
+	private int windowSize = TFTPPacket.WINDOW_SIZE;
+	
+	/**
+	 * Number of DATA packets received for each ACK sent, at most the window
+	 * size
+	 */
+	private int ackInterval = TFTPPacket.WINDOW_SIZE;
+	
+	/**
+	 * Largest number of DATA packets covered by each PARITY packet, or 0 if
+	 * forward error correction is not used
+	 */
+	private int fecGroup = 0;
+	
+	/**
+	 * Size of the file being transfered as given by the transfer size option,
+	 * or -1 if the size is not known
+	 */
+	private long transferSize = -1;
+	
+	/**
+	 * Block number which follows block 65535, or -1 if the block number may
+	 * not roll over
+	 */
+	private int rollover = -1;
+	
+	/**
+	 * Options acknowledgment to be sent to the peer before the first block,
+	 * or null if no options where negotiated
+	 */
+	private TFTPPacket.OACK optionAck = null;
+	
+	/**
+	 * Options which we sent to the peer in our request, or null if we did not
+	 * request any options
+	 */
+	private TFTPPacket.OptionSet requestedOptions = null;
+	
+	/**
+	 * Timer used to decide when packets should be re-sent
+	 */
+	private RetransmitTimer timer = new RetransmitTimer();
+	
 	/**
 	 * Create a TFTPTransaction.
 	 * 
-	 * @param socket The socket used to communicate with the peer
+	 * @param transport The transport used to communicate with the peer
 	 * @param remoteHost The address of the peer
 	 * @param remoteTID The TID of the peer
 	 * @param logger The logger used to log details of packets
 	 */
-	private TFTPTransaction(DatagramSocket socket, InetAddress remoteHost,
+	private TFTPTransaction(Transport transport, InetAddress remoteHost,
 			int remoteTID, Logger logger)
 	{
-		this.socket = socket;
+		this.transport = transport;
 		this.remoteHost = remoteHost;
 		this.remoteTID = remoteTID;
 		this.logger = logger;
@@ -84,49 +187,117 @@ public abstract class TFTPTransaction implements Runnable, Closeable {
 	 */
 	private void sendToRemote(TFTPPacket packet) throws IOException
 	{	
-		synchronized (this.socket) {
+		this.socketLock.lock();
+		try {
 			DatagramPacket outgoing = new DatagramPacket(packet.toBytes(),
 					packet.size(), this.remoteHost, this.remoteTID);
 				
-			this.socket.send(outgoing);
+			this.transport.send(outgoing);
 			
 			this.logger.logPacket(LogLevel.INFO, outgoing, packet, false,
 					"peer");
+		} finally {
+			this.socketLock.unlock();
+		}
+	}
+	
+	/**
+	 * Send a packet which has already been written into a datagram to the
+	 * peer, without building a TFTPPacket for it
+	 * 
+	 * @param outgoing The datagram holding the packet, its address is set
+	 * 				   to the peer's
+	 * @throws IOException
+	 */
+	private void sendToRemote(DatagramPacket outgoing) throws IOException
+	{
+		this.socketLock.lock();
+		try {
+			outgoing.setAddress(this.remoteHost);
+			outgoing.setPort(this.remoteTID);
+			
+			this.transport.send(outgoing);
+			
+			this.logger.logPacket(LogLevel.INFO, outgoing, null, false,
+					"peer");
+		} finally {
+			this.socketLock.unlock();
+		}
+	}
+	
+	/**
+	 * Send an ACK to the peer, written into a datagram which is reused for
+	 * every ACK rather than built from a TFTPPacket
+	 * 
+	 * @param blockNum The block number to acknowledge
+	 * @throws IOException
+	 */
+	private void sendAckToRemote(int blockNum) throws IOException
+	{
+		this.socketLock.lock();
+		try {
+			PacketCodec.putAck(ByteBuffer.wrap(this.ackPacket.getData()),
+					blockNum);
+			this.sendToRemote(this.ackPacket);
+		} finally {
+			this.socketLock.unlock();
 		}
 	}
 	
 	/**
-	 * Receive a TFTPPacket from the remote
+	 * Receive a packet from the remote. The packet is read in place from the
+	 * receive buffer, so nothing is copied or allocated for DATA and ACK
+	 * packets, and it is only valid until the next receive. Packets which
+	 * are not expected during a transfer are checked in full.
 	 * 
-	 * @param timeout Receive timeout in milliseconds
+	 * @param deadline Time at which the receive times out, from
+	 * 				   RetransmitTimer.now()
 	 * @param updateTID Whether the peer's TID should be updated based on the 
 	 * 					TID of the received packet
-	 * @return The received TFTPPacket
-	 * @throws SocketException
+	 * @return The codec wrapping the received packet
+	 * @throws SocketException If the transaction has been cancelled
 	 * @throws IOException
 	 * @throws IllegalArgumentException
 	 */
-	private TFTPPacket receiveFromRemote(int timeout, boolean updateTID)
+	private PacketCodec receiveFromRemote(long deadline, boolean updateTID)
 			throws SocketException, IOException, IllegalArgumentException
 	{
-		synchronized (this.socket) {
-			// Calculate timeout
-			long timeoutTime = System.currentTimeMillis() + timeout;
-			int timeoutMillis = 0;
-			
-			// Continue trying to receive until the timeout runs out
-			while ((timeoutMillis =
-					(int)(timeoutTime - System.currentTimeMillis())) > 0) {
-				// Receive packet
-				this.socket.setSoTimeout(timeoutMillis);
-				
-				byte[] data = new byte[TFTPPacket.MAX_SIZE];
-				DatagramPacket received = new DatagramPacket(data, data.length);
-				
-				this.socket.receive(received);
+		this.socketLock.lock();
+		try {
+			// Continue trying to receive until the deadline, when the
+			// transport throws a SocketTimeoutException
+			for (;;) {
+				// Always leave enough room for a full sized ERROR or OACK,
+				// even if a very small block size has been negotiated, and
+				// for the longer header of a PARITY packet
+				int size = Math.max(this.blockSize, TFTPPacket.BLOCK_SIZE) +
+						TFTPPacket.PARITY.HEADER_SIZE;
+				if ((this.receiveData == null) ||
+						(this.receiveData.length != size)) {
+					this.receiveData = new byte[size];
+					this.receivePacket = new DatagramPacket(this.receiveData,
+							this.receiveData.length);
+					this.receiveBuffer = ByteBuffer.wrap(this.receiveData);
+				}
+				// The last receive left the length at that of its packet
+				DatagramPacket received = this.receivePacket;
+				received.setLength(this.receiveData.length);
 				
-				TFTPPacket packet = TFTPPacket.parse(Arrays.copyOf(
-						received.getData(), received.getLength()));
+				// Wait in short steps so that a cancel is noticed without
+				// closing the socket, which may belong to a pool
+				if (this.cancelled) {
+					throw new SocketException("The transfer was cancelled.");
+				}
+				long wait = Math.min(deadline,
+						RetransmitTimer.now() + CANCEL_CHECK_INTERVAL);
+				try {
+					this.transport.receive(received, wait);
+				} catch (SocketTimeoutException e) {
+					if (wait >= deadline) {
+						throw e;
+					}
+					continue;
+				}
 				
 				// Got packet
 				
@@ -151,7 +322,7 @@ public abstract class TFTPTransaction implements Runnable, Closeable {
 							error.toBytes(), error.size(),
 							received.getAddress(), received.getPort());
 						
-					this.socket.send(outgoing);
+					this.transport.send(outgoing);
 					
 					this.logger.logPacket(LogLevel.INFO, outgoing, error, false,
 							"peer");
@@ -159,15 +330,25 @@ public abstract class TFTPTransaction implements Runnable, Closeable {
 					continue;
 				}
 				
-				// Received packet from valid TID
-				this.logger.logPacket(LogLevel.INFO, received, packet, true,
+				// Received packet from valid TID, read it in place
+				this.receiveBuffer.limit(received.getLength()).position(0);
+				PacketCodec packet = this.codec.wrap(this.receiveBuffer);
+				if ((packet.getOpcode() != PacketCodec.DATA) &&
+						(packet.getOpcode() != PacketCodec.ACK) &&
+						(packet.getOpcode() != PacketCodec.ERROR)) {
+					// Not expected during a transfer, but checked in full so
+					// that a malformed packet is reported as such
+					packet.toPacket();
+				}
+				
+				// Only parsed again if it is logged
+				this.logger.logPacket(LogLevel.INFO, received, null, true,
 						"peer");
 				
 				return packet;
 			}
-			
-			// Socket has timed out
-			throw new SocketTimeoutException();
+		} finally {
+			this.socketLock.unlock();
 		}
 	}
 	
@@ -195,28 +376,360 @@ public abstract class TFTPTransaction implements Runnable, Closeable {
 	 */
 	private void handleErrorPacket (TFTPPacket.ERROR error)
 	{ 
+		this.state = errorState(error);
+		this.errorMessage = error.getDescription();
+		return;
+	}
+	
+	/**
+	 * Set the transaction state based on an error packet read in place.
+	 * 
+	 * @param error The codec wrapping the error packet received
+	 */
+	private void handleErrorPacket (PacketCodec error)
+	{
+		this.handleErrorPacket(new TFTPPacket.ERROR(error.getError(),
+				error.getErrorDescription()));
+	}
+	
+	/**
+	 * Get the state a transaction ends in when an error packet is received.
+	 * 
+	 * @param error The error packet received
+	 * @return The state of the transaction
+	 */
+	static TFTPTransactionState errorState (TFTPPacket.ERROR error)
+	{
 		switch (error.getError()) {
 		case ACCESS_VIOLATION:
-			this.state = TFTPTransactionState.PEER_ACCESS_VIOLATION;
-			break;
+			return TFTPTransactionState.PEER_ACCESS_VIOLATION;
 		case DISK_FULL:
-			this.state = TFTPTransactionState.PEER_DISK_FULL;
-			break;
+			return TFTPTransactionState.PEER_DISK_FULL;
 		case FILE_ALREADY_EXISTS:
-			this.state = TFTPTransactionState.PEER_FILE_EXISTS;
-			break;
+			return TFTPTransactionState.PEER_FILE_EXISTS;
 		case FILE_NOT_FOUND:
-			this.state = TFTPTransactionState.PEER_FILE_NOT_FOUND;
-			break;
+			return TFTPTransactionState.PEER_FILE_NOT_FOUND;
 		case ILLEGAL_OPERATION:
-			this.state = TFTPTransactionState.PEER_BAD_PACKET;
-			break;
+			return TFTPTransactionState.PEER_BAD_PACKET;
 		default:
-			this.state = TFTPTransactionState.PEER_ERROR;
-			break;
+			return TFTPTransactionState.PEER_ERROR;
 		}
-		this.errorMessage = error.getDescription();
-		return;
+	}
+	
+	/**
+	 * Apply a set of options which has been agreed upon with the peer.
+	 * 
+	 * @param options The agreed upon options
+	 */
+	private void applyOptions (TFTPPacket.OptionSet options)
+	{
+		String blockSize = options.getOptionValue(
+				TFTPPacket.OptionSet.BLOCK_SIZE);
+		if (blockSize != null) {
+			this.blockSize = Integer.parseInt(blockSize);
+		}
+		
+		String windowSize = options.getOptionValue(
+				TFTPPacket.OptionSet.WINDOW_SIZE);
+		if (windowSize != null) {
+			this.windowSize = Integer.parseInt(windowSize);
+		}
+		
+		// A window is sent in one burst, whatever does not fit in the
+		// socket's buffers is dropped. The window size was limited to what
+		// fits when it was negotiated, so this only fails if the peer did
+		// not ask for the options it acknowledged.
+		if ((blockSize != null) || (windowSize != null)) {
+			try {
+				if (this.transport.reserveWindow(this.blockSize,
+						this.windowSize) < this.windowSize) {
+					this.logger.log(LogLevel.WARN, String.format("The " +
+							"socket's buffers can not hold a window of %d " +
+							"blocks, some blocks may be dropped.",
+							this.windowSize));
+				}
+			} catch (IOException e) {
+				this.logger.log(LogLevel.WARN, "Could not set the size of " +
+						"the socket's buffers.");
+			}
+		}
+		
+		// Blocks are acknowledged once per window unless asked otherwise
+		String ackInterval = options.getOptionValue(
+				TFTPPacket.OptionSet.ACK_INTERVAL);
+		this.ackInterval = (ackInterval != null) ?
+				Math.min(Integer.parseInt(ackInterval), this.windowSize) :
+				this.windowSize;
+		
+		String fecGroup = options.getOptionValue(TFTPPacket.OptionSet.FEC);
+		if (fecGroup != null) {
+			this.fecGroup = Integer.parseInt(fecGroup);
+		}
+		
+		String transferSize = options.getOptionValue(
+				TFTPPacket.OptionSet.TRANSFER_SIZE);
+		if (transferSize != null) {
+			this.transferSize = Long.parseLong(transferSize);
+		}
+		
+		String rollover = options.getOptionValue(
+				TFTPPacket.OptionSet.ROLLOVER);
+		if (rollover != null) {
+			this.rollover = Integer.parseInt(rollover);
+		}
+		
+		String timeout = options.getOptionValue(TFTPPacket.OptionSet.TIMEOUT);
+		if (timeout != null) {
+			// Both sides must use the negotiated timeout as is
+			this.timer = new RetransmitTimer(Integer.parseInt(timeout) * 1000);
+		}
+	}
+	
+	/**
+	 * Check whether the value of an option in an options acknowledgment is one
+	 * which we can accept given the value that we requested.
+	 * 
+	 * @param option The name of the option
+	 * @param requested The value which we requested
+	 * @param value The value which the peer acknowledged
+	 * @return True if the acknowledged value is acceptable
+	 */
+	private static boolean isAcceptableOption (String option,
+			String requested, String value)
+	{
+		try {
+			if (option.equals(TFTPPacket.OptionSet.BLOCK_SIZE)) {
+				// Peer may only choose a block size smaller than requested
+				int blockSize = Integer.parseInt(value);
+				return (blockSize >= TFTPPacket.MIN_BLOCK_SIZE) &&
+						(blockSize <= Integer.parseInt(requested));
+			} else if (option.equals(TFTPPacket.OptionSet.WINDOW_SIZE)) {
+				// Peer may only choose a window size smaller than requested
+				int windowSize = Integer.parseInt(value);
+				return (windowSize >= 1) &&
+						(windowSize <= Integer.parseInt(requested));
+			} else if (option.equals(TFTPPacket.OptionSet.TRANSFER_SIZE)) {
+				// A request for the size of the file being read has a value
+				// of 0, otherwise the peer must echo the size we sent
+				long transferSize = Long.parseLong(value);
+				if (requested.equals("0")) {
+					return transferSize >= 0;
+				}
+				return transferSize == Long.parseLong(requested);
+			} else if (option.equals(TFTPPacket.OptionSet.ROLLOVER)) {
+				// Peer must use the rollover value we asked for
+				return Integer.parseInt(value) == Integer.parseInt(requested);
+			} else if (option.equals(TFTPPacket.OptionSet.TIMEOUT)) {
+				// Peer must accept the timeout we asked for or leave it out
+				return Integer.parseInt(value) == Integer.parseInt(requested);
+			} else if (option.equals(TFTPPacket.OptionSet.ACK_INTERVAL)) {
+				// Peer must acknowledge as often as we asked
+				return Integer.parseInt(value) == Integer.parseInt(requested);
+			} else if (option.equals(TFTPPacket.OptionSet.FEC)) {
+				// Peer must use the group size we asked for
+				return Integer.parseInt(value) == Integer.parseInt(requested);
+			} else if (option.equals(TFTPPacket.OptionSet.MULTICAST)) {
+				// Value is checked when the multicast group is joined
+				return true;
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		
+		// Unkown option
+		return false;
+	}
+	
+	/**
+	 * Find the network interface which is used to reach a host, so that
+	 * multicast packets are sent and received on the same network as the
+	 * peer.
+	 * 
+	 * @param host The address of the host
+	 * @return The interface or null if it could not be found
+	 */
+	static NetworkInterface findInterface (InetAddress host)
+	{
+		try (DatagramSocket probe = new DatagramSocket()) {
+			// Connecting a datagram socket only selects a route, nothing is
+			// sent
+			probe.connect(host, 9);
+			return NetworkInterface.getByInetAddress(probe.getLocalAddress());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Get the block number sent on the wire for a block.
+	 * 
+	 * @param block The position of the block in the file, starting at 1
+	 * @return The 16 bit block number for the block
+	 */
+	private int toBlockNum (long block)
+	{
+		return toBlockNum(block, this.rollover);
+	}
+	
+	/**
+	 * Get the block number sent on the wire for a block.
+	 * 
+	 * @param block The position of the block in the file, starting at 1
+	 * @param rollover The block number which follows block 65535
+	 * @return The 16 bit block number for the block
+	 */
+	static int toBlockNum (long block, int rollover)
+	{
+		if (block <= TFTPPacket.MAX_BLOCK_NUM) {
+			return (int)block;
+		}
+		
+		// Block numbers after the first 65535 blocks cycle from the rollover
+		// value to 65535
+		long period = (TFTPPacket.MAX_BLOCK_NUM + 1) - rollover;
+		return (int)(rollover +
+				((block - (TFTPPacket.MAX_BLOCK_NUM + 1)) % period));
+	}
+	
+	/**
+	 * Find the block a block number received from the peer refers to.
+	 * 
+	 * @param blockNum The 16 bit block number received
+	 * @param reference The furthest block which the peer could be referring to
+	 * @return The last block at or before reference with the given block
+	 * 		   number, or a block after reference if there is no such block
+	 */
+	private long fromBlockNum (int blockNum, long reference)
+	{
+		return fromBlockNum(blockNum, reference, this.rollover);
+	}
+	
+	/**
+	 * Find the block a block number received from the peer refers to.
+	 * 
+	 * @param blockNum The 16 bit block number received
+	 * @param reference The furthest block which the peer could be referring to
+	 * @param rollover The block number which follows block 65535
+	 * @return The last block at or before reference with the given block
+	 * 		   number, or a block after reference if there is no such block
+	 */
+	static long fromBlockNum (int blockNum, long reference, int rollover)
+	{
+		if ((reference <= TFTPPacket.MAX_BLOCK_NUM) ||
+				(blockNum < rollover)) {
+			// Block numbers have not rolled over yet, or this block number
+			// is only used before the first rollover
+			return blockNum;
+		}
+		
+		long period = (TFTPPacket.MAX_BLOCK_NUM + 1) - rollover;
+		return reference -
+				((toBlockNum(reference, rollover) - blockNum + period) %
+						period);
+	}
+	
+	/**
+	 * Validate and apply an options acknowledgment received from the peer.
+	 * 
+	 * @param oack The options acknowledgment received
+	 * @return True if an error occurred
+	 */
+	private boolean handleOptionAck (TFTPPacket.OACK oack)
+	{
+		if (this.requestedOptions == null) {
+			// We did not ask for any options
+			this.sendErrorPacket(TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+					"Received unexpected option acknowledgment.");
+			this.state = TFTPTransactionState.RECEIVED_BAD_PACKET;
+			return true;
+		}
+		
+		for (String option : oack.getOptions().getOptions()) {
+			String requested = this.requestedOptions.getOptionValue(option);
+			String value = oack.getOptions().getOptionValue(option);
+			
+			if ((requested == null) ||
+					!isAcceptableOption(option, requested, value)) {
+				// Peer acknowledged an option we did not ask for or an
+				// unacceptable value
+				this.sendErrorPacket(
+						TFTPPacket.TFTPError.OPTION_NEGOTIATION_ERROR,
+						String.format("Invalid value for option \"%s\".",
+								option));
+				this.state = TFTPTransactionState.OPTION_NEGOTIATION_ERROR;
+				return true;
+			}
+		}
+		
+		this.applyOptions(oack.getOptions());
+		return false;
+	}
+	
+	/**
+	 * Set the options acknowledgment which should be sent to the peer before
+	 * the transfer starts. The options in the acknowledgment will be used for
+	 * the transfer.
+	 * 
+	 * @param optionAck The options acknowledgment to be sent
+	 */
+	public void setOptionAck (TFTPPacket.OACK optionAck)
+	{
+		this.optionAck = optionAck;
+		this.applyOptions(optionAck.getOptions());
+	}
+	
+	/**
+	 * Set the options which were included in the request that started this
+	 * transaction. If the peer responds with an options acknowledgment it
+	 * will be validated against these options.
+	 * 
+	 * @param requestedOptions The options sent in the request
+	 */
+	public void setRequestedOptions (TFTPPacket.OptionSet requestedOptions)
+	{
+		this.requestedOptions = requestedOptions;
+	}
+	
+	/**
+	 * Get the block size used for this transaction.
+	 * 
+	 * @return The number of bytes of file data in each full DATA packet
+	 */
+	public int getBlockSize ()
+	{
+		return this.blockSize;
+	}
+	
+	/**
+	 * Get the size of the file being transfered.
+	 * 
+	 * @return The size given by the transfer size option or -1 if the size of
+	 * 		   the file is not known
+	 */
+	public long getTransferSize ()
+	{
+		return this.transferSize;
+	}
+	
+	/**
+	 * Get the block number which follows block 65535.
+	 * 
+	 * @return The rollover block number or -1 if block numbers may not roll
+	 * 		   over, limiting the file to 65535 blocks
+	 */
+	public int getRollover ()
+	{
+		return this.rollover;
+	}
+	
+	/**
+	 * Get the window size used for this transaction.
+	 * 
+	 * @return The number of DATA packets sent for each ACK
+	 */
+	public int getWindowSize ()
+	{
+		return this.windowSize;
 	}
 	
 	/**
@@ -226,7 +739,23 @@ public abstract class TFTPTransaction implements Runnable, Closeable {
 	 */
 	public TFTPTransactionState getState ()
 	{
-		return this.state;
+		// Whatever state the transaction stopped in, it stopped because it
+		// was cancelled, unless it finished before the cancel took effect
+		TFTPTransactionState state = this.state;
+		return (this.cancelled && (state != TFTPTransactionState.COMPLETE)) ?
+				TFTPTransactionState.CANCELLED : state;
+	}
+	
+	/**
+	 * Check whether the transaction has not yet ended.
+	 * 
+	 * @return True if the transaction has not started or is still running
+	 */
+	private boolean isInProgress ()
+	{
+		TFTPTransactionState state = this.state;
+		return (state == TFTPTransactionState.INITIALIZED) ||
+				(state == TFTPTransactionState.IN_PROGRESS);
 	}
 	
 	/**
@@ -239,6 +768,31 @@ public abstract class TFTPTransaction implements Runnable, Closeable {
 		return this.errorMessage;
 	}
 	
+	/**
+	 * Stop the transaction from another thread. The peer is sent an error,
+	 * and a receive which is waiting fails within CANCEL_CHECK_INTERVAL so
+	 * that the transaction ends. The transport is left open, since its
+	 * socket may be leased from a pool and must go back to it. A
+	 * transaction which has already ended is left as it is.
+	 */
+	public void cancel ()
+	{
+		if (!this.isInProgress()) {
+			return;
+		}
+		this.cancelled = true;
+		try {
+			// Sent without the socket lock, which is held while waiting for
+			// a packet
+			TFTPPacket.ERROR packet = new TFTPPacket.ERROR(
+					TFTPPacket.TFTPError.ERROR, "The transfer was cancelled.");
+			this.transport.send(new DatagramPacket(packet.toBytes(),
+					packet.size(), this.remoteHost, this.remoteTID));
+		} catch (IOException e) {
+			// Ignore, we don't try to guaranty delivery of ERROR packets
+		}
+	}
+	
 	/**
 	 * Performs a transaction where data is being sent to the remote host
 	 */
@@ -248,71 +802,398 @@ public abstract class TFTPTransaction implements Runnable, Closeable {
 		 * The file being sent
 		 */
 		private FileInputStream file;
+		/**
+		 * Path of the file being sent
+		 */
+		private String sourceFile;
 		/**
 		 * Whether we need to wait for ACK 0 before starting to send data
 		 */
 		private boolean waitAckZero;
 		/**
-		 * Buffer for data read from file
+		 * Ring of DATA packets for the blocks which have been read from the
+		 * file but not yet acknowledged, block i is stored at index
+		 * i % windowSize. Each datagram is reused for every block stored at
+		 * its index, so a block is read straight into the packet which
+		 * carries it and is re-sent without being copied again.
 		 */
-		private byte[] buffer;
-		
+		private DatagramPacket[] window;
 		/**
-		 * Create a TFTPSendTransaction
-		 * 
-		 * @param socket The socket to be used to communicate with the peer
-		 * @param remoteHost The address of the peer
-		 * @param remoteTID The TID of the peer
-		 * @param sourceFile The file to be sent to the peer
-		 * @param waitAckZero Whether we need to wait for ACK 0
-		 * @param logger The logger used to print information on packets
-		 * @throws FileNotFoundException
+		 * Size of the segments the file is mapped in if blocks are sent
+		 * straight from a memory mapping of the file, or 0 to read them
 		 */
-		public TFTPSendTransaction(DatagramSocket socket,
-				InetAddress remoteHost, int remoteTID, String sourceFile,
-				boolean waitAckZero, Logger logger) throws FileNotFoundException
-		{
-			super(socket, remoteHost, remoteTID, logger);
-			this.waitAckZero = waitAckZero;
-			
-			this.file = new FileInputStream(sourceFile);
-			this.buffer = new byte[TFTPPacket.BLOCK_SIZE];
+		private long mapSegmentSize = 0;
+		/**
+		 * Mapping of the file which blocks are sent from, or null if blocks
+		 * are read from the file
+		 */
+		private MappedFile mappedFile = null;
+		/**
+		 * Cache of the files read most often, or null if it is not used
+		 */
+		private FileCache fileCache = null;
+		/**
+		 * DATA packets of the file from the cache which blocks are sent from,
+		 * or null if the file is not cached
+		 */
+		private FileCache.Entry cached = null;
+		/**
+		 * View of the cached packets used to copy them if the cache is off
+		 * the heap
+		 */
+		private ByteBuffer cachedPackets;
+		/**
+		 * Datagram which each block is copied into from the mapping, or which
+		 * points into the cache
+		 */
+		private DatagramPacket blockPacket;
+		/**
+		 * Number of windows of blocks to read ahead of those being sent, or 0
+		 * to read each block when it is first sent
+		 */
+		private int readAheadWindows = 0;
+		/**
+		 * Reads blocks ahead on another thread, or null if blocks are read
+		 * when they are first sent
+		 */
+		private ReadAhead readAhead = null;
+		/**
+		 * Congestion control algorithm used if the peer acknowledges blocks
+		 * more often than once per window, or null to use the default
+		 */
+		private CongestionControl congestionControl = null;
+		/**
+		 * Limits the rate at which packets are sent, or null to send as fast
+		 * as the window allows
+		 */
+		private BandwidthLimiter.Transfer bandwidthLimit = null;
+		
+		/**
+		 * Create a TFTPSendTransaction
+		 * 
+		 * @param socket The socket to be used to communicate with the peer
+		 * @param remoteHost The address of the peer
+		 * @param remoteTID The TID of the peer
+		 * @param sourceFile The file to be sent to the peer
+		 * @param waitAckZero Whether we need to wait for ACK 0
+		 * @param logger The logger used to print information on packets
+		 * @throws FileNotFoundException
+		 */
+		public TFTPSendTransaction(DatagramSocket socket,
+				InetAddress remoteHost, int remoteTID, String sourceFile,
+				boolean waitAckZero, Logger logger) throws FileNotFoundException
+		{
+			this(new UDPTransport(socket), remoteHost, remoteTID, sourceFile,
+					waitAckZero, logger);
 		}
 		
 		/**
-		 * Send a single data block.
+		 * Create a TFTPSendTransaction which communicates with the peer
+		 * over any transport.
+		 * 
+		 * @param transport The transport to be used to communicate with the
+		 * 					peer
+		 * @param remoteHost The address of the peer
+		 * @param remoteTID The TID of the peer
+		 * @param sourceFile The file to be sent to the peer
+		 * @param waitAckZero Whether we need to wait for ACK 0
+		 * @param logger The logger used to print information on packets
+		 * @throws FileNotFoundException
+		 */
+		public TFTPSendTransaction(Transport transport,
+				InetAddress remoteHost, int remoteTID, String sourceFile,
+				boolean waitAckZero, Logger logger) throws FileNotFoundException
+		{
+			super(transport, remoteHost, remoteTID, logger);
+			this.waitAckZero = waitAckZero;
+			
+			this.sourceFile = sourceFile;
+			this.file = new FileInputStream(sourceFile);
+		}
+		
+		/**
+		 * Set the congestion control algorithm which limits the number of
+		 * blocks in flight. It is only used if an acknowledgment interval
+		 * smaller than the window size is negotiated, otherwise a full window
+		 * is always sent.
+		 * 
+		 * @param congestionControl The algorithm to use
+		 */
+		public void setCongestionControl (CongestionControl congestionControl)
+		{
+			this.congestionControl = congestionControl;
+		}
+		
+		/**
+		 * Set the limit on the rate at which DATA and parity packets are
+		 * sent.
+		 * 
+		 * @param bandwidthLimit The limit to wait for before each packet
+		 */
+		public void setBandwidthLimit (BandwidthLimiter.Transfer bandwidthLimit)
+		{
+			this.bandwidthLimit = bandwidthLimit;
+		}
+		
+		/**
+		 * Send blocks straight from a memory mapping of the file rather than
+		 * reading each one into a packet of its own. Re-sent blocks are
+		 * copied from the mapping again instead of being kept.
+		 * 
+		 * @param segmentSize The largest amount of the file to map at once,
+		 * 					  or 0 to read blocks from the file
+		 */
+		public void setMemoryMapped (long segmentSize)
+		{
+			this.mapSegmentSize = segmentSize;
+		}
+		
+		/**
+		 * Read blocks from the file on another thread ahead of sending them,
+		 * so that reading the next windows overlaps waiting for the peer to
+		 * acknowledge the current one. Only used for files which take more
+		 * than one window and are not sent from a memory mapping.
+		 * 
+		 * @param windows The number of windows to read ahead, or 0 to read
+		 * 				  each block when it is first sent
+		 */
+		public void setReadAhead (int windows)
+		{
+			this.readAheadWindows = windows;
+		}
+		
+		/**
+		 * Send the file from a cache of encoded DATA packets, loading it into
+		 * the cache if it is not there. Files too large for the cache are
+		 * sent as usual.
+		 * 
+		 * @param fileCache The cache
+		 */
+		public void setFileCache (FileCache fileCache)
+		{
+			this.fileCache = fileCache;
+		}
+		
+		/**
+		 * Send the options acknowledgment and wait for ACK 0, re-sending the
+		 * options acknowledgment if the ACK does not arrive in time.
 		 * 
-		 * @param blockNum The block number of the block to be sent
-		 * @param resend Whether this is a repeat block, if false a new block
-		 * 				 will be read from the file
 		 * @return True if an error occurred
 		 */
-		private boolean sendDataBlock (int blockNum, boolean resend)
+		private boolean sendOptionAck ()
 		{
-			if (!resend) {
-				// Read next block from file
+			// Whether the options acknowledgment has been re-sent, in which
+			// case ACK 0 can not be used to measure the round trip time
+			boolean resent = false;
+			
+			for (;;) {
+				long sendTime = RetransmitTimer.now();
+				try {
+					super.sendToRemote(super.optionAck);
+				} catch (IOException e) {
+					super.state = TFTPTransactionState.SOCKET_IO_ERROR;
+					return true;
+				}
+				
+				TFTPPacket ack;
 				try {
-					// Get up to a full buffer of data from the file
-					int numBytes = file.read(this.buffer);
-					// If no bytes where read from the file, buffer length
-					// should be 0
-					numBytes = (numBytes < 0) ? 0 : numBytes;
-					// Trim buffer to size
-					this.buffer = Arrays.copyOf(this.buffer, numBytes);
+					ack = super.receiveFromRemote(super.timer.getDeadline(),
+							false).toPacket();
+				} catch (SocketTimeoutException e) {
+					// Receive has timed out, re-send options acknowledgment
+					// unless the peer seems to be gone
+					if (super.timer.expired()) {
+						// Peer never acknowledged the options
+						super.state = TFTPTransactionState.BLOCK_ZERO_TIMEOUT;
+						return true;
+					}
+					resent = true;
+					continue;
+				} catch (SocketException e) {
+					super.state = TFTPTransactionState.SOCKET_IO_ERROR;
+					return true;
+				} catch (IllegalArgumentException e) {
+					super.sendErrorPacket(
+							TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+							String.format("Not a valid packet. " + 
+							"Expected ACK 0."));
+					super.state =
+							TFTPTransactionState.RECEIVED_BAD_PACKET;
+					return true;
 				} catch (IOException e) {
-					// Could not read block from file
+					super.state = TFTPTransactionState.SOCKET_IO_ERROR;
+					return true;
+				}
+				
+				// Validate packet
+				if (ack instanceof TFTPPacket.ERROR) {
+					// Got an error packet, peer has likely rejected our options
+					super.handleErrorPacket((TFTPPacket.ERROR)ack);
+					return true;
+				} else if (!(ack instanceof TFTPPacket.ACK) ||
+						(((TFTPPacket.ACK)ack).getBlockNum() != 0)) {
+					// Got a bad packet, give up
 					super.sendErrorPacket(
-							TFTPPacket.TFTPError.ERROR,
-							String.format("Failed to read data from file."));
-					super.state = TFTPTransactionState.FILE_IO_ERROR;
+							TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+							String.format("Invalid packet. Expected ACK 0."));
+					super.state = TFTPTransactionState.RECEIVED_BAD_PACKET;
 					return true;
 				}
+				
+				// Successfully received ACK 0
+				if (!resent) {
+					super.timer.sample(RetransmitTimer.now() - sendTime);
+				}
+				super.timer.progress();
+				return false;
+			}
+		}
+		
+		/**
+		 * Read the next block from the file into the DATA packet at its
+		 * index in the window.
+		 *
+		 * @param blockNum The position of the block to be read in the file
+		 * @return The datagram holding the DATA packet for the block or null
+		 * 		   if an error occurred
+		 */
+		private DatagramPacket readDataBlock (long blockNum)
+		{
+			int index = (int)(blockNum % this.window.length);
+			if (this.window[index] == null) {
+				this.window[index] = new DatagramPacket(new byte[
+						PacketCodec.HEADER_SIZE + super.blockSize],
+						PacketCodec.HEADER_SIZE + super.blockSize);
+			}
+			DatagramPacket packet = this.window[index];
+			byte[] bytes = packet.getData();
+			
+			int length;
+			try {
+				if (this.readAhead != null) {
+					// Usually read already, blocks are taken in order
+					byte[] block = this.readAhead.next();
+					System.arraycopy(block, 0, bytes, PacketCodec.HEADER_SIZE,
+							block.length);
+					length = block.length;
+				} else {
+					// Get up to a full block of data from the file, no bytes
+					// will be read if the end of the file has been reached
+					length = file.readNBytes(bytes, PacketCodec.HEADER_SIZE,
+							super.blockSize);
+				}
+			} catch (IOException e) {
+				// Could not read block from file
+				super.sendErrorPacket(
+						TFTPPacket.TFTPError.ERROR,
+						String.format("Failed to read data from file."));
+				super.state = TFTPTransactionState.FILE_IO_ERROR;
+				return null;
+			}
+			
+			PacketCodec.putDataHeader(ByteBuffer.wrap(bytes),
+					super.toBlockNum(blockNum), super.blockSize);
+			packet.setLength(PacketCodec.HEADER_SIZE + length);
+			return packet;
+		}
+		
+		/**
+		 * Send a single data block.
+		 *
+		 * @param packet The datagram holding the DATA packet for the block
+		 * @return True if an error occurred
+		 */
+		private boolean sendDataBlock (DatagramPacket packet)
+		{
+			this.pace(packet.getLength());
+			try {
+				super.sendToRemote(packet);
+			} catch (IOException e) {
+				// Failed to send block
+				super.state = TFTPTransactionState.SOCKET_IO_ERROR;
+				return true;
+			}
+			
+			return false;
+		}
+		
+		/**
+		 * Send a single data block, copying it from the mapping of the file
+		 * straight into the datagram which carries it.
+		 * 
+		 * @param blockNum The position of the block to be sent in the file
+		 * @param encoder The encoder to add the block to, or null if it is
+		 * 				  being re-sent or parity is not used
+		 * @return True if an error occurred
+		 */
+		private boolean sendMappedBlock (long blockNum,
+				ForwardErrorCorrection.Encoder encoder)
+		{
+			byte[] bytes = this.blockPacket.getData();
+			int length;
+			try {
+				ByteBuffer packet = ByteBuffer.wrap(bytes);
+				PacketCodec.putDataHeader(packet, super.toBlockNum(blockNum),
+						super.blockSize);
+				length = this.mappedFile.read(blockNum, packet);
+			} catch (IOException e) {
+				// Could not map the part of the file holding the block, or
+				// the file was truncated while it was being sent
+				super.sendErrorPacket(
+						TFTPPacket.TFTPError.ERROR,
+						String.format("Failed to read data from file."));
+				super.state = TFTPTransactionState.FILE_IO_ERROR;
+				return true;
+			}
+			if (encoder != null) {
+				encoder.add(blockNum, bytes, PacketCodec.HEADER_SIZE, length);
+			}
+			
+			this.blockPacket.setLength(PacketCodec.HEADER_SIZE + length);
+			this.pace(PacketCodec.HEADER_SIZE + length);
+			try {
+				super.sendToRemote(this.blockPacket);
+			} catch (IOException e) {
+				// Failed to send block
+				super.state = TFTPTransactionState.SOCKET_IO_ERROR;
+				return true;
+			}
+			
+			return false;
+		}
+		
+		/**
+		 * Send a single data block from the cache, straight out of the
+		 * cache's array, or copied into the datagram if the cache is off the
+		 * heap.
+		 * 
+		 * @param blockNum The position of the block to be sent in the file
+		 * @param encoder The encoder to add the block to, or null if it is
+		 * 				  being re-sent or parity is not used
+		 * @return True if an error occurred
+		 */
+		private boolean sendCachedBlock (long blockNum,
+				ForwardErrorCorrection.Encoder encoder)
+		{
+			int offset = this.cached.getOffset(blockNum);
+			int length = this.cached.getLength(blockNum);
+			if (this.cachedPackets.hasArray()) {
+				this.blockPacket.setData(this.cachedPackets.array(),
+						this.cachedPackets.arrayOffset() + offset, length);
+			} else {
+				this.cachedPackets.limit(offset + length).position(offset);
+				this.cachedPackets.get(this.blockPacket.getData(), 0, length);
+				this.blockPacket.setLength(length);
+			}
+			if (encoder != null) {
+				encoder.add(blockNum, this.blockPacket.getData(),
+						this.blockPacket.getOffset() + PacketCodec.HEADER_SIZE,
+						length - PacketCodec.HEADER_SIZE);
 			}
 			
-			// Send block to client
-			TFTPPacket.DATA data = new TFTPPacket.DATA(blockNum, this.buffer);
+			this.pace(length);
 			try {
-				super.sendToRemote(data);
+				super.sendToRemote(this.blockPacket);
 			} catch (IOException e) {
 				// Failed to send block
 				super.state = TFTPTransactionState.SOCKET_IO_ERROR;
@@ -322,20 +1203,68 @@ public abstract class TFTPTransaction implements Runnable, Closeable {
 			return false;
 		}
 		
+		/**
+		 * Send a parity packet for the blocks added to an encoder since the
+		 * last parity packet was sent.
+		 * 
+		 * @param encoder The encoder to which the blocks have been added
+		 * @return True if an error occurred
+		 */
+		private boolean sendParity (ForwardErrorCorrection.Encoder encoder)
+		{
+			TFTPPacket.PARITY parity = encoder.finish(
+					super.toBlockNum(encoder.getFirstBlock()));
+			this.pace(parity.size());
+			try {
+				super.sendToRemote(parity);
+			} catch (IOException e) {
+				super.state = TFTPTransactionState.SOCKET_IO_ERROR;
+				return true;
+			}
+			
+			return false;
+		}
+		
+		/**
+		 * Wait until the bandwidth limit allows a packet to be sent.
+		 * 
+		 * @param size The size of the packet about to be sent
+		 */
+		private void pace (int size)
+		{
+			if (this.bandwidthLimit == null) {
+				return;
+			}
+			
+			try {
+				this.bandwidthLimit.acquire(size);
+			} catch (InterruptedException e) {
+				// Send the packet anyway, whoever interrupted the thread
+				// will find out once the transaction returns
+				Thread.currentThread().interrupt();
+			}
+		}
+		
 		/**
 		 * Run transaction.
 		 */
 		public void run()
 		{
 			super.state = TFTPTransactionState.IN_PROGRESS;
-						
-			// Listen for ACK 0 if required
-			if (this.waitAckZero) {
+			
+			if (super.optionAck != null) {
+				// Send options acknowledgment and wait for ACK 0
+				if (this.sendOptionAck()) {
+					return;
+				}
+			} else if (this.waitAckZero) {
+				// Listen for ACK 0 or options acknowledgment
 				// Receive a packet
 				TFTPPacket ack;
 				try {
-					ack = super.receiveFromRemote(TFTPPacket.TFTP_TIMEOUT,
-							true);
+					ack = super.receiveFromRemote(RetransmitTimer.now() +
+							TFTPPacket.TFTP_TIMEOUT * 1_000_000L, true)
+							.toPacket();
 				} catch (SocketTimeoutException e) {
 					// Receive has timed out, don't bother trying again
 					super.state = TFTPTransactionState.BLOCK_ZERO_TIMEOUT;
@@ -360,6 +1289,11 @@ public abstract class TFTPTransaction implements Runnable, Closeable {
 					// Got an error packet
 					super.handleErrorPacket((TFTPPacket.ERROR)ack);
 					return;
+				} else if (ack instanceof TFTPPacket.OACK) {
+					// Peer has accepted some of our options
+					if (super.handleOptionAck((TFTPPacket.OACK)ack)) {
+						return;
+					}
 				} else if (!(ack instanceof TFTPPacket.ACK) ||
 						(((TFTPPacket.ACK)ack).getBlockNum() != 0)) {
 					// Got a bad packet, give up
@@ -372,12 +1306,45 @@ public abstract class TFTPTransaction implements Runnable, Closeable {
 				// Successfully received ACK 0
 			}
 			
-			// Find the total number of blocks to be sent
+			// The block size is now known, so the file can be found in the
+			// cache
+			if (this.fileCache != null) {
+				try {
+					this.cached = this.fileCache.get(this.sourceFile,
+							super.blockSize);
+				} catch (IOException e) {
+					super.sendErrorPacket(
+							TFTPPacket.TFTPError.ERROR,
+							String.format("Failed to read data from file."));
+					super.state = TFTPTransactionState.FILE_IO_ERROR;
+					return;
+				}
+			}
+			
+			// Find the total number of blocks to be sent, blocks are either
+			// sent from the cache, sent from a mapping of the file or kept in
+			// the window once read until they are acknowledged, which needs
+			// the now known window size
 			long numBlocks = 0;
 			try {
-				numBlocks = (int)
-						((file.getChannel().size() / TFTPPacket.BLOCK_SIZE)
-								+ 1);
+				if (this.cached != null) {
+					this.cachedPackets = this.cached.getPackets().duplicate();
+					this.blockPacket = new DatagramPacket(new byte[
+							PacketCodec.HEADER_SIZE + super.blockSize],
+							PacketCodec.HEADER_SIZE + super.blockSize);
+					numBlocks = this.cached.getBlockCount();
+				} else if (this.mapSegmentSize > 0) {
+					this.mappedFile = new MappedFile(this.file.getChannel(),
+							super.blockSize, this.mapSegmentSize);
+					this.blockPacket = new DatagramPacket(new byte[
+							PacketCodec.HEADER_SIZE + super.blockSize],
+							PacketCodec.HEADER_SIZE + super.blockSize);
+					numBlocks = (this.mappedFile.size() / super.blockSize) + 1;
+				} else {
+					this.window = new DatagramPacket[super.windowSize];
+					numBlocks = (this.file.getChannel().size() /
+							super.blockSize) + 1;
+				}
 			} catch (IOException e) {
 				// Didn't even manage to get the file size
 				super.sendErrorPacket(
@@ -386,8 +1353,10 @@ public abstract class TFTPTransaction implements Runnable, Closeable {
 				super.state = TFTPTransactionState.FILE_IO_ERROR;
 				return;
 			}
-			// Check that file can be sent over TFTP
-			if (numBlocks > TFTPPacket.MAX_BLOCK_NUM) {
+			// Check that file can be sent over TFTP, there is no limit if the
+			// block number can roll over
+			if ((super.rollover < 0) &&
+					(numBlocks > TFTPPacket.MAX_BLOCK_NUM)) {
 				// Too many blocks
 				super.sendErrorPacket(
 						TFTPPacket.TFTPError.ERROR,
@@ -396,188 +1365,1081 @@ public abstract class TFTPTransaction implements Runnable, Closeable {
 				return;
 			}
 			
+			if ((this.cached == null) && (this.mappedFile == null) &&
+					(this.readAheadWindows > 0) &&
+					(numBlocks > super.windowSize)) {
+				int depth = (int)Math.min(Integer.MAX_VALUE,
+						(long)super.windowSize * this.readAheadWindows);
+				this.readAhead = new ReadAhead(this.file.getChannel(),
+						super.blockSize, depth);
+			}
+			
+			// Send all the blocks, keeping up to a full window of blocks in
+			// flight at once. If the peer acknowledges blocks more often than
+			// once per window the number of blocks in flight is limited by the
+			// congestion window instead, but never below the acknowledgment
+			// interval so that the peer always has enough blocks to ACK.
+			int windowSize = super.windowSize;
+			CongestionControl congestion = null;
+			if (super.ackInterval < windowSize) {
+				congestion = (this.congestionControl != null) ?
+						this.congestionControl : new CongestionControl.AIMD();
+			}
+			// Number of blocks which may currently be in flight
+			int sendLimit = windowSize;
+			// Builds the parity packets sent after each group of blocks if
+			// forward error correction is used
+			ForwardErrorCorrection.Encoder encoder = null;
+			if (super.fecGroup > 0) {
+				encoder = new ForwardErrorCorrection.Encoder(super.fecGroup,
+						super.blockSize);
+			}
+			// Last block acknowledged by the peer
+			long ackedBlock = 0;
+			// Next block to be sent
+			long nextBlock = 1;
+			// Last block which has been read from the file and sent
+			long readBlock = 0;
+			// Time at which each block in the window was sent, or -1 if it has
+			// been re-sent and so can not be used to measure the round trip
+			// time (Karn's rule)
+			long[] sendTimes = new long[windowSize];
+			// Number of ACKs received for ackedBlock since it was first
+			// acknowledged
+			int duplicateAcks = 0;
+			// Last block sent when a lost block was last re-sent, repeated
+			// ACKs do not cause another re-send until this block is
+			// acknowledged
+			long recoveryBlock = 0;
 			
-			// Send all the blocks
-			TFTPPacket ack = null;
+			long retransmitTime = 0;
 			
-			for (int i = 1; i <= (int)numBlocks; i++) {
-				int retries = 0;
-				
-				// Send data block i
-				long retransmitTime = System.currentTimeMillis() +
-						TFTPPacket.TFTP_DATA_TIMEOUT;
-				boolean blockFailed = this.sendDataBlock(i, false);
-				if (blockFailed) {
-					return;
+			while (ackedBlock < numBlocks) {
+				if (congestion != null) {
+					sendLimit = Math.max(super.ackInterval,
+							Math.min(windowSize, congestion.getWindow()));
 				}
 				
-				while (retries < TFTPPacket.TFTP_NUM_RETRIES) {
-					// Wait for ACK i
-					ack = null;
-					
-					int timeout = (int)
-							(retransmitTime - System.currentTimeMillis());
-					
-					if (timeout > 0) {
-						try {
-							ack = super.receiveFromRemote(timeout, false);
-						} catch (SocketTimeoutException e) {
-							// Receive has timed out, previous DATA needs to be
-							// resent
-						} catch (SocketException e) {
-							super.state = TFTPTransactionState.SOCKET_IO_ERROR;
-							return;
-						} catch (IllegalArgumentException e) {
-							super.sendErrorPacket(
-									TFTPPacket.TFTPError.ILLEGAL_OPERATION,
-									String.format("Not a valid packet. " + 
-										"Expected ACK %d.", i));
-							if (e instanceof TFTPPacket.InvalidOpcodeException) {
-								super.state =
-								   TFTPTransactionState.RECEIVED_INVALID_OPCODE;
-							} else {
-								super.state =
-									TFTPTransactionState.RECEIVED_BAD_PACKET;
+				// Send any blocks in the window which have not been sent yet
+				while ((nextBlock <= numBlocks) &&
+						(nextBlock <= ackedBlock + sendLimit)) {
+					boolean resent = (nextBlock <= readBlock);
+					boolean blockFailed;
+					if (this.cached != null) {
+						// Already encoded, nothing is read or kept
+						blockFailed = this.sendCachedBlock(nextBlock,
+								resent ? null : encoder);
+					} else if (this.mappedFile != null) {
+						// Copied from the mapping every time it is sent
+						blockFailed = this.sendMappedBlock(nextBlock,
+								resent ? null : encoder);
+					} else {
+						if (!resent) {
+							// First time sending this block, read it from the
+							// file
+							DatagramPacket data = this.readDataBlock(nextBlock);
+							if (data == null) {
+								return;
+							}
+							if (encoder != null) {
+								encoder.add(nextBlock, data.getData(),
+										PacketCodec.HEADER_SIZE,
+										data.getLength() -
+										PacketCodec.HEADER_SIZE);
 							}
-							return;
-						} catch (IOException e) {
-							super.state = TFTPTransactionState.SOCKET_IO_ERROR;
-							return;
 						}
+						
+						blockFailed = this.sendDataBlock(
+								this.window[(int)(nextBlock % windowSize)]);
 					}
+					if (blockFailed) {
+						return;
+					}
+					readBlock = Math.max(readBlock, nextBlock);
+					// Time is taken after sending so that waiting for the
+					// bandwidth limit is not counted in the round trip time
+					sendTimes[(int)(nextBlock % windowSize)] =
+							resent ? -1 : RetransmitTimer.now();
 					
-					// Check that received ACK is valid
-					if (ack instanceof TFTPPacket.ACK) {
-						if (((TFTPPacket.ACK)ack).getBlockNum() == i) {
-							// Got ACK, ready to send next data block
-							break;
-						} else if (((TFTPPacket.ACK)ack).getBlockNum() < i) {
-							// Probably a duplicated or delayed ACK, should be
-							// ignored
-							continue;
-						} else if (((TFTPPacket.ACK)ack).getBlockNum() > i) {
-							// Invalid packet
-							super.sendErrorPacket(
-									TFTPPacket.TFTPError.ILLEGAL_OPERATION,
-									String.format("ACK has bad block number. " +
-											"Expected ACK %d.", i));
+					retransmitTime = super.timer.getDeadline();
+					nextBlock++;
+					
+					if ((encoder != null) && encoder.isFull() &&
+							this.sendParity(encoder)) {
+						return;
+					}
+				}
+				
+				// The peer waits for the rest of the window before sending an
+				// ACK, so the parity for the blocks sent so far is needed now
+				// to avoid waiting for the timeout if one was lost
+				if ((encoder != null) && !encoder.isEmpty() &&
+						this.sendParity(encoder)) {
+					return;
+				}
+				
+				// Wait for the ACK for the window, read in place
+				PacketCodec ack = null;
+				
+				try {
+					ack = super.receiveFromRemote(retransmitTime, false);
+				} catch (SocketTimeoutException e) {
+					// Receive has timed out, window needs to be resent
+				} catch (SocketException e) {
+					super.state = TFTPTransactionState.SOCKET_IO_ERROR;
+					return;
+				} catch (IllegalArgumentException e) {
+					super.sendErrorPacket(
+							TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+							String.format("Not a valid packet. " +
+								"Expected ACK %d.",
+								super.toBlockNum(nextBlock - 1)));
+					if (e instanceof TFTPPacket.InvalidOpcodeException) {
+						super.state =
+							TFTPTransactionState.RECEIVED_INVALID_OPCODE;
+					} else {
+						super.state =
+							TFTPTransactionState.RECEIVED_BAD_PACKET;
+					}
+					return;
+				} catch (IOException e) {
+					super.state = TFTPTransactionState.SOCKET_IO_ERROR;
+					return;
+				}
+				
+				// Check that received ACK is valid
+				if ((ack != null) && (ack.getOpcode() == PacketCodec.ACK)) {
+					// Blocks up to the last one read may have been sent even
+					// if they are about to be re-sent
+					long blockNum = super.fromBlockNum(ack.getBlockNum(),
+							readBlock);
+					
+					if ((blockNum > ackedBlock) && (blockNum <= readBlock)) {
+						// Peer has every block up to this one
+						long sendTime = sendTimes[(int)(blockNum % windowSize)];
+						long rtt = -1;
+						if (sendTime >= 0) {
+							rtt = RetransmitTimer.now() - sendTime;
+							super.timer.sample(rtt);
+						}
+						super.timer.progress();
+						
+						if (congestion != null) {
+							// The rest of the blocks in flight are still on
+							// their way
+							congestion.acknowledged(
+									(int)(blockNum - ackedBlock), rtt);
+							duplicateAcks = 0;
+							nextBlock = Math.max(nextBlock, blockNum + 1);
+						} else {
+							// If this is not the last block sent the blocks
+							// after it where lost, so the window is resent
+							// starting after this block.
+							nextBlock = blockNum + 1;
+						}
+						ackedBlock = blockNum;
+						continue;
+					} else if ((blockNum == ackedBlock) &&
+							(congestion != null)) {
+						// The peer acknowledges the last block it has again
+						// for each block it receives after a missing one.
+						// Once enough of these have arrived the block is
+						// assumed to be lost and is re-sent without waiting
+						// for the timeout (fast retransmit), along with the
+						// blocks after it which the peer has discarded.
+						duplicateAcks++;
+						if ((duplicateAcks ==
+									CongestionControl.DUPLICATE_ACK_THRESHOLD)
+								&& (ackedBlock >= recoveryBlock)) {
+							congestion.lost();
+							recoveryBlock = nextBlock - 1;
+							nextBlock = ackedBlock + 1;
+						}
+						continue;
+					} else if (blockNum <= ackedBlock) {
+						// Probably a duplicated or delayed ACK, should be
+						// ignored
+						continue;
+					} else {
+						// Invalid packet
+						super.sendErrorPacket(
+								TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+								String.format("ACK has bad block number. " +
+										"Expected ACK %d.",
+										super.toBlockNum(nextBlock - 1)));
+						super.state =
+								TFTPTransactionState.RECEIVED_BAD_PACKET;
+						return;
+					}
+				} else if ((ack != null) &&
+						(ack.getOpcode() == PacketCodec.ERROR)) {
+					// Got an error packet
+					super.handleErrorPacket(ack);
+					return;
+				} else if (ack != null) {
+					// Received something that is not an ACK
+					super.sendErrorPacket(
+							TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+							String.format("Invalid packet. " +
+							"Expected ACK %d.",
+							super.toBlockNum(nextBlock - 1)));
+					super.state = TFTPTransactionState.RECEIVED_BAD_PACKET;
+					return;
+				}
+				
+				// Receive timed out, back off before re-sending
+				if (super.timer.expired()) {
+					// Timed out waiting for ACK, if the last block has been
+					// sent the peer may have every block and only its final
+					// ACK was lost, whatever was acknowledged before it
+					if (readBlock == numBlocks) {
+						super.state =
+								TFTPTransactionState.LAST_BLOCK_ACK_TIMEOUT;
+					} else {
+						super.state = TFTPTransactionState.TIMEOUT;
+					}
+					return;
+				}
+				
+				// Re-send every unacknowledged block in the window
+				if (congestion != null) {
+					congestion.timedOut();
+					duplicateAcks = 0;
+					recoveryBlock = nextBlock - 1;
+				}
+				nextBlock = ackedBlock + 1;
+			}
+			
+			super.state = TFTPTransactionState.COMPLETE;
+		}
+
+		public void close() throws IOException {
+			if (this.readAhead != null) {
+				this.readAhead.close();
+			}
+			// Mappings of the file stay valid after it is closed
+			this.file.close();
+		}
+	}
+	
+	/**
+	 * Encapsulates a transaction where DATA packets are received and ACK are
+	 * sent.
+	 */
+	public static class TFTPReceiveTransaction extends TFTPTransaction
+								implements Runnable, Closeable {
+		/**
+		 * The file in which data should be saved.
+		 */
+		private FileOutputStream file;
+		/**
+		 * File object used to test for disk-fullness if an error occures
+		 */
+		private File parentFile;
+		/**
+		 * Largest file which may be received
+		 */
+		private long maxFileSize = Long.MAX_VALUE;
+		/**
+		 * Number of bytes written to the file so far
+		 */
+		private long bytesWritten = 0;
+		/**
+		 * Whether an ACK 0 packet should be send before waiting for the first
+		 * DATA.
+		 */
+		private boolean sendAckZero;
+		/**
+		 * Whether the TID should be updated based on the first DATA packet.
+		 */
+		private boolean updateTID;
+		
+		
+		/**
+		 * Create a TFTPReceiveTransaction.
+		 * 
+		 * @param socket The socket to be used in the transaction
+		 * @param remoteHost The address of the peer
+		 * @param remoteTID The TID of the peer
+		 * @param destFile Path to where the received file should be stored
+		 * @param sendAckZero Whether ACK 0 should be sent before waiting for
+		 * 					  the first DATA
+		 * @param updateTID Whether the TID should be updated based on the
+		 * 					first DATA received
+		 * @param logger The logger used to print packet information
+		 * @throws FileNotFoundException
+		 */
+		public TFTPReceiveTransaction(DatagramSocket socket,
+				InetAddress remoteHost, int remoteTID,  String destFile,
+				boolean sendAckZero, boolean updateTID, Logger logger)
+						throws FileNotFoundException
+		{
+			this(new UDPTransport(socket), remoteHost, remoteTID, destFile,
+					sendAckZero, updateTID, logger);
+		}
+		
+		/**
+		 * Create a TFTPReceiveTransaction which communicates with the peer
+		 * over any transport.
+		 * 
+		 * @param transport The transport to be used in the transaction
+		 * @param remoteHost The address of the peer
+		 * @param remoteTID The TID of the peer
+		 * @param destFile Path to where the received file should be stored
+		 * @param sendAckZero Whether ACK 0 should be sent before waiting for
+		 * 					  the first DATA
+		 * @param updateTID Whether the TID should be updated based on the
+		 * 					first DATA received
+		 * @param logger The logger used to print packet information
+		 * @throws FileNotFoundException
+		 */
+		public TFTPReceiveTransaction(Transport transport,
+				InetAddress remoteHost, int remoteTID,  String destFile,
+				boolean sendAckZero, boolean updateTID, Logger logger)
+						throws FileNotFoundException
+		{
+			super(transport, remoteHost, remoteTID, logger);
+			this.sendAckZero = sendAckZero;
+			this.updateTID = updateTID;
+			
+			this.file = new FileOutputStream(destFile);
+			this.parentFile = (new File(destFile)).getAbsoluteFile()
+					.getParentFile();
+		}
+		
+		/**
+		 * Set the largest file which may be received. If the peer sends more
+		 * data than this the transfer will be aborted.
+		 * 
+		 * @param maxFileSize The maximum file size in bytes
+		 */
+		public void setMaxFileSize (long maxFileSize)
+		{
+			this.maxFileSize = maxFileSize;
+		}
+		
+		/**
+		 * Check that a file of the size given by the transfer size option can
+		 * be received and extend the destination file to that size, so that
+		 * space for the whole file is reserved up front instead of the file
+		 * being grown a block at a time.
+		 * 
+		 * @return True if an error occurred
+		 */
+		private boolean preallocate ()
+		{
+			long size = super.transferSize;
+			
+			if (size > this.maxFileSize) {
+				super.sendErrorPacket(TFTPPacket.TFTPError.DISK_FULL,
+						String.format("File exceeds the maximum size of %d " +
+								"bytes.", this.maxFileSize));
+				super.state = TFTPTransactionState.FILE_TOO_LARGE;
+				return true;
+			} else if (this.parentFile.getUsableSpace() < size) {
+				super.sendErrorPacket(TFTPPacket.TFTPError.DISK_FULL,
+						"Not enough space for file.");
+				super.state = TFTPTransactionState.FILE_IO_ERROR;
+				return true;
+			} else if (size == 0) {
+				// Nothing to reserve
+				return false;
+			}
+			
+			try {
+				// Write the last byte of the file, data is written over the
+				// rest of the file from the start as it is received
+				this.file.getChannel().write(ByteBuffer.wrap(new byte[1]),
+						size - 1);
+			} catch (IOException e) {
+				super.sendErrorPacket(TFTPPacket.TFTPError.DISK_FULL,
+						"Could not allocate space for file.");
+				super.state = TFTPTransactionState.FILE_IO_ERROR;
+				return true;
+			}
+			
+			return false;
+		}
+		
+		/**
+		 * Send an ACK packet.
+		 * 
+		 * @param blockNum The position of the block to acknowledge in the file
+		 * @return
+		 */
+		private boolean sendAck (long blockNum)
+		{
+			try {
+				super.sendAckToRemote(super.toBlockNum(blockNum));
+			} catch (IllegalArgumentException e) {
+				// This should never actually happen
+				e.printStackTrace();
+				System.exit(1);
+			} catch (IOException e) {
+				super.state = TFTPTransactionState.SOCKET_IO_ERROR;
+				return true;
+			}
+			
+			return false;
+		}
+		
+		/**
+		 * Send ACK 0, or the options acknowledgment in its place.
+		 * 
+		 * @return True if an error occurred
+		 */
+		private boolean sendFirstAck ()
+		{
+			if (super.optionAck == null) {
+				return this.sendAck(0);
+			}
+			try {
+				super.sendToRemote(super.optionAck);
+			} catch (IOException e) {
+				super.state = TFTPTransactionState.SOCKET_IO_ERROR;
+				return true;
+			}
+			return false;
+		}
+		
+		/**
+		 * Run the transaction.
+		 */
+		public void run()
+		{
+			super.state = TFTPTransactionState.IN_PROGRESS;
+			
+			// Position in the file of the next block expected
+			long blockNum = 1;
+			
+			// Whether an options acknowledgment has been received from the
+			// peer and answered with ACK 0
+			boolean optionsAccepted = false;
+			
+			// Last block which we have acknowledged
+			long lastAck = 0;
+			// Number of blocks received since the last ACK was sent
+			int blocksSinceAck = 0;
+			// Whether a block was missing from the current window and the
+			// last block received in order has already been acknowledged
+			boolean gapAcked = false;
+			// Time at which the last ACK was sent, or -1 if it has been
+			// re-sent and so can not be used to measure the round trip time
+			long ackTime = -1;
+			// Keeps blocks which may be needed to rebuild a lost block if
+			// forward error correction is used
+			ForwardErrorCorrection.Decoder decoder = null;
+			if (super.fecGroup > 0) {
+				decoder = new ForwardErrorCorrection.Decoder(super.windowSize);
+			}
+			
+			// Reserve space for the file if its size is already known
+			if ((super.transferSize >= 0) && this.preallocate()) {
+				return;
+			}
+			
+			// Send ACK 0, or an options acknowledgment in its place, if
+			// required
+			if (this.sendAckZero) {
+				if (this.sendFirstAck()) {
+					return;
+				}
+				ackTime = RetransmitTimer.now();
+			}
+			
+			// Loop through all blocks, the first block is waited for for the
+			// longest retransmission timeout since we have no idea how long the
+			// peer will take to respond. Each packet is read in place from the
+			// receive buffer and its data written straight from there.
+			PacketCodec data = null;
+			long retransmitTime = RetransmitTimer.now() +
+					TFTPPacket.TFTP_DATA_TIMEOUT * 1_000_000L;
+			
+			for (;;) {
+				// The next block may already have been received after a lost
+				// block, or rebuilt from a parity packet, in which case it is
+				// used without waiting for the peer
+				byte[] kept = (decoder != null) ? decoder.get(blockNum) : null;
+				data = null;
+				
+				// Receive some data
+				try {
+					if (kept == null) {
+						data = super.receiveFromRemote(retransmitTime,
+								((blockNum == 1) && this.updateTID));
+					}
+				} catch (SocketTimeoutException e) {
+					// Receive has timed out, previous ACK needs to be
+					// resent
+				} catch (SocketException e) {
+					super.state = TFTPTransactionState.SOCKET_IO_ERROR;
+					return;
+				} catch (IllegalArgumentException e) {
+					super.sendErrorPacket(
+							TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+							String.format("Not a valid packet. " +
+							"Expected DATA %d.", super.toBlockNum(blockNum)));
+					if (e instanceof TFTPPacket.InvalidOpcodeException) {
+						super.state =
+							TFTPTransactionState.RECEIVED_INVALID_OPCODE;
+					} else {
+						super.state =
+							TFTPTransactionState.RECEIVED_BAD_PACKET;
+					}
+					return;
+				} catch (IOException e) {
+					super.state = TFTPTransactionState.SOCKET_IO_ERROR;
+					return;
+				}
+				
+				// Check that received data is valid
+				if ((kept != null) || ((data != null) &&
+						(data.getOpcode() == PacketCodec.DATA))) {
+					ByteBuffer payload = (kept != null) ?
+							ByteBuffer.wrap(kept) : data.payload();
+					int length = payload.remaining();
+					if (length > super.blockSize) {
+						// The receive buffer has room for more than a block,
+						// a longer block must not reach the file
+						super.sendErrorPacket(
+								TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+								String.format("DATA is longer than the " +
+										"block size of %d bytes.",
+										super.blockSize));
+						super.state = TFTPTransactionState.RECEIVED_BAD_PACKET;
+						return;
+					}
+					
+					// Find the block in the file, it can be at most a window
+					// ahead of the block we expect
+					long dataBlock = (kept != null) ? blockNum :
+							super.fromBlockNum(data.getBlockNum(),
+									blockNum + super.windowSize - 1);
+					
+					if (dataBlock == blockNum) {
+						if (this.bytesWritten + length > this.maxFileSize) {
+							// Peer has sent more than we are willing to
+							// store, checked before the block is written
+							// so that nothing over the limit is left on
+							// the disk
+							super.sendErrorPacket(
+									TFTPPacket.TFTPError.DISK_FULL,
+									String.format("File exceeds the " +
+									"maximum size of %d bytes.",
+									this.maxFileSize));
 							super.state =
-									TFTPTransactionState.RECEIVED_BAD_PACKET;
+									TFTPTransactionState.FILE_TOO_LARGE;
+							return;
+						}
+						
+						if ((decoder != null) && (kept == null)) {
+							decoder.store(blockNum, payload);
+						}
+						
+						// Received the data that we expected, write to file
+						try {
+							FileChannel channel = this.file.getChannel();
+							while (payload.hasRemaining()) {
+								channel.write(payload);
+							}
+							this.bytesWritten += length;
+						} catch (IOException e) {
+							super.state =
+									TFTPTransactionState.FILE_IO_ERROR;
+							
+							if (this.parentFile.getFreeSpace() == 0) {
+								// Disk is full
+								super.sendErrorPacket(
+										TFTPPacket.TFTPError.DISK_FULL,
+										"Disk full");
+							} else {
+								super.sendErrorPacket(
+										TFTPPacket.TFTPError.ERROR,
+										String.format(
+										   "Failed to write to the file."));
+							}
+							
+							return;
+						}
+						
+						boolean lastBlock = length < super.blockSize;
+						blocksSinceAck++;
+						gapAcked = false;
+						
+						// The first block after an ACK which was only sent
+						// once measures the round trip time
+						if ((ackTime >= 0) && (kept == null)) {
+							super.timer.sample(RetransmitTimer.now() - ackTime);
+							ackTime = -1;
+						}
+						super.timer.progress();
+						retransmitTime = super.timer.getDeadline();
+						
+						// Send ACK for the last block of each window, or
+						// more often if an acknowledgment interval was
+						// negotiated, and for the final block
+						if (lastBlock ||
+								(blocksSinceAck == super.ackInterval)) {
+							boolean ackFailed = this.sendAck(blockNum);
+							if (ackFailed) {
+								return;
+							}
+							lastAck = blockNum;
+							blocksSinceAck = 0;
+							ackTime = RetransmitTimer.now();
+						}
+						
+						if (lastBlock) {
+							// Transaction complete
+							super.state = TFTPTransactionState.COMPLETE;
+							return;
+						} else {
+							// Continue to waiting for next block
+							blockNum++;
+							
+							if ((super.rollover < 0) &&
+									(blockNum > TFTPPacket.MAX_BLOCK_NUM)) {
+								// Block number would wrap but rollover was not
+								// negotiated
+								super.sendErrorPacket(
+										TFTPPacket.TFTPError.ERROR,
+										String.format("Block number limit exceeded. File too large."));
+								super.state =
+										TFTPTransactionState.FILE_TOO_LARGE;
+								return;
+							}
+						}
+						continue;
+					} else if (dataBlock < blockNum) {
+						// Probably a duplicate or delayed data packet. If
+						// it is the last block we acknowledged our ACK may
+						// have been lost, so re-send it.
+						if (dataBlock == lastAck) {
+							boolean ackFailed = this.sendAck(lastAck);
+							if (ackFailed) {
+								return;
+							}
+						}
+						continue;
+					} else if (dataBlock < blockNum + super.windowSize) {
+						// A block in the window was lost
+						if (decoder != null) {
+							// Keep the block so that it is not needed again.
+							// The lost block can still be rebuilt until the
+							// rest of its group has been sent, since the
+							// parity for a group is sent right after it.
+							decoder.store(dataBlock, payload);
+							if (dataBlock < blockNum + super.fecGroup) {
+								continue;
+							}
+						}
+						
+						// Acknowledge the last block received in order so
+						// that the peer re-sends the window starting at the
+						// missing block, the rest of this window is ignored
+						// unless it was kept. A peer using congestion
+						// control needs an ACK for every block after the
+						// gap to detect the loss.
+						if (!gapAcked ||
+								(super.ackInterval < super.windowSize)) {
+							retransmitTime = super.timer.getDeadline();
+							
+							boolean ackFailed = this.sendAck(blockNum - 1);
+							if (ackFailed) {
+								return;
+							}
+							lastAck = blockNum - 1;
+							blocksSinceAck = 0;
+							gapAcked = true;
+							ackTime = RetransmitTimer.now();
+						}
+						continue;
+					} else {
+						// Block number is too high
+						super.sendErrorPacket(
+								TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+								String.format("Received bad DATA block. " +
+								"Expected DATA %d.",
+								super.toBlockNum(blockNum)));
+						super.state =
+								TFTPTransactionState.RECEIVED_BAD_PACKET;
+						return;
+					}
+				} else if ((data != null) &&
+						(data.getOpcode() == PacketCodec.PARITY) &&
+						(decoder != null)) {
+					// Already checked in full when it was received
+					TFTPPacket.PARITY parity =
+							(TFTPPacket.PARITY)data.toPacket();
+					long firstBlock = super.fromBlockNum(parity.getBlockNum(),
+							blockNum + super.windowSize - 1);
+					
+					if ((firstBlock + parity.getCount() <= blockNum) ||
+							(decoder.repair(blockNum, firstBlock, parity)
+									!= null)) {
+						// Either nothing in the group was lost, or the lost
+						// block was rebuilt and is written on the next pass
+						continue;
+					}
+					
+					// More than one block in the group was lost, or the
+					// parity for the group with the lost block was lost.
+					// The lost block has to be re-sent.
+					if (!gapAcked) {
+						retransmitTime = super.timer.getDeadline();
+						
+						boolean ackFailed = this.sendAck(blockNum - 1);
+						if (ackFailed) {
+							return;
+						}
+						lastAck = blockNum - 1;
+						blocksSinceAck = 0;
+						gapAcked = true;
+						ackTime = RetransmitTimer.now();
+					}
+					continue;
+				} else if ((data != null) &&
+						(data.getOpcode() == PacketCodec.ERROR)) {
+					// Got an error packet
+					super.handleErrorPacket(data);
+					return;
+				} else if ((data != null) &&
+						(data.getOpcode() == PacketCodec.OACK) &&
+						(blockNum == 1)) {
+					// Peer has accepted some of our options, or has
+					// re-sent its options acknowledgment because our
+					// ACK 0 was lost
+					if (!optionsAccepted) {
+						if (super.handleOptionAck(
+								(TFTPPacket.OACK)data.toPacket())) {
+							return;
+						}
+						optionsAccepted = true;
+						// TID has been taken from the options
+						// acknowledgment
+						this.updateTID = false;
+						
+						if (super.fecGroup > 0) {
+							decoder = new ForwardErrorCorrection.Decoder(
+									super.windowSize);
+						}
+						
+						// Reserve space for the file if the peer told us
+						// its size
+						if ((super.transferSize >= 0) &&
+								this.preallocate()) {
 							return;
 						}
-					} else if (ack instanceof TFTPPacket.ERROR) {
-						// Got an error packet
-						super.handleErrorPacket((TFTPPacket.ERROR)ack);
-						return;
-					} else if (ack != null) {
-						// Received something that is not an ACK
-						super.sendErrorPacket(
-								TFTPPacket.TFTPError.ILLEGAL_OPERATION,
-								String.format("Invalid packet. " +
-								"Expected ACK %d.", i));
-						super.state = TFTPTransactionState.RECEIVED_BAD_PACKET;
-						return;
 					}
 					
+					retransmitTime = super.timer.getDeadline();
 					
-					// Receive timed out, re-send data block i
-					retries++;
-					
-					retransmitTime = System.currentTimeMillis() +
-							TFTPPacket.TFTP_DATA_TIMEOUT;
-					
-					blockFailed = this.sendDataBlock(i, true);
-					if (blockFailed) {
+					boolean ackFailed = this.sendAck(0);
+					if (ackFailed) {
 						return;
 					}
+					ackTime = RetransmitTimer.now();
+					continue;
+				} else if (data != null) {
+					// Received something that is not data
+					super.sendErrorPacket(
+							TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+							String.format("Invalid packet. " +
+							"Expected DATA %d.", super.toBlockNum(blockNum)));
+					super.state = TFTPTransactionState.RECEIVED_BAD_PACKET;
+					return;
 				}
 				
-				if (retries == TFTPPacket.TFTP_NUM_RETRIES) {
-					// Timed out waiting for ACK
-					if (i == numBlocks) {
-						super.state =
-								TFTPTransactionState.LAST_BLOCK_ACK_TIMEOUT;
-					} else {
-						super.state = TFTPTransactionState.TIMEOUT;
-					}
+				// Received timed out
+				boolean firstBlock = (blockNum == 1) && !optionsAccepted &&
+						!gapAcked;
+				if (firstBlock && !this.sendAckZero) {
+					// If this is data 1 of a read, there is no previous ACK
+					// to retransmit
+					super.state = TFTPTransactionState.BLOCK_ZERO_TIMEOUT;
+					return;
+				} else if (super.timer.expired()) {
+					// Timed out waiting for data
+					super.state = firstBlock ?
+							TFTPTransactionState.BLOCK_ZERO_TIMEOUT :
+							TFTPTransactionState.TIMEOUT;
 					return;
+				} else if (firstBlock) {
+					// ACK 0 or the options acknowledgment may have been
+					// lost. A copy of the request which the peer re-sends
+					// is dropped as a duplicate of this transfer, so it is
+					// re-sent from here.
+					retransmitTime = super.timer.getDeadline();
+					if (this.sendFirstAck()) {
+						return;
+					}
+					ackTime = -1;
+				} else {
+					// Re-send previous ACK, backing off the timeout
+					retransmitTime = super.timer.getDeadline();
+					
+					// Send ACK
+					boolean ackFailed = this.sendAck(blockNum - 1);
+					if (ackFailed) {
+						return;
+					}
+					lastAck = blockNum - 1;
+					blocksSinceAck = 0;
+					ackTime = -1;
 				}
 			}
-			
-			super.state = TFTPTransactionState.COMPLETE;
 		}
 
 		public void close() throws IOException {
-			
+			this.file.flush();
+			// Remove any preallocated space which was not filled
+			this.file.getChannel().truncate(this.bytesWritten);
+			this.file.close();
 		}
 	}
 	
 	/**
-	 * Encapsulates a transaction where DATA packets are received and ACK are
-	 * sent.
+	 * Encapsulates a multicast read (RFC 2090). DATA is received from a
+	 * multicast group which is shared with every other client reading the
+	 * same file, so blocks can arrive in any order and are written to the
+	 * file wherever they belong. ACKs are only sent while the server has made
+	 * us the master client.
 	 */
-	public static class TFTPReceiveTransaction extends TFTPTransaction
+	public static class TFTPMulticastReceiveTransaction extends TFTPTransaction
 								implements Runnable, Closeable {
 		/**
-		 * The file in which data should be saved.
+		 * Longest time without hearing from the server before a client which
+		 * is not the master client gives up, this is longer than the server
+		 * waits for a master client so that we are not given up on while the
+		 * server is replacing a master client which has disappeared
 		 */
-		private FileOutputStream file;
+		private static final long IDLE_TIMEOUT = 2L * RetransmitTimer.MAX_TIMEOUT *
+				TFTPPacket.TFTP_NUM_RETRIES;
+		
 		/**
-		 * File object used to test for disk-fullness if an error occures
+		 * The file in which data should be saved
+		 */
+		private RandomAccessFile file;
+		/**
+		 * File object used to check for free space
 		 */
 		private File parentFile;
 		/**
-		 * Whether an ACK 0 packet should be send before waiting for the first
-		 * DATA.
+		 * Socket on which DATA is received from the multicast group
 		 */
-		private boolean sendAckZero;
+		private MulticastSocket groupSocket = null;
 		/**
-		 * Whether the TID should be updated based on the first DATA packet.
+		 * Packets received on either socket, waiting to be handled
 		 */
-		private boolean updateTID;
-		
+		private BlockingQueue<DatagramPacket> receivedPackets =
+				new LinkedBlockingQueue<DatagramPacket>();
+		/**
+		 * Blocks which have been received
+		 */
+		private BitSet receivedBlocks = new BitSet();
+		/**
+		 * Number of the last block of the file, or -1 if it has not been
+		 * received yet
+		 */
+		private int lastBlock = -1;
+		/**
+		 * Size of the file up to the end of the furthest block received
+		 */
+		private long fileSize = 0;
+		/**
+		 * Whether the server has made us the master client
+		 */
+		private boolean master = false;
 		
 		/**
-		 * Create a TFTPReceiveTransaction.
+		 * Create a TFTPMulticastReceiveTransaction.
 		 * 
-		 * @param socket The socket to be used in the transaction
-		 * @param remoteHost The address of the peer
-		 * @param remoteTID The TID of the peer
+		 * @param socket The socket used to send the request and ACKs
+		 * @param remoteHost The address of the server
+		 * @param remoteTID The TID of the server's listener
 		 * @param destFile Path to where the received file should be stored
-		 * @param sendAckZero Whether ACK 0 should be sent before waiting for
-		 * 					  the first DATA
-		 * @param updateTID Whether the TID should be updated based on the
-		 * 					first DATA received
 		 * @param logger The logger used to print packet information
 		 * @throws FileNotFoundException
 		 */
-		public TFTPReceiveTransaction(DatagramSocket socket,
-				InetAddress remoteHost, int remoteTID,  String destFile,
-				boolean sendAckZero, boolean updateTID, Logger logger)
-						throws FileNotFoundException
+		public TFTPMulticastReceiveTransaction(DatagramSocket socket,
+				InetAddress remoteHost, int remoteTID, String destFile,
+				Logger logger) throws FileNotFoundException
 		{
-			super(socket, remoteHost, remoteTID, logger);
-			this.sendAckZero = sendAckZero;
-			this.updateTID = updateTID;
+			super(new UDPTransport(socket), remoteHost, remoteTID, logger);
 			
-			this.file = new FileOutputStream(destFile);
-			this.parentFile = (new File(destFile)).getParentFile();
+			this.file = new RandomAccessFile(destFile, "rw");
+			this.parentFile = (new File(destFile)).getAbsoluteFile()
+					.getParentFile();
+		}
+		
+		/**
+		 * Start a thread which moves every packet received on a transport
+		 * into the queue of received packets, until the transport is closed.
+		 * 
+		 * @param transport The transport to receive from
+		 */
+		private void startReader (Transport transport)
+		{
+			Thread reader = new Thread(() -> {
+				// Received into a buffer large enough for any packet, which is
+				// reused, and only the bytes of the packet are queued
+				byte[] data = new byte[TFTPPacket.MAX_PACKET_SIZE];
+				DatagramPacket received = new DatagramPacket(data, data.length);
+				try {
+					for (;;) {
+						received.setLength(data.length);
+						transport.receive(received, Long.MAX_VALUE);
+						this.receivedPackets.add(new DatagramPacket(
+								Arrays.copyOf(data, received.getLength()),
+								received.getLength(),
+								received.getSocketAddress()));
+					}
+				} catch (IOException e) {
+					// Transport has been closed
+				}
+			});
+			reader.setDaemon(true);
+			reader.start();
+		}
+		
+		/**
+		 * Receive the next packet from the server on either socket.
+		 * 
+		 * @param deadline Time at which the receive times out
+		 * @return The received packet or null if the receive timed out
+		 * @throws IllegalArgumentException
+		 */
+		private TFTPPacket receiveFromServer (long deadline)
+				throws IllegalArgumentException
+		{
+			long remaining = 0;
+			
+			while ((remaining = deadline - RetransmitTimer.now()) > 0) {
+				DatagramPacket received = null;
+				try {
+					received = this.receivedPackets.poll(remaining,
+							TimeUnit.NANOSECONDS);
+				} catch (InterruptedException e) {
+					return null;
+				}
+				
+				if (received == null) {
+					// Timed out
+					return null;
+				} else if (!received.getAddress().equals(super.remoteHost) ||
+						(received.getPort() != super.remoteTID)) {
+					// Every packet in the session comes from the server's TID,
+					// anything else is ignored
+					super.logger.log(LogLevel.WARN, String.format("Received " +
+							"packet from unknown source %s:%d, ignoring.",
+							received.getAddress().toString(),
+							received.getPort()));
+					continue;
+				}
+				
+				TFTPPacket packet = TFTPPacket.parse(received.getData(),
+						received.getOffset(), received.getLength());
+				super.logger.logPacket(LogLevel.INFO, received, packet, true,
+						"peer");
+				return packet;
+			}
+			
+			return null;
+		}
+		
+		/**
+		 * Read the multicast option from an options acknowledgment.
+		 * 
+		 * @param oack The options acknowledgment
+		 * @return The address, port and master client flag, the address and
+		 * 		   port may be empty strings, or null if the option is missing
+		 * 		   or invalid
+		 */
+		private static String[] parseMulticastOption (TFTPPacket.OACK oack)
+		{
+			String value = oack.getOptions().getOptionValue(
+					TFTPPacket.OptionSet.MULTICAST);
+			if (value == null) {
+				return null;
+			}
+			
+			String[] parts = value.split(",", -1);
+			if ((parts.length != 3) ||
+					!(parts[2].equals("0") || parts[2].equals("1"))) {
+				return null;
+			}
+			return parts;
+		}
+		
+		/**
+		 * Join the multicast group given in the first options acknowledgment
+		 * from the server.
+		 * 
+		 * @param multicast The parsed multicast option
+		 * @return True if an error occurred
+		 */
+		private boolean joinGroup (String[] multicast)
+		{
+			try {
+				InetAddress group = InetAddress.getByName(multicast[0]);
+				int port = Integer.parseInt(multicast[1]);
+				if (multicast[0].isEmpty() || !group.isMulticastAddress()) {
+					throw new IllegalArgumentException();
+				}
+				
+				this.groupSocket = new MulticastSocket(port);
+				this.groupSocket.joinGroup(new InetSocketAddress(group, port),
+						findInterface(super.remoteHost));
+			} catch (IllegalArgumentException | IOException e) {
+				// NumberFormatException is an IllegalArgumentException
+				super.sendErrorPacket(
+						TFTPPacket.TFTPError.OPTION_NEGOTIATION_ERROR,
+						"Could not join multicast group.");
+				super.state = TFTPTransactionState.OPTION_NEGOTIATION_ERROR;
+				return true;
+			}
+			
+			return false;
+		}
+		
+		/**
+		 * Store a received block in the file.
+		 * 
+		 * @param data The DATA packet for the block
+		 * @return True if an error occurred
+		 */
+		private boolean writeBlock (TFTPPacket.DATA data)
+		{
+			long position = (data.getBlockNum() - 1L) * super.blockSize;
+			ByteBuffer buffer = ByteBuffer.wrap(data.getData());
+			
+			try {
+				while (buffer.hasRemaining()) {
+					this.file.getChannel().write(buffer,
+							position + buffer.position());
+				}
+			} catch (IOException e) {
+				super.sendErrorPacket(TFTPPacket.TFTPError.ERROR,
+						"Failed to write to the file.");
+				super.state = TFTPTransactionState.FILE_IO_ERROR;
+				return true;
+			}
+			
+			this.fileSize = Math.max(this.fileSize,
+					position + data.getData().length);
+			return false;
 		}
 		
 		/**
 		 * Send an ACK packet.
 		 * 
 		 * @param blockNum The block number to acknowledge
-		 * @return
+		 * @return True if an error occurred
 		 */
 		private boolean sendAck (int blockNum)
 		{
 			try {
-				super.sendToRemote(new TFTPPacket.ACK(blockNum));
-			} catch (IllegalArgumentException e) {
-				// This should never actually happen
-				e.printStackTrace();
-				System.exit(1);
+				super.sendAckToRemote(blockNum);
 			} catch (IOException e) {
 				super.state = TFTPTransactionState.SOCKET_IO_ERROR;
 				return true;
@@ -593,191 +2455,244 @@ public abstract class TFTPTransaction implements Runnable, Closeable {
 		{
 			super.state = TFTPTransactionState.IN_PROGRESS;
 			
-			int blockNum = 1;
+			// Wait for the server to accept the request
+			TFTPPacket response = null;
+			try {
+				response = super.receiveFromRemote(RetransmitTimer.now() +
+						TFTPPacket.TFTP_TIMEOUT * 1_000_000L, true)
+						.toPacket();
+			} catch (SocketTimeoutException e) {
+				super.state = TFTPTransactionState.BLOCK_ZERO_TIMEOUT;
+				return;
+			} catch (IllegalArgumentException e) {
+				super.sendErrorPacket(TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+						"Not a valid packet. Expected OACK.");
+				super.state = TFTPTransactionState.RECEIVED_BAD_PACKET;
+				return;
+			} catch (IOException e) {
+				super.state = TFTPTransactionState.SOCKET_IO_ERROR;
+				return;
+			}
+			
+			if (response instanceof TFTPPacket.ERROR) {
+				super.handleErrorPacket((TFTPPacket.ERROR)response);
+				return;
+			}
 			
-			// Send ACK 0 if required
-			if (this.sendAckZero) {
-				TFTPPacket.ACK ackZero = new TFTPPacket.ACK(0);
+			String[] multicast = null;
+			if (response instanceof TFTPPacket.OACK) {
+				multicast = parseMulticastOption((TFTPPacket.OACK)response);
+			}
+			if (multicast == null) {
+				// Server has started a normal transfer, end it so that the
+				// file can be requested again without the multicast option
+				super.sendErrorPacket(
+						TFTPPacket.TFTPError.OPTION_NEGOTIATION_ERROR,
+						"Multicast transfer required.");
+				super.state = TFTPTransactionState.MULTICAST_NOT_SUPPORTED;
+				return;
+			}
+			
+			if (super.handleOptionAck((TFTPPacket.OACK)response) ||
+					this.joinGroup(multicast)) {
+				return;
+			}
+			
+			// Reserve space for the file if the server told us its size
+			if (super.transferSize >= 0) {
 				try {
-					super.sendToRemote(ackZero);
+					if (this.parentFile.getUsableSpace() < super.transferSize) {
+						throw new IOException();
+					}
+					this.file.setLength(super.transferSize);
 				} catch (IOException e) {
-					super.state = TFTPTransactionState.SOCKET_IO_ERROR;
+					super.sendErrorPacket(TFTPPacket.TFTPError.DISK_FULL,
+							"Not enough space for file.");
+					super.state = TFTPTransactionState.FILE_IO_ERROR;
 					return;
 				}
 			}
 			
-			// Loop through all blocks
-			TFTPPacket data = null;
-			long retransmitTime = System.currentTimeMillis() +
-					TFTPPacket.TFTP_DATA_TIMEOUT;
+			// Every packet from here on is received through the queue
+			this.startReader(super.transport);
+			this.startReader(new UDPTransport(this.groupSocket));
+			
+			// Last block before which every block has been received
+			int contiguous = 0;
+			// Last block which we have acknowledged
+			int lastAck = 0;
+			// Whether the missing block after contiguous has been reported
+			boolean gapAcked = false;
+			// Time at which the last ACK was sent, or -1 if it has been
+			// re-sent and so can not be used to measure the round trip time
+			long ackTime = -1;
+			// Time at which we last heard from the server
+			long lastHeard = RetransmitTimer.now();
+			
+			this.master = multicast[2].equals("1");
+			if (this.master) {
+				if (this.sendAck(contiguous)) {
+					return;
+				}
+				ackTime = RetransmitTimer.now();
+			}
+			long retransmitTime = super.timer.getDeadline();
 			
 			for (;;) {
-				// Receive data and send ACK
-				
-				int retries = 0;
+				TFTPPacket packet = null;
+				try {
+					packet = this.receiveFromServer(retransmitTime);
+				} catch (IllegalArgumentException e) {
+					super.sendErrorPacket(
+							TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+							"Not a valid packet.");
+					super.state = TFTPTransactionState.RECEIVED_BAD_PACKET;
+					return;
+				}
 				
-				while (retries < TFTPPacket.TFTP_NUM_RETRIES) {
-					// Receive some data
-					data = null;
+				if (packet instanceof TFTPPacket.DATA) {
+					TFTPPacket.DATA data = (TFTPPacket.DATA)packet;
+					int blockNum = data.getBlockNum();
+					lastHeard = RetransmitTimer.now();
 					
-					int timeout = (int)
-							(retransmitTime - System.currentTimeMillis());
-					
-					if (timeout > 0) {
-						try {
-							data = super.receiveFromRemote(timeout,
-									((blockNum == 1) && this.updateTID));
-						} catch (SocketTimeoutException e) {
-							// Receive has timed out, previous ACK needs to be
-							// resent
-						} catch (SocketException e) {
-							super.state = TFTPTransactionState.SOCKET_IO_ERROR;
-							return;
-						} catch (IllegalArgumentException e) {
-							super.sendErrorPacket(
-									TFTPPacket.TFTPError.ILLEGAL_OPERATION,
-									String.format("Not a valid packet. " +
-									"Expected DATA %d.", blockNum));
-							if (e instanceof TFTPPacket.InvalidOpcodeException) {
-								super.state =
-								   TFTPTransactionState.RECEIVED_INVALID_OPCODE;
-							} else {
-								super.state =
-									TFTPTransactionState.RECEIVED_BAD_PACKET;
-							}
-							return;
-						} catch (IOException e) {
-							super.state = TFTPTransactionState.SOCKET_IO_ERROR;
+					if ((blockNum == 0) || ((this.lastBlock >= 0) &&
+							(blockNum > this.lastBlock))) {
+						// Can not be part of the file
+						continue;
+					} else if (!this.receivedBlocks.get(blockNum)) {
+						// New block, other clients may have caused it to be
+						// sent but it is just as useful to us
+						if (this.writeBlock(data)) {
 							return;
 						}
+						this.receivedBlocks.set(blockNum);
+						if (data.getData().length < super.blockSize) {
+							this.lastBlock = blockNum;
+						}
 					}
 					
-					// Check that received data is valid
-					if (data instanceof TFTPPacket.DATA) {
-						TFTPPacket.DATA tftpData = ((TFTPPacket.DATA)data);
-						
-						if (tftpData.getBlockNum() == blockNum) {
-							// Received the data that we expected, write to file
-							try {
-								this.file.write(tftpData.getData());
-							} catch (IOException e) {
-								super.state =
-										TFTPTransactionState.FILE_IO_ERROR;
-								
-								if (this.parentFile.getFreeSpace() == 0) {
-									// Disk is full
-									super.sendErrorPacket(
-											TFTPPacket.TFTPError.DISK_FULL,
-											"Disk full");
-								} else {
-									super.sendErrorPacket(
-											TFTPPacket.TFTPError.ERROR,
-											String.format(
-											   "Failed to write to the file."));
-								}
-								
-								return;
-							}
-							// Send ACK
-							retransmitTime = System.currentTimeMillis() +
-									TFTPPacket.TFTP_DATA_TIMEOUT;
-							
-							boolean ackFailed = this.sendAck(blockNum);
-							if (ackFailed) {
-								return;
-							}
-							
-							if (tftpData.getData().length <
-									TFTPPacket.BLOCK_SIZE) {
-								// Transaction complete
-								super.state = TFTPTransactionState.COMPLETE;
-								return;
-							} else {
-								// Continue to waiting for next block
-								blockNum++;
-								blockNum &= 0xFFFF;
-								
-								if (blockNum == 0) {
-									// Block number has wrapped
-									super.sendErrorPacket(
-											TFTPPacket.TFTPError.ERROR,
-											String.format("Block number limit exceeded. File too large."));
-									super.state =
-											TFTPTransactionState.FILE_TOO_LARGE;
-									return;
-								}
-							}
-							break;
-						} else if (tftpData.getBlockNum() < blockNum) {
-							// Probably a duplicate or delayed data packet
-							// Re-send ACK for packet
-							try {
-								super.sendToRemote(new TFTPPacket.ACK(
-										tftpData.getBlockNum()));
-							} catch (IllegalArgumentException e) {
-								// This should never actually happen
-								e.printStackTrace();
-								System.exit(1);
-							} catch (IOException e) {
-								super.state =
-										TFTPTransactionState.SOCKET_IO_ERROR;
-								return;
+					int previous = contiguous;
+					while (this.receivedBlocks.get(contiguous + 1)) {
+						contiguous++;
+					}
+					
+					if (contiguous != previous) {
+						gapAcked = false;
+						if (this.master) {
+							if (ackTime >= 0) {
+								super.timer.sample(
+										RetransmitTimer.now() - ackTime);
+								ackTime = -1;
 							}
-						} else if (tftpData.getBlockNum() > blockNum) {
-							// Block number is too high
-							super.sendErrorPacket(
-									TFTPPacket.TFTPError.ILLEGAL_OPERATION,
-									String.format("Received bad DATA block. " +
-									"Expected DATA %d.", blockNum));
-							super.state =
-									TFTPTransactionState.RECEIVED_BAD_PACKET;
-							return;
+							super.timer.progress();
+							retransmitTime = super.timer.getDeadline();
+						}
+					}
+					
+					if (!this.master) {
+						continue;
+					}
+					
+					if (contiguous == this.lastBlock) {
+						// We have the whole file
+						this.sendAck(contiguous);
+						if (super.state == TFTPTransactionState.IN_PROGRESS) {
+							super.state = TFTPTransactionState.COMPLETE;
 						}
-					} else if (data instanceof TFTPPacket.ERROR) {
-						// Got an error packet
-						super.handleErrorPacket((TFTPPacket.ERROR)data);
 						return;
-					} else if (data != null) {
-						// Received something that is not data
+					} else if (contiguous >= lastAck + super.windowSize) {
+						// End of a window
+						if (this.sendAck(contiguous)) {
+							return;
+						}
+						lastAck = contiguous;
+						ackTime = RetransmitTimer.now();
+					} else if ((blockNum > contiguous + 1) && !gapAcked) {
+						// A block is missing, ask for it to be re-sent
+						if (this.sendAck(contiguous)) {
+							return;
+						}
+						lastAck = contiguous;
+						gapAcked = true;
+						ackTime = -1;
+					}
+					continue;
+				} else if (packet instanceof TFTPPacket.OACK) {
+					// Server is telling us whether we are the master client
+					String[] update =
+							parseMulticastOption((TFTPPacket.OACK)packet);
+					if (update == null) {
 						super.sendErrorPacket(
-								TFTPPacket.TFTPError.ILLEGAL_OPERATION,
-								String.format("Invalid packet. " +
-								"Expected ACK %d.", blockNum));
-						super.state = TFTPTransactionState.RECEIVED_BAD_PACKET;
+								TFTPPacket.TFTPError.OPTION_NEGOTIATION_ERROR,
+								"Invalid multicast option.");
+						super.state =
+								TFTPTransactionState.OPTION_NEGOTIATION_ERROR;
 						return;
 					}
+					lastHeard = RetransmitTimer.now();
 					
-					// Received timed out
-					if (blockNum == 1) {
-						// If this is data 1, there is no previous ACK to 
-						// retransmit (server does not retransmit ACK 0)
-						super.state = TFTPTransactionState.BLOCK_ZERO_TIMEOUT;
-						return;
-					} else {
-						// Re-send previous ACK if timeout has elapsed
-						retries++;
-						
-						retransmitTime = System.currentTimeMillis() +
-								TFTPPacket.TFTP_DATA_TIMEOUT;
+					this.master = update[2].equals("1");
+					if (this.master) {
+						// Tell the server which blocks we still need, a new
+						// timer is used since the server has just started
+						// waiting for us
+						super.timer = new RetransmitTimer();
+						if (this.sendAck(contiguous)) {
+							return;
+						}
+						lastAck = contiguous;
+						ackTime = RetransmitTimer.now();
+						retransmitTime = super.timer.getDeadline();
 						
-						// Send ACK
-						boolean ackFailed = this.sendAck(blockNum - 1);
-						if (ackFailed) {
+						if (contiguous == this.lastBlock) {
+							// We already have the whole file
+							super.state = TFTPTransactionState.COMPLETE;
 							return;
 						}
 					}
+					continue;
+				} else if (packet instanceof TFTPPacket.ERROR) {
+					super.handleErrorPacket((TFTPPacket.ERROR)packet);
+					return;
+				} else if (packet != null) {
+					super.sendErrorPacket(
+							TFTPPacket.TFTPError.ILLEGAL_OPERATION,
+							"Invalid packet. Expected DATA or OACK.");
+					super.state = TFTPTransactionState.RECEIVED_BAD_PACKET;
+					return;
 				}
 				
-				if (retries >= TFTPPacket.TFTP_NUM_RETRIES) {
-					// Timed out waiting for data
-					super.state = TFTPTransactionState.TIMEOUT;
-					return;
+				// Receive timed out
+				if (this.master) {
+					if (super.timer.expired()) {
+						super.state = TFTPTransactionState.TIMEOUT;
+						return;
+					}
+					
+					// Re-send the last ACK, backing off the timeout
+					if (this.sendAck(contiguous)) {
+						return;
+					}
+					lastAck = contiguous;
+					ackTime = -1;
+					retransmitTime = super.timer.getDeadline();
+				} else {
+					if ((RetransmitTimer.now() - lastHeard) >= IDLE_TIMEOUT) {
+						super.state = TFTPTransactionState.TIMEOUT;
+						return;
+					}
+					retransmitTime = RetransmitTimer.now() +
+							RetransmitTimer.MAX_TIMEOUT;
 				}
 			}
 		}
 
 		public void close() throws IOException {
-			this.file.flush();
+			if (this.groupSocket != null) {
+				this.groupSocket.close();
+			}
+			// Remove any space which was reserved but not filled
+			this.file.setLength(this.fileSize);
 			this.file.close();
 		}
 	}
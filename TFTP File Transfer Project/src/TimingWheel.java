@@ -0,0 +1,389 @@
+/**
+ * Keeps timers in a hierarchical timing wheel, so that setting and
+ * cancelling a timer take the same short time however many timers are set.
+ * 
+ * Time is divided into ticks. The wheel has several levels of slots, each
+ * level covering a range of ticks SLOTS times longer than the level below
+ * it. A timer is put in the slot for its tick on the lowest level which
+ * reaches that far, and when the wheel turns past the start of a slot on a
+ * higher level the timers in it are moved down to the level below. Timers
+ * are only ever kept in linked lists, so nothing is sorted and a cancelled
+ * timer is simply unlinked from its slot.
+ * 
+ * Timers never expire early, a deadline is rounded up to the next tick.
+ * Timers which are due in the same tick expire in the order they were set,
+ * and timers which are set for a time which has already passed expire the
+ * next time the wheel is turned.
+ * 
+ * The wheel is not thread safe, it must only be used by the thread which
+ * owns it.
+ */
+public class TimingWheel {
+	
+	/**
+	 * Default length of a tick in nanoseconds
+	 */
+	public static final long DEFAULT_TICK = 1_000_000L;
+	
+	/**
+	 * Number of bits of the tick used to pick a slot on each level
+	 */
+	private static final int SLOT_BITS = 8;
+	/**
+	 * Number of slots on each level
+	 */
+	private static final int SLOTS = 1 << SLOT_BITS;
+	/**
+	 * Number of levels, enough for 2^32 ticks or about 49 days of 1ms ticks
+	 */
+	private static final int LEVELS = 4;
+	/**
+	 * Number of ticks which the whole wheel covers
+	 */
+	private static final long RANGE = 1L << (SLOT_BITS * LEVELS);
+	
+	/**
+	 * A timer which has been set on the wheel.
+	 */
+	public static class Timeout {
+		/**
+		 * The wheel the timer is set on
+		 */
+		private TimingWheel wheel;
+		/**
+		 * Tick at which the timer expires
+		 */
+		private long tick;
+		/**
+		 * Run when the timer expires
+		 */
+		private Runnable task;
+		/**
+		 * The slot holding the timer, or null once it has expired or been
+		 * cancelled
+		 */
+		private Slot slot = null;
+		/**
+		 * Neighbours in the slot's list
+		 */
+		private Timeout previous = null;
+		private Timeout next = null;
+		
+		/**
+		 * Create a timer.
+		 * 
+		 * @param wheel The wheel the timer is set on
+		 * @param tick The tick at which the timer expires
+		 * @param task Run when the timer expires
+		 */
+		private Timeout (TimingWheel wheel, long tick, Runnable task)
+		{
+			this.wheel = wheel;
+			this.tick = tick;
+			this.task = task;
+		}
+		
+		/**
+		 * Stop the timer from expiring.
+		 * 
+		 * @return False if the timer had already expired or been cancelled
+		 */
+		public boolean cancel ()
+		{
+			if (this.slot == null) {
+				return false;
+			}
+			this.slot.remove(this);
+			this.wheel.size--;
+			return true;
+		}
+		
+		/**
+		 * Check whether the timer is still waiting to expire.
+		 * 
+		 * @return True if the timer has neither expired nor been cancelled
+		 */
+		public boolean isPending ()
+		{
+			return this.slot != null;
+		}
+	}
+	
+	/**
+	 * The timers which fall in one slot of the wheel, in the order they
+	 * were added.
+	 */
+	private static class Slot {
+		private Timeout head = null;
+		private Timeout tail = null;
+		
+		/**
+		 * Add a timer to the end of the slot.
+		 * 
+		 * @param timeout The timer
+		 */
+		private void add (Timeout timeout)
+		{
+			timeout.slot = this;
+			timeout.previous = this.tail;
+			timeout.next = null;
+			if (this.tail == null) {
+				this.head = timeout;
+			} else {
+				this.tail.next = timeout;
+			}
+			this.tail = timeout;
+		}
+		
+		/**
+		 * Take a timer out of the slot.
+		 * 
+		 * @param timeout The timer, which must be in this slot
+		 */
+		private void remove (Timeout timeout)
+		{
+			if (timeout.previous == null) {
+				this.head = timeout.next;
+			} else {
+				timeout.previous.next = timeout.next;
+			}
+			if (timeout.next == null) {
+				this.tail = timeout.previous;
+			} else {
+				timeout.next.previous = timeout.previous;
+			}
+			timeout.slot = null;
+			timeout.previous = null;
+			timeout.next = null;
+		}
+	}
+	
+	/**
+	 * The slots of each level
+	 */
+	private Slot[][] slots = new Slot[LEVELS][SLOTS];
+	/**
+	 * Timers set for a tick which has already been expired
+	 */
+	private Slot overdue = new Slot();
+	
+	/**
+	 * Length of a tick in nanoseconds
+	 */
+	private long tickLength;
+	/**
+	 * Time of tick 0
+	 */
+	private long origin;
+	/**
+	 * The next tick to expire, every earlier tick has been expired
+	 */
+	private long current = 0;
+	/**
+	 * Number of timers set
+	 */
+	private int size = 0;
+	
+	/**
+	 * Create a timing wheel.
+	 * 
+	 * @param tickLength The length of a tick in nanoseconds
+	 * @param now The current time, from RetransmitTimer.now()
+	 * @throws IllegalArgumentException If the tick length is not positive
+	 */
+	public TimingWheel (long tickLength, long now)
+			throws IllegalArgumentException
+	{
+		if (tickLength <= 0) {
+			throw new IllegalArgumentException("The tick length must be " +
+					"positive: " + tickLength);
+		}
+		this.tickLength = tickLength;
+		this.origin = now;
+		for (int level = 0; level < LEVELS; level++) {
+			for (int index = 0; index < SLOTS; index++) {
+				this.slots[level][index] = new Slot();
+			}
+		}
+	}
+	
+	/**
+	 * Run a task at a given time.
+	 * 
+	 * @param deadline The time at which the task is run, from
+	 * 				   RetransmitTimer.now()
+	 * @param task The task to run
+	 * @return The timer, which can be used to cancel it
+	 */
+	public Timeout schedule (long deadline, Runnable task)
+	{
+		// Rounded up so that the timer never expires early
+		long tick = -Math.floorDiv(this.origin - deadline, this.tickLength);
+		Timeout timeout = new Timeout(this, tick, task);
+		this.place(timeout);
+		this.size++;
+		return timeout;
+	}
+	
+	/**
+	 * Put a timer in the slot which it currently belongs in.
+	 * 
+	 * @param timeout The timer
+	 */
+	private void place (Timeout timeout)
+	{
+		if (timeout.tick < this.current) {
+			this.overdue.add(timeout);
+			return;
+		}
+		
+		long tick = timeout.tick;
+		long ticks = tick - this.current;
+		if (ticks >= RANGE) {
+			// Beyond the reach of the wheel, parked in the last slot to come
+			// round and placed again from there
+			tick = this.current + RANGE - 1;
+			ticks = RANGE - 1;
+		}
+		
+		int level = (ticks == 0) ? 0 :
+				(63 - Long.numberOfLeadingZeros(ticks)) / SLOT_BITS;
+		int index = (int)((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+		this.slots[level][index].add(timeout);
+	}
+	
+	/**
+	 * Run the tasks of every timer which is due.
+	 * 
+	 * @param now The current time, from RetransmitTimer.now()
+	 * @return The number of timers which expired
+	 */
+	public int expire (long now)
+	{
+		long last = Math.floorDiv(now - this.origin, this.tickLength);
+		int expired = 0;
+		
+		while (true) {
+			expired += this.run(this.overdue);
+			if (this.current > last) {
+				break;
+			} else if (this.size == 0) {
+				// Nothing to move down or expire on the way
+				this.current = last + 1;
+				break;
+			}
+			
+			long tick = this.current;
+			this.cascade(tick);
+			
+			// Moved on first, so that timers set by the tasks do not go in
+			// the slot being expired
+			this.current = tick + 1;
+			expired += this.run(this.slots[0][(int)(tick & (SLOTS - 1))]);
+		}
+		
+		return expired;
+	}
+	
+	/**
+	 * Run the tasks of every timer in a slot, including any added to the
+	 * slot while they run.
+	 * 
+	 * @param slot The slot
+	 * @return The number of timers which expired
+	 */
+	private int run (Slot slot)
+	{
+		int expired = 0;
+		Timeout timeout;
+		while ((timeout = slot.head) != null) {
+			slot.remove(timeout);
+			this.size--;
+			expired++;
+			timeout.task.run();
+		}
+		return expired;
+	}
+	
+	/**
+	 * Move timers down from each higher level whose slot starts at a tick.
+	 * 
+	 * @param tick The tick about to be expired
+	 */
+	private void cascade (long tick)
+	{
+		for (int level = 1; level < LEVELS; level++) {
+			int shift = SLOT_BITS * level;
+			if ((tick & ((1L << shift) - 1)) != 0) {
+				// Not the start of a slot on this level or any above it
+				break;
+			}
+			
+			Slot slot = this.slots[level][(int)((tick >>> shift) &
+					(SLOTS - 1))];
+			Timeout timeout;
+			while ((timeout = slot.head) != null) {
+				slot.remove(timeout);
+				this.place(timeout);
+			}
+		}
+	}
+	
+	/**
+	 * Get the time by which expire() next needs to be called. This is the
+	 * time of the earliest timer, or earlier if timers need to be moved
+	 * down from a higher level first.
+	 * 
+	 * @return The time, from RetransmitTimer.now(), or Long.MAX_VALUE if no
+	 * 		   timers are set
+	 */
+	public long nextExpiry ()
+	{
+		if (this.size == 0) {
+			return Long.MAX_VALUE;
+		} else if (this.overdue.head != null) {
+			return this.origin + ((this.current - 1) * this.tickLength);
+		}
+		
+		// Timers on higher levels come down at the start of each turn of the
+		// lowest level, so the search stops there
+		long tick = this.current;
+		while (((tick & (SLOTS - 1)) != 0) &&
+				(this.slots[0][(int)(tick & (SLOTS - 1))].head == null)) {
+			tick++;
+		}
+		return this.origin + (tick * this.tickLength);
+	}
+	
+	/**
+	 * Cancel every timer.
+	 */
+	public void clear ()
+	{
+		for (int level = 0; level < LEVELS; level++) {
+			for (int index = 0; index < SLOTS; index++) {
+				Slot slot = this.slots[level][index];
+				Timeout timeout;
+				while ((timeout = slot.head) != null) {
+					slot.remove(timeout);
+				}
+			}
+		}
+		Timeout timeout;
+		while ((timeout = this.overdue.head) != null) {
+			this.overdue.remove(timeout);
+		}
+		this.size = 0;
+	}
+	
+	/**
+	 * Get the number of timers set.
+	 * 
+	 * @return The number of timers which have neither expired nor been
+	 * 		   cancelled
+	 */
+	public int getTimerCount ()
+	{
+		return this.size;
+	}
+}
@@ -0,0 +1,439 @@
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of every transfer in progress, by the address and port of the
+ * client, so that transfers can be listed, counted for each client and
+ * cancelled no matter which thread or event loop runs them.
+ * 
+ * An IPv4 address and port are packed into a single 48 bit key. An IPv6
+ * address does not fit, so its key is made from the address's hash code and
+ * the port, and the full address is compared when looking a transfer up.
+ * Transfers with the same key are chained together.
+ * 
+ * The keys are spread over a number of stripes, each a small open
+ * addressing table of primitive longs with its own lock, so that transfers
+ * starting and ending on different threads rarely wait for each other and a
+ * lookup allocates nothing. Each stripe also counts the transfers of the
+ * clients whose addresses hash to it, so that checking a client against
+ * its limit does not have to look at every transfer.
+ */
+public class TransferRegistry {
+	
+	/**
+	 * Number of stripes, a power of 2
+	 */
+	private static final int STRIPES = 16;
+	/**
+	 * Number of slots each stripe starts with, a power of 2
+	 */
+	private static final int INITIAL_CAPACITY = 16;
+	/**
+	 * Marks the key of an IPv6 address, which an IPv4 key never has
+	 */
+	private static final long IPV6_KEY = Long.MIN_VALUE;
+	
+	/**
+	 * A transfer in progress.
+	 */
+	public static class Transfer {
+		/**
+		 * Address of the client
+		 */
+		private InetAddress address;
+		/**
+		 * Port of the client, its TID
+		 */
+		private int port;
+		/**
+		 * What the transfer is, such as the file being read
+		 */
+		private String description;
+		/**
+		 * Stops the transfer
+		 */
+		private Runnable cancel;
+		/**
+		 * Time at which the transfer started, from RetransmitTimer.now()
+		 */
+		private long startTime = RetransmitTimer.now();
+		/**
+		 * Key of the client's address and port
+		 */
+		private long key;
+		/**
+		 * Next transfer with the same key, guarded by the stripe's lock
+		 */
+		private Transfer next = null;
+		
+		/**
+		 * Create a transfer.
+		 * 
+		 * @param address The address of the client
+		 * @param port The port of the client
+		 * @param description What the transfer is
+		 * @param cancel Stops the transfer, may be called from any thread
+		 */
+		public Transfer (InetAddress address, int port, String description,
+				Runnable cancel)
+		{
+			this.address = address;
+			this.port = port;
+			this.description = description;
+			this.cancel = cancel;
+			this.key = keyOf(address, port);
+		}
+		
+		/**
+		 * Get the address of the client.
+		 * 
+		 * @return The address
+		 */
+		public InetAddress getAddress ()
+		{
+			return this.address;
+		}
+		
+		/**
+		 * Get the port of the client.
+		 * 
+		 * @return The port
+		 */
+		public int getPort ()
+		{
+			return this.port;
+		}
+		
+		/**
+		 * Get a description of the transfer.
+		 * 
+		 * @return The description
+		 */
+		public String getDescription ()
+		{
+			return this.description;
+		}
+		
+		/**
+		 * Get the time at which the transfer started.
+		 * 
+		 * @return The time, from RetransmitTimer.now()
+		 */
+		public long getStartTime ()
+		{
+			return this.startTime;
+		}
+		
+		/**
+		 * Stop the transfer. The transfer is removed from the registry once
+		 * it has ended.
+		 */
+		public void cancel ()
+		{
+			this.cancel.run();
+		}
+	}
+	
+	/**
+	 * One stripe of the registry. A slot is empty when it has no transfer.
+	 */
+	private static class Stripe {
+		private long[] keys = new long[INITIAL_CAPACITY];
+		private Transfer[] transfers = new Transfer[INITIAL_CAPACITY];
+		private int size = 0;
+		private Map<InetAddress, Integer> clients =
+				new HashMap<InetAddress, Integer>();
+	}
+	
+	/**
+	 * The stripes
+	 */
+	private Stripe[] stripes = new Stripe[STRIPES];
+	
+	/**
+	 * Create an empty registry.
+	 */
+	public TransferRegistry ()
+	{
+		for (int i = 0; i < STRIPES; i++) {
+			this.stripes[i] = new Stripe();
+		}
+	}
+	
+	/**
+	 * Get the key of a client's address and port.
+	 * 
+	 * @param address The address of the client
+	 * @param port The port of the client
+	 * @return The key
+	 */
+	public static long keyOf (InetAddress address, int port)
+	{
+		// The hash code of an IPv4 address is the address itself
+		long key = ((address.hashCode() & 0xFFFFFFFFL) << 16) | port;
+		return (address instanceof Inet4Address) ? key : (key | IPV6_KEY);
+	}
+	
+	/**
+	 * Spread the bits of a key.
+	 * 
+	 * @param key The key
+	 * @return The hash, whose top bits pick the stripe and whose low bits
+	 * 		   pick the slot
+	 */
+	private static int hash (long key)
+	{
+		return (int)((key * 0x9E3779B97F4A7C15L) >>> 32);
+	}
+	
+	/**
+	 * Get the stripe which holds a key.
+	 * 
+	 * @param hash The hash of the key
+	 * @return The stripe
+	 */
+	private Stripe stripeOf (int hash)
+	{
+		return this.stripes[hash >>> (32 - Integer.numberOfTrailingZeros(
+				STRIPES))];
+	}
+	
+	/**
+	 * Get the stripe which counts the transfers of a client.
+	 * 
+	 * @param address The address of the client
+	 * @return The stripe
+	 */
+	private Stripe clientStripeOf (InetAddress address)
+	{
+		return this.stripeOf(hash(address.hashCode()));
+	}
+	
+	/**
+	 * Change the number of transfers a client has.
+	 * 
+	 * @param address The address of the client
+	 * @param change The number of transfers added, negative if removed
+	 */
+	private void count (InetAddress address, int change)
+	{
+		Stripe stripe = this.clientStripeOf(address);
+		synchronized (stripe) {
+			int count = stripe.clients.getOrDefault(address, 0) + change;
+			if (count > 0) {
+				stripe.clients.put(address, count);
+			} else {
+				stripe.clients.remove(address);
+			}
+		}
+	}
+	
+	/**
+	 * Find the slot which holds a key, or the empty slot where it would go.
+	 * The stripe's lock must be held.
+	 * 
+	 * @param stripe The stripe
+	 * @param key The key
+	 * @param hash The hash of the key
+	 * @return The slot
+	 */
+	private static int find (Stripe stripe, long key, int hash)
+	{
+		int mask = stripe.keys.length - 1;
+		int slot = hash & mask;
+		while ((stripe.transfers[slot] != null) &&
+				(stripe.keys[slot] != key)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	/**
+	 * Add a transfer to the registry.
+	 * 
+	 * @param transfer The transfer
+	 */
+	public void add (Transfer transfer)
+	{
+		int hash = hash(transfer.key);
+		Stripe stripe = this.stripeOf(hash);
+		synchronized (stripe) {
+			int slot = find(stripe, transfer.key, hash);
+			transfer.next = stripe.transfers[slot];
+			stripe.keys[slot] = transfer.key;
+			stripe.transfers[slot] = transfer;
+			if (transfer.next == null) {
+				stripe.size++;
+				if (stripe.size * 2 > stripe.keys.length) {
+					grow(stripe);
+				}
+			}
+		}
+		this.count(transfer.address, 1);
+	}
+	
+	/**
+	 * Remove a transfer from the registry.
+	 * 
+	 * @param transfer The transfer
+	 */
+	public void remove (Transfer transfer)
+	{
+		if (this.unlink(transfer)) {
+			this.count(transfer.address, -1);
+		}
+	}
+	
+	/**
+	 * Remove a transfer from its stripe.
+	 * 
+	 * @param transfer The transfer
+	 * @return False if the transfer was not registered
+	 */
+	private boolean unlink (Transfer transfer)
+	{
+		int hash = hash(transfer.key);
+		Stripe stripe = this.stripeOf(hash);
+		synchronized (stripe) {
+			int slot = find(stripe, transfer.key, hash);
+			Transfer previous = null;
+			Transfer current = stripe.transfers[slot];
+			while ((current != null) && (current != transfer)) {
+				previous = current;
+				current = current.next;
+			}
+			if (current == null) {
+				// Not registered
+				return false;
+			} else if (previous != null) {
+				previous.next = current.next;
+				return true;
+			} else if (current.next != null) {
+				stripe.transfers[slot] = current.next;
+				return true;
+			}
+			
+			// The last transfer with the key, so the slot is emptied and
+			// later keys which belong at or before it are moved back into
+			// it, so that no search stops early at an empty slot
+			int mask = stripe.keys.length - 1;
+			int hole = slot;
+			stripe.transfers[hole] = null;
+			stripe.size--;
+			while (true) {
+				slot = (slot + 1) & mask;
+				if (stripe.transfers[slot] == null) {
+					return true;
+				}
+				int home = hash(stripe.keys[slot]) & mask;
+				if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+					stripe.keys[hole] = stripe.keys[slot];
+					stripe.transfers[hole] = stripe.transfers[slot];
+					stripe.transfers[slot] = null;
+					hole = slot;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Double the size of a stripe. The stripe's lock must be held.
+	 * 
+	 * @param stripe The stripe
+	 */
+	private static void grow (Stripe stripe)
+	{
+		long[] keys = stripe.keys;
+		Transfer[] transfers = stripe.transfers;
+		stripe.keys = new long[keys.length * 2];
+		stripe.transfers = new Transfer[keys.length * 2];
+		for (int i = 0; i < keys.length; i++) {
+			if (transfers[i] != null) {
+				int slot = find(stripe, keys[i], hash(keys[i]));
+				stripe.keys[slot] = keys[i];
+				stripe.transfers[slot] = transfers[i];
+			}
+		}
+	}
+	
+	/**
+	 * Find the transfer for a client's address and port.
+	 * 
+	 * @param address The address of the client
+	 * @param port The port of the client
+	 * @return The transfer, the most recent if there is more than one, or
+	 * 		   null if there is none
+	 */
+	public Transfer get (InetAddress address, int port)
+	{
+		long key = keyOf(address, port);
+		int hash = hash(key);
+		Stripe stripe = this.stripeOf(hash);
+		synchronized (stripe) {
+			Transfer transfer = stripe.transfers[find(stripe, key, hash)];
+			while ((transfer != null) && ((transfer.port != port) ||
+					!transfer.address.equals(address))) {
+				transfer = transfer.next;
+			}
+			return transfer;
+		}
+	}
+	
+	/**
+	 * Count the transfers from a client.
+	 * 
+	 * @param address The address of the client
+	 * @return The number of transfers
+	 */
+	public int getClientCount (InetAddress address)
+	{
+		Stripe stripe = this.clientStripeOf(address);
+		synchronized (stripe) {
+			return stripe.clients.getOrDefault(address, 0);
+		}
+	}
+	
+	/**
+	 * Count every transfer in progress.
+	 * 
+	 * @return The number of transfers
+	 */
+	public int getTransferCount ()
+	{
+		int count = 0;
+		for (Stripe stripe : this.stripes) {
+			synchronized (stripe) {
+				for (int clientCount : stripe.clients.values()) {
+					count += clientCount;
+				}
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Get every transfer in progress.
+	 * 
+	 * @return The transfers, oldest first
+	 */
+	public List<Transfer> list ()
+	{
+		List<Transfer> list = new ArrayList<Transfer>();
+		for (Stripe stripe : this.stripes) {
+			synchronized (stripe) {
+				for (Transfer transfer : stripe.transfers) {
+					for (; transfer != null; transfer = transfer.next) {
+						list.add(transfer);
+					}
+				}
+			}
+		}
+		list.sort(Comparator.comparingLong(Transfer::getStartTime));
+		return list;
+	}
+}
@@ -0,0 +1,420 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Hands out the sockets which transfers use to talk to clients. Each socket
+ * is bound to its own port, which is the server's TID for the transfer.
+ * Sockets are returned to the pool when a transfer ends and reused by later
+ * transfers rather than binding a new socket for every request.
+ * 
+ * The total number of sockets, whether in use or idle, is capped so that a
+ * flood of requests can not use up the server's file descriptors. A socket
+ * which is never returned is found when its lease is garbage collected, is
+ * reported as a leak and is closed so that the file descriptor is not lost.
+ */
+public class TransferSocketPool implements Closeable {
+	
+	/**
+	 * Default largest number of sockets
+	 */
+	public static final int DEFAULT_MAX_SOCKETS = 1024;
+	/**
+	 * Default number of idle sockets which are kept bound
+	 */
+	public static final int DEFAULT_IDLE_SOCKETS = 16;
+	
+	/**
+	 * Finds leases which were never returned
+	 */
+	private static final Cleaner CLEANER = Cleaner.create();
+	
+	/**
+	 * Largest number of sockets, in use or idle
+	 */
+	private int maxSockets;
+	/**
+	 * Largest number of idle sockets which are kept bound
+	 */
+	private int idleSockets;
+	/**
+	 * Sockets which are bound and not in use, oldest returned first. A
+	 * socket goes to the back when it is returned so that its port is not
+	 * handed straight out again, a client which reuses its own port for the
+	 * next request (as PXE ROMs do) would otherwise have late packets from
+	 * the last transfer taken as part of the new one (RFC 1350 section 4).
+	 */
+	private ArrayDeque<DatagramChannel> idle = new ArrayDeque<DatagramChannel>();
+	/**
+	 * Number of sockets in use
+	 */
+	private int leased = 0;
+	/**
+	 * Whether the pool has been closed
+	 */
+	private boolean closed = false;
+	
+	/**
+	 * Number of sockets bound
+	 */
+	private long created = 0;
+	/**
+	 * Number of times an idle socket was handed out
+	 */
+	private long reused = 0;
+	/**
+	 * Number of times a socket was asked for when the pool was at its cap
+	 */
+	private long refused = 0;
+	/**
+	 * Number of sockets which were never returned
+	 */
+	private long leaks = 0;
+	
+	/**
+	 * Logger used to report leaks
+	 */
+	private Logger logger;
+	
+	/**
+	 * Thrown when a socket is asked for while every socket is in use.
+	 */
+	public static class ExhaustedException extends IOException {
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * Create an exception.
+		 * 
+		 * @param message Explanation of why no socket was available
+		 */
+		public ExhaustedException (String message)
+		{
+			super(message);
+		}
+	}
+	
+	/**
+	 * A socket handed out by the pool. Closing the lease returns the socket,
+	 * the socket itself must not be closed.
+	 */
+	public static class Lease implements Closeable {
+		/**
+		 * The socket and what is needed to return it, kept apart from the
+		 * lease so that the cleaner can return it after the lease is gone
+		 */
+		private Reclaim reclaim;
+		/**
+		 * Returns the socket, once
+		 */
+		private Cleaner.Cleanable cleanable;
+		
+		/**
+		 * Create a lease.
+		 * 
+		 * @param reclaim The socket and the pool it belongs to
+		 */
+		private Lease (Reclaim reclaim)
+		{
+			this.reclaim = reclaim;
+			this.cleanable = CLEANER.register(this, reclaim);
+		}
+		
+		/**
+		 * Get the leased socket as a channel.
+		 * 
+		 * @return The channel, in blocking mode when it is handed out
+		 */
+		public DatagramChannel getChannel ()
+		{
+			return this.reclaim.channel;
+		}
+		
+		/**
+		 * Get the leased socket.
+		 * 
+		 * @return The socket
+		 */
+		public DatagramSocket getSocket ()
+		{
+			return this.reclaim.channel.socket();
+		}
+		
+		/**
+		 * Return the socket to the pool. Closing a lease more than once has
+		 * no effect.
+		 */
+		public void close ()
+		{
+			this.reclaim.returned = true;
+			this.cleanable.clean();
+		}
+	}
+	
+	/**
+	 * Returns a socket to its pool, either when its lease is closed or when
+	 * the lease is garbage collected without being closed.
+	 */
+	private static class Reclaim implements Runnable {
+		/**
+		 * The pool the socket belongs to
+		 */
+		private TransferSocketPool pool;
+		/**
+		 * The socket
+		 */
+		private DatagramChannel channel;
+		/**
+		 * What the socket was leased for, reported if it leaks
+		 */
+		private String owner;
+		/**
+		 * Whether the lease was closed
+		 */
+		private volatile boolean returned = false;
+		
+		/**
+		 * Create a reclaim action.
+		 * 
+		 * @param pool The pool the socket belongs to
+		 * @param channel The socket
+		 * @param owner What the socket is leased for
+		 */
+		private Reclaim (TransferSocketPool pool, DatagramChannel channel,
+				String owner)
+		{
+			this.pool = pool;
+			this.channel = channel;
+			this.owner = owner;
+		}
+		
+		public void run ()
+		{
+			this.pool.release(this.channel, this.owner, !this.returned);
+		}
+	}
+	
+	/**
+	 * Create a socket pool and bind its idle sockets.
+	 * 
+	 * @param maxSockets The largest number of sockets, in use or idle
+	 * @param idleSockets The number of idle sockets which are kept bound
+	 * @param logger The logger used to report leaks
+	 * @throws IllegalArgumentException If maxSockets is less than 1 or
+	 * 									idleSockets is negative
+	 * @throws IOException If the idle sockets could not be bound
+	 */
+	public TransferSocketPool (int maxSockets, int idleSockets, Logger logger)
+			throws IllegalArgumentException, IOException
+	{
+		if (maxSockets < 1) {
+			throw new IllegalArgumentException("The socket limit must be at " +
+					"least 1: " + maxSockets);
+		} else if (idleSockets < 0) {
+			throw new IllegalArgumentException("The number of idle sockets " +
+					"can not be negative: " + idleSockets);
+		}
+		this.maxSockets = maxSockets;
+		this.idleSockets = Math.min(idleSockets, maxSockets);
+		this.logger = logger;
+		
+		for (int i = 0; i < this.idleSockets; i++) {
+			this.idle.addLast(this.bind());
+		}
+	}
+	
+	/**
+	 * Bind a new socket to an ephemeral port.
+	 * 
+	 * @return The socket
+	 * @throws IOException If the socket could not be bound
+	 */
+	private DatagramChannel bind () throws IOException
+	{
+		DatagramChannel channel = DatagramChannel.open().bind(null);
+		this.created++;
+		return channel;
+	}
+	
+	/**
+	 * Get a socket for a transfer.
+	 * 
+	 * @param owner What the socket is for, reported if it is never returned
+	 * @return The lease for the socket, which must be closed when the
+	 * 		   transfer ends
+	 * @throws ExhaustedException If every socket is in use
+	 * @throws IOException If a new socket could not be bound
+	 */
+	public synchronized Lease acquire (String owner)
+			throws ExhaustedException, IOException
+	{
+		if (this.closed) {
+			throw new IOException("The socket pool has been closed.");
+		}
+		
+		DatagramChannel channel = this.idle.pollFirst();
+		if (channel != null) {
+			this.reused++;
+		} else if (this.leased >= this.maxSockets) {
+			this.refused++;
+			throw new ExhaustedException(String.format("All %d transfer " +
+					"sockets are in use.", this.maxSockets));
+		} else {
+			channel = this.bind();
+		}
+		
+		try {
+			channel.configureBlocking(true);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		this.leased++;
+		return new Lease(new Reclaim(this, channel, owner));
+	}
+	
+	/**
+	 * Take a socket back from a transfer.
+	 * 
+	 * @param channel The socket
+	 * @param owner What the socket was leased for
+	 * @param leaked Whether the socket's lease was never closed
+	 */
+	private synchronized void release (DatagramChannel channel, String owner,
+			boolean leaked)
+	{
+		this.leased--;
+		
+		if (leaked) {
+			this.leaks++;
+			this.logger.log(LogLevel.WARN, "Error: Socket leak. Reason: The " +
+					"socket for " + owner + " was never returned to the " +
+					"pool. Solution: Closing the socket.");
+		}
+		
+		if (leaked || this.closed || !channel.isOpen() ||
+				channel.isRegistered() ||
+				(this.idle.size() >= this.idleSockets)) {
+			// Not worth keeping, or still in use by a selector
+			close(channel);
+			return;
+		}
+		
+		// Throw away anything which arrived after the transfer ended, so that
+		// the next transfer does not see it
+		try {
+			channel.configureBlocking(false);
+			ByteBuffer buffer = ByteBuffer.allocate(
+					ServerEventLoop.RECEIVE_BUFFER_SIZE);
+			while (channel.receive(buffer) != null) {
+				buffer.clear();
+			}
+		} catch (IOException e) {
+			close(channel);
+			return;
+		}
+		
+		this.idle.addLast(channel);
+	}
+	
+	/**
+	 * Close a socket which will not be reused.
+	 * 
+	 * @param channel The socket
+	 */
+	private static void close (DatagramChannel channel)
+	{
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Nothing else can be done
+		}
+	}
+	
+	/**
+	 * Get the largest number of sockets.
+	 * 
+	 * @return The largest number of sockets, in use or idle
+	 */
+	public int getMaxSockets ()
+	{
+		return this.maxSockets;
+	}
+	
+	/**
+	 * Get the number of sockets in use.
+	 * 
+	 * @return The number of sockets
+	 */
+	public synchronized int getLeased ()
+	{
+		return this.leased;
+	}
+	
+	/**
+	 * Get the number of idle sockets.
+	 * 
+	 * @return The number of sockets
+	 */
+	public synchronized int getIdle ()
+	{
+		return this.idle.size();
+	}
+	
+	/**
+	 * Get the number of sockets which have been bound.
+	 * 
+	 * @return The number of sockets
+	 */
+	public synchronized long getCreated ()
+	{
+		return this.created;
+	}
+	
+	/**
+	 * Get the number of times an idle socket was reused.
+	 * 
+	 * @return The number of times
+	 */
+	public synchronized long getReused ()
+	{
+		return this.reused;
+	}
+	
+	/**
+	 * Get the number of times a socket was refused because every socket was
+	 * in use.
+	 * 
+	 * @return The number of times
+	 */
+	public synchronized long getRefused ()
+	{
+		return this.refused;
+	}
+	
+	/**
+	 * Get the number of sockets which were never returned.
+	 * 
+	 * @return The number of sockets
+	 */
+	public synchronized long getLeaks ()
+	{
+		return this.leaks;
+	}
+	
+	/**
+	 * Close the idle sockets and stop handing out sockets. Sockets which are
+	 * in use are closed when they are returned.
+	 */
+	public synchronized void close ()
+	{
+		this.closed = true;
+		for (DatagramChannel channel : this.idle) {
+			close(channel);
+		}
+		this.idle.clear();
+	}
+}
@@ -0,0 +1,58 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+
+/**
+ * Carries the packets of a transfer between this host and its peer. A
+ * TFTPTransaction sends and receives through a transport rather than a
+ * socket, so that a transfer can run over UDP or, for benchmarks and tests,
+ * entirely in memory.
+ */
+public interface Transport extends Closeable {
+	
+	/**
+	 * Send a packet to the address and port which it holds.
+	 * 
+	 * @param packet The packet to send
+	 * @throws IOException If the packet could not be sent
+	 */
+	void send (DatagramPacket packet) throws IOException;
+	
+	/**
+	 * Wait for a packet and receive it into a DatagramPacket's buffer,
+	 * setting the packet's length and the address and port it came from.
+	 * A packet longer than the buffer is cut short.
+	 * 
+	 * @param packet The packet to receive into
+	 * @param deadline Time at which to give up, from RetransmitTimer.now(),
+	 * 				   or Long.MAX_VALUE to wait until a packet arrives
+	 * @throws SocketTimeoutException If no packet arrived by the deadline
+	 * @throws SocketException If the transport has been closed
+	 * @throws IOException If the packet could not be received
+	 */
+	void receive (DatagramPacket packet, long deadline) throws IOException;
+	
+	/**
+	 * Make room for a whole window of DATA packets to wait in the transport,
+	 * so that the end of a window sent in one burst is not dropped.
+	 * 
+	 * @param blockSize The number of bytes of file data in each DATA packet
+	 * @param windowSize The number of DATA packets in a window
+	 * @return The largest window, up to windowSize, which there is room for
+	 * @throws IOException If the room could not be made
+	 */
+	int reserveWindow (int blockSize, int windowSize) throws IOException;
+	
+	/**
+	 * Get the address and port which packets are sent from.
+	 * 
+	 * @return The local address
+	 */
+	InetSocketAddress getLocalAddress ();
+	
+	/**
+	 * Close the transport. A receive which is waiting fails straight away.
+	 */
+	void close ();
+}
@@ -0,0 +1,129 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+/**
+ * A transport which sends and receives packets on a UDP socket.
+ * 
+ * The socket's timeout is changed for each receive to match the deadline,
+ * but only when it has to be, since every change is a call into the socket.
+ * A transport must not be used to receive on more than one thread at once.
+ */
+public class UDPTransport implements Transport {
+	
+	/**
+	 * Room kept in a socket's buffers for each packet of a window, as a
+	 * multiple of the packet's length. The kernel counts its own bookkeeping
+	 * for each packet against the buffer as well as the packet itself.
+	 */
+	private static final int BUFFER_HEADROOM = 2;
+	
+	/**
+	 * The socket
+	 */
+	private DatagramSocket socket;
+	/**
+	 * Timeout of the socket last set by receive(), in milliseconds
+	 */
+	private int timeout = -1;
+	
+	/**
+	 * Create a transport on a socket.
+	 * 
+	 * @param socket The socket, which is closed when the transport is
+	 */
+	public UDPTransport (DatagramSocket socket)
+	{
+		this.socket = socket;
+	}
+	
+	/**
+	 * Get the socket which packets are sent and received on.
+	 * 
+	 * @return The socket
+	 */
+	public DatagramSocket getSocket ()
+	{
+		return this.socket;
+	}
+	
+	public void send (DatagramPacket packet) throws IOException
+	{
+		this.socket.send(packet);
+	}
+	
+	public void receive (DatagramPacket packet, long deadline)
+			throws IOException
+	{
+		// Rounded up to the next millisecond since a timeout of 0 would mean
+		// waiting forever
+		int timeout = 0;
+		if (deadline != Long.MAX_VALUE) {
+			long remaining = deadline - RetransmitTimer.now();
+			if (remaining <= 0) {
+				throw new SocketTimeoutException();
+			}
+			timeout = (int)Math.min((remaining + 999_999L) / 1_000_000L,
+					Integer.MAX_VALUE);
+		}
+		if (timeout != this.timeout) {
+			this.socket.setSoTimeout(timeout);
+			this.timeout = timeout;
+		}
+		
+		this.socket.receive(packet);
+	}
+	
+	public int reserveWindow (int blockSize, int windowSize)
+			throws IOException
+	{
+		return reserveWindow(this.socket, blockSize, windowSize);
+	}
+	
+	/**
+	 * Grow a socket's send and receive buffers so that a whole window of
+	 * DATA packets fits in each of them. The buffers are never shrunk, so a
+	 * socket which is reused keeps the room it was given for earlier
+	 * transfers.
+	 * 
+	 * @param socket The socket
+	 * @param blockSize The number of bytes of file data in each DATA packet
+	 * @param windowSize The number of DATA packets in a window
+	 * @return The largest window, up to windowSize, which fits in the
+	 * 		   buffers the kernel granted, at least 1
+	 * @throws SocketException If the size of the buffers could not be set
+	 */
+	public static int reserveWindow (DatagramSocket socket, int blockSize,
+			int windowSize) throws SocketException
+	{
+		long packetRoom = (long)BUFFER_HEADROOM *
+				(blockSize + PacketCodec.HEADER_SIZE);
+		int needed = (int)Math.min(packetRoom * windowSize,
+				Integer.MAX_VALUE);
+		
+		if (socket.getReceiveBufferSize() < needed) {
+			socket.setReceiveBufferSize(needed);
+		}
+		if (socket.getSendBufferSize() < needed) {
+			socket.setSendBufferSize(needed);
+		}
+		
+		// The kernel may grant less than was asked for
+		int granted = Math.min(socket.getReceiveBufferSize(),
+				socket.getSendBufferSize());
+		return (int)Math.max(1, Math.min(windowSize, granted / packetRoom));
+	}
+	
+	public InetSocketAddress getLocalAddress ()
+	{
+		return (InetSocketAddress)this.socket.getLocalSocketAddress();
+	}
+	
+	public void close ()
+	{
+		this.socket.close();
+	}
+}
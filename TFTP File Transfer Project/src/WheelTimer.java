@@ -0,0 +1,127 @@
+import java.io.Closeable;
+import java.util.ArrayDeque;
+
+/**
+ * Runs tasks after a delay on a thread of its own, keeping the delayed
+ * tasks in a TimingWheel. Tasks run one at a time, in the order that they
+ * become due.
+ * 
+ * Unlike the wheel itself, the timer may be used from any thread.
+ */
+public class WheelTimer implements Runnable, Closeable {
+	
+	/**
+	 * Timers waiting for their delay to pass
+	 */
+	private TimingWheel wheel =
+			new TimingWheel(TimingWheel.DEFAULT_TICK, RetransmitTimer.now());
+	/**
+	 * Tasks which are due, in the order they are run
+	 */
+	private ArrayDeque<Runnable> ready = new ArrayDeque<Runnable>();
+	/**
+	 * Whether the timer has been closed
+	 */
+	private boolean closed = false;
+	
+	/**
+	 * Create a timer and start its thread.
+	 * 
+	 * @param name The name of the timer's thread
+	 */
+	public WheelTimer (String name)
+	{
+		Thread thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Run a task after a delay.
+	 * 
+	 * @param task The task to run
+	 * @param delay The delay in milliseconds
+	 * @throws IllegalStateException If the timer has been closed
+	 */
+	public synchronized void schedule (Runnable task, long delay)
+			throws IllegalStateException
+	{
+		if (this.closed) {
+			throw new IllegalStateException("The timer has been closed.");
+		}
+		
+		long now = RetransmitTimer.now();
+		if (delay <= 0) {
+			// Run straight away rather than on the next tick, but after
+			// anything which is already due
+			this.wheel.expire(now);
+			this.ready.add(task);
+		} else {
+			this.wheel.schedule(now + (delay * 1_000_000L),
+					() -> this.ready.add(task));
+		}
+		this.notifyAll();
+	}
+	
+	/**
+	 * Cancel every task which has not started to run.
+	 */
+	public synchronized void cancelAll ()
+	{
+		this.wheel.clear();
+		this.ready.clear();
+	}
+	
+	/**
+	 * Run tasks as they become due until the timer is closed.
+	 */
+	public void run ()
+	{
+		while (true) {
+			Runnable task;
+			synchronized (this) {
+				try {
+					while (!this.closed && this.ready.isEmpty()) {
+						long now = RetransmitTimer.now();
+						this.wheel.expire(now);
+						if (!this.ready.isEmpty()) {
+							break;
+						}
+						
+						long next = this.wheel.nextExpiry();
+						if (next == Long.MAX_VALUE) {
+							this.wait();
+						} else if (next > now) {
+							this.wait((next - now) / 1_000_000L,
+									(int)((next - now) % 1_000_000L));
+						}
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (this.closed) {
+					return;
+				}
+				task = this.ready.poll();
+			}
+			
+			// Run without holding the lock, so that tasks can be scheduled
+			// while it runs
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Cancel every task and stop the timer's thread.
+	 */
+	public synchronized void close ()
+	{
+		this.closed = true;
+		this.cancelAll();
+		this.notifyAll();
+	}
+}